@@ -0,0 +1,64 @@
+package io.github.lucaseasedup.logit.security.model;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures hashing and verification with every {@code CommonHashingModel}
+ * algorithm at typical round counts.
+ *
+ * <p> Run with {@code mvn -P benchmark compile exec:exec
+ * -Djmh.include=CommonHashingModelBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommonHashingModelBenchmark
+{
+    @Setup
+    public void setUp()
+    {
+        model = new CommonHashingModel(
+                CommonHashingModel.Algorithm.decode(algorithm), rounds
+        );
+        salt = model.generateSalt();
+        hash = model.getHash(PASSWORD, salt);
+    }
+    
+    @Benchmark
+    public String getHash()
+    {
+        return model.getHash(PASSWORD, salt);
+    }
+    
+    @Benchmark
+    public boolean verify()
+    {
+        return model.verify(PASSWORD, salt, hash);
+    }
+    
+    @Param({"plain", "md2", "md5", "sha-1", "sha-256", "sha-384", "sha-512", "whirlpool"})
+    public String algorithm;
+    
+    @Param({"1", "10", "1000"})
+    public int rounds;
+    
+    private static final String PASSWORD = "correct horse battery staple";
+    
+    private CommonHashingModel model;
+    private String salt;
+    private String hash;
+}
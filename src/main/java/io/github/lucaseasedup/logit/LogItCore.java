@@ -5,6 +5,7 @@ import io.github.lucaseasedup.logit.account.Account;
 import io.github.lucaseasedup.logit.account.AccountKeys;
 import io.github.lucaseasedup.logit.account.AccountManager;
 import io.github.lucaseasedup.logit.account.AccountWatcher;
+import io.github.lucaseasedup.logit.account.LoginHistoryManager;
 import io.github.lucaseasedup.logit.backup.BackupManager;
 import io.github.lucaseasedup.logit.command.AcclockCommand;
 import io.github.lucaseasedup.logit.command.AccunlockCommand;
@@ -25,7 +26,9 @@ import io.github.lucaseasedup.logit.common.Disposable;
 import io.github.lucaseasedup.logit.common.FatalReportedException;
 import io.github.lucaseasedup.logit.common.PlayerCollections;
 import io.github.lucaseasedup.logit.common.Timer;
+import io.github.lucaseasedup.logit.common.TokenBucketMap;
 import io.github.lucaseasedup.logit.common.Wrapper;
+import io.github.lucaseasedup.logit.config.ConfigSnapshot;
 import io.github.lucaseasedup.logit.config.ConfigurationManager;
 import io.github.lucaseasedup.logit.config.InvalidPropertyValueException;
 import io.github.lucaseasedup.logit.config.PredefinedConfiguration;
@@ -58,20 +61,26 @@ import io.github.lucaseasedup.logit.persistence.HealthBarSerializer;
 import io.github.lucaseasedup.logit.persistence.HungerBarSerializer;
 import io.github.lucaseasedup.logit.persistence.LocationSerializer;
 import io.github.lucaseasedup.logit.persistence.PersistenceManager;
+import io.github.lucaseasedup.logit.persistence.PersistenceStore;
 import io.github.lucaseasedup.logit.persistence.PersistenceSerializer;
 import io.github.lucaseasedup.logit.profile.ProfileManager;
+import io.github.lucaseasedup.logit.security.AttemptThrottle;
 import io.github.lucaseasedup.logit.security.GlobalPasswordManager;
+import io.github.lucaseasedup.logit.security.HashingPool;
+import io.github.lucaseasedup.logit.security.JoinGuard;
 import io.github.lucaseasedup.logit.security.SecurityHelper;
+import io.github.lucaseasedup.logit.security.model.HashingModel;
+import io.github.lucaseasedup.logit.session.SessionHandoff;
 import io.github.lucaseasedup.logit.session.SessionManager;
 import io.github.lucaseasedup.logit.storage.CacheType;
 import io.github.lucaseasedup.logit.storage.DataType;
 import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.StorageChangeLog;
 import io.github.lucaseasedup.logit.storage.StorageFactory;
 import io.github.lucaseasedup.logit.storage.StorageType;
 import io.github.lucaseasedup.logit.storage.UnitKeys;
 import io.github.lucaseasedup.logit.storage.WrapperStorage;
 import io.github.lucaseasedup.logit.tab.TabListUpdater;
-import io.github.lucaseasedup.logit.util.CollectionUtils;
 import io.github.lucaseasedup.logit.util.IoUtils;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.io.File;
@@ -80,7 +89,6 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -89,6 +97,7 @@ import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
 import org.bukkit.command.CommandExecutor;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
@@ -260,8 +269,64 @@ public final class LogItCore
         
         timing.endPersistenceManager();
         // =======================================
-
+        
         disposables.add(securityHelper = new SecurityHelper());
+        
+        if (getConfig("config.yml").getBoolean("passwords.calibration.enabled"))
+        {
+            long targetLatency = getConfig("config.yml").getTime(
+                    "passwords.calibration.targetLatency", TimeUnit.MILLISECONDS
+            );
+            HashingModel calibratedModel =
+                    securityHelper.calibrateDefaultHashingModel(Math.max(1L, targetLatency));
+            
+            log(Level.INFO, "Calibrated password hashing: " + calibratedModel.encode());
+        }
+        
+        int hashingThreads = getConfig("secret.yml").getInt("hashing.threads");
+        
+        if (hashingThreads <= 0)
+        {
+            hashingThreads = Runtime.getRuntime().availableProcessors();
+        }
+        
+        disposables.add(hashingPool = new HashingPool(hashingThreads,
+                Math.max(1, getConfig("secret.yml").getInt("hashing.queueLimit"))));
+        disposables.add(attemptThrottle = new AttemptThrottle(
+                getConfig("config.yml").getInt("bruteForce.throttle.perIp.capacity"),
+                Math.max(1L, getConfig("config.yml").getTime(
+                        "bruteForce.throttle.perIp.refillInterval", TimeUnit.MILLISECONDS)),
+                getConfig("config.yml").getInt("bruteForce.throttle.global.capacity"),
+                Math.max(1L, getConfig("config.yml").getTime(
+                        "bruteForce.throttle.global.refillInterval", TimeUnit.MILLISECONDS)),
+                Math.max(1, getConfig("secret.yml").getInt("bruteForce.throttle.maxTrackedIps"))
+        ));
+        
+        int maxTrackedAddresses =
+                Math.max(1, getConfig("secret.yml").getInt("joinGuard.maxTrackedAddresses"));
+        
+        disposables.add(joinGuard = new JoinGuard(
+                new TokenBucketMap<String>(
+                        getConfig("config.yml").getInt("joinGuard.perIp.capacity"),
+                        Math.max(1L, getConfig("config.yml").getTime(
+                                "joinGuard.perIp.refillInterval", TimeUnit.MILLISECONDS)),
+                        maxTrackedAddresses),
+                new TokenBucketMap<String>(
+                        getConfig("config.yml").getInt("joinGuard.perSubnet.capacity"),
+                        Math.max(1L, getConfig("config.yml").getTime(
+                                "joinGuard.perSubnet.refillInterval", TimeUnit.MILLISECONDS)),
+                        maxTrackedAddresses),
+                new TokenBucketMap<String>(
+                        getConfig("config.yml").getInt("joinGuard.global.capacity"),
+                        Math.max(1L, getConfig("config.yml").getTime(
+                                "joinGuard.global.refillInterval", TimeUnit.MILLISECONDS)),
+                        1),
+                Math.max(1L, getConfig("config.yml").getTime(
+                        "joinGuard.attackMode.duration", TimeUnit.MILLISECONDS)),
+                Math.max(1L, getConfig("config.yml").getTime(
+                        "joinGuard.unregisteredCache.ttl", TimeUnit.MILLISECONDS)),
+                maxTrackedAddresses
+        ));
         disposables.add(backupManager = new BackupManager(getAccountManager()));
         disposables.add(sessionManager = new SessionManager());
         disposables.add(messageDispatcher = new LogItMessageDispatcher());
@@ -330,7 +395,7 @@ public final class LogItCore
         getDataFile("backup").mkdir();
         getDataFile("lib").mkdir();
         getDataFile("mail").mkdir();
-
+        
         extractMailTemplate("password-recovery.html");
     }
     
@@ -401,7 +466,7 @@ public final class LogItCore
     {
         disposables.add(logger = new LogItCoreLogger(this));
         logger.open();
-
+        
         disposables.add(commandSilencer = new CommandSilencer(Arrays.asList(
                 getPlugin().getCommand("login"),
                 getPlugin().getCommand("logout"),
@@ -574,6 +639,17 @@ public final class LogItCore
             FatalReportedException.throwNew(ex);
         }
         
+        try
+        {
+            // AccountWatcher pages through accounts in this order.
+            accountStorage.createIndex(accountsUnit, Arrays.asList(
+                    accountKeys.last_active_date(), accountKeys.username()));
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, "Could not create accounts table index", ex);
+        }
+        
         try
         {
             accountStorage.preload(leadingUnit);
@@ -593,11 +669,105 @@ public final class LogItCore
         {
             log(Level.SEVERE, "Could not construct AccountManager", ex);
         }
+        
+        if (getConfig("config.yml").getBoolean("storage.changeLog.enabled"))
+        {
+            try
+            {
+                disposables.add(changeLog = new StorageChangeLog(
+                        accountStorage,
+                        getConfig("config.yml").getString("storage.changeLog.unit")
+                ));
+                
+                accountManager.setChangeLog(changeLog);
+            }
+            catch (IOException ex)
+            {
+                log(Level.SEVERE, "Could not construct StorageChangeLog", ex);
+            }
+        }
+        
+        if (getConfig("config.yml").getBoolean("loginHistory.enabled"))
+        {
+            try
+            {
+                disposables.add(loginHistoryManager = new LoginHistoryManager(
+                        accountStorage,
+                        getConfig("config.yml").getString("storage.loginHistory.unit")
+                ));
+            }
+            catch (IOException ex)
+            {
+                log(Level.SEVERE, "Could not construct LoginHistoryManager", ex);
+            }
+        }
+        
+        if (getConfig("config.yml").getBoolean("sessionSharing.enabled"))
+        {
+            String secret = getConfig("config.yml").getString("sessionSharing.secret");
+            
+            if (secret.isEmpty())
+            {
+                log(Level.WARNING, "Session sharing has been disabled"
+                        + " because sessionSharing.secret is not set.");
+            }
+            // Behind a proxy without IP forwarding, all players share
+            // the address of the proxy, to which handoffs would be bound.
+            else if (!Bukkit.getOnlineMode() && !isIpForwardingEnabled())
+            {
+                log(Level.WARNING, "Session sharing has been disabled"
+                        + " because IP forwarding is not enabled"
+                        + " (settings.bungeecord in spigot.yml).");
+            }
+            else
+            {
+                try
+                {
+                    disposables.add(sessionHandoff = new SessionHandoff(
+                            accountStorage,
+                            getConfig("config.yml").getString("storage.sessionSharing.unit"),
+                            secret
+                    ));
+                }
+                catch (IOException ex)
+                {
+                    log(Level.SEVERE, "Could not construct SessionHandoff", ex);
+                }
+            }
+        }
+    }
+    
+    private static boolean isIpForwardingEnabled()
+    {
+        File spigotConfigFile = new File("spigot.yml");
+        
+        if (!spigotConfigFile.isFile())
+            return false;
+        
+        return YamlConfiguration.loadConfiguration(spigotConfigFile)
+                .getBoolean("settings.bungeecord");
     }
     
     private void setUpPersistenceManager() throws FatalReportedException
     {
-        disposables.add(persistenceManager = new PersistenceManager());
+        PersistenceStore persistenceStore = null;
+        
+        try
+        {
+            persistenceStore = new PersistenceStore(
+                    getAccountManager().getStorage(),
+                    getConfig("config.yml").getString("storage.persistence.unit")
+            );
+        }
+        catch (IOException ex)
+        {
+            log(Level.SEVERE, "Could not construct PersistenceStore", ex);
+            
+            FatalReportedException.throwNew(ex);
+        }
+        
+        disposables.add(persistenceStore);
+        disposables.add(persistenceManager = new PersistenceManager(persistenceStore));
         
         setSerializerEnabled(LocationSerializer.class,
                 getConfig("config.yml").getBoolean("waitingRoom.enabled"));
@@ -637,8 +807,7 @@ public final class LogItCore
             {
                 Account account = getAccountManager().selectAccount(player.getName(),
                         Arrays.asList(
-                                keys.username(),
-                                keys.persistence()
+                                keys.username()
                         )
                 );
                 
@@ -672,14 +841,31 @@ public final class LogItCore
     
     private void startTasks()
     {
-        long bufferFlushInterval = getConfig("secret.yml")
-                .getTime("bufferFlushInterval", TimeUnit.TICKS);
-        
-        scheduleTask(getAccountManager(), 0L, bufferFlushInterval);
+        scheduleTask(getAccountManager(), 0L, AccountManager.TASK_PERIOD);
         scheduleTask(getBackupManager(), 0L, BackupManager.TASK_PERIOD);
         scheduleTask(getSessionManager(), 0L, SessionManager.TASK_PERIOD);
         scheduleTask(getGlobalPasswordManager(), 0L, GlobalPasswordManager.TASK_PERIOD);
+        scheduleTask(getCooldownManager(), 0L, CooldownManager.TASK_PERIOD);
         scheduleTask(getAccountWatcher(), 0L, AccountWatcher.TASK_PERIOD);
+        scheduleTask(getHashingPool(), 0L, HashingPool.TASK_PERIOD);
+        scheduleTask(getAttemptThrottle(), 0L, AttemptThrottle.TASK_PERIOD);
+        scheduleTask(getJoinGuard(), 0L, JoinGuard.TASK_PERIOD);
+        scheduleTask(getPersistenceManager().getStore(), 0L, PersistenceStore.TASK_PERIOD);
+        
+        if (getChangeLog() != null)
+        {
+            scheduleTask(getChangeLog(), 0L, StorageChangeLog.TASK_PERIOD);
+        }
+        
+        if (getLoginHistoryManager() != null)
+        {
+            scheduleTask(getLoginHistoryManager(), 0L, LoginHistoryManager.TASK_PERIOD);
+        }
+        
+        if (getSessionHandoff() != null)
+        {
+            scheduleTask(getSessionHandoff(), 0L, SessionHandoff.TASK_PERIOD);
+        }
         
         if (getTabListUpdater() != null)
         {
@@ -715,7 +901,7 @@ public final class LogItCore
         enableCommand("acclock", new AcclockCommand());
         enableCommand("accunlock", new AccunlockCommand());
         enableCommand("loginhistory", new LoginHistoryCommand(),
-                getConfig("config.yml").getBoolean("loginHistory.enabled"));
+                getLoginHistoryManager() != null);
     }
     
     private void enableCommand(
@@ -746,6 +932,18 @@ public final class LogItCore
         
         registerEventListener(getMessageDispatcher());
         registerEventListener(getCooldownManager());
+        registerEventListener(getJoinGuard());
+        registerEventListener(getSessionManager());
+        
+        if (getAccountManager() != null)
+        {
+            registerEventListener(getAccountManager());
+        }
+        
+        if (getSessionHandoff() != null)
+        {
+            registerEventListener(getSessionHandoff());
+        }
         
         if (getTabListUpdater() != null)
         {
@@ -900,6 +1098,23 @@ public final class LogItCore
         
         if (getAccountManager() != null)
         {
+            if (getPersistenceManager() != null)
+            {
+                getPersistenceManager().getStore().shutdownWrites();
+            }
+            
+            getAccountManager().shutdownWrites();
+            
+            if (getLoginHistoryManager() != null)
+            {
+                getLoginHistoryManager().shutdownWrites();
+            }
+            
+            if (getSessionHandoff() != null)
+            {
+                getSessionHandoff().shutdownWrites();
+            }
+            
             try
             {
                 getAccountManager().getStorage().close();
@@ -994,8 +1209,14 @@ public final class LogItCore
         commandSilencer = null;
         localeManager = null;
         accountManager = null;
+        changeLog = null;
+        loginHistoryManager = null;
+        sessionHandoff = null;
         persistenceManager = null;
         securityHelper = null;
+        hashingPool = null;
+        attemptThrottle = null;
+        joinGuard = null;
         backupManager = null;
         sessionManager = null;
         messageDispatcher = null;
@@ -1056,19 +1277,10 @@ public final class LogItCore
      */
     public boolean isPlayerForcedToLogIn(Player player)
     {
-        String playerWorldName = player.getWorld().getName();
-        
-        boolean forcedLoginGlobal = getConfig("config.yml")
-                .getBoolean("forceLogin.global");
-        List<String> exemptedWorlds = getConfig("config.yml")
-                .getStringList("forceLogin.inWorlds");
-        List<String> exemptedPlayers = getConfig("config.yml")
-                .getStringList("forceLogin.exemptPlayers");
+        ConfigSnapshot config = getConfigSnapshot();
         
-        return (forcedLoginGlobal || exemptedWorlds.contains(playerWorldName))
-                && !CollectionUtils.containsIgnoreCase(
-                        player.getName(), exemptedPlayers
-                );
+        return config.isForcedLoginWorld(player.getWorld().getName())
+                && !config.isForceLoginExempt(player.getName());
     }
     
     /**
@@ -1309,6 +1521,21 @@ public final class LogItCore
         return getConfigurationManager().getConfiguration(filename);
     }
     
+    /**
+     * Returns the latest snapshot of config.yml,
+     * for reading properties on hot paths.
+     * 
+     * @return the snapshot, or {@code null} if config.yml
+     *         has not been loaded yet.
+     */
+    public ConfigSnapshot getConfigSnapshot()
+    {
+        if (getConfigurationManager() == null)
+            return null;
+        
+        return getConfigurationManager().getSnapshot();
+    }
+    
     public Location getWaitingRoomLocation()
     {
         return getConfig("config.yml")
@@ -1330,6 +1557,21 @@ public final class LogItCore
         return accountManager;
     }
     
+    public StorageChangeLog getChangeLog()
+    {
+        return changeLog;
+    }
+    
+    public LoginHistoryManager getLoginHistoryManager()
+    {
+        return loginHistoryManager;
+    }
+    
+    public SessionHandoff getSessionHandoff()
+    {
+        return sessionHandoff;
+    }
+    
     public PersistenceManager getPersistenceManager()
     {
         return persistenceManager;
@@ -1340,6 +1582,21 @@ public final class LogItCore
         return securityHelper;
     }
     
+    public HashingPool getHashingPool()
+    {
+        return hashingPool;
+    }
+    
+    public AttemptThrottle getAttemptThrottle()
+    {
+        return attemptThrottle;
+    }
+    
+    public JoinGuard getJoinGuard()
+    {
+        return joinGuard;
+    }
+    
     public BackupManager getBackupManager()
     {
         return backupManager;
@@ -1422,8 +1679,14 @@ public final class LogItCore
     private CraftReflect craftReflect;
     private LocaleManager localeManager;
     private AccountManager accountManager;
+    private StorageChangeLog changeLog;
+    private LoginHistoryManager loginHistoryManager;
+    private SessionHandoff sessionHandoff;
     private PersistenceManager persistenceManager;
     private SecurityHelper securityHelper;
+    private HashingPool hashingPool;
+    private AttemptThrottle attemptThrottle;
+    private JoinGuard joinGuard;
     private BackupManager backupManager;
     private SessionManager sessionManager;
     private LogItMessageDispatcher messageDispatcher;
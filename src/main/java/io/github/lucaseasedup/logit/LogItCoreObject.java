@@ -2,9 +2,11 @@ package io.github.lucaseasedup.logit;
 
 import io.github.lucaseasedup.logit.account.AccountKeys;
 import io.github.lucaseasedup.logit.account.AccountManager;
+import io.github.lucaseasedup.logit.account.LoginHistoryManager;
 import io.github.lucaseasedup.logit.backup.BackupManager;
 import io.github.lucaseasedup.logit.command.LogItTabCompleter;
 import io.github.lucaseasedup.logit.common.Disposable;
+import io.github.lucaseasedup.logit.config.ConfigSnapshot;
 import io.github.lucaseasedup.logit.config.ConfigurationManager;
 import io.github.lucaseasedup.logit.config.PredefinedConfiguration;
 import io.github.lucaseasedup.logit.cooldown.CooldownManager;
@@ -12,8 +14,12 @@ import io.github.lucaseasedup.logit.locale.LocaleManager;
 import io.github.lucaseasedup.logit.message.LogItMessageDispatcher;
 import io.github.lucaseasedup.logit.persistence.PersistenceManager;
 import io.github.lucaseasedup.logit.profile.ProfileManager;
+import io.github.lucaseasedup.logit.security.AttemptThrottle;
 import io.github.lucaseasedup.logit.security.GlobalPasswordManager;
+import io.github.lucaseasedup.logit.security.HashingPool;
+import io.github.lucaseasedup.logit.security.JoinGuard;
 import io.github.lucaseasedup.logit.security.SecurityHelper;
+import io.github.lucaseasedup.logit.session.SessionHandoff;
 import io.github.lucaseasedup.logit.session.SessionManager;
 import java.io.File;
 import java.util.logging.Level;
@@ -92,6 +98,11 @@ public abstract class LogItCoreObject implements Disposable
         return getCore().getConfig(filename);
     }
     
+    protected final ConfigSnapshot getConfigSnapshot()
+    {
+        return getCore().getConfigSnapshot();
+    }
+    
     protected final LocaleManager getLocaleManager()
     {
         return getCore().getLocaleManager();
@@ -107,6 +118,16 @@ public abstract class LogItCoreObject implements Disposable
         return getCore().getAccountManager().getKeys();
     }
     
+    protected final LoginHistoryManager getLoginHistoryManager()
+    {
+        return getCore().getLoginHistoryManager();
+    }
+    
+    protected final SessionHandoff getSessionHandoff()
+    {
+        return getCore().getSessionHandoff();
+    }
+    
     protected final PersistenceManager getPersistenceManager()
     {
         return getCore().getPersistenceManager();
@@ -117,6 +138,21 @@ public abstract class LogItCoreObject implements Disposable
         return getCore().getSecurityHelper();
     }
     
+    protected final HashingPool getHashingPool()
+    {
+        return getCore().getHashingPool();
+    }
+    
+    protected final AttemptThrottle getAttemptThrottle()
+    {
+        return getCore().getAttemptThrottle();
+    }
+    
+    protected final JoinGuard getJoinGuard()
+    {
+        return getCore().getJoinGuard();
+    }
+    
     protected final BackupManager getBackupManager()
     {
         return getCore().getBackupManager();
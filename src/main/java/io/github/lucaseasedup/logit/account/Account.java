@@ -2,22 +2,21 @@ package io.github.lucaseasedup.logit.account;
 
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.common.ReportedException;
+import io.github.lucaseasedup.logit.persistence.PersistenceCodec;
 import io.github.lucaseasedup.logit.security.model.HashingModel;
 import io.github.lucaseasedup.logit.security.model.HashingModelDecoder;
 import io.github.lucaseasedup.logit.storage.StorageEntry;
-import io.github.lucaseasedup.logit.util.IniUtils;
 import io.github.lucaseasedup.logit.util.Validators;
-import it.sauronsoftware.base64.Base64;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 import org.apache.commons.lang.StringUtils;
@@ -221,12 +220,49 @@ public final class Account extends LogItCoreObject
      *        does not contain the required keys.
      */
     public boolean checkPassword(String password)
+    {
+        return preparePasswordCheck(password).call();
+    }
+    
+    /**
+     * Prepares a password check that can be performed on any thread,
+     * for example by the {@code HashingPool}.
+     *
+     * <p> The hash, salt and hashing algorithm are read from the account
+     * when this method is called, so later changes to the account do not
+     * affect the returned check.
+     *
+     * <p> This method requires the following keys to exist in the underlying
+     * storage entry: <i>salt</i>, <i>password</i>, <i>hashing_algorithm</i>.
+     *
+     * @param password
+     *       The password to be checked.
+     *
+     * @return A task returning {@code true} if the password is correct;
+     *         {@code false} otherwise.
+     *
+     * @throws IllegalArgumentException
+     *        If {@code password} is {@code null}, or if the underlying entry
+     *        does not contain the required keys.
+     *
+     * @see #checkPassword(String)
+     */
+    public HashingTask<Boolean> preparePasswordCheck(final String password)
     {
         if (password == null)
             throw new IllegalArgumentException("Null password");
         
         if (getConfig("secret.yml").getBoolean("passwords.disable"))
-            return true;
+        {
+            return new HashingTask<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                {
+                    return true;
+                }
+            };
+        }
         
         if (!entry.containsKey(keys().salt()))
             throw new IllegalArgumentException("Missing entry key: salt");
@@ -251,16 +287,26 @@ public final class Account extends LogItCoreObject
             }
         }
         
-        if (getConfig("secret.yml").getBoolean("passwords.useSalt"))
-        {
-            String salt = entry.get(keys().salt());
-            
-            return hashingModel.verify(password, salt, hash);
-        }
-        else
+        final HashingModel model = hashingModel;
+        final String expectedHash = hash;
+        final String salt = getConfig("secret.yml").getBoolean("passwords.useSalt")
+                ? entry.get(keys().salt()) : null;
+        
+        return new HashingTask<Boolean>()
         {
-            return hashingModel.verify(password, hash);
-        }
+            @Override
+            public Boolean call()
+            {
+                if (salt != null)
+                {
+                    return model.verify(password, salt, expectedHash);
+                }
+                else
+                {
+                    return model.verify(password, expectedHash);
+                }
+            }
+        };
     }
     
     /**
@@ -283,28 +329,172 @@ public final class Account extends LogItCoreObject
         if (newPassword == null)
             throw new IllegalArgumentException("Null newPassword");
         
+        applyPasswordChange(preparePasswordChange(newPassword).call());
+    }
+    
+    /**
+     * Prepares hashing of a new password that can be performed
+     * on any thread, for example by the {@code HashingPool}.
+     * The result is to be applied with {@link #applyPasswordChange}.
+     *
+     * @param newPassword
+     *       The new password.
+     *
+     * @return A task returning the hashed password, or {@code null}
+     *         if passwords have been disabled as of the config file.
+     *
+     * @throws IllegalArgumentException
+     *        If {@code newPassword} is {@code null}.
+     */
+    public HashingTask<HashedPassword> preparePasswordChange(final String newPassword)
+    {
+        if (newPassword == null)
+            throw new IllegalArgumentException("Null newPassword");
+        
+        return prepareHashing(newPassword, null);
+    }
+    
+    /**
+     * Checks whether the password has been hashed with a model other than
+     * the default one, for example one with a lower cost, and should be
+     * rehashed the next time the plain password is known.
+     *
+     * <p> This method requires the following keys to exist in the underlying
+     * storage entry: <i>hashing_algorithm</i>.
+     *
+     * @return {@code true} if the password should be rehashed;
+     *         {@code false} otherwise or if passwords have been disabled.
+     *
+     * @throws IllegalArgumentException
+     *        If the underlying entry does not contain the required keys.
+     */
+    public boolean needsRehash()
+    {
+        if (!entry.containsKey(keys().hashing_algorithm()))
+            throw new IllegalArgumentException("Missing entry key: hashing_algorithm");
+        
         if (getConfig("secret.yml").getBoolean("passwords.disable"))
-            return;
+            return false;
         
-        HashingModel hashingModel =
+        String defaultAlgorithm =
+                getSecurityHelper().getDefaultHashingModel().encode();
+        
+        return !defaultAlgorithm.equals(entry.get(keys().hashing_algorithm()));
+    }
+    
+    /**
+     * Prepares rehashing of the current password with the default model.
+     * 
+     * <p> Unlike a password change, the result will not be applied
+     * by {@link #applyPasswordChange} if the password has been changed
+     * in the meantime.
+     *
+     * <p> This method requires the following keys to exist in the underlying
+     * storage entry: <i>password</i>.
+     *
+     * @param password
+     *       The current password, already checked to be correct.
+     *
+     * @return A task returning the rehashed password, or {@code null}
+     *         if passwords have been disabled as of the config file.
+     *
+     * @throws IllegalArgumentException
+     *        If {@code password} is {@code null}, or if the underlying entry
+     *        does not contain the required keys.
+     */
+    public HashingTask<HashedPassword> preparePasswordRehash(String password)
+    {
+        if (password == null)
+            throw new IllegalArgumentException("Null password");
+        
+        if (!entry.containsKey(keys().password()))
+            throw new IllegalArgumentException("Missing entry key: password");
+        
+        return prepareHashing(password, entry.get(keys().password()));
+    }
+    
+    private HashingTask<HashedPassword> prepareHashing(
+            final String password, final String replacedHash
+    )
+    {
+        if (getConfig("secret.yml").getBoolean("passwords.disable"))
+        {
+            return new HashingTask<HashedPassword>()
+            {
+                @Override
+                public HashedPassword call()
+                {
+                    return null;
+                }
+            };
+        }
+        
+        final HashingModel hashingModel =
                 getSecurityHelper().getDefaultHashingModel();
-        String newHash;
+        final boolean useSalt =
+                getConfig("secret.yml").getBoolean("passwords.useSalt");
         
-        if (getConfig("secret.yml").getBoolean("passwords.useSalt"))
+        return new HashingTask<HashedPassword>()
         {
-            String newSalt = hashingModel.generateSalt();
-            
-            newHash = hashingModel.getHash(newPassword, newSalt);
-            
-            entry.put(keys().salt(), newSalt);
+            @Override
+            public HashedPassword call()
+            {
+                if (useSalt)
+                {
+                    String newSalt = hashingModel.generateSalt();
+                    
+                    return new HashedPassword(
+                            hashingModel.getHash(password, newSalt),
+                            newSalt,
+                            hashingModel.encode(),
+                            replacedHash
+                    );
+                }
+                else
+                {
+                    return new HashedPassword(
+                            hashingModel.getHash(password),
+                            null,
+                            hashingModel.encode(),
+                            replacedHash
+                    );
+                }
+            }
+        };
+    }
+    
+    /**
+     * Stores a password hashed by a task returned from
+     * {@link #preparePasswordChange(String)}
+     * or {@link #preparePasswordRehash(String)}.
+     *
+     * @param hashedPassword
+     *       The hashed password; if {@code null}, no action will be taken.
+     *
+     * @return {@code false} if a rehashed password has not been stored
+     *         because the password has been changed since the rehash
+     *         was prepared; {@code true} otherwise.
+     */
+    public boolean applyPasswordChange(HashedPassword hashedPassword)
+    {
+        if (hashedPassword == null)
+            return true;
+        
+        if (hashedPassword.replacedHash != null
+                && !hashedPassword.replacedHash.equals(entry.get(keys().password())))
+        {
+            return false;
         }
-        else
+        
+        if (hashedPassword.getSalt() != null)
         {
-            newHash = hashingModel.getHash(newPassword);
+            entry.put(keys().salt(), hashedPassword.getSalt());
         }
         
-        entry.put(keys().password(), newHash);
-        entry.put(keys().hashing_algorithm(), hashingModel.encode());
+        entry.put(keys().password(), hashedPassword.getHash());
+        entry.put(keys().hashing_algorithm(), hashedPassword.getAlgorithm());
+        
+        return true;
     }
     
     /**
@@ -582,7 +772,12 @@ public final class Account extends LogItCoreObject
      * @throws IllegalArgumentException
      *        If {@code unixTime} is negative, or if {@code ip} is not null
      *        but is not a valid IPv4/6 address.
+     *
+     * @deprecated Use {@link LoginHistoryManager#recordLogin} instead.
+     *             The <i>login_history</i> key is only read for records made
+     *             before the login history got its own storage unit.
      */
+    @Deprecated
     public void recordLogin(long unixTime, String ip, boolean succeeded)
     {
         if (unixTime < 0)
@@ -668,8 +863,14 @@ public final class Account extends LogItCoreObject
      * <p> This method requires the following keys to exist in the underlying
      * storage entry: <i>persistence</i>.
      *
-     * @return The persistence data, or {@code null} if an I/O error occurred
-     *         whilst the deserialization process.
+     * <p> The decoded data is cached until the <i>persistence</i> key
+     * changes, so repeated calls do not decode it again.
+     *
+     * <p> Only the legacy <i>persistence</i> key is read; persistence data
+     * is now kept by {@link io.github.lucaseasedup.logit.persistence.PersistenceStore}.
+     *
+     * @return A copy of the persistence data, or {@code null} if an I/O error
+     *         occurred whilst the deserialization process.
      *
      * @throws IllegalArgumentException
      *        If the underlying entry does not contain the required keys.
@@ -684,20 +885,14 @@ public final class Account extends LogItCoreObject
             throw new IllegalArgumentException("Missing entry key: persistence");
         
         String persistenceString = entry.get(keys().persistence());
-        Map<String, String> persistence = new LinkedHashMap<>();
         
-        if (persistenceString != null)
+        if (cachedPersistence == null
+                || !persistenceString.equals(cachedPersistenceString))
         {
-            if (getConfig("secret.yml").getBoolean("debug.encodePersistence"))
-            {
-                persistenceString = Base64.decode(persistenceString);
-            }
-            
             try
             {
-                persistence = IniUtils.unserialize(
-                        persistenceString
-                ).get("persistence");
+                cachedPersistence = PersistenceCodec.decode(persistenceString);
+                cachedPersistenceString = persistenceString;
             }
             catch (IOException ex)
             {
@@ -708,18 +903,13 @@ public final class Account extends LogItCoreObject
                 
                 return null;
             }
-            
-            if (persistence == null)
-            {
-                return new LinkedHashMap<>();
-            }
         }
         
-        return persistence;
+        return new LinkedHashMap<>(cachedPersistence);
     }
     
     /**
-     * Saves persistence data.
+     * Saves persistence data in the legacy <i>persistence</i> key.
      * 
      * @param persistence
      *       The new persistence data.
@@ -739,20 +929,15 @@ public final class Account extends LogItCoreObject
         if (!getConfig("secret.yml").getBoolean("debug.writePersistence"))
             return;
         
-        Map<String, Map<String, String>> persistenceIni = new HashMap<>(1);
-        
-        persistenceIni.put("persistence", persistence);
-        
         try
         {
-            String persistenceString = IniUtils.serialize(persistenceIni);
-            
-            if (getConfig("secret.yml").getBoolean("debug.encodePersistence"))
-            {
-                persistenceString = Base64.encode(persistenceString);
-            }
+            String persistenceString = PersistenceCodec.encode(persistence,
+                    getConfig("secret.yml").getBoolean("debug.encodePersistence"));
             
             entry.put(keys().persistence(), persistenceString);
+            
+            cachedPersistence = new LinkedHashMap<>(persistence);
+            cachedPersistenceString = persistenceString;
         }
         catch (IOException ex)
         {
@@ -793,6 +978,7 @@ public final class Account extends LogItCoreObject
      * gets updated in a {@code Storage}.
      *
      * <p> Once the callback gets called, it is removed from the queue.
+     * Callbacks are always called on the server thread.
      *
      * @param callback
      *       The save-callback to be enqueued.
@@ -805,12 +991,17 @@ public final class Account extends LogItCoreObject
         saveCallbacks.add(callback);
     }
     
-    /* package */ void runSaveCallbacks(boolean success)
+    /**
+     * Removes all the enqueued save-callbacks and returns them,
+     * so that they can be called once the account has been saved.
+     */
+    /* package */ Queue<SaveCallback> takeSaveCallbacks()
     {
-        while (!saveCallbacks.isEmpty())
-        {
-            saveCallbacks.remove().onSave(success);
-        }
+        Queue<SaveCallback> takenCallbacks = new LinkedList<>(saveCallbacks);
+        
+        saveCallbacks.clear();
+        
+        return takenCallbacks;
     }
     
     /**
@@ -937,6 +1128,60 @@ public final class Account extends LogItCoreObject
         public void onSave(boolean success);
     }
     
+    /**
+     * Task hashing a password that, unlike a plain {@code Callable},
+     * throws no checked exceptions.
+     * 
+     * @see Account#preparePasswordCheck(String)
+     * @see Account#preparePasswordChange(String)
+     */
+    public abstract static class HashingTask<T> implements Callable<T>
+    {
+        @Override
+        public abstract T call();
+    }
+    
+    /**
+     * Password hashed off the server thread.
+     * 
+     * @see Account#preparePasswordChange(String)
+     */
+    public static final class HashedPassword
+    {
+        private HashedPassword(
+                String hash, String salt, String algorithm, String replacedHash
+        )
+        {
+            this.hash = hash;
+            this.salt = salt;
+            this.algorithm = algorithm;
+            this.replacedHash = replacedHash;
+        }
+        
+        public String getHash()
+        {
+            return hash;
+        }
+        
+        /**
+         * Returns the salt, or {@code null} if salting is disabled.
+         */
+        public String getSalt()
+        {
+            return salt;
+        }
+        
+        public String getAlgorithm()
+        {
+            return algorithm;
+        }
+        
+        private final String hash;
+        private final String salt;
+        private final String algorithm;
+        private final String replacedHash;
+    }
+    
     /**
      * Used for {@link #recordLogin(long, String, boolean)}.
      */
@@ -954,4 +1199,11 @@ public final class Account extends LogItCoreObject
     private StorageEntry entry;
     private final Queue<SaveCallback> saveCallbacks = new LinkedList<>();
     private boolean bufferLocked = false;
+    
+    /**
+     * Decoded persistence data, valid as long as the <i>persistence</i> key
+     * equals {@link #cachedPersistenceString}.
+     */
+    private Map<String, String> cachedPersistence;
+    private String cachedPersistenceString;
 }
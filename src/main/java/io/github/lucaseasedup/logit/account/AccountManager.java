@@ -3,6 +3,8 @@ package io.github.lucaseasedup.logit.account;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.CancelledState;
 import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.common.LockStripes;
+import io.github.lucaseasedup.logit.common.MaintainableHashMap;
 import io.github.lucaseasedup.logit.common.QueuedMap;
 import io.github.lucaseasedup.logit.common.ReportedException;
 import io.github.lucaseasedup.logit.config.TimeUnit;
@@ -10,32 +12,64 @@ import io.github.lucaseasedup.logit.logging.CustomLevel;
 import io.github.lucaseasedup.logit.session.SessionManager;
 import io.github.lucaseasedup.logit.storage.Infix;
 import io.github.lucaseasedup.logit.storage.Selector;
+import io.github.lucaseasedup.logit.storage.SelectorBinary;
 import io.github.lucaseasedup.logit.storage.SelectorCondition;
 import io.github.lucaseasedup.logit.storage.SelectorConstant;
+import io.github.lucaseasedup.logit.storage.SelectorNegation;
+import io.github.lucaseasedup.logit.storage.SqlUtils;
 import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.StorageChangeLog;
 import io.github.lucaseasedup.logit.storage.StorageDatum;
 import io.github.lucaseasedup.logit.storage.StorageEntry;
 import io.github.lucaseasedup.logit.storage.StorageObserver;
 import io.github.lucaseasedup.logit.storage.StoragePinger;
 import io.github.lucaseasedup.logit.storage.WrapperStorage;
 import io.github.lucaseasedup.logit.util.CollectionUtils;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import org.apache.commons.lang.StringUtils;
 import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.scheduler.BukkitTask;
 
-public final class AccountManager extends LogItCoreObject implements Runnable
+/**
+ * Selects and modifies accounts stored in a storage unit,
+ * keeping recently used accounts in memory.
+ * 
+ * <p> Operations on a single account lock only the stripe of its username,
+ * so work on different accounts proceeds in parallel; the cache itself
+ * is guarded by a separate lock that is never held during I/O.
+ * Scans such as {@link #selectAccounts(List, Selector)} query the storage
+ * without locking this {@code AccountManager} at all.
+ */
+public final class AccountManager extends LogItCoreObject
+        implements Runnable, Listener
 {
     /**
      * Constructs a new {@code AccountManager}.
@@ -62,7 +96,88 @@ public final class AccountManager extends LogItCoreObject implements Runnable
             @Override
             public void beforeClose()
             {
+                // The storage is locked at this point,
+                // so the pending writes have to be performed on this thread.
                 flushBuffer();
+                writePipeline.shutdownNow();
+            }
+            
+            @Override
+            public void afterEraseUnit(String unit)
+            {
+                if (unit.equals(AccountManager.this.unit))
+                {
+                    clearUsernameIndexes();
+                }
+            }
+            
+            @Override
+            public void afterRemoveUnit(String unit)
+            {
+                afterEraseUnit(unit);
+            }
+            
+            @Override
+            public void afterAddEntry(String unit, StorageEntry entry)
+            {
+                AccountKeys keys = AccountManager.this.keys;
+                
+                if (keys == null || !unit.equals(AccountManager.this.unit))
+                    return;
+                
+                String username = entry.get(keys.username());
+                
+                if (username != null && !hasPendingWrites(username))
+                {
+                    indexUsername(username.toLowerCase());
+                }
+            }
+            
+            @Override
+            public void afterUpdateEntries(
+                    String unit, StorageEntry entrySubset, Selector selector
+            )
+            {
+                AccountKeys keys = AccountManager.this.keys;
+                
+                if (keys == null || !unit.equals(AccountManager.this.unit))
+                    return;
+                
+                String newUsername = entrySubset.get(keys.username());
+                
+                if (newUsername == null)
+                    return;
+                
+                String oldUsername = getSelectedUsername(selector);
+                
+                if (oldUsername == null)
+                {
+                    markRegistrationIndexStale();
+                }
+                else if (!hasPendingWrites(oldUsername)
+                        && !hasPendingWrites(newUsername))
+                {
+                    unindexUsername(oldUsername);
+                    indexUsername(newUsername.toLowerCase());
+                }
+            }
+            
+            @Override
+            public void afterRemoveEntries(String unit, Selector selector)
+            {
+                if (!unit.equals(AccountManager.this.unit))
+                    return;
+                
+                String username = getSelectedUsername(selector);
+                
+                if (username == null)
+                {
+                    markRegistrationIndexStale();
+                }
+                else if (!hasPendingWrites(username))
+                {
+                    unindexUsername(username);
+                }
             }
         });
         
@@ -70,20 +185,31 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         this.unit = unit;
         this.keys = keys;
         this.pinger = new StoragePinger(storage);
+        this.cacheMaxSize = getConfig("secret.yml").getInt("accountCache.maxSize");
+        this.cacheLifetime = getConfig("secret.yml")
+                .getTime("accountCache.lifetime", TimeUnit.MILLISECONDS);
+        this.writesShutdownTimeout = getConfig("secret.yml")
+                .getTime("accountWrites.shutdownTimeout", TimeUnit.MILLISECONDS);
         
-        if (getConfig("secret.yml").getBoolean("generateBufferUsageGraph"))
+        loadRegistrationIndex();
+        
+        for (Player player : PlayerUtils.getOnlinePlayers())
         {
-            try
-            {
-                bufferUsageGraphWriter = new BufferedWriter(
-                        new FileWriter(getDataFile("bufferUsage.csv"), true)
-                );
-            }
-            catch (IOException ex)
-            {
-                log(Level.WARNING, ex);
-            }
+            onlineUsernames.add(player.getName().toLowerCase());
         }
+        
+        long bufferFlushInterval = getConfig("secret.yml")
+                .getTime("bufferFlushInterval", TimeUnit.MILLISECONDS);
+        
+        this.flushPolicy = new FlushPolicy(
+                bufferFlushInterval,
+                Math.max(bufferFlushInterval, getConfig("secret.yml")
+                        .getTime("bufferFlush.maxInterval", TimeUnit.MILLISECONDS)),
+                getConfig("secret.yml")
+                        .getTime("bufferFlush.maxStaleness", TimeUnit.MILLISECONDS),
+                getConfig("secret.yml").getInt("bufferFlush.dirtyCountThreshold"),
+                getConfig("secret.yml").getInt("bufferFlush.dirtyBytesThreshold")
+        );
     }
     
     @Override
@@ -100,31 +226,38 @@ public final class AccountManager extends LogItCoreObject implements Runnable
             pingerTask = null;
         }
         
-        if (buffer != null)
-        {
-            buffer.clear();
-            buffer = null;
-        }
-        
-        if (registrationCache != null)
+        if (writePipeline != null)
         {
-            registrationCache.clear();
-            registrationCache = null;
+            writePipeline.dispose();
+            writePipeline = null;
         }
         
-        if (bufferUsageGraphWriter != null)
+        synchronized (cacheLock)
         {
-            try
-            {
-                bufferUsageGraphWriter.close();
-            }
-            catch (IOException ex)
+            if (cache != null)
             {
-                log(Level.WARNING, ex);
+                for (CachedAccount cached : cache.values())
+                {
+                    if (cached.account != null)
+                    {
+                        cached.account.getEntry().setDirtyListener(null);
+                    }
+                }
+                
+                cache.clear();
+                cache = null;
             }
             
-            bufferUsageGraphWriter = null;
+            dirtyAccounts.clear();
+            onlineUsernames.clear();
+            
+            prefetchedAccounts.clear();
+            pendingPrefetches.clear();
+            pendingWrites.clear();
+            pendingInserts.clear();
         }
+        
+        clearUsernameIndexes();
     }
     
     /**
@@ -139,7 +272,37 @@ public final class AccountManager extends LogItCoreObject implements Runnable
                     TimeUnit.MINUTES.convertTo(5, TimeUnit.TICKS));
         }
         
-        flushBuffer();
+        writePipeline.runCompletions();
+        
+        RebuiltIndex rebuilt = rebuiltIndex.getAndSet(null);
+        
+        if (rebuilt != null)
+        {
+            installRegistrationIndex(rebuilt);
+        }
+        
+        if (registrationIndexStale && !registrationIndexRebuilding
+                && System.currentTimeMillis() >= nextIndexRebuildTime)
+        {
+            rebuildRegistrationIndex();
+        }
+        
+        FlushPolicy.Reason reason = flushPolicy.check(
+                System.currentTimeMillis(),
+                dirtyAccounts.size(),
+                dirtyBytes.get(),
+                oldestDirtyTime.get()
+        );
+        
+        if (reason != null)
+        {
+            log(CustomLevel.INTERNAL, "Flushing account buffer {"
+                    + "reason = " + reason + "}");
+            
+            flushBuffer();
+        }
+        
+        evictCache();
     }
     
     /**
@@ -159,9 +322,7 @@ public final class AccountManager extends LogItCoreObject implements Runnable
      * @throws ReportedException        if an I/O error occurred,
      *                                  and it was reported to the logger.
      */
-    public synchronized Account selectAccount(
-            String username, List<String> queryKeys
-    )
+    public Account selectAccount(String username, List<String> queryKeys)
     {
         if (username == null || queryKeys == null)
             throw new IllegalArgumentException();
@@ -171,19 +332,56 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         
         username = username.toLowerCase();
         
+        Lock lock = stripes.get(username);
+        
+        lock.lock();
+        
+        try
+        {
+            return selectLockedAccount(username, queryKeys);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private Account selectLockedAccount(String username, List<String> queryKeys)
+    {
         Account cachedAccount = null;
+        boolean cached;
         
-        // If the buffer contains some information about this account.
-        if (buffer.containsKey(username))
+        synchronized (cacheLock)
         {
-            cachedAccount = buffer.get(username);
+            // Fall back to the account loaded by prefetchAccount(),
+            // if it has not made it into the cache yet.
+            if (!isCached(username))
+            {
+                Prefetch prefetch = getValidPrefetch(username);
+                
+                if (prefetch != null)
+                {
+                    cacheAccount(username, prefetch.account);
+                }
+            }
+            
+            cached = isCached(username);
             
+            if (cached)
+            {
+                cachedAccount = getCachedAccount(username);
+            }
+        }
+        
+        // If the cache contains some information about this account.
+        if (cached)
+        {
             // The account is known not to exist.
             if (cachedAccount == null)
             {
                 return null;
             }
-            // The account exists in the buffer.
+            // The account exists in the cache.
             else
             {
                 // All the query keys can be found in the cached entry.
@@ -237,260 +435,335 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         if (entries == null)
             return null;
         
-        // Cache registration status.
-        registrationCache.put(username, !entries.isEmpty());
-        
-        // If no such account exists in the storage,
-        // mark it in the buffer as non-existing and return null.
+        // Keep the registration index in line with the storage.
         if (entries.isEmpty())
         {
-            buffer.put(username, null);
-            
-            return null;
+            unindexUsername(username);
+        }
+        else
+        {
+            indexUsername(username);
         }
         
-        // If the account is just partially cached,
-        // fill the missing keys with the values fetched from the storage.
-        if (cachedAccount != null)
+        synchronized (cacheLock)
         {
-            for (StorageDatum datum : entries.get(0))
+            // If no such account exists in the storage,
+            // mark it in the cache as non-existing and return null.
+            if (entries.isEmpty())
+            {
+                cacheAccount(username, null);
+                
+                return null;
+            }
+            
+            // A scan might have cached the account in the meantime.
+            if (cachedAccount == null)
+            {
+                cachedAccount = getCachedAccount(username);
+            }
+            
+            // If the account is just partially cached,
+            // fill the missing keys with the values fetched from the storage.
+            if (cachedAccount != null)
             {
-                if (!cachedAccount.getEntry().containsKey(datum.getKey()))
+                for (StorageDatum datum : entries.get(0))
                 {
-                    cachedAccount.getEntry().put(
-                            datum.getKey(), datum.getValue()
-                    );
-                    cachedAccount.getEntry().clearKeyDirty(datum.getKey());
+                    if (!cachedAccount.getEntry().containsKey(datum.getKey()))
+                    {
+                        cachedAccount.getEntry().putClean(
+                                datum.getKey(), datum.getValue()
+                        );
+                    }
                 }
             }
-        }
-        
-        // If there was no cached account in the buffer,
-        // create a new Account object for it and put it into the buffer.
-        if (!buffer.containsKey(username))
-        {
-            cachedAccount = new Account(entries.get(0), false);
             
-            buffer.put(username, cachedAccount);
+            // If there was no cached account,
+            // create a new Account object for it and put it into the cache.
+            if (cachedAccount == null)
+            {
+                cachedAccount = new Account(entries.get(0), false);
+                
+                cacheAccount(username, cachedAccount);
+            }
+            
+            return cachedAccount;
         }
-        
-        return cachedAccount;
     }
     
-    public synchronized List<Account> selectAccounts(
-            List<String> queryKeys, Selector selector
-    )
+    /**
+     * Loads the full account of a joining player into memory, so that
+     * the login and join handlers do not have to query the storage.
+     * 
+     * <p> This method may be called from outside the main thread,
+     * and is intended to be called during {@code AsyncPlayerPreLoginEvent}.
+     * The storage is queried without holding any lock on this
+     * {@code AccountManager}.
+     * 
+     * <p> If no account with the given username exists, the account
+     * matching {@code uuid} (if any) is looked up as well. Its username can
+     * then be obtained using {@link #getPrefetchedUuidMatch(String)}.
+     * 
+     * <p> Prefetched accounts stay in memory until released with
+     * {@link #releasePrefetchedAccount(String)} or for at most
+     * {@link #PREFETCH_LIFETIME} milliseconds.
+     * 
+     * @param username the username of an account to be prefetched.
+     * @param uuid     the UUID of the joining player, can be {@code null}.
+     * 
+     * @throws IllegalArgumentException if {@code username} is {@code null}
+     *                                  or blank.
+     */
+    public void prefetchAccount(String username, UUID uuid)
     {
-        if (queryKeys == null || selector == null)
+        if (StringUtils.isBlank(username))
             throw new IllegalArgumentException();
         
-        if (!queryKeys.contains(keys.username()))
-            throw new IllegalArgumentException("Missing query key: username");
+        username = username.toLowerCase();
         
-        List<StorageEntry> entries = null;
+        Storage storage = this.storage;
+        String unit = this.unit;
+        AccountKeys keys = this.keys;
+        
+        if (storage == null || unit == null || keys == null)
+            return;
+        
+        synchronized (cacheLock)
+        {
+            pendingPrefetches.put(username, true);
+        }
+        
+        List<StorageEntry> entries;
+        String uuidMatchedUsername = null;
         
         try
         {
-            entries = storage.selectEntries(unit, queryKeys, selector);
+            entries = storage.selectEntries(
+                    unit,
+                    keys.getNames(),
+                    new SelectorCondition(
+                            keys.username(),
+                            Infix.EQUALS,
+                            username
+                    )
+            );
+            
+            if (entries.isEmpty() && uuid != null)
+            {
+                List<StorageEntry> uuidMatchedEntries = storage.selectEntries(
+                        unit,
+                        Arrays.asList(
+                                keys.username(),
+                                keys.uuid()
+                        ),
+                        new SelectorBinary(
+                                new SelectorNegation(new SelectorCondition(
+                                        keys.username(),
+                                        Infix.CONTAINS,
+                                        "$"
+                                )),
+                                Infix.AND,
+                                new SelectorCondition(
+                                        keys.uuid(),
+                                        Infix.EQUALS,
+                                        uuid.toString()
+                                )
+                        )
+                );
+                
+                if (!uuidMatchedEntries.isEmpty())
+                {
+                    uuidMatchedUsername = uuidMatchedEntries.get(0)
+                            .get(keys.username()).toLowerCase();
+                }
+            }
         }
         catch (IOException ex)
         {
             log(Level.WARNING, ex);
             
-            ReportedException.throwNew(ex);
+            synchronized (cacheLock)
+            {
+                pendingPrefetches.remove(username);
+            }
+            
+            return;
         }
         
-        if (entries == null)
-            return null;
-        
-        List<Account> accounts = new ArrayList<>(entries.size());
-        
-        for (StorageEntry entry : entries)
+        synchronized (cacheLock)
         {
-            String username = entry.get(keys().username()).toLowerCase();
+            Boolean valid = pendingPrefetches.remove(username);
             
-            registrationCache.put(username, true);
+            // The account has been written to since the query was issued,
+            // so the prefetched copy might be outdated.
+            if (valid == null || !valid)
+                return;
             
-            if (buffer.get(username) != null)
+            Account account = null;
+            
+            if (!entries.isEmpty())
             {
-                for (StorageDatum datum : buffer.get(username).getEntry())
-                {
-                    entry.put(datum.getKey(), datum.getValue());
-                }
+                account = new Account(entries.get(0), false);
             }
             
-            Account account = new Account(entry, false);
+            prefetchedAccounts.put(username, new Prefetch(
+                    account, uuidMatchedUsername, System.currentTimeMillis()
+            ));
             
-            if (buffer.get(username) == null)
+            if (account != null)
             {
-                buffer.put(username, account);
+                indexUsername(username);
             }
-            
-            accounts.add(account);
         }
-        
-        return accounts;
     }
     
-    public boolean isRegistered(
-            String username, RegistrationFetchMode fetchMode
-    )
+    /**
+     * Checks whether an account with the given username has been prefetched
+     * using {@link #prefetchAccount(String, UUID)} and is still held
+     * in memory.
+     * 
+     * @param username the username.
+     * 
+     * @return {@code true} if the account has been prefetched;
+     *         {@code false} otherwise.
+     */
+    public boolean isAccountPrefetched(String username)
     {
-        if (StringUtils.isBlank(username) || fetchMode == null)
+        if (username == null)
             throw new IllegalArgumentException();
         
-        username = username.toLowerCase();
-        
-        if (fetchMode == RegistrationFetchMode.STORAGE_ONLY)
+        synchronized (cacheLock)
         {
-            return fetchRegistrationStatus(username);
+            return getValidPrefetch(username.toLowerCase()) != null;
         }
-        else
+    }
+    
+    /**
+     * Returns the username of an account matched by UUID when the account
+     * with the given username was being prefetched.
+     * 
+     * @param username the prefetched username.
+     * 
+     * @return the username of the UUID-matched account, or {@code null}
+     *         if there was no match or the account has not been prefetched.
+     */
+    public String getPrefetchedUuidMatch(String username)
+    {
+        if (username == null)
+            throw new IllegalArgumentException();
+        
+        synchronized (cacheLock)
         {
-            Boolean registered = registrationCache.get(username);
+            Prefetch prefetch = getValidPrefetch(username.toLowerCase());
             
-            if (registered == null)
-            {
-                if (fetchMode == RegistrationFetchMode.STORAGE_FALLBACK)
-                {
-                    return fetchRegistrationStatus(username);
-                }
-                else if (fetchMode == RegistrationFetchMode.CACHE_ELSE_TRUE)
-                {
-                    return true;
-                }
-                else if (fetchMode == RegistrationFetchMode.CACHE_ELSE_FALSE)
-                {
-                    return false;
-                }
-                else
-                {
-                    throw new IllegalArgumentException(
-                            "Unsupported RegistrationFetchMode: " + fetchMode
-                    );
-                }
-            }
-            else
-            {
-                return registered;
-            }
+            if (prefetch == null)
+                return null;
+            
+            return prefetch.uuidMatchedUsername;
         }
     }
     
-    public boolean isRegistered(String username)
+    /**
+     * Releases a prefetched account once it is no longer needed.
+     * 
+     * @param username the prefetched username.
+     */
+    public void releasePrefetchedAccount(String username)
     {
-        return isRegistered(username, RegistrationFetchMode.STORAGE_ONLY);
+        if (username == null)
+            throw new IllegalArgumentException();
+        
+        synchronized (cacheLock)
+        {
+            prefetchedAccounts.remove(username.toLowerCase());
+        }
     }
     
-    private boolean fetchRegistrationStatus(String username)
+    private Prefetch getValidPrefetch(String username)
     {
-        Account account;
+        Prefetch prefetch = prefetchedAccounts.get(username);
         
-        if (buffer.containsKey(username))
-        {
-            account = buffer.get(username);
-        }
-        else
+        if (prefetch == null)
+            return null;
+        
+        if (System.currentTimeMillis() - prefetch.time > PREFETCH_LIFETIME)
         {
-            account = selectAccount(
-                    username,
-                    Arrays.asList(keys.username())
-            );
+            prefetchedAccounts.remove(username);
+            
+            return null;
         }
         
-        return account != null;
+        return prefetch;
     }
     
     /**
-     * Returns all registered usernames in this {@code AccountManager}.
-     *
-     * @return A {@code Set} containing all registered usernames lowercase, or
-     *         {@code null} if an I/O error occurred.
-     *
-     * @throws ReportedException
-     *        If an I/O error occurred, and it was reported to the logger.
+     * Discards prefetched data of an account that is being written to.
      */
-    public Set<String> getRegisteredUsernames()
+    private void invalidatePrefetch(String username)
     {
-        List<Account> accounts = selectAccounts(
-                Arrays.asList(
-                        keys().username()
-                ),
-                new SelectorConstant(true)
-        );
-        
-        if (accounts == null)
-            return null;
-        
-        Set<String> usernames = new LinkedHashSet<>(accounts.size());
-        
-        for (Account account : accounts)
-        {
-            usernames.add(account.getUsername());
-        }
-        
-        return usernames;
+        invalidatePrefetch(username, null);
     }
     
-    public synchronized CancelledState insertAccount(Account account)
+    /**
+     * Discards prefetched data of an account that is being written to,
+     * unless the prefetched {@code Account} object is the one being written.
+     */
+    private void invalidatePrefetch(String username, Account writtenAccount)
     {
-        if (account == null)
-            throw new IllegalArgumentException();
-        
-        AccountEvent event = new AccountInsertEvent(account.getEntry());
-        
-        Bukkit.getPluginManager().callEvent(event);
-        
-        if (event.isCancelled())
-            return CancelledState.CANCELLED;
-        
-        try
+        synchronized (cacheLock)
         {
-            StorageEntry entry = account.getEntry();
-            
-            storage.addEntry(unit, entry);
+            Prefetch prefetch = prefetchedAccounts.get(username);
             
-            for (StorageDatum datum : entry)
+            if (prefetch != null && (writtenAccount == null
+                    || prefetch.account != writtenAccount))
             {
-                entry.clearKeyDirty(datum.getKey());
+                prefetchedAccounts.remove(username);
             }
             
-            buffer.put(account.getUsername(), account);
-            
-            log(Level.FINE, t("createAccount.success.log")
-                    .replace("{0}", account.getUsername()));
-            
-            event.executeSuccessTasks();
-        }
-        catch (IOException ex)
-        {
-            log(Level.WARNING, t("createAccount.fail.log")
-                    .replace("{0}", account.getUsername()), ex);
-            
-            event.executeFailureTasks();
-            
-            ReportedException.throwNew(ex);
+            if (pendingPrefetches.containsKey(username))
+            {
+                pendingPrefetches.put(username, false);
+            }
         }
-        
-        return CancelledState.NOT_CANCELLED;
     }
     
-    public synchronized void insertAccounts(Account... accounts)
+    /**
+     * Selects all accounts matching a selector.
+     * 
+     * <p> The storage is queried without holding any lock on this
+     * {@code AccountManager}, so long scans do not hold up operations
+     * on single accounts. Cached accounts take precedence over
+     * the values returned by the storage.
+     * 
+     * <p> This method must be called on the server thread: the entries
+     * of cached accounts are read here, and they are modified there
+     * without any lock. Use {@link #selectAccountViews(List, Selector)}
+     * elsewhere.
+     * 
+     * @param queryKeys the account keys to be returned by this query.
+     * @param selector  the selector.
+     * 
+     * @return a list of {@code Account} objects, or {@code null}
+     *         if an I/O error occurred.
+     * 
+     * @throws IllegalArgumentException if {@code queryKeys} or
+     *                                  {@code selector} is {@code null}.
+     * 
+     * @throws ReportedException        if an I/O error occurred,
+     *                                  and it was reported to the logger.
+     */
+    public List<Account> selectAccounts(List<String> queryKeys, Selector selector)
     {
-        if (accounts == null)
+        if (queryKeys == null || selector == null)
             throw new IllegalArgumentException();
         
+        if (!queryKeys.contains(keys.username()))
+            throw new IllegalArgumentException("Missing query key: username");
+        
+        List<StorageEntry> entries = null;
+        
         try
         {
-            storage.setAutobatchEnabled(true);
-            
-            for (Account account : accounts)
-            {
-                insertAccount(account);
-            }
-            
-            storage.executeBatch();
-            storage.clearBatch();
+            entries = storage.selectEntries(unit, queryKeys, selector);
         }
         catch (IOException ex)
         {
@@ -498,142 +771,91 @@ public final class AccountManager extends LogItCoreObject implements Runnable
             
             ReportedException.throwNew(ex);
         }
-        finally
-        {
-            storage.setAutobatchEnabled(false);
-        }
-    }
-    
-    public synchronized void renameAccount(String username, String newUsername)
-    {
-        if (StringUtils.isBlank(username) || StringUtils.isBlank(newUsername))
-        {
-            throw new IllegalArgumentException();
-        }
         
-        username = username.toLowerCase();
-        newUsername = newUsername.toLowerCase();
+        if (entries == null)
+            return null;
         
-        try
+        List<Account> accounts = new ArrayList<>(entries.size());
+        
+        for (StorageEntry entry : entries)
         {
-            storage.updateEntries(unit,
-                    new StorageEntry.Builder()
-                            .put(keys().username(), newUsername)
-                            .put(keys().display_name(), "")
-                            .build(),
-                    new SelectorCondition(
-                            keys.username(),
-                            Infix.EQUALS,
-                            username
-                    )
-            );
-            
-            Account bufferedAccount = buffer.remove(username);
+            String username = entry.get(keys().username()).toLowerCase();
             
-            if (bufferedAccount != null)
+            synchronized (cacheLock)
             {
-                bufferedAccount.getEntry().put(keys().username(), newUsername);
+                // Pending writes end on the server thread, so this holds
+                // for the rest of the iteration.
+                boolean pendingWrite = pendingWrites.containsKey(username);
                 
-                if (buffer.get(newUsername) != null)
+                if (!pendingWrite)
                 {
-                    buffer.get(newUsername).setEntry(
-                            bufferedAccount.getEntry()
-                    );
+                    indexUsername(username);
                 }
                 
-                buffer.put(newUsername, bufferedAccount);
+                Account cachedAccount = getCachedAccount(username);
+                
+                if (cachedAccount != null)
+                {
+                    for (StorageDatum datum : cachedAccount.getEntry())
+                    {
+                        entry.put(datum.getKey(), datum.getValue());
+                    }
+                }
+                
+                Account account = new Account(entry, false);
+                
+                // Don't let a pending write be overridden by what the storage
+                // returned before the write was performed.
+                if (cachedAccount == null && !pendingWrite)
+                {
+                    cacheAccount(username, account);
+                }
+                
+                accounts.add(account);
             }
         }
-        catch (IOException ex)
-        {
-            log(Level.WARNING, ex);
-            
-            ReportedException.throwNew(ex);
-        }
+        
+        return accounts;
     }
     
     /**
-     * Removes an account with the given username from the underlying storage
-     * unit.
+     * Selects read-only views of the given keys of all accounts
+     * matching a selector.
      * 
-     * <p> Removing an account does not entail logging out the corresponding
-     * player. To log out a player, use {@link SessionManager#endSession}.
-     * 
-     * <p> This method emits the {@code AccountRemoveEvent} event.
+     * <p> Unlike {@link #selectAccounts(List, Selector)}, this method
+     * creates no {@code Account} objects and leaves the cache untouched,
+     * which makes it suitable for scans of the whole unit. Values of cached
+     * accounts take precedence over those returned by the storage,
+     * accounts removed but not yet written are skipped, and accounts
+     * inserted but not yet written are included if they match the selector,
+     * so that limits such as <i>accountsPerIp</i> count them.
      * 
-     * @param username the username of an account to be removed.
+     * @param queryKeys the account keys to be returned by this query.
+     * @param selector  the selector.
      * 
-     * @return a {@code CancellableState} indicating whether this operation
-     *         has been cancelled by one of the {@code AccountRemoveEvent}
-     *         handlers.
+     * @return a list of views, or {@code null} if an I/O error occurred.
      * 
-     * @throws IllegalArgumentException if {@code username} is {@code null}
-     *                                  or blank.
+     * @throws IllegalArgumentException if {@code queryKeys} or
+     *                                  {@code selector} is {@code null}.
      * 
      * @throws ReportedException        if an I/O error occurred,
      *                                  and it was reported to the logger.
      */
-    public synchronized CancelledState removeAccount(String username)
+    public List<AccountView> selectAccountViews(
+            List<String> queryKeys, Selector selector
+    )
     {
-        if (StringUtils.isBlank(username))
+        if (queryKeys == null || selector == null)
             throw new IllegalArgumentException();
         
-        username = username.toLowerCase();
-        
-        AccountEvent event = new AccountRemoveEvent(username);
-        
-        Bukkit.getPluginManager().callEvent(event);
-        
-        if (event.isCancelled())
-            return CancelledState.CANCELLED;
-        
-        try
-        {
-            storage.removeEntries(
-                    unit,
-                    new SelectorCondition(
-                            keys.username(),
-                            Infix.EQUALS,
-                            username
-                    )
-            );
-            
-            buffer.put(username, null);
-            
-            log(Level.WARNING, t("removeAccount.success.log")
-                    .replace("{0}", username));
-            
-            event.executeSuccessTasks();
-        }
-        catch (IOException ex)
-        {
-            log(Level.WARNING, t("removeAccount.fail.log")
-                    .replace("{0}", username), ex);
-            
-            event.executeFailureTasks();
-            
-            ReportedException.throwNew(ex);
-        }
+        if (!queryKeys.contains(keys.username()))
+            throw new IllegalArgumentException("Missing query key: username");
         
-        return CancelledState.NOT_CANCELLED;
-    }
-    
-    public synchronized void removeAccounts(String... usernames)
-    {
-        if (usernames == null)
-            throw new IllegalArgumentException();
+        List<StorageEntry> entries = null;
         
         try
         {
-            storage.setAutobatchEnabled(true);
-            
-            for (String username : usernames)
-            {
-                removeAccount(username);
-            }
-            
-            storage.executeBatch();
-            storage.clearBatch();
+            entries = storage.selectEntries(unit, queryKeys, selector);
         }
         catch (IOException ex)
         {
@@ -641,136 +863,1496 @@ public final class AccountManager extends LogItCoreObject implements Runnable
             
             ReportedException.throwNew(ex);
         }
-        finally
-        {
-            storage.setAutobatchEnabled(false);
-        }
-    }
-    
-    private void flushBuffer()
-    {
-        if (buffer == null || buffer.isEmpty())
-            return;
         
-        if (storage == null)
-            return;
+        if (entries == null)
+            return null;
         
-        Map<String, Account> dirtyAccounts = new HashMap<>();
-        QueuedMap<String, Account> ignoredAccounts = new QueuedMap<>();
-        QueuedMap<String, StorageEntry> dirtyEntries = new QueuedMap<>();
+        AccountView.Layout layout = new AccountView.Layout(keys, queryKeys);
+        List<AccountView> views = new ArrayList<>(entries.size());
+        Set<String> selectedUsernames = new HashSet<>(entries.size());
         
-        while (!buffer.isEmpty())
+        for (StorageEntry entry : entries)
         {
-            Map.Entry<String, Account> e = buffer.remove();
-            String username = e.getKey();
-            Account account = e.getValue();
+            String username = entry.get(keys.username()).toLowerCase();
+            String[] values;
             
-            if (account == null)
-                continue;
+            selectedUsernames.add(username);
             
-            if (account.isBufferLocked())
+            synchronized (cacheLock)
             {
-                ignoredAccounts.put(username, account);
+                CachedAccount cached = (cache != null) ? cache.get(username) : null;
                 
-                continue;
+                if (cached == null)
+                {
+                    values = layout.project(entry, null);
+                }
+                else if (cached.account != null)
+                {
+                    values = layout.project(entry, cached.account.getEntry());
+                }
+                else if (pendingWrites.containsKey(username))
+                {
+                    continue;
+                }
+                else
+                {
+                    values = layout.project(entry, null);
+                }
             }
             
-            StorageEntry dirtyEntry = account.getEntry().copyDirty();
-            
-            if (!dirtyEntry.getKeys().isEmpty())
-            {
-                dirtyAccounts.put(username, account);
-                dirtyEntries.put(username, dirtyEntry);
-            }
+            views.add(new AccountView(layout, values));
         }
         
-        // Restore buffer-locked accounts.
-        buffer.putAll(ignoredAccounts);
-        
-        if (bufferUsageGraphWriter != null)
+        for (Map.Entry<String, StorageEntry> e : pendingInserts.entrySet())
         {
-            long elapsedTicks = getCore().getGlobalClock().getElapsed();
-            
-            try
-            {
-                if (!bufferUsageGraphTouched)
-                {
-                    bufferUsageGraphWriter.newLine();
-                    bufferUsageGraphWriter.write(
-                            ":" + System.currentTimeMillis()
-                    );
-                    bufferUsageGraphWriter.newLine();
-                    
-                    bufferUsageGraphTouched = true;
-                }
-                
-                bufferUsageGraphWriter.write(
-                        elapsedTicks + "," + dirtyEntries.size()
-                );
-                bufferUsageGraphWriter.newLine();
-                bufferUsageGraphWriter.flush();
-            }
-            catch (IOException ex)
+            if (!selectedUsernames.contains(e.getKey())
+                    && SqlUtils.resolveSelector(selector, e.getValue()))
             {
-                log(Level.WARNING, ex);
+                views.add(new AccountView(layout, layout.project(e.getValue(), null)));
             }
         }
         
-        if (dirtyEntries.isEmpty())
-            return;
+        return views;
+    }
+    
+    public boolean isRegistered(
+            String username, RegistrationFetchMode fetchMode
+    )
+    {
+        if (StringUtils.isBlank(username) || fetchMode == null)
+            throw new IllegalArgumentException();
         
-        log(CustomLevel.INTERNAL, "AccountManager#flushBuffer() {"
-                + "dirtyEntries.size() = " + dirtyEntries.size() + "}");
+        username = username.toLowerCase();
         
-        try
+        // The index is authoritative once loaded, whatever the fetch mode.
+        if (registrationIndexLoaded)
+        {
+            return registrationIndex.contains(username);
+        }
+        
+        if (fetchMode == RegistrationFetchMode.STORAGE_ONLY)
+        {
+            return fetchRegistrationStatus(username);
+        }
+        else
         {
-            storage.setAutobatchEnabled(true);
+            Boolean registered = getCachedRegistrationStatus(username);
             
-            for (Map.Entry<String, StorageEntry> e : dirtyEntries.entrySet())
+            if (registered == null)
             {
-                try
+                if (fetchMode == RegistrationFetchMode.STORAGE_FALLBACK)
                 {
-                    storage.updateEntries(
-                            unit,
-                            e.getValue(),
-                            new SelectorCondition(
-                                    keys.username(),
-                                    Infix.EQUALS,
-                                    e.getKey().toLowerCase()
-                            )
-                    );
-                    
-                    dirtyAccounts.get(e.getKey()).runSaveCallbacks(true);
+                    return fetchRegistrationStatus(username);
                 }
-                catch (IOException ex)
+                else if (fetchMode == RegistrationFetchMode.CACHE_ELSE_TRUE)
                 {
-                    log(Level.WARNING, ex);
-                    
-                    dirtyAccounts.get(e.getKey()).runSaveCallbacks(false);
+                    return true;
+                }
+                else if (fetchMode == RegistrationFetchMode.CACHE_ELSE_FALSE)
+                {
+                    return false;
+                }
+                else
+                {
+                    throw new IllegalArgumentException(
+                            "Unsupported RegistrationFetchMode: " + fetchMode
+                    );
+                }
+            }
+            else
+            {
+                return registered;
+            }
+        }
+    }
+    
+    public boolean isRegistered(String username)
+    {
+        return isRegistered(username, RegistrationFetchMode.STORAGE_ONLY);
+    }
+    
+    private Boolean getCachedRegistrationStatus(String username)
+    {
+        synchronized (cacheLock)
+        {
+            if (!isCached(username))
+                return null;
+            
+            return getCachedAccount(username) != null;
+        }
+    }
+    
+    private boolean fetchRegistrationStatus(String username)
+    {
+        Boolean registered = getCachedRegistrationStatus(username);
+        
+        if (registered != null)
+            return registered;
+        
+        Account account = selectAccount(
+                username,
+                Arrays.asList(keys.username())
+        );
+        
+        return account != null;
+    }
+    
+    /**
+     * Returns all registered usernames in this {@code AccountManager}.
+     *
+     * @return A {@code Set} containing all registered usernames lowercase, or
+     *         {@code null} if an I/O error occurred.
+     *
+     * @throws ReportedException
+     *        If an I/O error occurred, and it was reported to the logger.
+     */
+    public Set<String> getRegisteredUsernames()
+    {
+        List<AccountView> views = selectAccountViews(
+                Arrays.asList(
+                        keys().username()
+                ),
+                new SelectorConstant(true)
+        );
+        
+        if (views == null)
+            return null;
+        
+        Set<String> usernames = new LinkedHashSet<>(views.size());
+        
+        for (AccountView view : views)
+        {
+            usernames.add(view.getUsername());
+        }
+        
+        return usernames;
+    }
+    
+    /**
+     * Inserts a new account into the underlying storage unit.
+     * 
+     * <p> The account is cached immediately, while the storage is written
+     * to in the background. The success or failure tasks of the
+     * {@code AccountInsertEvent} are run on the server thread once the write
+     * has been performed.
+     * 
+     * @param account the account to be inserted.
+     * 
+     * @return a {@code CancellableState} indicating whether this operation
+     *         has been cancelled by one of the {@code AccountInsertEvent}
+     *         handlers.
+     * 
+     * @throws IllegalArgumentException if {@code account} is {@code null}.
+     */
+    public CancelledState insertAccount(Account account)
+    {
+        if (account == null)
+            throw new IllegalArgumentException();
+        
+        // The write is submitted under the lock, so that writes
+        // to the same account reach the storage in order.
+        Lock lock = stripes.get(account.getUsername());
+        
+        lock.lock();
+        
+        try
+        {
+            AccountWritePipeline.Write write = prepareInsert(account);
+            
+            if (write == null)
+                return CancelledState.CANCELLED;
+            
+            writePipeline.submit(write);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        
+        return CancelledState.NOT_CANCELLED;
+    }
+    
+    public void insertAccounts(Account... accounts)
+    {
+        if (accounts == null)
+            throw new IllegalArgumentException();
+        
+        List<Lock> locks = stripes.lockAll(getUsernames(Arrays.asList(accounts)));
+        
+        try
+        {
+            List<AccountWritePipeline.Write> writes = new ArrayList<>();
+            
+            for (Account account : accounts)
+            {
+                AccountWritePipeline.Write write = prepareInsert(account);
+                
+                if (write != null)
+                {
+                    writes.add(write);
+                }
+            }
+            
+            if (!writes.isEmpty())
+            {
+                writePipeline.submit(AccountWritePipeline.batch(storage, writes));
+            }
+        }
+        finally
+        {
+            stripes.unlockAll(locks);
+        }
+    }
+    
+    /**
+     * Inserts multiple accounts as a single batch and waits
+     * for the batch to be written to the storage.
+     * 
+     * <p> This method must not be called on the server thread.
+     * 
+     * @param accounts the accounts to be inserted.
+     * 
+     * @return the number of accounts whose insertion has not been cancelled
+     *         by one of the {@code AccountInsertEvent} handlers.
+     * 
+     * @throws IllegalArgumentException if {@code accounts} is {@code null}.
+     * @throws IOException              if the batch could not be written.
+     * @throws InterruptedException     if the calling thread was interrupted
+     *                                  while waiting.
+     */
+    public int insertAccountsAndWait(List<Account> accounts)
+            throws IOException, InterruptedException
+    {
+        if (accounts == null)
+            throw new IllegalArgumentException();
+        
+        final CountDownLatch written = new CountDownLatch(1);
+        final IOException[] error = new IOException[1];
+        int inserted;
+        List<Lock> locks = stripes.lockAll(getUsernames(accounts));
+        
+        try
+        {
+            List<AccountWritePipeline.Write> writes = new ArrayList<>();
+            
+            for (Account account : accounts)
+            {
+                AccountWritePipeline.Write write = prepareInsert(account);
+                
+                if (write != null)
+                {
+                    writes.add(write);
+                }
+            }
+            
+            if (writes.isEmpty())
+                return 0;
+            
+            final AccountWritePipeline.Write batch =
+                    AccountWritePipeline.batch(storage, writes);
+            
+            inserted = writes.size();
+            
+            writePipeline.submit(new AccountWritePipeline.Write()
+            {
+                @Override
+                public void write() throws IOException
+                {
+                    try
+                    {
+                        batch.write();
+                    }
+                    catch (IOException ex)
+                    {
+                        error[0] = ex;
+                        
+                        throw ex;
+                    }
+                    finally
+                    {
+                        written.countDown();
+                    }
+                }
+                
+                @Override
+                public void complete(IOException error)
+                {
+                    batch.complete(error);
+                }
+            });
+        }
+        finally
+        {
+            stripes.unlockAll(locks);
+        }
+        
+        written.await();
+        
+        if (error[0] != null)
+            throw error[0];
+        
+        return inserted;
+    }
+    
+    private static List<String> getUsernames(List<Account> accounts)
+    {
+        List<String> usernames = new ArrayList<>(accounts.size());
+        
+        for (Account account : accounts)
+        {
+            usernames.add(account.getUsername());
+        }
+        
+        return usernames;
+    }
+    
+    private AccountWritePipeline.Write prepareInsert(Account account)
+    {
+        final AccountEvent event = new AccountInsertEvent(account.getEntry());
+        
+        Bukkit.getPluginManager().callEvent(event);
+        
+        if (event.isCancelled())
+            return null;
+        
+        final Storage storage = this.storage;
+        final String unit = this.unit;
+        final String username = account.getUsername();
+        final StorageEntry entry = account.getEntry();
+        final StorageEntry snapshot = entry.copy();
+        
+        invalidatePrefetch(username);
+        
+        for (StorageDatum datum : entry)
+        {
+            entry.clearKeyDirty(datum.getKey());
+        }
+        
+        cacheAccount(username, account);
+        indexUsername(username);
+        beginWrite(username);
+        pendingInserts.put(username, snapshot);
+        
+        return new AccountWritePipeline.Write()
+        {
+            @Override
+            public void write() throws IOException
+            {
+                storage.addEntry(unit, snapshot);
+            }
+            
+            @Override
+            public void complete(IOException error)
+            {
+                pendingInserts.remove(username, snapshot);
+                endWrite(username);
+                
+                if (error == null)
+                {
+                    log(Level.FINE, t("createAccount.success.log")
+                            .replace("{0}", username));
+                    
+                    event.executeSuccessTasks();
+                }
+                else
+                {
+                    log(Level.WARNING, t("createAccount.fail.log")
+                            .replace("{0}", username), error);
+                    
+                    event.executeFailureTasks();
+                }
+            }
+        };
+    }
+    
+    /**
+     * Renames an account.
+     * 
+     * <p> The cache is updated immediately, while the storage is written
+     * to in the background.
+     * 
+     * @param username    the current username.
+     * @param newUsername the new username.
+     * 
+     * @throws IllegalArgumentException if {@code username} or
+     *                                  {@code newUsername} is {@code null}
+     *                                  or blank.
+     */
+    public void renameAccount(String username, String newUsername)
+    {
+        if (StringUtils.isBlank(username) || StringUtils.isBlank(newUsername))
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        String oldUsername = username.toLowerCase();
+        String renamedUsername = newUsername.toLowerCase();
+        List<Lock> locks = stripes.lockAll(
+                Arrays.asList(oldUsername, renamedUsername)
+        );
+        
+        try
+        {
+            renameLockedAccount(oldUsername, renamedUsername);
+        }
+        finally
+        {
+            stripes.unlockAll(locks);
+        }
+    }
+    
+    private void renameLockedAccount(
+            final String oldUsername, final String renamedUsername
+    )
+    {
+        final Storage storage = this.storage;
+        final String unit = this.unit;
+        final AccountKeys keys = this.keys;
+        
+        invalidatePrefetch(oldUsername);
+        invalidatePrefetch(renamedUsername);
+        
+        synchronized (cacheLock)
+        {
+            CachedAccount cached = cache.remove(oldUsername);
+            Account cachedAccount = (cached != null) ? cached.account : null;
+            Account dirtyAccount = dirtyAccounts.remove(oldUsername);
+            
+            if (cachedAccount != null)
+            {
+                // The username is written to the storage by the rename itself.
+                cachedAccount.getEntry().putClean(keys.username(), renamedUsername);
+                
+                Account cachedNewAccount = getCachedAccount(renamedUsername);
+                
+                if (cachedNewAccount != null)
+                {
+                    cachedNewAccount.setEntry(cachedAccount.getEntry());
+                }
+                
+                cacheAccount(renamedUsername, cachedAccount);
+            }
+            else
+            {
+                cache.remove(renamedUsername);
+            }
+            
+            // Until the rename is written, the storage would still return
+            // the account under its old username.
+            cacheAccount(oldUsername, null);
+            
+            if (registrationIndex.contains(oldUsername))
+            {
+                unindexUsername(oldUsername);
+                indexUsername(renamedUsername);
+            }
+            
+            if (dirtyAccount != null)
+            {
+                dirtyAccounts.put(renamedUsername, dirtyAccount);
+            }
+        }
+        
+        if (getPersistenceManager() != null)
+        {
+            getPersistenceManager().getStore().rename(oldUsername, renamedUsername);
+        }
+        
+        beginWrite(oldUsername);
+        beginWrite(renamedUsername);
+        
+        writePipeline.submit(new AccountWritePipeline.Write()
+        {
+            @Override
+            public void write() throws IOException
+            {
+                storage.updateEntries(unit,
+                        new StorageEntry.Builder()
+                                .put(keys.username(), renamedUsername)
+                                .put(keys.display_name(), "")
+                                .build(),
+                        new SelectorCondition(
+                                keys.username(),
+                                Infix.EQUALS,
+                                oldUsername
+                        )
+                );
+            }
+            
+            @Override
+            public void complete(IOException error)
+            {
+                endWrite(oldUsername);
+                endWrite(renamedUsername);
+                
+                if (error != null)
+                {
+                    log(Level.WARNING, error);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Removes an account with the given username from the underlying storage
+     * unit.
+     * 
+     * <p> Removing an account does not entail logging out the corresponding
+     * player. To log out a player, use {@link SessionManager#endSession}.
+     * 
+     * <p> This method emits the {@code AccountRemoveEvent} event.
+     * The account is removed from the cache immediately, while the storage
+     * is written to in the background. The success or failure tasks of the
+     * event are run on the server thread once the write has been performed.
+     * 
+     * @param username the username of an account to be removed.
+     * 
+     * @return a {@code CancellableState} indicating whether this operation
+     *         has been cancelled by one of the {@code AccountRemoveEvent}
+     *         handlers.
+     * 
+     * @throws IllegalArgumentException if {@code username} is {@code null}
+     *                                  or blank.
+     */
+    public CancelledState removeAccount(String username)
+    {
+        if (StringUtils.isBlank(username))
+            throw new IllegalArgumentException();
+        
+        Lock lock = stripes.get(username.toLowerCase());
+        
+        lock.lock();
+        
+        try
+        {
+            AccountWritePipeline.Write write = prepareRemove(username);
+            
+            if (write == null)
+                return CancelledState.CANCELLED;
+            
+            writePipeline.submit(write);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        
+        return CancelledState.NOT_CANCELLED;
+    }
+    
+    public void removeAccounts(String... usernames)
+    {
+        if (usernames == null)
+            throw new IllegalArgumentException();
+        
+        List<String> lowercaseUsernames = new ArrayList<>(usernames.length);
+        
+        for (String username : usernames)
+        {
+            lowercaseUsernames.add(username.toLowerCase());
+        }
+        
+        List<Lock> locks = stripes.lockAll(lowercaseUsernames);
+        
+        try
+        {
+            List<AccountWritePipeline.Write> writes = new ArrayList<>();
+            
+            for (String username : lowercaseUsernames)
+            {
+                AccountWritePipeline.Write write = prepareRemove(username);
+                
+                if (write != null)
+                {
+                    writes.add(write);
+                }
+            }
+            
+            if (!writes.isEmpty())
+            {
+                writePipeline.submit(AccountWritePipeline.batch(storage, writes));
+            }
+        }
+        finally
+        {
+            stripes.unlockAll(locks);
+        }
+    }
+    
+    private AccountWritePipeline.Write prepareRemove(String username)
+    {
+        final String removedUsername = username.toLowerCase();
+        final AccountEvent event = new AccountRemoveEvent(removedUsername);
+        
+        Bukkit.getPluginManager().callEvent(event);
+        
+        if (event.isCancelled())
+            return null;
+        
+        final Storage storage = this.storage;
+        final String unit = this.unit;
+        final AccountKeys keys = this.keys;
+        
+        invalidatePrefetch(removedUsername);
+        
+        synchronized (cacheLock)
+        {
+            Account cachedAccount = getCachedAccount(removedUsername);
+            
+            if (cachedAccount != null)
+            {
+                cachedAccount.getEntry().setDirtyListener(null);
+            }
+            
+            dirtyAccounts.remove(removedUsername);
+            cacheAccount(removedUsername, null);
+        }
+        
+        pendingInserts.remove(removedUsername);
+        unindexUsername(removedUsername);
+        
+        if (getPersistenceManager() != null)
+        {
+            getPersistenceManager().getStore().remove(removedUsername);
+        }
+        
+        beginWrite(removedUsername);
+        
+        return new AccountWritePipeline.Write()
+        {
+            @Override
+            public void write() throws IOException
+            {
+                storage.removeEntries(
+                        unit,
+                        new SelectorCondition(
+                                keys.username(),
+                                Infix.EQUALS,
+                                removedUsername
+                        )
+                );
+            }
+            
+            @Override
+            public void complete(IOException error)
+            {
+                endWrite(removedUsername);
+                
+                if (error == null)
+                {
+                    log(Level.WARNING, t("removeAccount.success.log")
+                            .replace("{0}", removedUsername));
+                    
+                    event.executeSuccessTasks();
+                }
+                else
+                {
+                    log(Level.WARNING, t("removeAccount.fail.log")
+                            .replace("{0}", removedUsername), error);
+                    
+                    event.executeFailureTasks();
+                }
+            }
+        };
+    }
+    
+    /**
+     * Takes a snapshot of the dirty keys of all modified accounts
+     * and submits it to the write pipeline.
+     * 
+     * <p> Flushed accounts stay in the cache; their dirty bits are cleared
+     * as soon as the snapshot is taken, so that changes made in the meantime
+     * are written by the next flush.
+     */
+    private void flushBuffer()
+    {
+        if (dirtyAccounts.isEmpty())
+            return;
+        
+        if (storage == null)
+            return;
+        
+        // Accounts made dirty after this point are left for the next flush.
+        List<String> usernames = new ArrayList<>(dirtyAccounts.keySet());
+        List<Lock> locks = stripes.lockAll(usernames);
+        
+        try
+        {
+            flushLockedAccounts(usernames);
+        }
+        finally
+        {
+            stripes.unlockAll(locks);
+        }
+    }
+    
+    /**
+     * Flushes the given dirty accounts; their stripes are held
+     * until the write is submitted, so that it is ordered
+     * with other writes to the same accounts.
+     */
+    private void flushLockedAccounts(List<String> usernames)
+    {
+        final Storage storage = this.storage;
+        final String unit = this.unit;
+        final AccountKeys keys = this.keys;
+        final StorageChangeLog changeLog = this.changeLog;
+        final Map<String, Long> baseVersions = new HashMap<>();
+        final Map<String, Queue<Account.SaveCallback>> saveCallbacks =
+                new HashMap<>();
+        final QueuedMap<String, StorageEntry> dirtyEntries = new QueuedMap<>();
+        QueuedMap<String, Account> ignoredAccounts = new QueuedMap<>();
+        long now = System.currentTimeMillis();
+        long flushedBytes = dirtyBytes.getAndSet(0);
+        long oldestTime = oldestDirtyTime.getAndSet(0);
+        
+        for (String username : usernames)
+        {
+            Account account = dirtyAccounts.remove(username);
+            
+            if (account == null)
+                continue;
+            
+            if (account.isBufferLocked())
+            {
+                ignoredAccounts.put(username, account);
+                
+                continue;
+            }
+            
+            StorageEntry dirtyEntry = account.getEntry().copyDirty();
+            
+            if (!dirtyEntry.getKeys().isEmpty())
+            {
+                for (String key : dirtyEntry.getKeys())
+                {
+                    account.getEntry().clearKeyDirty(key);
+                }
+                
+                saveCallbacks.put(username, account.takeSaveCallbacks());
+                dirtyEntries.put(username, dirtyEntry);
+                
+                if (changeLog != null)
+                {
+                    synchronized (cacheLock)
+                    {
+                        CachedAccount cached = cache.get(username);
+                        
+                        baseVersions.put(username, (cached != null) ? cached.version : 0);
+                    }
+                }
+                
+                beginWrite(username);
+                
+                invalidatePrefetch(username, account);
+            }
+        }
+        
+        // Restore buffer-locked accounts, keeping the age of their changes.
+        if (!ignoredAccounts.isEmpty())
+        {
+            dirtyAccounts.putAll(ignoredAccounts);
+            oldestDirtyTime.compareAndSet(0, (oldestTime > 0) ? oldestTime : now);
+        }
+        
+        if (dirtyEntries.isEmpty())
+            return;
+        
+        flushPolicy.recordFlush(now, dirtyEntries.size(), flushedBytes,
+                (oldestTime > 0) ? now - oldestTime : 0);
+        
+        log(CustomLevel.INTERNAL, "AccountManager#flushBuffer() {"
+                + "dirtyEntries.size() = " + dirtyEntries.size() + "}");
+        
+        writePipeline.submit(new AccountWritePipeline.Write()
+        {
+            @Override
+            public void write() throws IOException
+            {
+                long startTime = System.currentTimeMillis();
+                
+                synchronized (storage)
+                {
+                    if (changeLog != null)
+                    {
+                        dropConflictingKeys(changeLog.selectForeignChanges(
+                                unit, baseVersions
+                        ));
+                    }
+                    
+                    storage.setAutobatchEnabled(true);
+                    
+                    try
+                    {
+                        for (Map.Entry<String, StorageEntry> e
+                                : dirtyEntries.entrySet())
+                        {
+                            if (e.getValue().getKeys().isEmpty())
+                                continue;
+                            
+                            try
+                            {
+                                storage.updateEntries(
+                                        unit,
+                                        e.getValue(),
+                                        new SelectorCondition(
+                                                keys.username(),
+                                                Infix.EQUALS,
+                                                e.getKey()
+                                        )
+                                );
+                            }
+                            catch (IOException ex)
+                            {
+                                log(Level.WARNING, ex);
+                                
+                                failedUsernames.add(e.getKey());
+                            }
+                        }
+                        
+                        storage.executeBatch();
+                        storage.clearBatch();
+                    }
+                    finally
+                    {
+                        storage.setAutobatchEnabled(false);
+                    }
+                }
+                
+                latency = System.currentTimeMillis() - startTime;
+            }
+            
+            @Override
+            public void complete(IOException error)
+            {
+                if (error != null)
+                {
+                    log(Level.WARNING, error);
+                }
+                else
+                {
+                    flushPolicy.recordLatency(latency);
+                }
+                
+                for (String username : conflicts.keySet())
+                {
+                    log(Level.WARNING, "Account changed on another server;"
+                            + " discarded local changes {username: " + username
+                            + ", keys: " + conflicts.get(username) + "}");
+                }
+                
+                for (String username : dirtyEntries.keySet())
+                {
+                    endWrite(username);
+                    
+                    if (changeLog != null)
+                    {
+                        refreshVersion(username, conflicts.containsKey(username));
+                    }
+                    
+                    boolean success = error == null
+                            && !failedUsernames.contains(username)
+                            && !conflicts.containsKey(username);
+                    
+                    for (Account.SaveCallback callback
+                            : saveCallbacks.get(username))
+                    {
+                        callback.onSave(success);
+                    }
+                }
+                
+                log(CustomLevel.INTERNAL, "end-of #flushBuffer()");
+            }
+            
+            /**
+             * Removes the keys other servers have changed since the accounts
+             * were read, so that their changes are not overwritten.
+             */
+            private void dropConflictingKeys(Map<String, Set<String>> changes)
+            {
+                for (Map.Entry<String, Set<String>> e : changes.entrySet())
+                {
+                    StorageEntry dirtyEntry = dirtyEntries.get(e.getKey());
+                    List<String> droppedKeys = new ArrayList<>();
+                    
+                    Iterator<StorageDatum> it = dirtyEntry.iterator();
+                    
+                    while (it.hasNext())
+                    {
+                        String key = it.next().getKey();
+                        
+                        if (e.getValue().contains(StorageChangeLog.ALL)
+                                || e.getValue().contains(key))
+                        {
+                            it.remove();
+                            droppedKeys.add(key);
+                        }
+                    }
+                    
+                    if (!droppedKeys.isEmpty())
+                    {
+                        conflicts.put(e.getKey(), droppedKeys);
+                    }
+                }
+            }
+            
+            private final Set<String> failedUsernames = new HashSet<>();
+            private final Map<String, List<String>> conflicts =
+                    new ConcurrentHashMap<>();
+            private volatile long latency;
+        });
+    }
+    
+    /**
+     * Brings the version of a flushed account up to date, or drops it
+     * from the cache if some of its changes conflicted with another server.
+     */
+    private void refreshVersion(String username, boolean conflicted)
+    {
+        Lock lock = stripes.get(username);
+        
+        lock.lock();
+        
+        try
+        {
+            synchronized (cacheLock)
+            {
+                if (cache == null)
+                    return;
+                
+                CachedAccount cached = cache.get(username);
+                
+                if (cached == null)
+                    return;
+                
+                if (conflicted && !hasLocalChanges(username, cached.account))
+                {
+                    if (cached.account != null)
+                    {
+                        cached.account.getEntry().setDirtyListener(null);
+                    }
+                    
+                    cache.remove(username);
+                }
+                else
+                {
+                    cached.version = changeLog.getVersion(unit, username);
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes all unsaved changes and waits for the write pipeline
+     * to finish, for at most the time configured in
+     * <i>accountWrites.shutdownTimeout</i>.
+     * 
+     * <p> Writes submitted afterwards are performed on the calling thread.
+     * This method should be called on the server thread before
+     * the storage is closed.
+     */
+    public void shutdownWrites()
+    {
+        flushBuffer();
+        writePipeline.shutdown(writesShutdownTimeout);
+    }
+    
+    /**
+     * Returns registered usernames starting with the given prefix,
+     * in lexicographic order.
+     * 
+     * <p> Only the first {@code limit} usernames are read from the storage,
+     * walking the index on the username key.
+     * 
+     * @param prefix the prefix, case-insensitive.
+     * @param limit  the maximum number of usernames to be returned.
+     * 
+     * @return a list of lowercase usernames, or {@code null} if an I/O error
+     *         occurred.
+     * 
+     * @throws IllegalArgumentException if {@code prefix} is {@code null}
+     *                                  or {@code limit} is negative.
+     */
+    public List<String> getUsernamesStartingWith(String prefix, int limit)
+    {
+        if (prefix == null || limit < 0)
+            throw new IllegalArgumentException();
+        
+        if (limit == 0)
+            return new ArrayList<>();
+        
+        prefix = prefix.toLowerCase();
+        
+        List<StorageEntry> entries;
+        
+        try
+        {
+            entries = storage.selectEntries(unit,
+                    Arrays.asList(keys.username()),
+                    new SelectorCondition(keys.username(), Infix.STARTS_WITH, prefix),
+                    Arrays.asList(keys.username()), false, limit);
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            return null;
+        }
+        
+        List<String> usernames = new ArrayList<>(entries.size());
+        
+        for (StorageEntry entry : entries)
+        {
+            String username = entry.get(keys.username()).toLowerCase();
+            
+            // LIKE treats underscores in the prefix as wildcards.
+            if (username.startsWith(prefix))
+            {
+                usernames.add(username);
+            }
+        }
+        
+        for (String username : pendingInserts.keySet())
+        {
+            if (username.startsWith(prefix) && !usernames.contains(username))
+            {
+                usernames.add(username);
+            }
+        }
+        
+        Collections.sort(usernames);
+        
+        return usernames.subList(0, Math.min(usernames.size(), limit));
+    }
+    
+    private void indexUsername(String username)
+    {
+        synchronized (indexJournal)
+        {
+            if (registrationIndexRebuilding)
+            {
+                indexJournal.put(username, true);
+            }
+            
+            registrationIndex.add(username);
+        }
+    }
+    
+    private void unindexUsername(String username)
+    {
+        synchronized (indexJournal)
+        {
+            if (registrationIndexRebuilding)
+            {
+                indexJournal.put(username, false);
+            }
+            
+            registrationIndex.remove(username);
+        }
+    }
+    
+    private void clearUsernameIndexes()
+    {
+        synchronized (indexJournal)
+        {
+            if (registrationIndexRebuilding)
+            {
+                indexJournal.clear();
+                indexJournalCleared = true;
+            }
+            
+            registrationIndex.clear();
+        }
+    }
+    
+    private boolean hasPendingWrites(String username)
+    {
+        return pendingWrites.containsKey(username.toLowerCase());
+    }
+    
+    /**
+     * Returns the username matched by a selector of the form
+     * <i>username = value</i>, or {@code null} if the selector is
+     * of any other form.
+     */
+    private String getSelectedUsername(Selector selector)
+    {
+        AccountKeys keys = this.keys;
+        
+        if (keys == null || !(selector instanceof SelectorCondition))
+            return null;
+        
+        SelectorCondition condition = (SelectorCondition) selector;
+        
+        if (!condition.getKey().equals(keys.username())
+                || condition.getRelation() != Infix.EQUALS
+                || condition.getValue() == null)
+        {
+            return null;
+        }
+        
+        return condition.getValue().toLowerCase();
+    }
+    
+    /**
+     * Loads the usernames of all accounts into the registration index
+     * on the calling thread. Used once, at startup.
+     * 
+     * <p> If the usernames could not be loaded, {@code isRegistered}
+     * falls back to querying the storage.
+     */
+    private void loadRegistrationIndex()
+    {
+        synchronized (indexJournal)
+        {
+            indexJournal.clear();
+            indexJournalCleared = false;
+        }
+        
+        installRegistrationIndex(buildRegistrationIndex(storage, unit, keys));
+    }
+    
+    /**
+     * Stops trusting the registration index until it has been rebuilt;
+     * lookups query the storage in the meantime.
+     */
+    private void markRegistrationIndexStale()
+    {
+        registrationIndexLoaded = false;
+        registrationIndexStale = true;
+    }
+    
+    /**
+     * Reloads the registration index in the background. Changes made
+     * to the index in the meantime are journaled and replayed on the
+     * rebuilt index before it is installed by {@link #run()}.
+     */
+    private void rebuildRegistrationIndex()
+    {
+        final WrapperStorage storage = this.storage;
+        final String unit = this.unit;
+        final AccountKeys keys = this.keys;
+        
+        registrationIndexStale = false;
+        
+        synchronized (indexJournal)
+        {
+            indexJournal.clear();
+            indexJournalCleared = false;
+            registrationIndexRebuilding = true;
+        }
+        
+        new BukkitRunnable()
+        {
+            @Override
+            public void run()
+            {
+                rebuiltIndex.set(buildRegistrationIndex(storage, unit, keys));
+            }
+        }.runTaskAsynchronously(getPlugin());
+    }
+    
+    private RebuiltIndex buildRegistrationIndex(
+            WrapperStorage storage, String unit, AccountKeys keys
+    )
+    {
+        List<StorageEntry> entries;
+        
+        try
+        {
+            entries = storage.selectEntries(unit, Arrays.asList(keys.username()));
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, "Could not load the registration index", ex);
+            
+            return new RebuiltIndex(null);
+        }
+        
+        RegistrationIndex index = new RegistrationIndex();
+        
+        for (StorageEntry entry : entries)
+        {
+            index.add(entry.get(keys.username()).toLowerCase());
+        }
+        
+        return new RebuiltIndex(index);
+    }
+    
+    private void installRegistrationIndex(RebuiltIndex rebuilt)
+    {
+        synchronized (cacheLock)
+        {
+            synchronized (indexJournal)
+            {
+                registrationIndexRebuilding = false;
+                
+                if (rebuilt.index == null)
+                {
+                    registrationIndexLoaded = false;
+                    registrationIndexStale = true;
+                    nextIndexRebuildTime =
+                            System.currentTimeMillis() + INDEX_REBUILD_RETRY_INTERVAL;
+                    indexJournal.clear();
+                    
+                    return;
+                }
+                
+                if (indexJournalCleared)
+                {
+                    rebuilt.index.clear();
+                }
+                
+                for (Map.Entry<String, Boolean> e : indexJournal.entrySet())
+                {
+                    if (e.getValue())
+                    {
+                        rebuilt.index.add(e.getKey());
+                    }
+                    else
+                    {
+                        rebuilt.index.remove(e.getKey());
+                    }
+                }
+                
+                indexJournal.clear();
+                registrationIndex.replaceWith(rebuilt.index);
+            }
+            
+            // The storage does not reflect pending writes yet;
+            // the cached state of their accounts does.
+            for (String username : pendingWrites.keySet())
+            {
+                if (getCachedAccount(username) != null)
+                {
+                    indexUsername(username);
+                }
+                else
+                {
+                    unindexUsername(username);
                 }
             }
-            
-            storage.executeBatch();
-            storage.clearBatch();
         }
-        catch (IOException ex)
+        
+        registrationIndexLoaded = true;
+    }
+    
+    private void beginWrite(String username)
+    {
+        while (true)
         {
-            log(Level.WARNING, ex);
+            Integer count = pendingWrites.putIfAbsent(username, 1);
+            
+            if (count == null || pendingWrites.replace(username, count, count + 1))
+                return;
         }
-        finally
+    }
+    
+    private void endWrite(String username)
+    {
+        while (true)
+        {
+            Integer count = pendingWrites.get(username);
+            
+            if (count == null)
+                return;
+            
+            boolean ended = (count <= 1)
+                    ? pendingWrites.remove(username, count)
+                    : pendingWrites.replace(username, count, count - 1);
+            
+            if (ended)
+                return;
+        }
+    }
+    
+    /**
+     * Evicts accounts that have not been accessed for longer than
+     * the cache lifetime, and the least recently used accounts
+     * if the cache has grown past its maximum size.
+     * 
+     * <p> Accounts of online players, accounts with unsaved changes,
+     * buffer-locked accounts and accounts being operated on
+     * are never evicted.
+     * 
+     * <p> As long as the cache is within its maximum size, it is swept
+     * for expired accounts at most once every {@link #EXPIRY_SWEEP_INTERVAL}.
+     */
+    private void evictCache()
+    {
+        synchronized (cacheLock)
+        {
+            if (cache == null || cache.isEmpty())
+                return;
+            
+            long now = System.currentTimeMillis();
+            
+            if (cache.size() <= cacheMaxSize)
+            {
+                if (now < nextExpirySweepTime)
+                    return;
+                
+                nextExpirySweepTime = now + EXPIRY_SWEEP_INTERVAL;
+            }
+            
+            Iterator<Map.Entry<String, CachedAccount>> it =
+                    cache.entrySet().iterator();
+            
+            // The cache is kept in access order, so the eldest entries come first.
+            while (it.hasNext())
+            {
+                Map.Entry<String, CachedAccount> e = it.next();
+                CachedAccount cached = e.getValue();
+                
+                boolean expired = now - cached.accessTime > cacheLifetime;
+                boolean overflown = cache.size() > cacheMaxSize;
+                
+                if (!expired && !overflown)
+                    break;
+                
+                if (isPinned(e.getKey(), cached.account))
+                    continue;
+                
+                if (cached.account != null)
+                {
+                    cached.account.getEntry().setDirtyListener(null);
+                }
+                
+                it.remove();
+            }
+        }
+    }
+    
+    private boolean isPinned(String username, Account account)
+    {
+        // Keep the cached state until the storage catches up with it.
+        if (pendingWrites.containsKey(username))
+            return true;
+        
+        // An operation on the account might be in progress.
+        if (stripes.isLocked(username))
+            return true;
+        
+        if (account == null)
+            return false;
+        
+        return dirtyAccounts.containsKey(username)
+                || account.isBufferLocked()
+                || onlineUsernames.contains(username);
+    }
+    
+    @EventHandler(priority = EventPriority.LOWEST)
+    private void onJoin(PlayerJoinEvent event)
+    {
+        onlineUsernames.add(event.getPlayer().getName().toLowerCase());
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onQuit(PlayerQuitEvent event)
+    {
+        // The account stays cached and becomes evictable like any other.
+        onlineUsernames.remove(event.getPlayer().getName().toLowerCase());
+    }
+    
+    private boolean isCached(String username)
+    {
+        synchronized (cacheLock)
+        {
+            return cache.containsKey(username);
+        }
+    }
+    
+    /**
+     * Returns a cached account and marks it as recently used.
+     */
+    private Account getCachedAccount(String username)
+    {
+        synchronized (cacheLock)
+        {
+            CachedAccount cached = cache.remove(username);
+            
+            if (cached == null)
+                return null;
+            
+            cached.accessTime = System.currentTimeMillis();
+            cache.put(username, cached);
+            
+            return cached.account;
+        }
+    }
+    
+    /**
+     * Returns a cached account without marking it as recently used
+     * or touching the storage.
+     * 
+     * @param username the username.
+     * 
+     * @return the cached account, or {@code null} if the account
+     *         has not been cached or is known not to exist.
+     */
+    Account peekCachedAccount(String username)
+    {
+        synchronized (cacheLock)
+        {
+            CachedAccount cached = cache.get(username.toLowerCase());
+            
+            return (cached != null) ? cached.account : null;
+        }
+    }
+    
+    /**
+     * Puts an account into the cache and starts tracking its modifications,
+     * so that they are written to the storage on the next flush.
+     * 
+     * @param username the username.
+     * @param account  the account, or {@code null} if the account
+     *                 is known not to exist.
+     */
+    private void cacheAccount(String username, final Account account)
+    {
+        if (account != null)
         {
-            storage.setAutobatchEnabled(false);
+            account.getEntry().setDirtyListener(new StorageEntry.DirtyListener()
+            {
+                @Override
+                public void onKeyDirty(String key)
+                {
+                    markDirty(account, key);
+                }
+            });
         }
         
-        log(CustomLevel.INTERNAL, "end-of #flushBuffer()");
+        StorageChangeLog changeLog = this.changeLog;
+        
+        synchronized (cacheLock)
+        {
+            // Re-inserted, so that it moves to the end of the access order.
+            cache.remove(username);
+            cache.put(username, new CachedAccount(account,
+                    (changeLog != null) ? changeLog.getVersion(unit, username) : 0));
+        }
     }
     
-    private void discardBuffer()
+    /**
+     * Called on the server thread whenever a cached account gets modified.
+     * The dirty set is concurrent, so that the flush can drain it
+     * without locking this {@code AccountManager}.
+     */
+    private void markDirty(Account account, String key)
     {
-        buffer.clear();
+        String value = account.getEntry().get(key);
+        
+        dirtyAccounts.put(account.getUsername(), account);
+        dirtyBytes.addAndGet(key.length()
+                + ((value != null) ? value.length() : 0));
+        oldestDirtyTime.compareAndSet(0, System.currentTimeMillis());
     }
     
-    public Storage getStorage()
+    public WrapperStorage getStorage()
     {
         return storage;
     }
@@ -785,18 +2367,320 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         return keys;
     }
     
+    public FlushPolicy getFlushPolicy()
+    {
+        return flushPolicy;
+    }
+    
+    /**
+     * Makes this {@code AccountManager} log its changes to a change log
+     * shared with other servers, and drop what it has cached
+     * once they change the same accounts.
+     * 
+     * @param changeLog the change log.
+     * 
+     * @throws IllegalArgumentException if {@code changeLog} is {@code null}.
+     */
+    public void setChangeLog(StorageChangeLog changeLog)
+    {
+        if (changeLog == null)
+            throw new IllegalArgumentException();
+        
+        changeLog.watchUnit(unit, keys.username());
+        changeLog.addListener(new StorageChangeLog.Listener()
+        {
+            @Override
+            public void entryChanged(
+                    String unit, String key, StorageChangeLog.Operation operation
+            )
+            {
+                if (unit.equals(AccountManager.this.unit))
+                {
+                    applyForeignChange(key, operation);
+                }
+            }
+        });
+        
+        this.changeLog = changeLog;
+    }
+    
+    public StorageChangeLog getChangeLog()
+    {
+        return changeLog;
+    }
+    
+    /**
+     * Drops the cached state of an account changed by another server,
+     * unless it has changes of its own waiting to be written; those are
+     * checked against the change log when flushed.
+     * 
+     * @param username  the username, or {@code null} if any account
+     *                  might have changed.
+     * @param operation the kind of change.
+     */
+    private void applyForeignChange(
+            String username, StorageChangeLog.Operation operation
+    )
+    {
+        if (username == null)
+        {
+            synchronized (cacheLock)
+            {
+                if (cache == null)
+                    return;
+                
+                Iterator<Map.Entry<String, CachedAccount>> it =
+                        cache.entrySet().iterator();
+                
+                while (it.hasNext())
+                {
+                    Map.Entry<String, CachedAccount> e = it.next();
+                    
+                    if (!hasLocalChanges(e.getKey(), e.getValue().account))
+                    {
+                        if (e.getValue().account != null)
+                        {
+                            e.getValue().account.getEntry().setDirtyListener(null);
+                        }
+                        
+                        it.remove();
+                    }
+                }
+                
+                prefetchedAccounts.clear();
+                markRegistrationIndexStale();
+            }
+            
+            return;
+        }
+        
+        username = username.toLowerCase();
+        
+        Lock lock = stripes.get(username);
+        
+        lock.lock();
+        
+        try
+        {
+            synchronized (cacheLock)
+            {
+                if (cache == null)
+                    return;
+                
+                CachedAccount cached = cache.get(username);
+                
+                invalidatePrefetch(username);
+                
+                if (cached != null && !hasLocalChanges(username, cached.account))
+                {
+                    if (cached.account != null)
+                    {
+                        cached.account.getEntry().setDirtyListener(null);
+                    }
+                    
+                    cache.remove(username);
+                }
+                
+                if (!hasPendingWrites(username))
+                {
+                    if (operation == StorageChangeLog.Operation.ADD)
+                    {
+                        indexUsername(username);
+                    }
+                    else if (operation == StorageChangeLog.Operation.REMOVE)
+                    {
+                        unindexUsername(username);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private boolean hasLocalChanges(String username, Account account)
+    {
+        return pendingWrites.containsKey(username)
+                || dirtyAccounts.containsKey(username)
+                || (account != null && account.isBufferLocked());
+    }
+    
+    /**
+     * Recommended task period of {@code AccountManager} running as a Bukkit task.
+     */
+    public static final long TASK_PERIOD = 1L;
+    
     public static enum RegistrationFetchMode
     {
         CACHE_ELSE_TRUE, CACHE_ELSE_FALSE, STORAGE_FALLBACK, STORAGE_ONLY;
     }
     
-    private Storage storage;
+    private static final class CachedAccount
+    {
+        private CachedAccount(Account account, long version)
+        {
+            this.account = account;
+            this.accessTime = System.currentTimeMillis();
+            this.version = version;
+        }
+        
+        private final Account account;
+        private long accessTime;
+        
+        /**
+         * The change-log version the account was read at.
+         */
+        private long version;
+    }
+    
+    private static final class RebuiltIndex
+    {
+        private RebuiltIndex(RegistrationIndex index)
+        {
+            this.index = index;
+        }
+        
+        /**
+         * The rebuilt index, or {@code null} if it could not be loaded.
+         */
+        private final RegistrationIndex index;
+    }
+    
+    private static final class Prefetch
+    {
+        private Prefetch(Account account, String uuidMatchedUsername, long time)
+        {
+            this.account = account;
+            this.uuidMatchedUsername = uuidMatchedUsername;
+            this.time = time;
+        }
+        
+        private final Account account;
+        private final String uuidMatchedUsername;
+        private final long time;
+    }
+    
+    /**
+     * Time in milliseconds after which a prefetched account is discarded
+     * if it has not been released earlier.
+     */
+    public static final long PREFETCH_LIFETIME = 30000L;
+    
+    private static final int MAX_PREFETCHED_ACCOUNTS = 1000;
+    private static final int STRIPE_COUNT = 64;
+    
+    /**
+     * Time to wait before retrying a failed rebuild
+     * of the registration index, in milliseconds.
+     */
+    private static final long INDEX_REBUILD_RETRY_INTERVAL = 60000L;
+    
+    /**
+     * Minimum time between two sweeps for expired accounts, in milliseconds.
+     */
+    private static final long EXPIRY_SWEEP_INTERVAL = 1000L;
+    
+    private WrapperStorage storage;
     private String unit;
     private AccountKeys keys;
     private BukkitRunnable pinger;
     private BukkitTask pingerTask;
-    private QueuedMap<String, Account> buffer = new QueuedMap<>();
-    private Map<String, Boolean> registrationCache = new HashMap<>();
-    private BufferedWriter bufferUsageGraphWriter;
-    private boolean bufferUsageGraphTouched = false;
+    private final int cacheMaxSize;
+    private final long cacheLifetime;
+    private final long writesShutdownTimeout;
+    
+    /**
+     * Locks serializing operations on the same account.
+     */
+    private final LockStripes stripes = new LockStripes(STRIPE_COUNT);
+    
+    /**
+     * Guards the cache and the prefetched accounts. It is held only
+     * for in-memory operations, and may be taken while holding a stripe,
+     * but never the other way round.
+     */
+    private final Object cacheLock = new Object();
+    
+    /**
+     * Accounts kept in memory for reading, in access order.
+     * A {@code null} account means that the account is known not to exist.
+     * 
+     * <p> The map itself is kept in insertion order; only
+     * {@link #getCachedAccount} and {@link #cacheAccount} move an account
+     * to the end, together with its access time, so that plain lookups
+     * leave the order in step with the access times.
+     */
+    private Map<String, CachedAccount> cache = new LinkedHashMap<>();
+    
+    /**
+     * Time of the next sweep for expired accounts. Guarded by the cache lock.
+     */
+    private long nextExpirySweepTime = 0L;
+    
+    /**
+     * Lower-cased usernames of online players, whose accounts are pinned
+     * in the cache until they quit.
+     */
+    private final Set<String> onlineUsernames =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    
+    /**
+     * Accounts with changes that have not been written to the storage yet.
+     */
+    private final QueuedMap<String, Account> dirtyAccounts = new QueuedMap<>();
+    
+    /**
+     * Estimated size of the changes in dirty accounts, in bytes.
+     */
+    private final AtomicLong dirtyBytes = new AtomicLong();
+    
+    /**
+     * Time of the oldest change that has not been flushed yet,
+     * or {@code 0} if there are no such changes.
+     */
+    private final AtomicLong oldestDirtyTime = new AtomicLong();
+    
+    private final FlushPolicy flushPolicy;
+    
+    private AccountWritePipeline writePipeline = new AccountWritePipeline();
+    private volatile StorageChangeLog changeLog;
+    
+    /**
+     * Number of writes submitted to the write pipeline,
+     * but not yet completed, per username.
+     */
+    private final ConcurrentMap<String, Integer> pendingWrites =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * Entries of inserted accounts that have not been written yet,
+     * per username.
+     */
+    private final ConcurrentMap<String, StorageEntry> pendingInserts =
+            new ConcurrentHashMap<>();
+    
+    private final RegistrationIndex registrationIndex = new RegistrationIndex();
+    private volatile boolean registrationIndexLoaded = false;
+    
+    /**
+     * Set when the accounts have been modified in a way the registration
+     * index could not follow, so that it gets rebuilt in the background.
+     */
+    private volatile boolean registrationIndexStale = false;
+    private volatile boolean registrationIndexRebuilding = false;
+    private long nextIndexRebuildTime = 0L;
+    private final AtomicReference<RebuiltIndex> rebuiltIndex = new AtomicReference<>();
+    
+    /**
+     * Changes made to the registration index while it is being rebuilt,
+     * as usernames mapped to whether they were added or removed.
+     * Also serves as the lock guarding changes to the index.
+     */
+    private final Map<String, Boolean> indexJournal = new LinkedHashMap<>();
+    private boolean indexJournalCleared = false;
+    private final Map<String, Prefetch> prefetchedAccounts =
+            new MaintainableHashMap<>(MAX_PREFETCHED_ACCOUNTS);
+    private final Map<String, Boolean> pendingPrefetches = new HashMap<>();
 }
@@ -0,0 +1,187 @@
+package io.github.lucaseasedup.logit.account;
+
+import io.github.lucaseasedup.logit.storage.StorageEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, read-only view of the selected keys of an account,
+ * returned by {@link AccountManager#selectAccountViews}.
+ *
+ * <p> Views are not {@code Account} objects and are never cached
+ * or written back to the storage. All views returned by a single scan
+ * share one {@link Layout} mapping keys to column positions,
+ * so each view holds no more than an array of values.
+ */
+public final class AccountView
+{
+    /* package */ AccountView(Layout layout, String[] values)
+    {
+        this.layout = layout;
+        this.values = values;
+    }
+    
+    /**
+     * Returns the value of a key.
+     *
+     * @param key the key.
+     *
+     * @return the value.
+     *
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     *                                  or has not been selected.
+     */
+    public String get(String key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        Integer column = layout.columns.get(key);
+        
+        if (column == null)
+            throw new IllegalArgumentException("Missing entry key: " + key);
+        
+        return values[column];
+    }
+    
+    public boolean containsKey(String key)
+    {
+        return layout.columns.containsKey(key);
+    }
+    
+    /**
+     * Returns the selected keys, in the order they were requested.
+     */
+    public List<String> getKeys()
+    {
+        return layout.keys;
+    }
+    
+    /**
+     * Returns the username, lowercase.
+     *
+     * @throws IllegalArgumentException if <i>username</i> has not been selected.
+     */
+    public String getUsername()
+    {
+        return get(layout.accountKeys.username()).toLowerCase();
+    }
+    
+    /**
+     * @throws IllegalArgumentException if <i>uuid</i> has not been selected.
+     */
+    public String getUuid()
+    {
+        return get(layout.accountKeys.uuid());
+    }
+    
+    /**
+     * @throws IllegalArgumentException if <i>ip</i> has not been selected.
+     */
+    public String getIp()
+    {
+        return get(layout.accountKeys.ip());
+    }
+    
+    /**
+     * Returns the e-mail address, lowercase.
+     *
+     * @throws IllegalArgumentException if <i>email</i> has not been selected.
+     */
+    public String getEmail()
+    {
+        return get(layout.accountKeys.email()).toLowerCase();
+    }
+    
+    /**
+     * Returns the last-active date in UNIX time.
+     *
+     * @throws IllegalArgumentException if <i>last_active_date</i>
+     *                                  has not been selected.
+     */
+    public long getLastActiveDate()
+    {
+        return Long.parseLong(get(layout.accountKeys.last_active_date()));
+    }
+    
+    /**
+     * Returns the registration date in UNIX time.
+     *
+     * @throws IllegalArgumentException if <i>reg_date</i> has not been selected.
+     */
+    public long getRegistrationDate()
+    {
+        return Long.parseLong(get(layout.accountKeys.reg_date()));
+    }
+    
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("AccountView{");
+        
+        for (int i = 0; i < values.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            
+            sb.append(layout.keys.get(i)).append('=').append(values[i]);
+        }
+        
+        return sb.append('}').toString();
+    }
+    
+    /**
+     * Key-to-column mapping shared by all views of a single scan.
+     */
+    /* package */ static final class Layout
+    {
+        /* package */ Layout(AccountKeys accountKeys, List<String> keys)
+        {
+            this.accountKeys = accountKeys;
+            this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+            this.columns = new HashMap<>(keys.size() * 2);
+            
+            for (int i = 0; i < keys.size(); i++)
+            {
+                columns.put(keys.get(i), i);
+            }
+        }
+        
+        /**
+         * Copies the selected keys out of a storage entry, preferring
+         * the values of a cached entry, if any.
+         */
+        /* package */ String[] project(StorageEntry entry, StorageEntry cachedEntry)
+        {
+            String[] values = new String[keys.size()];
+            
+            for (int i = 0; i < values.length; i++)
+            {
+                String key = keys.get(i);
+                
+                if (cachedEntry != null && cachedEntry.containsKey(key))
+                {
+                    values[i] = cachedEntry.get(key);
+                }
+                else
+                {
+                    values[i] = entry.get(key);
+                }
+            }
+            
+            return values;
+        }
+        
+        private final AccountKeys accountKeys;
+        private final List<String> keys;
+        private final Map<String, Integer> columns;
+    }
+    
+    private final Layout layout;
+    private final String[] values;
+}
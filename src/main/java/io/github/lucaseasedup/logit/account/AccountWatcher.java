@@ -2,16 +2,46 @@ package io.github.lucaseasedup.logit.account;
 
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.config.TimeUnit;
+import io.github.lucaseasedup.logit.logging.CustomLevel;
 import io.github.lucaseasedup.logit.storage.Infix;
+import io.github.lucaseasedup.logit.storage.Selector;
 import io.github.lucaseasedup.logit.storage.SelectorBinary;
 import io.github.lucaseasedup.logit.storage.SelectorCondition;
 import io.github.lucaseasedup.logit.storage.SelectorNegation;
+import io.github.lucaseasedup.logit.storage.StorageEntry;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import org.bukkit.scheduler.BukkitRunnable;
 
+/**
+ * Removes accounts that have been inactive for longer than
+ * <i>automaticAccountDeletion.inactivityTime</i>.
+ *
+ * <p> Each pass walks through the inactive accounts ordered by their
+ * last-active date and username, in pages of at most
+ * <i>accountWatcher.chunkSize</i> accounts. Each page starts after
+ * the (date, username) pair the previous one ended with, so no page
+ * is larger than the chunk size, however the dates are spread.
+ * Pages are selected off the server thread. The selected accounts
+ * are then removed over the following ticks, spending no more than
+ * <i>accountWatcher.tickBudget</i> per tick.
+ */
 public final class AccountWatcher extends LogItCoreObject implements Runnable
 {
+    @Override
+    public void dispose()
+    {
+        candidates.clear();
+        fetchedPage.set(null);
+    }
+    
     /**
      * Internal method. Do not call directly.
      */
@@ -22,54 +52,340 @@ public final class AccountWatcher extends LogItCoreObject implements Runnable
                 getConfig("config.yml").getBoolean("automaticAccountDeletion.enabled");
         
         if (!accountDeletionEnabled)
+        {
+            if (passInProgress)
+            {
+                abandonPass();
+            }
+            
+            return;
+        }
+        
+        Page page = fetchedPage.getAndSet(null);
+        
+        if (page != null)
+        {
+            fetching = false;
+            
+            acceptPage(page);
+        }
+        
+        if (!candidates.isEmpty())
+        {
+            removeCandidates();
+            
+            return;
+        }
+        
+        if (fetching)
             return;
         
+        if (passInProgress)
+        {
+            if (!passExhausted)
+            {
+                fetchPage();
+            }
+            else
+            {
+                endPass();
+            }
+        }
+        else if (System.currentTimeMillis() >= nextPassTime)
+        {
+            startPass();
+        }
+    }
+    
+    /**
+     * Returns the number of accounts examined since the plugin was started.
+     */
+    public long getExaminedCount()
+    {
+        return examinedCount;
+    }
+    
+    /**
+     * Returns the number of accounts submitted for removal
+     * since the plugin was started.
+     */
+    public long getRemovedCount()
+    {
+        return removedCount;
+    }
+    
+    private void startPass()
+    {
         long now = System.currentTimeMillis() / 1000L;
         long inactivityTime =
                 getConfig("config.yml").getTime("automaticAccountDeletion.inactivityTime",
                         TimeUnit.SECONDS);
         
-        List<Account> accounts = getAccountManager().selectAccounts(
-                Arrays.asList(keys().username(), keys().last_active_date()),
-                new SelectorBinary(
+        pass++;
+        passInProgress = true;
+        passStartTime = System.currentTimeMillis();
+        passExamined = 0;
+        passRemoved = 0;
+        deadline = now - inactivityTime;
+        passExhausted = false;
+        cursorDate = 0;
+        cursorUsername = null;
+    }
+    
+    private void endPass()
+    {
+        passInProgress = false;
+        nextPassTime = System.currentTimeMillis() + PASS_INTERVAL;
+        
+        log((passRemoved > 0) ? Level.INFO : CustomLevel.INTERNAL,
+                "Inactive account pass finished {"
+                        + "examined: " + passExamined
+                        + ", removed: " + passRemoved
+                        + ", time: " + (System.currentTimeMillis() - passStartTime) + "ms"
+                        + "}");
+        
+        if (passExamined > 0 && getConfig("config.yml").getBoolean("stats.enabled"))
+        {
+            getConfig("stats.yml").set("inactiveAccountsExamined",
+                    getConfig("stats.yml").getInt("inactiveAccountsExamined")
+                            + passExamined);
+            getConfig("stats.yml").set("inactiveAccountsRemoved",
+                    getConfig("stats.yml").getInt("inactiveAccountsRemoved")
+                            + passRemoved);
+        }
+    }
+    
+    private void abandonPass()
+    {
+        passInProgress = false;
+        candidates.clear();
+    }
+    
+    /**
+     * Selects the accounts of the next page in the background.
+     */
+    private void fetchPage()
+    {
+        final WrapperStorage storage = getAccountManager().getStorage();
+        final String unit = getAccountManager().getUnit();
+        final AccountKeys keys = getAccountManager().getKeys();
+        final int pageOfPass = pass;
+        final int chunkSize = Math.max(1, getConfig("secret.yml").getInt("accountWatcher.chunkSize"));
+        final long deadline = this.deadline;
+        final long afterDate = cursorDate;
+        final String afterUsername = cursorUsername;
+        
+        fetching = true;
+        
+        new BukkitRunnable()
+        {
+            @Override
+            public void run()
+            {
+                List<StorageEntry> entries = null;
+                Selector selector = new SelectorNegation(
                     new SelectorCondition(
-                        keys().last_active_date(),
+                        keys.last_active_date(),
                         Infix.GREATER_THAN,
-                        "0"
-                    ),
-                    Infix.AND,
-                    new SelectorNegation(
-                        new SelectorCondition(
-                            keys().last_active_date(),
-                            Infix.GREATER_THAN,
-                            String.valueOf(now - inactivityTime)
-                        )
+                        String.valueOf(deadline)
                     )
-                )
-        );
+                );
+                
+                // Continue after the last account of the previous page.
+                if (afterUsername != null)
+                {
+                    selector = new SelectorBinary(
+                        new SelectorBinary(
+                            new SelectorCondition(
+                                keys.last_active_date(),
+                                Infix.GREATER_THAN,
+                                String.valueOf(afterDate)
+                            ),
+                            Infix.OR,
+                            new SelectorBinary(
+                                new SelectorCondition(
+                                    keys.last_active_date(),
+                                    Infix.EQUALS,
+                                    String.valueOf(afterDate)
+                                ),
+                                Infix.AND,
+                                new SelectorCondition(
+                                    keys.username(),
+                                    Infix.GREATER_THAN,
+                                    afterUsername
+                                )
+                            )
+                        ),
+                        Infix.AND,
+                        selector
+                    );
+                }
+                
+                try
+                {
+                    synchronized (storage)
+                    {
+                        entries = storage.selectEntries(unit,
+                                Arrays.asList(keys.username(), keys.last_active_date()),
+                                selector,
+                                Arrays.asList(keys.last_active_date(), keys.username()),
+                                false, chunkSize);
+                    }
+                }
+                catch (IOException ex)
+                {
+                    log(Level.WARNING, "Could not select inactive accounts", ex);
+                }
+                
+                fetchedPage.set(new Page(pageOfPass, chunkSize, entries));
+            }
+        }.runTaskAsynchronously(getPlugin());
+    }
+    
+    private void acceptPage(Page page)
+    {
+        if (!passInProgress || page.pass != pass)
+            return;
+        
+        if (page.entries == null)
+        {
+            abandonPass();
+            
+            nextPassTime = System.currentTimeMillis() + PASS_INTERVAL;
+            
+            return;
+        }
+        
+        String usernameKey = getAccountManager().getKeys().username();
+        String lastActiveDateKey = getAccountManager().getKeys().last_active_date();
+        
+        for (StorageEntry entry : page.entries)
+        {
+            candidates.add(entry.get(usernameKey).toLowerCase());
+        }
         
-        if (!accounts.isEmpty())
+        // A short page is the last one.
+        if (page.entries.size() < page.limit)
         {
-            List<String> accountsToDelete = new ArrayList<>();
+            passExhausted = true;
             
-            for (Account account : accounts)
+            return;
+        }
+        
+        StorageEntry lastEntry = page.entries.get(page.entries.size() - 1);
+        
+        try
+        {
+            cursorDate = Long.parseLong(lastEntry.get(lastActiveDateKey));
+            cursorUsername = lastEntry.get(usernameKey);
+        }
+        catch (NumberFormatException ex)
+        {
+            // The cursor cannot move past an invalid date.
+            passExhausted = true;
+        }
+    }
+    
+    /**
+     * Removes as many candidates as fit in the tick budget,
+     * but always examines at least one.
+     */
+    private void removeCandidates()
+    {
+        long budget = getConfig("secret.yml")
+                .getTime("accountWatcher.tickBudget", TimeUnit.MILLISECONDS) * 1000000L;
+        long startTime = System.nanoTime();
+        List<String> usernames = new ArrayList<>();
+        int examined = 0;
+        
+        do
+        {
+            String username = candidates.poll();
+            
+            examined++;
+            
+            if (getSessionManager().isSessionAlive(username))
+                continue;
+            
+            // The storage may not reflect recent activity yet.
+            Account cachedAccount = getAccountManager().peekCachedAccount(username);
+            
+            if (cachedAccount != null
+                    && cachedAccount.getEntry().containsKey(keys().last_active_date())
+                    && cachedAccount.getLastActiveDate() > deadline)
             {
-                String username = account.getUsername();
-                
-                if (!getSessionManager().isSessionAlive(username))
-                {
-                    accountsToDelete.add(username);
-                }
+                continue;
             }
             
+            usernames.add(username);
+        }
+        while (!candidates.isEmpty() && System.nanoTime() - startTime
+                + removalCost * (usernames.size() + 1) < budget);
+        
+        if (!usernames.isEmpty())
+        {
+            long removalStartTime = System.nanoTime();
+            
             getAccountManager().removeAccounts(
-                    accountsToDelete.toArray(new String[accountsToDelete.size()])
+                    usernames.toArray(new String[usernames.size()])
             );
+            
+            long cost = (System.nanoTime() - removalStartTime) / usernames.size();
+            
+            removalCost = (removalCost == 0) ? cost : (removalCost * 3 + cost) / 4;
+        }
+        
+        passExamined += examined;
+        passRemoved += usernames.size();
+        examinedCount += examined;
+        removedCount += usernames.size();
+    }
+    
+    private static final class Page
+    {
+        private Page(int pass, int limit, List<StorageEntry> entries)
+        {
+            this.pass = pass;
+            this.limit = limit;
+            this.entries = entries;
         }
+        
+        private final int pass;
+        private final int limit;
+        private final List<StorageEntry> entries;
     }
     
     /**
      * Recommended task period of {@code AccountWatcher} running as a Bukkit task.
      */
-    public static final long TASK_PERIOD = TimeUnit.MINUTES.convertTo(10, TimeUnit.TICKS);
+    public static final long TASK_PERIOD = 1L;
+    
+    /**
+     * Time between the end of a pass and the start of the next one,
+     * in milliseconds.
+     */
+    public static final long PASS_INTERVAL =
+            TimeUnit.MINUTES.convertTo(10, TimeUnit.MILLISECONDS);
+    
+    private final Queue<String> candidates = new ArrayDeque<>();
+    private final AtomicReference<Page> fetchedPage = new AtomicReference<>();
+    private boolean fetching = false;
+    private int pass = 0;
+    private boolean passInProgress = false;
+    private long passStartTime;
+    private int passExamined;
+    private int passRemoved;
+    private long nextPassTime = 0;
+    private long deadline;
+    private boolean passExhausted;
+    
+    /**
+     * The last-active date and username of the last account selected
+     * in this pass. The username is {@code null} before the first page.
+     */
+    private long cursorDate;
+    private String cursorUsername;
+    private long removalCost = 0;
+    private long examinedCount = 0;
+    private long removedCount = 0;
 }
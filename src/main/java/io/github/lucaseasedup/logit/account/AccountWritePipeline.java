@@ -0,0 +1,314 @@
+package io.github.lucaseasedup.logit.account;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.storage.Storage;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Performs account writes on a dedicated thread, one at a time,
+ * in the order they were submitted.
+ *
+ * <p> Once a write has been performed, its completion is queued
+ * and later run on the thread calling {@link #runCompletions()},
+ * normally the server thread. Every submitted write is completed,
+ * including the ones abandoned at shutdown.
+ */
+public final class AccountWritePipeline extends LogItCoreObject
+{
+    public AccountWritePipeline()
+    {
+        executorService = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r,
+                        "LogIt Account Writes #" + THREAD_NUMBER.incrementAndGet());
+                
+                thread.setDaemon(true);
+                
+                return thread;
+            }
+        });
+    }
+    
+    @Override
+    public void dispose()
+    {
+        executorService.shutdownNow();
+        completions.clear();
+    }
+    
+    /**
+     * Submits a write to be performed in the background.
+     *
+     * <p> If this pipeline has already been shut down, the write
+     * is performed immediately on the calling thread.
+     *
+     * @param write the write to be performed.
+     *
+     * @throws IllegalArgumentException if {@code write} is {@code null}.
+     */
+    public void submit(final Write write)
+    {
+        if (write == null)
+            throw new IllegalArgumentException();
+        
+        Runnable task = new WriteTask(write);
+        
+        synchronized (this)
+        {
+            if (!executorService.isShutdown())
+            {
+                executorService.execute(task);
+                
+                return;
+            }
+        }
+        
+        task.run();
+        runCompletions();
+    }
+    
+    /**
+     * Runs the completions of all the writes performed so far.
+     */
+    public void runCompletions()
+    {
+        Runnable completion;
+        
+        while ((completion = completions.poll()) != null)
+        {
+            completion.run();
+        }
+    }
+    
+    /**
+     * Stops accepting background writes and waits for the pending ones
+     * to be performed.
+     *
+     * <p> Writes not started within the timeout are abandoned
+     * and completed with an error.
+     *
+     * @param timeout the maximum time to wait, in milliseconds.
+     */
+    public void shutdown(long timeout)
+    {
+        synchronized (this)
+        {
+            executorService.shutdown();
+        }
+        
+        try
+        {
+            if (!executorService.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+            {
+                List<Runnable> abandonedTasks = executorService.shutdownNow();
+                
+                log(Level.WARNING, abandonedTasks.size() + " account write(s)"
+                        + " could not be completed within " + timeout + "ms");
+                
+                abandon(abandonedTasks);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            abandon(executorService.shutdownNow());
+            Thread.currentThread().interrupt();
+        }
+        
+        runCompletions();
+    }
+    
+    /**
+     * Stops accepting background writes and performs the ones that have
+     * not been started yet on the calling thread.
+     *
+     * <p> Unlike {@link #shutdown(long)}, this method does not wait for the
+     * write in progress, so it is safe to call while holding a lock on the
+     * storage.
+     */
+    public void shutdownNow()
+    {
+        List<Runnable> pendingTasks;
+        
+        synchronized (this)
+        {
+            pendingTasks = executorService.shutdownNow();
+        }
+        
+        for (Runnable task : pendingTasks)
+        {
+            task.run();
+        }
+        
+        runCompletions();
+    }
+    
+    private void abandon(List<Runnable> tasks)
+    {
+        final IOException error = new IOException("Write abandoned at shutdown");
+        
+        for (Runnable task : tasks)
+        {
+            if (task instanceof WriteTask)
+            {
+                final Write write = ((WriteTask) task).write;
+                
+                completions.add(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        write.complete(error);
+                    }
+                });
+            }
+        }
+    }
+    
+    private void perform(final Write write)
+    {
+        IOException error = null;
+        
+        try
+        {
+            write.write();
+        }
+        catch (IOException ex)
+        {
+            error = ex;
+        }
+        catch (RuntimeException ex)
+        {
+            error = new IOException(ex);
+        }
+        
+        final IOException result = error;
+        
+        completions.add(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write.complete(result);
+            }
+        });
+    }
+    
+    /**
+     * Performs the given writes as a batch.
+     *
+     * <p> The storage is locked for no more than {@link #BATCH_CHUNK_SIZE}
+     * writes at a time, so that reads on other threads are not held up
+     * for the whole batch. If a chunk fails, the chunks before it
+     * stay written, and all the writes are completed with the error.
+     *
+     * @param storage the storage to write to.
+     * @param writes  the writes to be batched.
+     *
+     * @return a write performing all the given writes.
+     */
+    public static Write batch(final Storage storage, final List<Write> writes)
+    {
+        if (storage == null || writes == null)
+            throw new IllegalArgumentException();
+        
+        return new Write()
+        {
+            @Override
+            public void write() throws IOException
+            {
+                for (int i = 0; i < writes.size(); i += BATCH_CHUNK_SIZE)
+                {
+                    List<Write> chunk = writes.subList(i,
+                            Math.min(i + BATCH_CHUNK_SIZE, writes.size()));
+                    
+                    synchronized (storage)
+                    {
+                        storage.setAutobatchEnabled(true);
+                        
+                        try
+                        {
+                            for (Write write : chunk)
+                            {
+                                write.write();
+                            }
+                            
+                            storage.executeBatch();
+                            storage.clearBatch();
+                        }
+                        finally
+                        {
+                            storage.setAutobatchEnabled(false);
+                        }
+                    }
+                }
+            }
+            
+            @Override
+            public void complete(IOException error)
+            {
+                for (Write write : writes)
+                {
+                    write.complete(error);
+                }
+            }
+        };
+    }
+    
+    public static interface Write
+    {
+        /**
+         * Performs the I/O of this write.
+         * Called on the pipeline thread.
+         *
+         * @throws IOException if an I/O error occurred.
+         */
+        public void write() throws IOException;
+        
+        /**
+         * Called on the server thread after the write has been performed.
+         *
+         * @param error the I/O error that occurred,
+         *              or {@code null} if the write succeeded.
+         */
+        public void complete(IOException error);
+    }
+    
+    private final class WriteTask implements Runnable
+    {
+        private WriteTask(Write write)
+        {
+            this.write = write;
+        }
+        
+        @Override
+        public void run()
+        {
+            perform(write);
+        }
+        
+        private final Write write;
+    }
+    
+    /**
+     * The maximum number of writes a batch performs
+     * while holding the lock on the storage.
+     */
+    public static final int BATCH_CHUNK_SIZE = 100;
+    
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+    
+    private final ExecutorService executorService;
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+}
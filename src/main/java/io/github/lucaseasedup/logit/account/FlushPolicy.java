@@ -0,0 +1,221 @@
+package io.github.lucaseasedup.logit.account;
+
+/**
+ * Decides when {@code AccountManager} should flush its dirty accounts,
+ * and keeps track of the flushes performed so far.
+ *
+ * <p> Dirty accounts are normally flushed every base interval.
+ * The flush happens earlier if the number of dirty accounts or their
+ * estimated size passes a threshold. The interval is stretched when writes
+ * take long or the flushes keep finding almost nothing to write, but
+ * no dirty account is ever kept unsaved for longer than the maximum
+ * staleness.
+ */
+public final class FlushPolicy
+{
+    /**
+     * Constructs a new {@code FlushPolicy}.
+     *
+     * @param baseInterval        the regular flush interval, in milliseconds.
+     * @param maxInterval         the interval the regular one can be
+     *                            stretched to, in milliseconds.
+     * @param maxStaleness        the maximum time a dirty account can wait
+     *                            for a flush, in milliseconds.
+     * @param dirtyCountThreshold the number of dirty accounts that triggers
+     *                            an early flush.
+     * @param dirtyBytesThreshold the estimated size of dirty data, in bytes,
+     *                            that triggers an early flush.
+     *
+     * @throws IllegalArgumentException if any of the parameters is negative
+     *                                  or {@code maxInterval} is lower than
+     *                                  {@code baseInterval}.
+     */
+    public FlushPolicy(
+            long baseInterval,
+            long maxInterval,
+            long maxStaleness,
+            int dirtyCountThreshold,
+            long dirtyBytesThreshold
+    )
+    {
+        if (baseInterval < 0 || maxInterval < baseInterval || maxStaleness < 0
+                || dirtyCountThreshold < 0 || dirtyBytesThreshold < 0)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        this.baseInterval = baseInterval;
+        this.maxInterval = maxInterval;
+        this.maxStaleness = maxStaleness;
+        this.dirtyCountThreshold = dirtyCountThreshold;
+        this.dirtyBytesThreshold = dirtyBytesThreshold;
+        this.currentInterval = baseInterval;
+    }
+    
+    /**
+     * Checks whether dirty accounts should be flushed now.
+     *
+     * @param now             the current time in milliseconds.
+     * @param dirtyCount      the number of dirty accounts.
+     * @param dirtyBytes      the estimated size of dirty data, in bytes.
+     * @param oldestDirtyTime the time the oldest unsaved change was made,
+     *                        in milliseconds.
+     *
+     * @return the reason to flush, or {@code null} if the flush
+     *         should be postponed.
+     */
+    public Reason check(
+            long now, int dirtyCount, long dirtyBytes, long oldestDirtyTime
+    )
+    {
+        if (dirtyCount == 0)
+            return null;
+        
+        if (oldestDirtyTime > 0 && now - oldestDirtyTime >= maxStaleness)
+            return Reason.STALENESS;
+        
+        if ((dirtyCountThreshold > 0 && dirtyCount >= dirtyCountThreshold)
+                || (dirtyBytesThreshold > 0 && dirtyBytes >= dirtyBytesThreshold))
+        {
+            return Reason.VOLUME;
+        }
+        
+        if (now - lastFlushTime >= currentInterval)
+            return Reason.INTERVAL;
+        
+        return null;
+    }
+    
+    /**
+     * Records a flush that has just been submitted.
+     *
+     * @param now       the current time in milliseconds.
+     * @param size      the number of accounts flushed.
+     * @param bytes     the estimated size of the flushed data, in bytes.
+     * @param staleness the age of the oldest change flushed, in milliseconds.
+     */
+    public void recordFlush(long now, int size, long bytes, long staleness)
+    {
+        lastFlushTime = now;
+        lastFlushSize = size;
+        lastFlushBytes = bytes;
+        lastFlushStaleness = staleness;
+        flushCount++;
+        
+        if (staleness > maxObservedStaleness)
+        {
+            maxObservedStaleness = staleness;
+        }
+        
+        if (size <= QUIET_FLUSH_SIZE)
+        {
+            quietFactor = Math.min(quietFactor * 2, MAX_QUIET_FACTOR);
+        }
+        else
+        {
+            quietFactor = 1;
+        }
+        
+        updateInterval();
+    }
+    
+    /**
+     * Records how long it took to write a flush to the storage.
+     *
+     * @param latency the write latency, in milliseconds.
+     */
+    public void recordLatency(long latency)
+    {
+        if (averageLatency < 0)
+        {
+            averageLatency = latency;
+        }
+        else
+        {
+            averageLatency += LATENCY_SMOOTHING * (latency - averageLatency);
+        }
+        
+        updateInterval();
+    }
+    
+    private void updateInterval()
+    {
+        // Flushing more often than the storage can keep up with
+        // only makes the writes queue up.
+        double latencyFactor = (averageLatency > 0 && baseInterval > 0)
+                ? averageLatency * LATENCY_HEADROOM / baseInterval : 1;
+        double factor = Math.max(1, Math.max(latencyFactor, quietFactor));
+        
+        currentInterval = Math.min((long) (baseInterval * factor), maxInterval);
+    }
+    
+    public long getCurrentInterval()
+    {
+        return currentInterval;
+    }
+    
+    public long getFlushCount()
+    {
+        return flushCount;
+    }
+    
+    public int getLastFlushSize()
+    {
+        return lastFlushSize;
+    }
+    
+    public long getLastFlushBytes()
+    {
+        return lastFlushBytes;
+    }
+    
+    public long getLastFlushStaleness()
+    {
+        return lastFlushStaleness;
+    }
+    
+    public long getMaxObservedStaleness()
+    {
+        return maxObservedStaleness;
+    }
+    
+    /**
+     * Returns the moving average of flush write latency.
+     *
+     * @return the average latency in milliseconds,
+     *         or {@code -1} if no flush has been written yet.
+     */
+    public long getAverageLatency()
+    {
+        return Math.round(averageLatency);
+    }
+    
+    public static enum Reason
+    {
+        INTERVAL, VOLUME, STALENESS;
+    }
+    
+    /**
+     * Flushes writing this many accounts or fewer stretch the interval.
+     */
+    private static final int QUIET_FLUSH_SIZE = 1;
+    private static final int MAX_QUIET_FACTOR = 64;
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final double LATENCY_HEADROOM = 2.0;
+    
+    private final long baseInterval;
+    private final long maxInterval;
+    private final long maxStaleness;
+    private final int dirtyCountThreshold;
+    private final long dirtyBytesThreshold;
+    
+    private volatile long currentInterval;
+    private volatile long lastFlushTime = 0;
+    private volatile int lastFlushSize = 0;
+    private volatile long lastFlushBytes = 0;
+    private volatile long lastFlushStaleness = 0;
+    private volatile long maxObservedStaleness = 0;
+    private volatile long flushCount = 0;
+    private volatile double averageLatency = -1;
+    private int quietFactor = 1;
+}
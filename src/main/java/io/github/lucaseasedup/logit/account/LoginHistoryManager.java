@@ -0,0 +1,409 @@
+package io.github.lucaseasedup.logit.account;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.common.ReportedException;
+import io.github.lucaseasedup.logit.config.TimeUnit;
+import io.github.lucaseasedup.logit.logging.CustomLevel;
+import io.github.lucaseasedup.logit.storage.DataType;
+import io.github.lucaseasedup.logit.storage.Infix;
+import io.github.lucaseasedup.logit.storage.Selector;
+import io.github.lucaseasedup.logit.storage.SelectorBinary;
+import io.github.lucaseasedup.logit.storage.SelectorCondition;
+import io.github.lucaseasedup.logit.storage.SqlUtils;
+import io.github.lucaseasedup.logit.storage.StorageEntry;
+import io.github.lucaseasedup.logit.storage.StorageObserver;
+import io.github.lucaseasedup.logit.storage.UnitKeys;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * Keeps login records in a dedicated, append-only storage unit.
+ *
+ * <p> Each login appends one entry, identified by
+ * {@code username:time:random}. The unit is indexed by username and time,
+ * so the newest records of one player can be read without reading the rest.
+ *
+ * <p> Appends are written in the background. Records above
+ * <i>loginHistory.recordsToKeep</i> are pruned by the task in batches,
+ * only for the players who have logged in since the last pruning.
+ */
+public final class LoginHistoryManager extends LogItCoreObject implements Runnable
+{
+    /**
+     * Constructs a new {@code LoginHistoryManager}.
+     *
+     * @param storage the storage that this {@code LoginHistoryManager} will
+     *                operate on.
+     * @param unit    the name of a unit eligible for login history storage.
+     *                It will be created if it does not exist.
+     *
+     * @throws IOException if the unit could not be created.
+     */
+    public LoginHistoryManager(WrapperStorage storage, String unit)
+            throws IOException
+    {
+        if (storage == null || unit == null)
+            throw new IllegalArgumentException();
+        
+        storage.createUnit(unit, createKeys(), KEY_ID);
+        storage.createIndex(unit, Arrays.asList(KEY_USERNAME, KEY_TIME));
+        storage.addObserver(new StorageObserver()
+        {
+            @Override
+            public void beforeClose()
+            {
+                // The storage is locked at this point,
+                // so the pending appends have to be performed on this thread.
+                writePipeline.shutdownNow();
+            }
+        });
+        
+        this.storage = storage;
+        this.unit = unit;
+        this.writePipeline = new AccountWritePipeline();
+        this.writesShutdownTimeout = getConfig("secret.yml")
+                .getTime("accountWrites.shutdownTimeout", TimeUnit.MILLISECONDS);
+        this.pruneBatchSize = Math.max(1, getConfig("secret.yml")
+                .getInt("loginHistory.pruneBatchSize"));
+    }
+    
+    @Override
+    public void dispose()
+    {
+        if (writePipeline != null)
+        {
+            writePipeline.dispose();
+            writePipeline = null;
+        }
+        
+        pendingRecords.clear();
+        usernamesToPrune.clear();
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public void run()
+    {
+        writePipeline.runCompletions();
+        
+        if (usernamesToPrune.isEmpty() || pruneInProgress)
+            return;
+        
+        int recordsToKeep = getConfig("config.yml")
+                .getInt("loginHistory.recordsToKeep");
+        List<AccountWritePipeline.Write> prunes = new ArrayList<>();
+        Iterator<String> it = usernamesToPrune.iterator();
+        
+        while (it.hasNext() && prunes.size() < pruneBatchSize)
+        {
+            prunes.add(new Prune(it.next(), recordsToKeep));
+            it.remove();
+        }
+        
+        log(CustomLevel.INTERNAL, "Pruning login history {"
+                + "usernames = " + prunes.size() + "}");
+        
+        pruneInProgress = true;
+        writePipeline.submit(AccountWritePipeline.batch(storage, prunes));
+    }
+    
+    /**
+     * Appends a login record in the background.
+     *
+     * @param username  the username of the account.
+     * @param unixTime  the UNIX time of the recorded login.
+     * @param ip        an IP address of the player who tried to log in,
+     *                  or {@code null} if unknown.
+     * @param succeeded whether the entered password was correct.
+     *
+     * @throws IllegalArgumentException if {@code username} is {@code null}
+     *                                  or {@code unixTime} is negative.
+     */
+    public void recordLogin(
+            String username, long unixTime, String ip, boolean succeeded
+    )
+    {
+        if (username == null || unixTime < 0)
+            throw new IllegalArgumentException();
+        
+        final String normalizedUsername = username.toLowerCase();
+        final StorageEntry entry = new StorageEntry.Builder()
+                .put(KEY_ID, createId(normalizedUsername, unixTime))
+                .put(KEY_USERNAME, normalizedUsername)
+                .put(KEY_TIME, String.valueOf(unixTime))
+                .put(KEY_IP, ip)
+                .put(KEY_SUCCESS, succeeded ? "1" : "0")
+                .build();
+        
+        List<StorageEntry> pending = pendingRecords.get(normalizedUsername);
+        
+        if (pending == null)
+        {
+            pending = new LinkedList<>();
+            pendingRecords.put(normalizedUsername, pending);
+        }
+        
+        pending.add(entry);
+        
+        writePipeline.submit(new AccountWritePipeline.Write()
+        {
+            @Override
+            public void write() throws IOException
+            {
+                storage.addEntry(unit, entry);
+            }
+            
+            @Override
+            public void complete(IOException error)
+            {
+                if (error != null)
+                {
+                    log(Level.WARNING, error);
+                }
+                
+                List<StorageEntry> pending =
+                        pendingRecords.get(normalizedUsername);
+                
+                if (pending != null)
+                {
+                    pending.remove(entry);
+                    
+                    if (pending.isEmpty())
+                    {
+                        pendingRecords.remove(normalizedUsername);
+                    }
+                }
+                
+                usernamesToPrune.add(normalizedUsername);
+            }
+        });
+    }
+    
+    /**
+     * Returns the newest login records of a player.
+     *
+     * <p> No more than {@code limit} records are read from the storage.
+     *
+     * @param username the username of the account.
+     * @param limit    the maximum number of records to be returned.
+     *
+     * @return the records, newest first.
+     *
+     * @throws IllegalArgumentException if {@code username} is {@code null}
+     *                                  or {@code limit} is negative.
+     *
+     * @throws ReportedException        if an I/O error occurred,
+     *                                  and it was reported to the logger.
+     */
+    public List<LoginRecord> getNewestRecords(String username, int limit)
+    {
+        if (username == null || limit < 0)
+            throw new IllegalArgumentException();
+        
+        if (limit == 0)
+            return new ArrayList<>();
+        
+        String normalizedUsername = username.toLowerCase();
+        List<StorageEntry> entries = new ArrayList<>();
+        
+        try
+        {
+            entries.addAll(storage.selectEntries(unit, Arrays.asList(
+                    KEY_ID, KEY_USERNAME, KEY_TIME, KEY_IP, KEY_SUCCESS
+            ), selectUsername(normalizedUsername),
+                    Arrays.asList(KEY_TIME), true, limit));
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            ReportedException.throwNew(ex);
+        }
+        
+        List<StorageEntry> pending = pendingRecords.get(normalizedUsername);
+        
+        if (pending != null)
+        {
+            Set<String> storedIds = new HashSet<>();
+            
+            for (StorageEntry entry : entries)
+            {
+                storedIds.add(entry.get(KEY_ID));
+            }
+            
+            for (StorageEntry entry : pending)
+            {
+                if (!storedIds.contains(entry.get(KEY_ID)))
+                {
+                    entries.add(entry);
+                }
+            }
+        }
+        
+        // Put the pending records among the stored ones.
+        entries = SqlUtils.orderEntries(
+                entries, Arrays.asList(KEY_TIME), true, limit
+        );
+        
+        List<LoginRecord> records = new ArrayList<>();
+        
+        for (StorageEntry entry : entries)
+        {
+            if (records.size() >= limit)
+                break;
+            
+            LoginRecord record = toRecord(entry);
+            
+            if (record != null)
+            {
+                records.add(record);
+            }
+        }
+        
+        return records;
+    }
+    
+    /**
+     * Stops accepting background writes and waits for the pending ones
+     * to be performed, for no longer than <i>accountWrites.shutdownTimeout</i>.
+     */
+    public void shutdownWrites()
+    {
+        writePipeline.shutdown(writesShutdownTimeout);
+    }
+    
+    private LoginRecord toRecord(StorageEntry entry)
+    {
+        try
+        {
+            String ip = entry.get(KEY_IP);
+            
+            return new LoginRecord(
+                    entry.get(KEY_USERNAME),
+                    Long.parseLong(entry.get(KEY_TIME)),
+                    (ip == null || ip.isEmpty()) ? null : ip,
+                    "1".equals(entry.get(KEY_SUCCESS))
+            );
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return null;
+        }
+    }
+    
+    private static Selector selectUsername(String normalizedUsername)
+    {
+        return new SelectorCondition(KEY_USERNAME, Infix.EQUALS,
+                normalizedUsername);
+    }
+    
+    private static String createId(String normalizedUsername, long unixTime)
+    {
+        return normalizedUsername
+                + ID_SEPARATOR + String.format("%019d", unixTime)
+                + ID_SEPARATOR + UUID.randomUUID().toString().replace("-", "");
+    }
+    
+    private static UnitKeys createKeys()
+    {
+        UnitKeys keys = new UnitKeys();
+        
+        keys.put(KEY_ID,       DataType.TINYTEXT);
+        keys.put(KEY_USERNAME, DataType.TINYTEXT);
+        keys.put(KEY_TIME,     DataType.INTEGER);
+        keys.put(KEY_IP,       DataType.TINYTEXT);
+        keys.put(KEY_SUCCESS,  DataType.INTEGER);
+        
+        return keys;
+    }
+    
+    /**
+     * Removes the records of one player beyond the given number,
+     * oldest first.
+     */
+    private final class Prune implements AccountWritePipeline.Write
+    {
+        private Prune(String normalizedUsername, int recordsToKeep)
+        {
+            this.normalizedUsername = normalizedUsername;
+            this.recordsToKeep = recordsToKeep;
+        }
+        
+        @Override
+        public void write() throws IOException
+        {
+            Selector selector = selectUsername(normalizedUsername);
+            
+            if (recordsToKeep > 0)
+            {
+                List<StorageEntry> kept = storage.selectEntries(
+                        unit, Arrays.asList(KEY_TIME), selector,
+                        Arrays.asList(KEY_TIME), true, recordsToKeep
+                );
+                
+                if (kept.size() < recordsToKeep)
+                    return;
+                
+                // Records made in the same second as the oldest record kept
+                // are kept as well.
+                selector = new SelectorBinary(selector, Infix.AND,
+                        new SelectorCondition(KEY_TIME, Infix.LESS_THAN,
+                                kept.get(recordsToKeep - 1).get(KEY_TIME)));
+            }
+            
+            storage.removeEntries(unit, selector);
+        }
+        
+        @Override
+        public void complete(IOException error)
+        {
+            pruneInProgress = false;
+            
+            if (error != null)
+            {
+                log(Level.WARNING, error);
+            }
+        }
+        
+        private final String normalizedUsername;
+        private final int recordsToKeep;
+    }
+    
+    /**
+     * Recommended task period of {@code LoginHistoryManager}
+     * running as a Bukkit task.
+     */
+    public static final long TASK_PERIOD =
+            TimeUnit.SECONDS.convertTo(1, TimeUnit.TICKS);
+    
+    private static final String KEY_ID = "id";
+    private static final String KEY_USERNAME = "username";
+    private static final String KEY_TIME = "time";
+    private static final String KEY_IP = "ip";
+    private static final String KEY_SUCCESS = "success";
+    private static final String ID_SEPARATOR = ":";
+    
+    private final WrapperStorage storage;
+    private final String unit;
+    private AccountWritePipeline writePipeline;
+    private final long writesShutdownTimeout;
+    private final int pruneBatchSize;
+    
+    private final Map<String, List<StorageEntry>> pendingRecords = new HashMap<>();
+    private final Set<String> usernamesToPrune = new LinkedHashSet<>();
+    private boolean pruneInProgress = false;
+}
@@ -0,0 +1,134 @@
+package io.github.lucaseasedup.logit.account;
+
+/**
+ * Immutable record of a single login attempt.
+ */
+public final class LoginRecord
+{
+    /**
+     * Constructs a new {@code LoginRecord}.
+     *
+     * @param username  the username of the account.
+     * @param unixTime  the UNIX time of the login attempt.
+     * @param ip        the IP address of the player,
+     *                  or {@code null} if unknown.
+     * @param succeeded whether the entered password was correct.
+     *
+     * @throws IllegalArgumentException if {@code username} is {@code null}
+     *                                  or {@code unixTime} is negative.
+     */
+    public LoginRecord(String username, long unixTime, String ip, boolean succeeded)
+    {
+        if (username == null || unixTime < 0)
+            throw new IllegalArgumentException();
+        
+        this.username = username;
+        this.unixTime = unixTime;
+        this.ip = ip;
+        this.succeeded = succeeded;
+    }
+    
+    /**
+     * Parses a record stored in the legacy <i>login_history</i> key.
+     *
+     * @param username the username of the account.
+     * @param record   the record in the {@code time;ip;succeeded} format.
+     *
+     * @return the parsed record, or {@code null} if it was malformed.
+     *
+     * @throws IllegalArgumentException if {@code username}
+     *                                  or {@code record} is {@code null}.
+     */
+    public static LoginRecord parseLegacy(String username, String record)
+    {
+        if (username == null || record == null)
+            throw new IllegalArgumentException();
+        
+        String[] split = record.split(";");
+        
+        if (split.length < 3)
+            return null;
+        
+        try
+        {
+            long unixTime = Long.parseLong(split[0]);
+            
+            if (unixTime < 0)
+                return null;
+            
+            String ip = split[1].equals(UNKNOWN_IP) ? null : split[1];
+            
+            return new LoginRecord(username, unixTime, ip,
+                    Boolean.parseBoolean(split[2]));
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+    
+    public String getUsername()
+    {
+        return username;
+    }
+    
+    public long getUnixTime()
+    {
+        return unixTime;
+    }
+    
+    /**
+     * Returns the IP address of the player who tried to log in.
+     *
+     * @return the IP address, or {@code null} if unknown.
+     */
+    public String getIp()
+    {
+        return ip;
+    }
+    
+    public boolean isSucceeded()
+    {
+        return succeeded;
+    }
+    
+    /**
+     * Checks whether this record describes a login made at the same time,
+     * from the same IP address and with the same result as another one.
+     */
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        
+        if (!(obj instanceof LoginRecord))
+            return false;
+        
+        LoginRecord other = (LoginRecord) obj;
+        
+        return unixTime == other.unixTime
+                && succeeded == other.succeeded
+                && username.equalsIgnoreCase(other.username)
+                && (ip == null ? other.ip == null : ip.equals(other.ip));
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        int result = username.toLowerCase().hashCode();
+        
+        result = 31 * result + (int) (unixTime ^ (unixTime >>> 32));
+        result = 31 * result + (ip == null ? 0 : ip.hashCode());
+        result = 31 * result + (succeeded ? 1 : 0);
+        
+        return result;
+    }
+    
+    public static final String UNKNOWN_IP = "?.?.?.?";
+    
+    private final String username;
+    private final long unixTime;
+    private final String ip;
+    private final boolean succeeded;
+}
@@ -0,0 +1,306 @@
+package io.github.lucaseasedup.logit.account;
+
+import java.util.Arrays;
+
+/**
+ * Compact set of registered usernames.
+ *
+ * <p> Usernames are stored as 64-bit hashes in an open-addressing table
+ * with linear probing. A Bloom filter in front of the table answers most
+ * lookups of unregistered usernames without probing the table.
+ * Together, they take roughly 18 to 36 bytes per username.
+ *
+ * <p> Two different usernames sharing the same 64-bit hash are
+ * indistinguishable, but the chance of that is negligible.
+ */
+public final class RegistrationIndex
+{
+    public RegistrationIndex()
+    {
+        allocate(MIN_CAPACITY);
+    }
+    
+    /**
+     * Adds a username to this index.
+     *
+     * @param username the username.
+     *
+     * @throws IllegalArgumentException if {@code username} is {@code null}.
+     */
+    public synchronized void add(String username)
+    {
+        if (username == null)
+            throw new IllegalArgumentException();
+        
+        long hash = hash(username);
+        
+        if (insert(hash))
+        {
+            size++;
+            addToBloomFilter(hash);
+            
+            if (size * 2 > table.length)
+            {
+                resize(table.length * 2);
+            }
+        }
+    }
+    
+    /**
+     * Removes a username from this index.
+     *
+     * @param username the username.
+     *
+     * @throws IllegalArgumentException if {@code username} is {@code null}.
+     */
+    public synchronized void remove(String username)
+    {
+        if (username == null)
+            throw new IllegalArgumentException();
+        
+        int slot = find(hash(username));
+        
+        if (slot < 0)
+            return;
+        
+        delete(slot);
+        size--;
+        
+        // A Bloom filter can't forget a hash; rebuild it once
+        // the removed hashes make it noticeably less selective.
+        if (++removedSinceRebuild > Math.max(size, MIN_CAPACITY))
+        {
+            rebuildBloomFilter();
+        }
+    }
+    
+    /**
+     * Checks whether a username is in this index.
+     *
+     * @param username the username.
+     *
+     * @return {@code true} if the username has been added to this index.
+     *
+     * @throws IllegalArgumentException if {@code username} is {@code null}.
+     */
+    public synchronized boolean contains(String username)
+    {
+        if (username == null)
+            throw new IllegalArgumentException();
+        
+        long hash = hash(username);
+        
+        if (!mightContain(hash))
+            return false;
+        
+        return find(hash) >= 0;
+    }
+    
+    /**
+     * Replaces the contents of this index with those of another index,
+     * which must not be used afterwards.
+     *
+     * @param other the index to take the contents of.
+     *
+     * @throws IllegalArgumentException if {@code other} is {@code null}.
+     */
+    public synchronized void replaceWith(RegistrationIndex other)
+    {
+        if (other == null)
+            throw new IllegalArgumentException();
+        
+        synchronized (other)
+        {
+            table = other.table;
+            bloomFilter = other.bloomFilter;
+            size = other.size;
+            removedSinceRebuild = other.removedSinceRebuild;
+        }
+    }
+    
+    public synchronized void clear()
+    {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+    
+    public synchronized int size()
+    {
+        return size;
+    }
+    
+    /**
+     * Returns the number of bytes taken by the table and the Bloom filter.
+     *
+     * @return the memory footprint in bytes.
+     */
+    public synchronized long getMemoryFootprint()
+    {
+        return (table.length + bloomFilter.length) * 8L;
+    }
+    
+    private boolean insert(long hash)
+    {
+        int mask = table.length - 1;
+        int slot = (int) hash & mask;
+        
+        while (table[slot] != EMPTY)
+        {
+            if (table[slot] == hash)
+                return false;
+            
+            slot = (slot + 1) & mask;
+        }
+        
+        table[slot] = hash;
+        
+        return true;
+    }
+    
+    private int find(long hash)
+    {
+        int mask = table.length - 1;
+        int slot = (int) hash & mask;
+        
+        while (table[slot] != EMPTY)
+        {
+            if (table[slot] == hash)
+                return slot;
+            
+            slot = (slot + 1) & mask;
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Empties a slot, shifting back the entries that follow it,
+     * so that no probe sequence gets broken.
+     */
+    private void delete(int slot)
+    {
+        int mask = table.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        
+        while (table[next] != EMPTY)
+        {
+            int home = (int) table[next] & mask;
+            
+            // Move the entry into the gap unless its home slot
+            // lies cyclically between the gap and its current slot.
+            if (((next - home) & mask) >= ((next - gap) & mask))
+            {
+                table[gap] = table[next];
+                gap = next;
+            }
+            
+            next = (next + 1) & mask;
+        }
+        
+        table[gap] = EMPTY;
+    }
+    
+    private void resize(int capacity)
+    {
+        long[] oldTable = table;
+        
+        allocate(capacity);
+        
+        for (long hash : oldTable)
+        {
+            if (hash != EMPTY)
+            {
+                insert(hash);
+                addToBloomFilter(hash);
+            }
+        }
+    }
+    
+    private void allocate(int capacity)
+    {
+        table = new long[capacity];
+        bloomFilter = new long[capacity * BLOOM_BITS_PER_SLOT / 64];
+        removedSinceRebuild = 0;
+    }
+    
+    private void rebuildBloomFilter()
+    {
+        Arrays.fill(bloomFilter, 0L);
+        
+        for (long hash : table)
+        {
+            if (hash != EMPTY)
+            {
+                addToBloomFilter(hash);
+            }
+        }
+        
+        removedSinceRebuild = 0;
+    }
+    
+    private void addToBloomFilter(long hash)
+    {
+        int bitMask = bloomFilter.length * 64 - 1;
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) hash | 1;
+        
+        for (int i = 0; i < BLOOM_HASH_COUNT; i++)
+        {
+            int bit = (h1 + i * h2) & bitMask;
+            
+            bloomFilter[bit >>> 6] |= 1L << bit;
+        }
+    }
+    
+    private boolean mightContain(long hash)
+    {
+        int bitMask = bloomFilter.length * 64 - 1;
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) hash | 1;
+        
+        for (int i = 0; i < BLOOM_HASH_COUNT; i++)
+        {
+            int bit = (h1 + i * h2) & bitMask;
+            
+            if ((bloomFilter[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Computes a 64-bit hash of a lowercased username
+     * (FNV-1a followed by the MurmurHash3 finalizer).
+     */
+    private static long hash(String username)
+    {
+        long hash = 0xcbf29ce484222325L;
+        
+        for (int i = 0; i < username.length(); i++)
+        {
+            hash ^= Character.toLowerCase(username.charAt(i));
+            hash *= 0x100000001b3L;
+        }
+        
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        
+        // Zero marks empty slots.
+        return (hash == EMPTY) ? 1 : hash;
+    }
+    
+    private static final long EMPTY = 0L;
+    private static final int MIN_CAPACITY = 64;
+    private static final int BLOOM_BITS_PER_SLOT = 8;
+    private static final int BLOOM_HASH_COUNT = 4;
+    
+    private long[] table;
+    private long[] bloomFilter;
+    private int size = 0;
+    private int removedSinceRebuild = 0;
+}
@@ -148,7 +148,7 @@ public final class ChangeEmailCommand extends LogItCoreObject
                 return true;
             }
             
-            int accountsWithEmail = getAccountManager().selectAccounts(
+            int accountsWithEmail = getAccountManager().selectAccountViews(
                     Arrays.asList(keys().username(), keys().email()),
                     new SelectorCondition(keys().email(), Infix.EQUALS, args[0].toLowerCase())
             ).size();
@@ -4,10 +4,15 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.common.PlayerCollections;
 import io.github.lucaseasedup.logit.cooldown.LogItCooldowns;
+import io.github.lucaseasedup.logit.security.HashingPool;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabExecutor;
@@ -87,16 +92,34 @@ public final class ChangePassCommand extends LogItCoreObject
                 return true;
             }
             
-            account.changePassword(args[2]);
+            final CommandSender changingSender = sender;
+            final String username = args[1];
             
-            sendMsg(args[1], t("changePassword.success.self"));
-            sendMsg(sender, t("changePassword.success.others")
-                    .replace("{0}", PlayerUtils.getPlayerRealName(args[1])));
+            // The new password is hashed off the server thread.
+            boolean submitted = getHashingPool().submit(
+                    account.preparePasswordChange(args[2]),
+                    new HashingPool.Callback<Account.HashedPassword>()
+                    {
+                        @Override
+                        public void complete(
+                                Account.HashedPassword hashedPassword, Exception error
+                        )
+                        {
+                            if (error != null)
+                            {
+                                sendMsg(changingSender, t("unexpectedError"));
+                            }
+                            else
+                            {
+                                onPasswordHashed(changingSender, username, hashedPassword);
+                            }
+                        }
+                    }
+            );
             
-            if (getConfig("config.yml").getBoolean("stats.enabled"))
+            if (!submitted)
             {
-                getConfig("stats.yml").set("passwordChanges",
-                        getConfig("stats.yml").getInt("passwordChanges") + 1);
+                sendMsg(sender, t("hashing.busy"));
             }
         }
         else if (args.length <= 3)
@@ -243,23 +266,75 @@ public final class ChangePassCommand extends LogItCoreObject
                 return true;
             }
             
-            if (!account.checkPassword(args[0]))
+            if (pendingChanges.contains(player))
             {
-                sendMsg(player, t("incorrectPassword"));
+                sendMsg(player, t("hashing.pending"));
                 
                 return true;
             }
             
-            account.changePassword(args[1]);
+            if (!getAttemptThrottle().tryAcquire(PlayerUtils.getPlayerIp(player)))
+            {
+                sendMsg(player, t("tooManyAttempts"));
+                
+                return true;
+            }
             
-            sendMsg(sender, t("changePassword.success.self"));
+            final Player changingPlayer = player;
+            final Callable<Boolean> passwordCheck =
+                    account.preparePasswordCheck(args[0]);
+            final Callable<Account.HashedPassword> passwordChange =
+                    account.preparePasswordChange(args[1]);
             
-            LogItCooldowns.activate(player, LogItCooldowns.CHANGEPASS);
+            // Both the old password is checked and the new one hashed
+            // off the server thread; a null result means a wrong password.
+            boolean submitted = getHashingPool().submit(
+                    new Callable<Account.HashedPassword>()
+                    {
+                        @Override
+                        public Account.HashedPassword call() throws Exception
+                        {
+                            if (!passwordCheck.call())
+                                return null;
+                            
+                            return passwordChange.call();
+                        }
+                    },
+                    new HashingPool.Callback<Account.HashedPassword>()
+                    {
+                        @Override
+                        public void complete(
+                                Account.HashedPassword hashedPassword, Exception error
+                        )
+                        {
+                            pendingChanges.remove(changingPlayer);
+                            
+                            if (!changingPlayer.isOnline())
+                                return;
+                            
+                            if (error != null)
+                            {
+                                sendMsg(changingPlayer, t("unexpectedError"));
+                            }
+                            else if (hashedPassword == null)
+                            {
+                                sendMsg(changingPlayer, t("incorrectPassword"));
+                            }
+                            else
+                            {
+                                onPasswordHashed(changingPlayer, hashedPassword);
+                            }
+                        }
+                    }
+            );
             
-            if (getConfig("config.yml").getBoolean("stats.enabled"))
+            if (submitted)
+            {
+                pendingChanges.add(player);
+            }
+            else
             {
-                getConfig("stats.yml").set("passwordChanges",
-                        getConfig("stats.yml").getInt("passwordChanges") + 1);
+                sendMsg(player, t("hashing.busy"));
             }
         }
         else
@@ -270,6 +345,69 @@ public final class ChangePassCommand extends LogItCoreObject
         return true;
     }
     
+    private void onPasswordHashed(Player player, Account.HashedPassword hashedPassword)
+    {
+        // The account might have been evicted from the cache in the meantime.
+        Account account = getAccountManager().selectAccount(
+                player.getName(),
+                Arrays.asList(
+                        keys().username(),
+                        keys().salt(),
+                        keys().password(),
+                        keys().hashing_algorithm()
+                )
+        );
+        
+        if (account == null)
+        {
+            sendMsg(player, t("notRegistered.self"));
+            
+            return;
+        }
+        
+        account.applyPasswordChange(hashedPassword);
+        
+        sendMsg(player, t("changePassword.success.self"));
+        
+        LogItCooldowns.activate(player, LogItCooldowns.CHANGEPASS);
+        
+        if (getConfig("config.yml").getBoolean("stats.enabled"))
+        {
+            getConfig("stats.yml").set("passwordChanges",
+                    getConfig("stats.yml").getInt("passwordChanges") + 1);
+        }
+    }
+    
+    private void onPasswordHashed(
+            CommandSender sender, String username, Account.HashedPassword hashedPassword
+    )
+    {
+        // The account might have been evicted from the cache in the meantime.
+        Account account = getAccountManager().selectAccount(username, Arrays.asList(
+                keys().username()
+        ));
+        
+        if (account == null)
+        {
+            sendMsg(sender, t("notRegistered.others")
+                    .replace("{0}", PlayerUtils.getPlayerRealName(username)));
+            
+            return;
+        }
+        
+        account.applyPasswordChange(hashedPassword);
+        
+        sendMsg(username, t("changePassword.success.self"));
+        sendMsg(sender, t("changePassword.success.others")
+                .replace("{0}", PlayerUtils.getPlayerRealName(username)));
+        
+        if (getConfig("config.yml").getBoolean("stats.enabled"))
+        {
+            getConfig("stats.yml").set("passwordChanges",
+                    getConfig("stats.yml").getInt("passwordChanges") + 1);
+        }
+    }
+    
     @Override
     public List<String> onTabComplete(
             CommandSender sender, Command cmd, String label, String[] args
@@ -289,4 +427,7 @@ public final class ChangePassCommand extends LogItCoreObject
         
         return null;
     }
+    
+    private final Set<Player> pendingChanges =
+            PlayerCollections.monitoredCollection(new HashSet<Player>());
 }
@@ -1,16 +1,11 @@
 package io.github.lucaseasedup.logit.command;
 
 import io.github.lucaseasedup.logit.LogItCoreObject;
-import io.github.lucaseasedup.logit.account.Account;
 import io.github.lucaseasedup.logit.command.hub.HubCommand;
 import io.github.lucaseasedup.logit.command.hub.HubCommands;
-import io.github.lucaseasedup.logit.storage.Infix;
-import io.github.lucaseasedup.logit.storage.SelectorCondition;
 import io.github.lucaseasedup.logit.util.Utils;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -60,30 +55,7 @@ public final class LogItTabCompleter extends LogItCoreObject
         if (stub == null)
             throw new IllegalArgumentException();
         
-        List<Account> accounts = getAccountManager().selectAccounts(
-                Arrays.asList(keys().username()),
-                new SelectorCondition(
-                        keys().username(),
-                        Infix.STARTS_WITH,
-                        stub
-                )
-        );
-        
-        if (accounts == null)
-            return null;
-        
-        List<String> suggestions = new ArrayList<>();
-        
-        for (Account account : accounts)
-        {
-            suggestions.add(account.getUsername());
-        }
-        
-        Collections.sort(suggestions);
-        
-        return suggestions.subList(0,
-                (suggestions.size() < MAX_SUGGESTIONS)
-                        ? suggestions.size() : MAX_SUGGESTIONS);
+        return getAccountManager().getUsernamesStartingWith(stub, MAX_SUGGESTIONS);
     }
     
     public List<String> completeBackupFilename(String stub)
@@ -4,14 +4,19 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.common.ExpiringMap;
 import io.github.lucaseasedup.logit.common.PlayerCollections;
 import io.github.lucaseasedup.logit.config.TimeUnit;
 import io.github.lucaseasedup.logit.hooks.BukkitSmerfHook;
 import io.github.lucaseasedup.logit.locale.Locale;
+import io.github.lucaseasedup.logit.security.HashingPool;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 import org.apache.commons.lang.StringUtils;
 import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
@@ -92,7 +97,7 @@ public final class LoginCommand extends LogItCoreObject
                 sendMsg(sender, t("startSession.success.others")
                         .replace("{0}", paramPlayer.getName()));
                 
-                if (getConfig("config.yml").getBoolean("stats.enabled"))
+                if (getConfigSnapshot().isStatsEnabled())
                 {
                     getConfig("stats.yml").set("logins",
                             getConfig("stats.yml").getInt("logins") + 1);
@@ -131,15 +136,16 @@ public final class LoginCommand extends LogItCoreObject
                 return true;
             }
             
-            if (loginBlockade.containsKey(player))
+            long blockadeTimeMillis = loginBlockade.getRemainingMillis(player);
+            
+            if (blockadeTimeMillis >= 0)
             {
-                long blockadeExpirationTimeMillis = loginBlockade.get(player);
                 Locale locale = getLocaleManager().getActiveLocale();
                 
-                if (blockadeExpirationTimeMillis - 1000L > System.currentTimeMillis())
+                if (blockadeTimeMillis > 1000L)
                 {
                     long blockageTimeSecs = TimeUnit.MILLISECONDS.convertTo(
-                            blockadeExpirationTimeMillis - System.currentTimeMillis(),
+                            blockadeTimeMillis,
                             TimeUnit.SECONDS
                     );
                     
@@ -159,9 +165,7 @@ public final class LoginCommand extends LogItCoreObject
                             keys().salt(),
                             keys().password(),
                             keys().hashing_algorithm(),
-                            keys().ip(),
-                            keys().login_history(),
-                            keys().persistence()
+                            keys().ip()
                     )
             );
             
@@ -172,133 +176,81 @@ public final class LoginCommand extends LogItCoreObject
                 return true;
             }
             
-            String playerIp = PlayerUtils.getPlayerIp(player);
-            long currentTimeSecs = System.currentTimeMillis() / 1000L;
+            final String playerIp = PlayerUtils.getPlayerIp(player);
+            final long currentTimeSecs = System.currentTimeMillis() / 1000L;
             
-            if (!disablePasswords
-                    && !getGlobalPasswordManager().checkPassword(args[0]))
+            if (disablePasswords
+                    || getGlobalPasswordManager().checkPassword(args[0]))
             {
-                if (!account.checkPassword(args[0]))
-                {
-                    sendMsg(player, t("incorrectPassword"));
-                    
-                    int failsToBlockLoggingIn = getConfig("config.yml")
-                            .getInt("bruteForce.blockLogin.attempts");
-                    
-                    int failsToKick = getConfig("config.yml")
-                            .getInt("bruteForce.kick.attempts");
-                    
-                    int failsToBan = getConfig("config.yml")
-                            .getInt("bruteForce.ban.attempts");
-                    
-                    Integer currentFailedLogins = failedLogins.get(player);
-                    
-                    failedLogins.put(player,
-                            currentFailedLogins != null ? currentFailedLogins + 1 : 1);
-                    
-                    if (playerIp != null && failsToBan > 0
-                            && failedLogins.get(player) >= failsToBan)
-                    {
-                        Bukkit.banIP(playerIp);
-                        
-                        player.kickPlayer(t("tooManyLoginFails.ban"));
-                        
-                        failedLogins.remove(player);
-                    }
-                    else if (failsToKick > 0
-                            && failedLogins.get(player) >= failsToKick)
-                    {
-                        player.kickPlayer(t("tooManyLoginFails.kick"));
-                        
-                        failedLogins.remove(player);
-                    }
-                    else if (failsToBlockLoggingIn > 0
-                            && failedLogins.get(player) >= failsToBlockLoggingIn)
-                    {
-                        long loginBlockadeTimeMillis = getConfig("config.yml")
-                                .getTime("bruteForce.blockLogin.forTime",
-                                        TimeUnit.MILLISECONDS);
-                        
-                        long loginBlockadeTimeSecs = TimeUnit.MILLISECONDS.convertTo(
-                                loginBlockadeTimeMillis,
-                                TimeUnit.SECONDS
-                        );
-                        
-                        loginBlockade.put(player,
-                                System.currentTimeMillis() + loginBlockadeTimeMillis);
-                        
-                        Locale locale = getLocaleManager().getActiveLocale();
-                        String localeBlockadeTime =
-                                locale.stringifySeconds(loginBlockadeTimeSecs);
-                        
-                        sendMsg(player, t("tooManyLoginFails.blockLoggingIn")
-                                .replace("{0}", localeBlockadeTime));
-                        
-                        failedLogins.remove(player);
-                    }
-                    
-                    if (getConfig("config.yml").getBoolean("loginHistory.enabled"))
-                    {
-                        account.recordLogin(currentTimeSecs, playerIp, Account.LOGIN_FAIL);
-                    }
-                    
-                    boolean isPremium = BukkitSmerfHook.isPremium(player);
-                    boolean premiumTakeoverEnabled = getConfig("config.yml")
-                            .getBoolean("premiumTakeover.enabled");
-                    String promptOn = getConfig("config.yml")
-                            .getString("premiumTakeover.promptOn");
-                    
-                    if (isPremium && premiumTakeoverEnabled
-                            && promptOn.equals("failed-login"))
+                onCorrectPassword(player, account, playerIp, currentTimeSecs);
+                
+                return true;
+            }
+            
+            if (pendingChecks.contains(player))
+            {
+                sendMsg(player, t("hashing.pending"));
+                
+                return true;
+            }
+            
+            if (!getAttemptThrottle().tryAcquire(playerIp))
+            {
+                sendMsg(player, t("tooManyAttempts"));
+                
+                return true;
+            }
+            
+            final Account checkedAccount = account;
+            final String password = args[0];
+            
+            // Hashing may take a while, so the password is checked
+            // off the server thread and the result is applied later.
+            boolean submitted = getHashingPool().submit(
+                    account.preparePasswordCheck(password),
+                    new HashingPool.Callback<Boolean>()
                     {
-                        new BukkitRunnable()
+                        @Override
+                        public void complete(Boolean correct, Exception error)
                         {
-                            @Override
-                            public void run()
+                            pendingChecks.remove(player);
+                            
+                            if (!player.isOnline()
+                                    || getSessionManager().isSessionAlive(player))
                             {
-                                if (!getSessionManager().isSessionAlive(player))
+                                return;
+                            }
+                            
+                            if (error != null)
+                            {
+                                sendMsg(player, t("unexpectedError"));
+                            }
+                            else if (correct)
+                            {
+                                onCorrectPassword(player, checkedAccount,
+                                        playerIp, currentTimeSecs);
+                                
+                                if (getConfig("config.yml")
+                                        .getBoolean("passwords.rehashOnLogin"))
                                 {
-                                    sendMsg(player, t("takeover.prompt"));
+                                    rehashPassword(player, password);
                                 }
                             }
-                        }.runTaskLater(getPlugin(), 20L);
+                            else
+                            {
+                                onIncorrectPassword(player, playerIp, currentTimeSecs);
+                            }
+                        }
                     }
-                    
-                    return true;
-                }
-            }
-            
-            failedLogins.remove(player);
+            );
             
-            if (getSessionManager().getSession(player) == null)
+            if (submitted)
             {
-                getSessionManager().createSession(player);
+                pendingChecks.add(player);
             }
-            
-            if (!getSessionManager().startSession(player).isCancelled())
+            else
             {
-                sendMsg(sender, t("startSession.success.self"));
-
-                if (getConfig("config.yml").getBoolean("stats.enabled"))
-                {
-                    getConfig("stats.yml").set("logins",
-                            getConfig("stats.yml").getInt("logins") + 1);
-                }
-                
-                if (getConfig("config.yml").getBoolean("loginSessions.enabled"))
-                {
-                    sendMsg(sender, t("rememberLogin.prompt"));
-                }
-                
-                if (getConfig("config.yml").getBoolean("loginHistory.enabled"))
-                {
-                    account.recordLogin(currentTimeSecs, playerIp, Account.LOGIN_SUCCESS);
-                }
-                
-                if (playerIp != null && StringUtils.isBlank(account.getIp()))
-                {
-                    account.setIp(playerIp);
-                }
+                sendMsg(player, t("hashing.busy"));
             }
         }
         else
@@ -309,8 +261,194 @@ public final class LoginCommand extends LogItCoreObject
         return true;
     }
     
+    private void onIncorrectPassword(
+            final Player player, String playerIp, long currentTimeSecs
+    )
+    {
+        sendMsg(player, t("incorrectPassword"));
+        
+        int failsToBlockLoggingIn = getConfigSnapshot().getBlockLoginAttempts();
+        
+        int failsToKick = getConfigSnapshot().getKickAttempts();
+        
+        int failsToBan = getConfigSnapshot().getBanAttempts();
+        
+        Integer currentFailedLogins = failedLogins.get(player);
+        
+        failedLogins.put(player,
+                currentFailedLogins != null ? currentFailedLogins + 1 : 1);
+        
+        if (playerIp != null && failsToBan > 0
+                && failedLogins.get(player) >= failsToBan)
+        {
+            Bukkit.banIP(playerIp);
+            
+            player.kickPlayer(t("tooManyLoginFails.ban"));
+            
+            failedLogins.remove(player);
+        }
+        else if (failsToKick > 0
+                && failedLogins.get(player) >= failsToKick)
+        {
+            player.kickPlayer(t("tooManyLoginFails.kick"));
+            
+            failedLogins.remove(player);
+        }
+        else if (failsToBlockLoggingIn > 0
+                && failedLogins.get(player) >= failsToBlockLoggingIn)
+        {
+            long loginBlockadeTimeMillis = getConfigSnapshot().getBlockLoginMillis();
+            
+            long loginBlockadeTimeSecs = TimeUnit.MILLISECONDS.convertTo(
+                    loginBlockadeTimeMillis,
+                    TimeUnit.SECONDS
+            );
+            
+            loginBlockade.put(player, Boolean.TRUE, loginBlockadeTimeMillis);
+            
+            Locale locale = getLocaleManager().getActiveLocale();
+            String localeBlockadeTime =
+                    locale.stringifySeconds(loginBlockadeTimeSecs);
+            
+            sendMsg(player, t("tooManyLoginFails.blockLoggingIn")
+                    .replace("{0}", localeBlockadeTime));
+            
+            failedLogins.remove(player);
+        }
+        
+        if (getLoginHistoryManager() != null)
+        {
+            getLoginHistoryManager().recordLogin(player.getName(),
+                    currentTimeSecs, playerIp, Account.LOGIN_FAIL);
+        }
+        
+        boolean isPremium = BukkitSmerfHook.isPremium(player);
+        boolean premiumTakeoverEnabled = getConfig("config.yml")
+                .getBoolean("premiumTakeover.enabled");
+        String promptOn = getConfig("config.yml")
+                .getString("premiumTakeover.promptOn");
+        
+        if (isPremium && premiumTakeoverEnabled
+                && promptOn.equals("failed-login"))
+        {
+            new BukkitRunnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (!getSessionManager().isSessionAlive(player))
+                    {
+                        sendMsg(player, t("takeover.prompt"));
+                    }
+                }
+            }.runTaskLater(getPlugin(), 20L);
+        }
+    }
+    
+    private void onCorrectPassword(
+            Player player, Account account, String playerIp, long currentTimeSecs
+    )
+    {
+        failedLogins.remove(player);
+        
+        if (getSessionManager().getSession(player) == null)
+        {
+            getSessionManager().createSession(player);
+        }
+        
+        if (!getSessionManager().startSession(player).isCancelled())
+        {
+            sendMsg(player, t("startSession.success.self"));
+            
+            if (getConfigSnapshot().isStatsEnabled())
+            {
+                getConfig("stats.yml").set("logins",
+                        getConfig("stats.yml").getInt("logins") + 1);
+            }
+            
+            if (getConfigSnapshot().isLoginSessionsEnabled())
+            {
+                sendMsg(player, t("rememberLogin.prompt"));
+            }
+            
+            if (getLoginHistoryManager() != null)
+            {
+                getLoginHistoryManager().recordLogin(player.getName(),
+                        currentTimeSecs, playerIp, Account.LOGIN_SUCCESS);
+            }
+            
+            if (playerIp != null && StringUtils.isBlank(account.getIp()))
+            {
+                account.setIp(playerIp);
+            }
+        }
+    }
+    
+    /**
+     * Rehashes the password of a player who has just logged in,
+     * if it was hashed with a model other than the default one.
+     */
+    private void rehashPassword(Player player, String password)
+    {
+        final String username = player.getName();
+        Account account = getAccountManager().selectAccount(
+                username,
+                Arrays.asList(
+                        keys().username(),
+                        keys().salt(),
+                        keys().password(),
+                        keys().hashing_algorithm()
+                )
+        );
+        
+        if (account == null || !account.needsRehash())
+            return;
+        
+        // Rehashing is best-effort; if the pool is busy,
+        // it will be retried on the next login.
+        getHashingPool().submit(
+                account.preparePasswordRehash(password),
+                new HashingPool.Callback<Account.HashedPassword>()
+                {
+                    @Override
+                    public void complete(
+                            Account.HashedPassword hashedPassword, Exception error
+                    )
+                    {
+                        if (error != null || hashedPassword == null)
+                            return;
+                        
+                        Account currentAccount = getAccountManager().selectAccount(
+                                username,
+                                Arrays.asList(
+                                        keys().username(),
+                                        keys().salt(),
+                                        keys().password(),
+                                        keys().hashing_algorithm()
+                                )
+                        );
+                        
+                        if (currentAccount != null
+                                && currentAccount.applyPasswordChange(hashedPassword))
+                        {
+                            log(Level.FINE, "Rehashed the password of "
+                                    + username + " with " + hashedPassword.getAlgorithm());
+                        }
+                    }
+                }
+        );
+    }
+    
     private final Map<Player, Integer> failedLogins =
             PlayerCollections.monitoredMap(new HashMap<Player, Integer>());
-    private final Map<Player, Long> loginBlockade =
-            PlayerCollections.monitoredMap(new HashMap<Player, Long>());
+    private final ExpiringMap<Player, Boolean> loginBlockade =
+            PlayerCollections.monitoredMap(
+                    new ExpiringMap<Player, Boolean>(1000L, 64, 10000)
+            );
+    
+    /**
+     * Players whose password is being checked by the {@code HashingPool}.
+     */
+    private final Set<Player> pendingChecks =
+            PlayerCollections.monitoredCollection(new HashSet<Player>());
 }
@@ -4,8 +4,11 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.account.LoginRecord;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import org.bukkit.command.Command;
@@ -76,12 +79,7 @@ public final class LoginHistoryCommand extends LogItCoreObject
                 return true;
             }
             
-            Account account = getAccountManager().selectAccount(playerName, Arrays.asList(
-                    keys().username(),
-                    keys().login_history()
-            ));
-            
-            if (account == null)
+            if (!getAccountManager().isRegistered(playerName))
             {
                 if (args.length == 0)
                 {
@@ -96,49 +94,42 @@ public final class LoginHistoryCommand extends LogItCoreObject
                 return true;
             }
             
-            List<String> records = account.getLoginHistory();
+            int recordsToKeep = getConfig("config.yml")
+                    .getInt("loginHistory.recordsToKeep");
+            List<LoginRecord> records = getLoginHistoryManager()
+                    .getNewestRecords(playerName, recordsToKeep);
+            
+            if (records.isEmpty())
+            {
+                records = selectLegacyRecords(playerName, recordsToKeep);
+            }
+            
+            // Print the oldest records first.
+            Collections.reverse(records);
             
             sendMsg(sender, "");
             sendMsg(sender, t("loginHistory.header"));
             
             String lastIp = null;
-            int equalRecords = 1;
             
-            for (int i = 0, n = records.size(); i < n - 1; i++)
+            for (int i = 0, n = records.size(); i < n;)
             {
-                String record = records.get(i);
-                String[] split = record.split(";");
-                String nextRecord = records.get(i + 1);
-                String[] nextSplit = nextRecord.split(";");
-                
-                if (split.length < 3 || nextSplit.length < 3)
-                    continue;
-                
-                boolean nextRecordEqual = split[0].equals(nextSplit[0])
-                        && split[1].equals(nextSplit[1])
-                        && split[2].equals(nextSplit[2]);
+                LoginRecord record = records.get(i);
+                int equalRecords = 1;
                 
-                if (nextRecordEqual)
+                while (i + equalRecords < n
+                        && record.equals(records.get(i + equalRecords)))
                 {
                     equalRecords++;
                 }
                 
-                if (!nextRecordEqual)
-                {
-                    printLoginRecord(sender, split[0], split[1], split[2],
-                            equalRecords, lastIp);
-                    
-                    equalRecords = 1;
-                }
+                String ip = (record.getIp() != null)
+                        ? record.getIp() : LoginRecord.UNKNOWN_IP;
                 
-                // If the next record is the last one.
-                if (i + 1 >= n - 1)
-                {
-                    printLoginRecord(sender, nextSplit[0], nextSplit[1], nextSplit[2],
-                            equalRecords, split[1]);
-                }
+                printLoginRecord(sender, record, ip, equalRecords, lastIp);
                 
-                lastIp = split[1];
+                lastIp = ip;
+                i += equalRecords;
             }
             
             sendMsg(sender, "");
@@ -151,23 +142,52 @@ public final class LoginHistoryCommand extends LogItCoreObject
         return true;
     }
     
+    /**
+     * Reads the records made before the login history got its own storage
+     * unit, kept in the <i>login_history</i> key of the account.
+     */
+    private List<LoginRecord> selectLegacyRecords(String username, int limit)
+    {
+        Account account = getAccountManager().selectAccount(username, Arrays.asList(
+                keys().username(),
+                keys().login_history()
+        ));
+        
+        List<LoginRecord> records = new ArrayList<>();
+        
+        if (account == null)
+            return records;
+        
+        for (String legacyRecord : account.getLoginHistory())
+        {
+            LoginRecord record = LoginRecord.parseLegacy(username, legacyRecord);
+            
+            if (record != null)
+            {
+                records.add(record);
+            }
+        }
+        
+        // Legacy records are stored oldest first.
+        Collections.reverse(records);
+        
+        return records.subList(0, Math.min(limit, records.size()));
+    }
+    
     private void printLoginRecord(
-            CommandSender sender, String unixTime, String ip, String succeeded,
+            CommandSender sender, LoginRecord record, String ip,
             int equalRecords, String lastIp
     )
     {
-        if (sender == null || unixTime == null || ip == null
-                || succeeded == null || equalRecords < 0)
-        {
+        if (sender == null || record == null || ip == null || equalRecords < 0)
             throw new IllegalArgumentException();
-        }
         
         if (equalRecords == 0)
             return;
         
         String messageLabel;
         
-        if (succeeded.equals("true"))
+        if (record.isSucceeded())
         {
             messageLabel = "loginHistory.record.success";
         }
@@ -194,7 +214,7 @@ public final class LoginHistoryCommand extends LogItCoreObject
         }
         
         sendMsg(sender, t(messageLabel)
-                .replace("{0}", new Date(Long.parseLong(unixTime) * 1000L).toString())
+                .replace("{0}", new Date(record.getUnixTime() * 1000L).toString())
                 .replace("{1}", ip)
                 .replace("{2}", repetition));
     }
@@ -7,11 +7,14 @@ import io.github.lucaseasedup.logit.account.Account;
 import io.github.lucaseasedup.logit.common.ReportedException;
 import io.github.lucaseasedup.logit.cooldown.LogItCooldowns;
 import io.github.lucaseasedup.logit.hooks.BukkitSmerfHook;
+import io.github.lucaseasedup.logit.security.HashingPool;
 import io.github.lucaseasedup.logit.storage.Infix;
 import io.github.lucaseasedup.logit.storage.SelectorCondition;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.bukkit.Location;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -96,6 +99,13 @@ public final class RegisterCommand extends LogItCoreObject
                 return true;
             }
             
+            if (pendingUsernames.contains(args[1].toLowerCase()))
+            {
+                sendMsg(sender, t("hashing.pending"));
+                
+                return true;
+            }
+            
             String password = "";
             
             if (!disablePasswords)
@@ -103,78 +113,49 @@ public final class RegisterCommand extends LogItCoreObject
                 password = args[2];
             }
             
-            try
-            {
-                ReportedException.incrementRequestCount();
-                
-                Account account = new Account(args[1]);
-                account.changePassword(password);
-                
-                if (PlayerUtils.isPlayerOnline(args[1]))
-                {
-                    Player paramPlayer = PlayerUtils.getPlayer(args[1]);
-                    String paramPlayerIp = PlayerUtils.getPlayerIp(paramPlayer);
-                    
-                    account.setUuid(paramPlayer.getUniqueId());
-                    
-                    if (paramPlayerIp != null)
-                    {
-                        account.setIp(paramPlayerIp);
-                    }
-                    
-                    account.setDisplayName(paramPlayer.getName());
-                }
-                
-                account.setLastActiveDate(System.currentTimeMillis() / 1000L);
-                account.setRegistrationDate(System.currentTimeMillis() / 1000L);
-                
-                if (!getAccountManager().insertAccount(account).isCancelled())
-                {
-                    sendMsg(sender, t("createAccount.success.others")
-                            .replace("{0}", PlayerUtils.getPlayerRealName(args[1])));
-                    
-                    if (PlayerUtils.isPlayerOnline(args[1]))
+            final String username = args[1];
+            final Account account = new Account(username);
+            
+            // Hashing may take a while, so the password is hashed
+            // off the server thread and the account is inserted later.
+            boolean submitted = getHashingPool().submit(
+                    account.preparePasswordChange(password),
+                    new HashingPool.Callback<Account.HashedPassword>()
                     {
-                        Player paramPlayer = PlayerUtils.getPlayer(args[1]);
-                        
-                        if (getSessionManager().getSession(paramPlayer) == null)
-                        {
-                            getSessionManager().createSession(paramPlayer);
-                        }
-                        
-                        if (!getSessionManager().startSession(paramPlayer).isCancelled())
-                        {
-                            sendMsg(paramPlayer, t("createAccount.successAndLogin.self"));
-                            sendMsg(sender, t("startSession.success.others")
-                                    .replace("{0}", paramPlayer.getName()));
-                        }
-                        else
-                        {
-                            sendMsg(paramPlayer, t("createAccount.success.self"));
-                        }
-                        
-                        boolean newbieTeleportEnabled = getConfig("config.yml")
-                                .getBoolean("newbieTeleport.enabled");
-                        
-                        if (newbieTeleportEnabled)
+                        @Override
+                        public void complete(
+                                Account.HashedPassword hashedPassword, Exception error
+                        )
                         {
-                            Location newbieTeleportLocation = getConfig("config.yml")
-                                    .getLocation("newbieTeleport.location")
-                                    .toBukkitLocation();
+                            pendingUsernames.remove(username.toLowerCase());
                             
-                            paramPlayer.teleport(newbieTeleportLocation);
+                            if (error != null)
+                            {
+                                sendMsg(sender, t("createAccount.fail.others")
+                                        .replace("{0}", username));
+                            }
+                            else if (getAccountManager().isRegistered(username))
+                            {
+                                sendMsg(sender, t("alreadyRegistered.others")
+                                        .replace("{0}", username));
+                            }
+                            else
+                            {
+                                account.applyPasswordChange(hashedPassword);
+                                
+                                registerOthers(sender, username, account);
+                            }
                         }
                     }
-                }
-            }
-            catch (ReportedException ex)
+            );
+            
+            if (submitted)
             {
-                sendMsg(sender, t("createAccount.fail.others")
-                        .replace("{0}", args[1]));
+                pendingUsernames.add(username.toLowerCase());
             }
-            finally
+            else
             {
-                ReportedException.decrementRequestCount();
+                sendMsg(sender, t("hashing.busy"));
             }
         }
         else if ((args.length == 0 && disablePasswords)
@@ -316,7 +297,7 @@ public final class RegisterCommand extends LogItCoreObject
             
             if (playerIp != null && accountsPerIp >= 0 && !isTakingOver)
             {
-                int accountsWithIp = getAccountManager().selectAccounts(
+                int accountsWithIp = getAccountManager().selectAccountViews(
                         Arrays.asList(keys().username(), keys().ip()),
                         new SelectorCondition(keys().ip(), Infix.EQUALS, playerIp)
                 ).size();
@@ -340,7 +321,22 @@ public final class RegisterCommand extends LogItCoreObject
                 password = args[0];
             }
             
-            String username = player.getName().toLowerCase();
+            if (pendingUsernames.contains(player.getName().toLowerCase()))
+            {
+                sendMsg(player, t("hashing.pending"));
+                
+                return true;
+            }
+            
+            if (!disablePasswords && !getAttemptThrottle().tryAcquire(playerIp))
+            {
+                sendMsg(player, t("tooManyAttempts"));
+                
+                return true;
+            }
+            
+            final String username = player.getName().toLowerCase();
+            final Account account;
             
             if (isTakingOver)
             {
@@ -348,119 +344,300 @@ public final class RegisterCommand extends LogItCoreObject
                 {
                     ReportedException.incrementRequestCount();
                     
-                    Account account = getAccountManager().selectAccount(
+                    account = getAccountManager().selectAccount(
                             username,
                             Arrays.asList(
                                     keys().username()
                             )
                     );
+                }
+                catch (ReportedException ex)
+                {
+                    sendMsg(sender, t("takeover.fail"));
+                    
+                    return true;
+                }
+                finally
+                {
+                    ReportedException.decrementRequestCount();
+                }
+                
+                if (account == null)
+                {
+                    sendMsg(sender, t("takeover.fail"));
                     
-                    account.changePassword(password);
-                    account.enqueueSaveCallback(new Account.SaveCallback()
+                    return true;
+                }
+            }
+            else
+            {
+                account = new Account(username);
+                account.setUuid(player.getUniqueId());
+                
+                if (playerIp != null)
+                {
+                    account.setIp(playerIp);
+                }
+                
+                account.setDisplayName(player.getName());
+            }
+            
+            final boolean takingOver = isTakingOver;
+            
+            // Hashing may take a while, so the password is hashed
+            // off the server thread and the account is saved later.
+            boolean submitted = getHashingPool().submit(
+                    account.preparePasswordChange(password),
+                    new HashingPool.Callback<Account.HashedPassword>()
                     {
                         @Override
-                        public void onSave(boolean success)
+                        public void complete(
+                                Account.HashedPassword hashedPassword, Exception error
+                        )
                         {
-                            if (success)
+                            pendingUsernames.remove(username);
+                            
+                            if (!player.isOnline())
+                                return;
+                            
+                            if (takingOver)
                             {
-                                sendMsg(sender, t("takeover.success"));
-                                
-                                if (!getSessionManager().startSession(player).isCancelled())
+                                if (error != null)
                                 {
-                                    sendMsg(sender, t("startSession.success.self"));
+                                    sendMsg(player, t("takeover.fail"));
                                 }
+                                else
+                                {
+                                    takeOver(player, hashedPassword);
+                                }
+                            }
+                            else if (error != null)
+                            {
+                                sendMsg(player, t("createAccount.fail.self"));
+                            }
+                            else if (getAccountManager().isRegistered(username))
+                            {
+                                sendMsg(player, t("alreadyRegistered.self"));
                             }
                             else
                             {
-                                sendMsg(sender, t("takeover.fail"));
+                                account.applyPasswordChange(hashedPassword);
+                                
+                                registerSelf(player, account);
                             }
                         }
-                    });
-                }
-                catch (ReportedException ex)
-                {
-                    sendMsg(sender, t("takeover.fail"));
-                }
-                finally
+                    }
+            );
+            
+            if (submitted)
+            {
+                pendingUsernames.add(username);
+            }
+            else
+            {
+                sendMsg(player, t("hashing.busy"));
+            }
+        }
+        else
+        {
+            sendMsg(sender, t("incorrectParamCombination"));
+        }
+        
+        return true;
+    }
+    
+    private void registerOthers(
+            CommandSender sender, String username, Account account
+    )
+    {
+        try
+        {
+            ReportedException.incrementRequestCount();
+            
+            if (PlayerUtils.isPlayerOnline(username))
+            {
+                Player paramPlayer = PlayerUtils.getPlayer(username);
+                String paramPlayerIp = PlayerUtils.getPlayerIp(paramPlayer);
+                
+                account.setUuid(paramPlayer.getUniqueId());
+                
+                if (paramPlayerIp != null)
                 {
-                    ReportedException.decrementRequestCount();
+                    account.setIp(paramPlayerIp);
                 }
+                
+                account.setDisplayName(paramPlayer.getName());
             }
-            else
+            
+            account.setLastActiveDate(System.currentTimeMillis() / 1000L);
+            account.setRegistrationDate(System.currentTimeMillis() / 1000L);
+            
+            if (!getAccountManager().insertAccount(account).isCancelled())
             {
-                try
+                sendMsg(sender, t("createAccount.success.others")
+                        .replace("{0}", PlayerUtils.getPlayerRealName(username)));
+                
+                if (PlayerUtils.isPlayerOnline(username))
                 {
-                    ReportedException.incrementRequestCount();
-
-                    Account account = new Account(username);
-                    account.setUuid(player.getUniqueId());
-                    account.changePassword(password);
+                    Player paramPlayer = PlayerUtils.getPlayer(username);
                     
-                    if (playerIp != null)
+                    if (getSessionManager().getSession(paramPlayer) == null)
                     {
-                        account.setIp(playerIp);
+                        getSessionManager().createSession(paramPlayer);
                     }
                     
-                    account.setLastActiveDate(System.currentTimeMillis() / 1000L);
-                    account.setRegistrationDate(System.currentTimeMillis() / 1000L);
-                    account.setDisplayName(player.getName());
+                    if (!getSessionManager().startSession(paramPlayer).isCancelled())
+                    {
+                        sendMsg(paramPlayer, t("createAccount.successAndLogin.self"));
+                        sendMsg(sender, t("startSession.success.others")
+                                .replace("{0}", paramPlayer.getName()));
+                    }
+                    else
+                    {
+                        sendMsg(paramPlayer, t("createAccount.success.self"));
+                    }
+                    
+                    boolean newbieTeleportEnabled = getConfig("config.yml")
+                            .getBoolean("newbieTeleport.enabled");
                     
-                    if (!getAccountManager().insertAccount(account).isCancelled())
+                    if (newbieTeleportEnabled)
                     {
-                        LogItCooldowns.activate(player, LogItCooldowns.REGISTER);
-                        
-                        if (!getSessionManager().startSession(player).isCancelled())
-                        {
-                            sendMsg(sender, t("createAccount.successAndLogin.self"));
-                        }
-                        else
-                        {
-                            sendMsg(sender, t("createAccount.success.self"));
-                        }
-                        
-                        boolean newbieTeleportEnabled = getConfig("config.yml")
-                                .getBoolean("newbieTeleport.enabled");
-                        
-                        if (newbieTeleportEnabled)
-                        {
-                            Location newbieTeleportLocation = getConfig("config.yml")
-                                    .getLocation("newbieTeleport.location")
-                                    .toBukkitLocation();
-                            
-                            player.teleport(newbieTeleportLocation);
-                        }
+                        Location newbieTeleportLocation = getConfig("config.yml")
+                                .getLocation("newbieTeleport.location")
+                                .toBukkitLocation();
                         
-                        if (getConfig("config.yml").getBoolean("loginSessions.enabled"))
-                        {
-                            sendMsg(sender, t("rememberLogin.prompt"));
-                        }
-                        
-                        boolean promptToAddEmail = getConfig("config.yml")
-                                .getBoolean("passwordRecovery.promptToAddEmail");
-                        boolean passwordRecoveryEnabled = getConfig("config.yml")
-                                .getBoolean("passwordRecovery.enabled");
-                        
-                        if (promptToAddEmail && passwordRecoveryEnabled)
-                        {
-                            sendMsg(sender, t("noEmailSet"));
-                        }
+                        paramPlayer.teleport(newbieTeleportLocation);
                     }
                 }
-                catch (ReportedException ex)
+            }
+        }
+        catch (ReportedException ex)
+        {
+            sendMsg(sender, t("createAccount.fail.others")
+                    .replace("{0}", username));
+        }
+        finally
+        {
+            ReportedException.decrementRequestCount();
+        }
+    }
+    
+    private void registerSelf(Player player, Account account)
+    {
+        try
+        {
+            ReportedException.incrementRequestCount();
+            
+            account.setLastActiveDate(System.currentTimeMillis() / 1000L);
+            account.setRegistrationDate(System.currentTimeMillis() / 1000L);
+            
+            if (!getAccountManager().insertAccount(account).isCancelled())
+            {
+                LogItCooldowns.activate(player, LogItCooldowns.REGISTER);
+                
+                if (!getSessionManager().startSession(player).isCancelled())
                 {
-                    sendMsg(sender, t("createAccount.fail.self"));
+                    sendMsg(player, t("createAccount.successAndLogin.self"));
                 }
-                finally
+                else
                 {
-                    ReportedException.decrementRequestCount();
+                    sendMsg(player, t("createAccount.success.self"));
+                }
+                
+                boolean newbieTeleportEnabled = getConfig("config.yml")
+                        .getBoolean("newbieTeleport.enabled");
+                
+                if (newbieTeleportEnabled)
+                {
+                    Location newbieTeleportLocation = getConfig("config.yml")
+                            .getLocation("newbieTeleport.location")
+                            .toBukkitLocation();
+                    
+                    player.teleport(newbieTeleportLocation);
+                }
+                
+                if (getConfig("config.yml").getBoolean("loginSessions.enabled"))
+                {
+                    sendMsg(player, t("rememberLogin.prompt"));
+                }
+                
+                boolean promptToAddEmail = getConfig("config.yml")
+                        .getBoolean("passwordRecovery.promptToAddEmail");
+                boolean passwordRecoveryEnabled = getConfig("config.yml")
+                        .getBoolean("passwordRecovery.enabled");
+                
+                if (promptToAddEmail && passwordRecoveryEnabled)
+                {
+                    sendMsg(player, t("noEmailSet"));
                 }
             }
         }
-        else
+        catch (ReportedException ex)
         {
-            sendMsg(sender, t("incorrectParamCombination"));
+            sendMsg(player, t("createAccount.fail.self"));
+        }
+        finally
+        {
+            ReportedException.decrementRequestCount();
+        }
+    }
+    
+    private void takeOver(final Player player, Account.HashedPassword hashedPassword)
+    {
+        try
+        {
+            ReportedException.incrementRequestCount();
+            
+            // The account might have been evicted from the cache in the meantime.
+            Account account = getAccountManager().selectAccount(
+                    player.getName(),
+                    Arrays.asList(
+                            keys().username()
+                    )
+            );
+            
+            if (account == null)
+            {
+                sendMsg(player, t("takeover.fail"));
+                
+                return;
+            }
+            
+            account.applyPasswordChange(hashedPassword);
+            account.enqueueSaveCallback(new Account.SaveCallback()
+            {
+                @Override
+                public void onSave(boolean success)
+                {
+                    if (success)
+                    {
+                        sendMsg(player, t("takeover.success"));
+                        
+                        if (!getSessionManager().startSession(player).isCancelled())
+                        {
+                            sendMsg(player, t("startSession.success.self"));
+                        }
+                    }
+                    else
+                    {
+                        sendMsg(player, t("takeover.fail"));
+                    }
+                }
+            });
+        }
+        catch (ReportedException ex)
+        {
+            sendMsg(player, t("takeover.fail"));
+        }
+        finally
+        {
+            ReportedException.decrementRequestCount();
         }
-        
-        return true;
     }
+    
+    /**
+     * Lowercase usernames whose password is being hashed
+     * by the {@code HashingPool}.
+     */
+    private final Set<String> pendingUsernames = new HashSet<>();
 }
@@ -4,11 +4,15 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.common.PlayerCollections;
 import io.github.lucaseasedup.logit.common.ReportedException;
 import io.github.lucaseasedup.logit.cooldown.LogItCooldowns;
+import io.github.lucaseasedup.logit.security.HashingPool;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabExecutor;
@@ -151,8 +155,7 @@ public final class UnregisterCommand extends LogItCoreObject
                             keys().username(),
                             keys().salt(),
                             keys().password(),
-                            keys().hashing_algorithm(),
-                            keys().persistence()
+                            keys().hashing_algorithm()
                     )
             );
             
@@ -163,46 +166,64 @@ public final class UnregisterCommand extends LogItCoreObject
                 return true;
             }
             
-            if (!disablePasswords && !account.checkPassword(args[0]))
+            if (disablePasswords)
             {
-                sendMsg(player, t("incorrectPassword"));
+                onPasswordChecked(player);
                 
                 return true;
             }
             
-            if (getSessionManager().isSessionAlive(player))
+            if (pendingChecks.contains(player))
             {
-                if (!getSessionManager().endSession(player).isCancelled())
-                {
-                    sendMsg(sender, t("removeAccount.sessionEnded"));
-                }
+                sendMsg(player, t("hashing.pending"));
+                
+                return true;
             }
             
-            try
+            if (!getAttemptThrottle().tryAcquire(PlayerUtils.getPlayerIp(player)))
             {
-                ReportedException.incrementRequestCount();
+                sendMsg(player, t("tooManyAttempts"));
                 
-                if (!getAccountManager().removeAccount(player.getName()).isCancelled())
-                {
-                    if (getConfig("config.yml").getBoolean("kickUnregistered"))
-                    {
-                        player.kickPlayer(t("removeAccount.kick"));
-                    }
-                    else
+                return true;
+            }
+            
+            final Player unregisteringPlayer = player;
+            
+            boolean submitted = getHashingPool().submit(
+                    account.preparePasswordCheck(args[0]),
+                    new HashingPool.Callback<Boolean>()
                     {
-                        sendMsg(sender, t("removeAccount.success.self"));
+                        @Override
+                        public void complete(Boolean correct, Exception error)
+                        {
+                            pendingChecks.remove(unregisteringPlayer);
+                            
+                            if (!unregisteringPlayer.isOnline())
+                                return;
+                            
+                            if (error != null)
+                            {
+                                sendMsg(unregisteringPlayer, t("unexpectedError"));
+                            }
+                            else if (!correct)
+                            {
+                                sendMsg(unregisteringPlayer, t("incorrectPassword"));
+                            }
+                            else
+                            {
+                                onPasswordChecked(unregisteringPlayer);
+                            }
+                        }
                     }
-                    
-                    LogItCooldowns.activate(player, LogItCooldowns.UNREGISTER);
-                }
-            }
-            catch (ReportedException ex)
+            );
+            
+            if (submitted)
             {
-                sendMsg(sender, t("removeAccount.fail.self"));
+                pendingChecks.add(player);
             }
-            finally
+            else
             {
-                ReportedException.decrementRequestCount();
+                sendMsg(player, t("hashing.busy"));
             }
         }
         else
@@ -213,6 +234,44 @@ public final class UnregisterCommand extends LogItCoreObject
         return true;
     }
     
+    private void onPasswordChecked(Player player)
+    {
+        if (getSessionManager().isSessionAlive(player))
+        {
+            if (!getSessionManager().endSession(player).isCancelled())
+            {
+                sendMsg(player, t("removeAccount.sessionEnded"));
+            }
+        }
+        
+        try
+        {
+            ReportedException.incrementRequestCount();
+            
+            if (!getAccountManager().removeAccount(player.getName()).isCancelled())
+            {
+                if (getConfig("config.yml").getBoolean("kickUnregistered"))
+                {
+                    player.kickPlayer(t("removeAccount.kick"));
+                }
+                else
+                {
+                    sendMsg(player, t("removeAccount.success.self"));
+                }
+                
+                LogItCooldowns.activate(player, LogItCooldowns.UNREGISTER);
+            }
+        }
+        catch (ReportedException ex)
+        {
+            sendMsg(player, t("removeAccount.fail.self"));
+        }
+        finally
+        {
+            ReportedException.decrementRequestCount();
+        }
+    }
+    
     @Override
     public List<String> onTabComplete(
             CommandSender sender, Command cmd, String label, String[] args
@@ -232,4 +291,7 @@ public final class UnregisterCommand extends LogItCoreObject
         
         return null;
     }
+    
+    private final Set<Player> pendingChecks =
+            PlayerCollections.monitoredCollection(new HashSet<Player>());
 }
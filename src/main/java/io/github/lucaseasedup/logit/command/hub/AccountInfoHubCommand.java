@@ -3,6 +3,7 @@ package io.github.lucaseasedup.logit.command.hub;
 import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.account.AccountView;
 import io.github.lucaseasedup.logit.command.CommandAccess;
 import io.github.lucaseasedup.logit.command.CommandHelpLine;
 import io.github.lucaseasedup.logit.storage.Infix;
@@ -137,7 +138,7 @@ public final class AccountInfoHubCommand extends HubCommand
         
         if (!StringUtils.isBlank(account.getIp()))
         {
-            List<Account> otherAccounts = getAccountManager().selectAccounts(
+            List<AccountView> otherAccounts = getAccountManager().selectAccountViews(
                     Arrays.asList(
                             keys().username(),
                             keys().ip()
@@ -164,7 +165,7 @@ public final class AccountInfoHubCommand extends HubCommand
                 sendMsg(sender, "");
                 sendMsg(sender, t("accountInfo.otherAccounts"));
                 
-                for (Account otherAccount : otherAccounts)
+                for (AccountView otherAccount : otherAccounts)
                 {
                     sendMsg(sender, t("accountInfo.otherAccounts.username")
                             .replace("{0}", otherAccount.getUsername()));
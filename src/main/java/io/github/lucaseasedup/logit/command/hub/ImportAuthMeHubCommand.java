@@ -8,28 +8,37 @@ import io.github.lucaseasedup.logit.command.CommandHelpLine;
 import io.github.lucaseasedup.logit.command.wizard.ConfirmationCallback;
 import io.github.lucaseasedup.logit.command.wizard.ConfirmationWizard;
 import io.github.lucaseasedup.logit.common.ReportedException;
+import io.github.lucaseasedup.logit.persistence.PersistenceCodec;
 import io.github.lucaseasedup.logit.security.AuthMePasswordHelper;
+import io.github.lucaseasedup.logit.storage.Infix;
 import io.github.lucaseasedup.logit.storage.MySqlStorage;
+import io.github.lucaseasedup.logit.storage.SelectorCondition;
 import io.github.lucaseasedup.logit.storage.SqliteStorage;
 import io.github.lucaseasedup.logit.storage.Storage;
 import io.github.lucaseasedup.logit.storage.StorageEntry;
-import io.github.lucaseasedup.logit.util.IniUtils;
-import it.sauronsoftware.base64.Base64;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import org.apache.commons.lang.StringUtils;
 import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitRunnable;
@@ -165,22 +174,8 @@ public final class ImportAuthMeHubCommand extends HubCommand
                 authMeConfig.getString("DataSource.mySQLDatabase");
         String dataSourceMySqlTablename =
                 authMeConfig.getString("DataSource.mySQLTablename");
-        String dataSourceMySqlColumnName =
-                authMeConfig.getString("DataSource.mySQLColumnName");
-        String dataSourceMySqlColumnPassword =
-                authMeConfig.getString("DataSource.mySQLColumnPassword");
-        String dataSourceMySqlColumnIp =
-                authMeConfig.getString("DataSource.mySQLColumnIp");
-        String dataSourceMySqlColumnEmail =
-                authMeConfig.getString("DataSource.mySQLColumnEmail");
-        String dataSourceMySqlColumnLastLocX =
-                authMeConfig.getString("DataSource.mySQLlastlocX");
-        String dataSourceMySqlColumnLastLocY =
-                authMeConfig.getString("DataSource.mySQLlastlocY");
-        String dataSourceMySqlColumnLastLocZ =
-                authMeConfig.getString("DataSource.mySQLlastlocZ");
-        String dataSourceMySqlColumnLastLocWorld =
-                authMeConfig.getString("DataSource.mySQLlastlocWorld");
+        String dataSourceMySqlColumnId =
+                authMeConfig.getString("DataSource.mySQLColumnId", "id");
         String settingsSecurityPasswordHash =
                 authMeConfig.getString("settings.security.passwordHash");
         
@@ -208,7 +203,8 @@ public final class ImportAuthMeHubCommand extends HubCommand
             return;
         }
         
-        List<Account> logItAccounts = new ArrayList<>();
+        boolean encodePersistence =
+                getConfig("secret.yml").getBoolean("debug.encodePersistence");
         
         try
         {
@@ -241,85 +237,11 @@ public final class ImportAuthMeHubCommand extends HubCommand
                 {
                     storage.connect();
                     
-                    List<StorageEntry> authMeEntries =
-                            storage.selectEntries(dataSourceMySqlTablename);
-                    
-                    for (StorageEntry authMeEntry : authMeEntries)
-                    {
-                        String authMeUsername = authMeEntry
-                                .get(dataSourceMySqlColumnName);
-                        
-                        if (StringUtils.isBlank(authMeUsername))
-                            continue;
-                        
-                        StorageEntry.Builder logItEntryBuilder =
-                                new StorageEntry.Builder();
-                        
-                        logItEntryBuilder.put(keys().username(),
-                                StringUtils.lowerCase(authMeUsername));
-                        logItEntryBuilder.put(keys().password(),
-                                authMeEntry.get(dataSourceMySqlColumnPassword));
-                        logItEntryBuilder.put(keys().hashing_algorithm(),
-                                "authme:" + settingsSecurityPasswordHash);
-                        logItEntryBuilder.put(keys().ip(),
-                                authMeEntry.get(dataSourceMySqlColumnIp));
-                        
-                        String email = authMeEntry
-                                .get(dataSourceMySqlColumnEmail);
-                        
-                        if (!email.equals("your@email.com"))
-                        {
-                            logItEntryBuilder.put(keys().email(), email);
-                        }
-                        
-                        String world = authMeEntry
-                                .get(dataSourceMySqlColumnLastLocWorld);
-                        
-                        if (dataSourceMySqlColumnLastLocX != null
-                                && dataSourceMySqlColumnLastLocY != null
-                                && dataSourceMySqlColumnLastLocZ != null)
-                        {
-                            String x = authMeEntry
-                                    .get(dataSourceMySqlColumnLastLocX);
-                            String y = authMeEntry
-                                    .get(dataSourceMySqlColumnLastLocY);
-                            String z = authMeEntry
-                                    .get(dataSourceMySqlColumnLastLocZ);
-                            
-                            if (!y.equals("0.0"))
-                            {
-                                Map<String, Map<String, String>> persistenceIni =
-                                        new HashMap<>();
-                                Map<String, String> persistence =
-                                        new LinkedHashMap<>();
-                                
-                                persistence.put("world", world);
-                                persistence.put("x", x);
-                                persistence.put("y", y);
-                                persistence.put("z", z);
-                                persistence.put("yaw", "0.0");
-                                persistence.put("pitch", "0.0");
-                                
-                                persistenceIni.put("persistence", persistence);
-                                
-                                String persistenceString =
-                                        IniUtils.serialize(persistenceIni);
-                                boolean encode = getConfig("secret.yml")
-                                        .getBoolean("debug.encodePersistence");
-                                
-                                if (encode)
-                                {
-                                    persistenceString =
-                                            Base64.encode(persistenceString);
-                                }
-                                
-                                logItEntryBuilder.put(keys().persistence(),
-                                        persistenceString);
-                            }
-                        }
-                        
-                        logItAccounts.add(new Account(logItEntryBuilder.build()));
-                    }
+                    importFrom(sender, new SqlSource(
+                            storage, dataSourceMySqlTablename,
+                            dataSourceMySqlColumnId, authMeConfig,
+                            settingsSecurityPasswordHash, encodePersistence
+                    ), backend.toLowerCase() + ":" + dataSourceMySqlTablename);
                 }
                 finally
                 {
@@ -337,123 +259,610 @@ public final class ImportAuthMeHubCommand extends HubCommand
                     
                     return;
                 }
+                
+                try (FlatFileSource source = new FlatFileSource(
+                        backendFile, settingsSecurityPasswordHash, encodePersistence
+                ))
+                {
+                    importFrom(sender, source, "flatfile:auths.db");
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            ReportedException.throwNew(ex);
+        }
+    }
+    
+    /**
+     * Imports the records of an AuthMe source chunk by chunk.
+     *
+     * <p> Each chunk is mapped to accounts on a worker pool
+     * and then inserted as a single batch. The position of the last
+     * inserted chunk is saved, so that an interrupted import
+     * of the same source can be resumed from there.
+     */
+    private <T> void importFrom(
+            CommandSender sender, final AuthMeSource<T> source, String sourceId
+    ) throws IOException
+    {
+        File progressFile = getDataFile(PROGRESS_FILENAME);
+        long position = loadProgress(progressFile, sourceId);
+        
+        if (position > 0)
+        {
+            sendMsg(sender, t("import.authme.resuming")
+                    .replace("{0}", String.valueOf(position)));
+        }
+        
+        long recordCount = source.open(position);
+        long recordsRead = 0;
+        int accountsImported = 0;
+        long startTime = System.currentTimeMillis();
+        long lastReportTime = startTime;
+        ExecutorService workers = Executors.newFixedThreadPool(WORKER_COUNT);
+        
+        try
+        {
+            List<T> chunk;
+            
+            while ((chunk = source.readChunk(CHUNK_SIZE)) != null)
+            {
+                List<Account> accounts = new ArrayList<>(chunk.size());
+                Set<String> usernames = new HashSet<>();
+                
+                for (Account account : transformChunk(workers, source, chunk))
+                {
+                    // AuthMe may hold the same username in different cases.
+                    if (!usernames.add(account.getUsername()))
+                        continue;
+                    
+                    if (getAccountManager().isRegistered(account.getUsername()))
+                        continue;
+                    
+                    accounts.add(account);
+                }
+                
+                accountsImported +=
+                        getAccountManager().insertAccountsAndWait(accounts);
+                importPersistence(accounts);
+                recordsRead += chunk.size();
+                
+                saveProgress(progressFile, sourceId, source.getPosition());
+                
+                long now = System.currentTimeMillis();
+                
+                if (now - lastReportTime >= PROGRESS_REPORT_INTERVAL)
+                {
+                    lastReportTime = now;
+                    
+                    reportProgress(sender, accountsImported, recordsRead,
+                            recordCount, now - startTime);
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            
+            throw new IOException("AuthMe import interrupted", ex);
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
+        
+        progressFile.delete();
+        
+        log(Level.INFO, t("import.authme.success")
+                .replace("{0}", String.valueOf(accountsImported)));
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, t("import.authme.success")
+                    .replace("{0}", String.valueOf(accountsImported)));
+        }
+    }
+    
+    /**
+     * Maps a chunk of records to accounts, splitting the work
+     * evenly among the workers. Records that cannot be imported are skipped.
+     */
+    private <T> List<Account> transformChunk(
+            ExecutorService workers, final AuthMeSource<T> source, List<T> chunk
+    ) throws IOException, InterruptedException
+    {
+        int sliceSize = (chunk.size() + WORKER_COUNT - 1) / WORKER_COUNT;
+        List<Callable<List<Account>>> tasks = new ArrayList<>(WORKER_COUNT);
+        
+        for (int i = 0; i < chunk.size(); i += sliceSize)
+        {
+            final List<T> slice =
+                    chunk.subList(i, Math.min(i + sliceSize, chunk.size()));
             
-                try (BufferedReader br = new BufferedReader(new FileReader(backendFile)))
+            tasks.add(new Callable<List<Account>>()
+            {
+                @Override
+                public List<Account> call() throws IOException
                 {
-                    String line;
+                    List<Account> accounts = new ArrayList<>(slice.size());
                     
-                    while ((line = br.readLine()) != null)
+                    for (T record : slice)
                     {
-                        String[] split = line.split(":");
-                        StorageEntry.Builder logItEntryBuilder =
-                                new StorageEntry.Builder();
-                        
-                        if (split.length == 0)
-                            continue;
-                        
-                        if (split.length >= 1)
-                        {
-                            if (StringUtils.isBlank(split[0]))
-                                continue;
-                            
-                            logItEntryBuilder.put(keys().username(),
-                                    split[0].toLowerCase());
-                        }
-                        
-                        if (split.length >= 2)
-                        {
-                            logItEntryBuilder.put(keys().password(), split[1]);
-                            logItEntryBuilder.put(keys().hashing_algorithm(),
-                                    "authme:" + settingsSecurityPasswordHash);
-                        }
-                        
-                        if (split.length >= 3)
-                        {
-                            logItEntryBuilder.put(keys().ip(), split[2]);
-                        }
+                        Account account = source.transform(record);
                         
-                        if (split.length >= 4)
+                        if (account != null)
                         {
-                            logItEntryBuilder.put(keys().last_active_date(),
-                                    String.valueOf(Long.parseLong(split[3]) / 1000));
+                            accounts.add(account);
                         }
-                        
-                        if (split.length >= 8 && !split[5].equals("0.0"))
-                        {
-                            Map<String, Map<String, String>> persistenceIni =
-                                    new HashMap<>();
-                            Map<String, String> persistence =
-                                    new LinkedHashMap<>();
-                            
-                            persistence.put("world", split[7]);
-                            persistence.put("x", split[4]);
-                            persistence.put("y", split[5]);
-                            persistence.put("z", split[6]);
-                            persistence.put("yaw", "0.0");
-                            persistence.put("pitch", "0.0");
-                            
-                            persistenceIni.put("persistence", persistence);
-                            
-                            logItEntryBuilder.put(keys().persistence(),
-                                    Base64.encode(IniUtils.serialize(persistenceIni)));
-                        }
-                        
-                        if (split.length >= 9)
-                        {
-                            String email = split[8].toLowerCase();
-                            
-                            if (!email.equals("your@email.com"))
-                            {
-                                logItEntryBuilder.put(keys().email(), email);
-                            }
-                        }
-                        
-                        logItAccounts.add(new Account(logItEntryBuilder.build()));
                     }
+                    
+                    return accounts;
                 }
+            });
+        }
+        
+        List<Account> accounts = new ArrayList<>(chunk.size());
+        
+        for (Future<List<Account>> future : workers.invokeAll(tasks))
+        {
+            try
+            {
+                accounts.addAll(future.get());
+            }
+            catch (ExecutionException ex)
+            {
+                if (ex.getCause() instanceof IOException)
+                    throw (IOException) ex.getCause();
+                
+                throw new RuntimeException(ex.getCause());
             }
+        }
+        
+        return accounts;
+    }
+    
+    /**
+     * Writes the persistence data of the imported accounts
+     * to the persistence unit.
+     */
+    private void importPersistence(List<Account> accounts) throws IOException
+    {
+        Map<String, String> persistence = new HashMap<>();
+        
+        for (Account account : accounts)
+        {
+            String data = importedPersistence.get(account.getUsername());
             
-            Set<String> registeredUsernames =
-                    getAccountManager().getRegisteredUsernames();
-            int accountsImported = 0;
+            if (data != null)
+            {
+                persistence.put(account.getUsername(), data);
+            }
+        }
+        
+        importedPersistence.clear();
+        
+        if (!persistence.isEmpty() && getPersistenceManager() != null)
+        {
+            getPersistenceManager().getStore().importData(persistence);
+        }
+    }
+    
+    private void reportProgress(CommandSender sender, int accountsImported,
+                                long recordsRead, long recordCount,
+                                long elapsedTime)
+    {
+        long recordsPerSecond = recordsRead * 1000L / Math.max(1L, elapsedTime);
+        String message = t("import.authme.progress")
+                .replace("{0}", String.valueOf(accountsImported))
+                .replace("{1}", String.valueOf(recordsRead))
+                .replace("{2}", (recordCount < 0) ? "?" : String.valueOf(recordCount))
+                .replace("{3}", String.valueOf(recordsPerSecond));
+        
+        log(Level.INFO, message);
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, message);
+        }
+    }
+    
+    /**
+     * Returns the position saved by an interrupted import of the given
+     * source, or {@code 0} if there is none.
+     */
+    private long loadProgress(File progressFile, String sourceId)
+    {
+        if (!progressFile.isFile())
+            return 0;
+        
+        YamlConfiguration progress = new YamlConfiguration();
+        
+        try
+        {
+            progress.load(progressFile);
+        }
+        catch (IOException | InvalidConfigurationException ex)
+        {
+            log(Level.WARNING, "Could not load the AuthMe import progress", ex);
             
-            Iterator<Account> it = logItAccounts.iterator();
+            return 0;
+        }
+        
+        if (!sourceId.equals(progress.getString("source")))
+            return 0;
+        
+        return Math.max(0, progress.getLong("position"));
+    }
+    
+    private void saveProgress(File progressFile, String sourceId, long position)
+            throws IOException
+    {
+        YamlConfiguration progress = new YamlConfiguration();
+        
+        progress.set("source", sourceId);
+        progress.set("position", position);
+        progress.save(progressFile);
+    }
+    
+    private Map<String, String> createLocationPersistence(
+            String world, String x, String y, String z
+    )
+    {
+        Map<String, String> persistence = new LinkedHashMap<>();
+        
+        persistence.put("world", world);
+        persistence.put("x", x);
+        persistence.put("y", y);
+        persistence.put("z", z);
+        persistence.put("yaw", "0.0");
+        persistence.put("pitch", "0.0");
+        
+        return persistence;
+    }
+    
+    /**
+     * A source of AuthMe records, read in chunks in the order
+     * of their positions.
+     */
+    private abstract class AuthMeSource<T>
+    {
+        /**
+         * Prepares this source for reading the records
+         * that follow the given position.
+         *
+         * @return the number of records left to be read,
+         *         or {@code -1} if unknown.
+         */
+        public abstract long open(long position) throws IOException;
+        
+        /**
+         * Reads the next chunk of records.
+         *
+         * @return the records, or {@code null} if all of them have been read.
+         */
+        public abstract List<T> readChunk(int size) throws IOException;
+        
+        /**
+         * Returns the position of the last record read.
+         */
+        public abstract long getPosition();
+        
+        /**
+         * Maps a record to a LogIt account. Called on a worker thread.
+         *
+         * @return the account, or {@code null} if the record
+         *         cannot be imported.
+         */
+        public abstract Account transform(T record);
+    }
+    
+    /**
+     * Reads the AuthMe table chunk by chunk, in the order of the primary key,
+     * each chunk starting after the last id of the previous one.
+     */
+    private final class SqlSource extends AuthMeSource<StorageEntry>
+    {
+        public SqlSource(Storage storage, String table, String idColumn,
+                         YamlConfiguration authMeConfig,
+                         String passwordHash, boolean encodePersistence)
+        {
+            this.storage = storage;
+            this.table = table;
+            this.idColumn = idColumn;
+            this.columnName = authMeConfig.getString("DataSource.mySQLColumnName");
+            this.columnPassword = authMeConfig.getString("DataSource.mySQLColumnPassword");
+            this.columnIp = authMeConfig.getString("DataSource.mySQLColumnIp");
+            this.columnEmail = authMeConfig.getString("DataSource.mySQLColumnEmail");
+            this.columnLastLocX = authMeConfig.getString("DataSource.mySQLlastlocX");
+            this.columnLastLocY = authMeConfig.getString("DataSource.mySQLlastlocY");
+            this.columnLastLocZ = authMeConfig.getString("DataSource.mySQLlastlocZ");
+            this.columnLastLocWorld = authMeConfig.getString("DataSource.mySQLlastlocWorld");
+            this.passwordHash = passwordHash;
+            this.encodePersistence = encodePersistence;
             
-            while (it.hasNext())
+            for (String column : Arrays.asList(idColumn, columnName,
+                    columnPassword, columnIp, columnEmail, columnLastLocX,
+                    columnLastLocY, columnLastLocZ, columnLastLocWorld))
             {
-                Account logItAccount = it.next();
-                
-                if (registeredUsernames != null
-                        && registeredUsernames.contains(logItAccount.getUsername()))
+                if (column != null && !columns.contains(column))
                 {
-                    it.remove();
-                    
-                    continue;
+                    columns.add(column);
                 }
+            }
+        }
+        
+        @Override
+        public long open(long position) throws IOException
+        {
+            this.position = position;
+            
+            // Counting the rows would take another pass over the table.
+            return -1;
+        }
+        
+        @Override
+        public List<StorageEntry> readChunk(int size) throws IOException
+        {
+            List<StorageEntry> entries = storage.selectEntries(table, columns,
+                    new SelectorCondition(
+                            idColumn, Infix.GREATER_THAN, String.valueOf(position)
+                    ),
+                    Arrays.asList(idColumn), false, size);
+            
+            if (entries.isEmpty())
+                return null;
+            
+            String lastId = entries.get(entries.size() - 1).get(idColumn);
+            
+            try
+            {
+                position = Long.parseLong(lastId);
+            }
+            catch (NumberFormatException ex)
+            {
+                throw new IOException("Non-numeric AuthMe id: " + lastId, ex);
+            }
+            
+            return entries;
+        }
+        
+        @Override
+        public long getPosition()
+        {
+            return position;
+        }
+        
+        @Override
+        public Account transform(StorageEntry authMeEntry)
+        {
+            String authMeUsername = authMeEntry.get(columnName);
+            
+            if (StringUtils.isBlank(authMeUsername))
+                return null;
+            
+            StorageEntry.Builder logItEntryBuilder = new StorageEntry.Builder();
+            
+            logItEntryBuilder.put(keys().username(),
+                    StringUtils.lowerCase(authMeUsername));
+            logItEntryBuilder.put(keys().password(),
+                    authMeEntry.get(columnPassword));
+            logItEntryBuilder.put(keys().hashing_algorithm(),
+                    "authme:" + passwordHash);
+            logItEntryBuilder.put(keys().ip(),
+                    authMeEntry.get(columnIp));
+            
+            String email = authMeEntry.get(columnEmail);
+            
+            if (email != null && !email.equals("your@email.com"))
+            {
+                logItEntryBuilder.put(keys().email(), email);
+            }
+            
+            if (columnLastLocX != null
+                    && columnLastLocY != null
+                    && columnLastLocZ != null)
+            {
+                String y = authMeEntry.get(columnLastLocY);
                 
-                accountsImported++;
+                if (y != null && !y.equals("0.0"))
+                {
+                    putPersistence(createLocationPersistence(
+                            authMeEntry.get(columnLastLocWorld),
+                            authMeEntry.get(columnLastLocX),
+                            y,
+                            authMeEntry.get(columnLastLocZ)
+                    ), authMeUsername, encodePersistence);
+                }
             }
             
-            getAccountManager().insertAccounts(
-                    logItAccounts.toArray(new Account[logItAccounts.size()])
-            );
+            return new Account(logItEntryBuilder.build());
+        }
+        
+        private final Storage storage;
+        private final String table;
+        private final String idColumn;
+        private final String columnName;
+        private final String columnPassword;
+        private final String columnIp;
+        private final String columnEmail;
+        private final String columnLastLocX;
+        private final String columnLastLocY;
+        private final String columnLastLocZ;
+        private final String columnLastLocWorld;
+        private final String passwordHash;
+        private final boolean encodePersistence;
+        private final List<String> columns = new ArrayList<>();
+        private long position;
+    }
+    
+    /**
+     * Reads the AuthMe flat file chunk by chunk,
+     * with line numbers as positions.
+     */
+    private final class FlatFileSource extends AuthMeSource<String>
+            implements AutoCloseable
+    {
+        public FlatFileSource(File file, String passwordHash,
+                              boolean encodePersistence)
+        {
+            this.file = file;
+            this.passwordHash = passwordHash;
+            this.encodePersistence = encodePersistence;
+        }
+        
+        @Override
+        public long open(long position) throws IOException
+        {
+            long lineCount = 0;
             
-            log(Level.INFO, t("import.authme.success")
-                    .replace("{0}", String.valueOf(accountsImported)));
+            try (BufferedReader br = new BufferedReader(new FileReader(file)))
+            {
+                while (br.readLine() != null)
+                {
+                    lineCount++;
+                }
+            }
+            
+            reader = new BufferedReader(new FileReader(file));
+            this.position = 0;
             
-            if (sender instanceof Player)
+            while (this.position < position && reader.readLine() != null)
             {
-                sendMsg(sender, t("import.authme.success")
-                        .replace("{0}", String.valueOf(accountsImported)));
+                this.position++;
             }
+            
+            return Math.max(0, lineCount - this.position);
         }
-        catch (IOException ex)
+        
+        @Override
+        public List<String> readChunk(int size) throws IOException
         {
-            log(Level.WARNING, ex);
+            List<String> lines = new ArrayList<>(size);
+            String line;
             
-            ReportedException.throwNew(ex);
+            while (lines.size() < size && (line = reader.readLine()) != null)
+            {
+                lines.add(line);
+                position++;
+            }
+            
+            return lines.isEmpty() ? null : lines;
+        }
+        
+        @Override
+        public long getPosition()
+        {
+            return position;
+        }
+        
+        @Override
+        public Account transform(String line)
+        {
+            String[] split = line.split(":");
+            StorageEntry.Builder logItEntryBuilder = new StorageEntry.Builder();
+            
+            if (split.length == 0 || StringUtils.isBlank(split[0]))
+                return null;
+            
+            logItEntryBuilder.put(keys().username(), split[0].toLowerCase());
+            
+            if (split.length >= 2)
+            {
+                logItEntryBuilder.put(keys().password(), split[1]);
+                logItEntryBuilder.put(keys().hashing_algorithm(),
+                        "authme:" + passwordHash);
+            }
+            
+            if (split.length >= 3)
+            {
+                logItEntryBuilder.put(keys().ip(), split[2]);
+            }
+            
+            if (split.length >= 4)
+            {
+                try
+                {
+                    logItEntryBuilder.put(keys().last_active_date(),
+                            String.valueOf(Long.parseLong(split[3]) / 1000));
+                }
+                catch (NumberFormatException ex)
+                {
+                    // Leave the default last active date.
+                }
+            }
+            
+            if (split.length >= 8 && !split[5].equals("0.0"))
+            {
+                putPersistence(createLocationPersistence(
+                        split[7], split[4], split[5], split[6]
+                ), split[0], encodePersistence);
+            }
+            
+            if (split.length >= 9)
+            {
+                String email = split[8].toLowerCase();
+                
+                if (!email.equals("your@email.com"))
+                {
+                    logItEntryBuilder.put(keys().email(), email);
+                }
+            }
+            
+            return new Account(logItEntryBuilder.build());
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            if (reader != null)
+            {
+                reader.close();
+                reader = null;
+            }
+        }
+        
+        private final File file;
+        private final String passwordHash;
+        private final boolean encodePersistence;
+        private BufferedReader reader;
+        private long position;
+    }
+    
+    /**
+     * Encodes the persistence data of an imported account
+     * and keeps it until the account has been inserted.
+     * Called on a worker thread.
+     */
+    private void putPersistence(Map<String, String> persistence,
+                                String username, boolean encodePersistence)
+    {
+        try
+        {
+            importedPersistence.put(username.toLowerCase(),
+                    PersistenceCodec.encode(persistence, encodePersistence));
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, "Could not serialize persistence"
+                             + " {username: " + username + "}", ex);
         }
     }
     
+    private static final String PROGRESS_FILENAME = "import-authme.progress";
+    private static final int CHUNK_SIZE = 1000;
+    private static final int WORKER_COUNT =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final long PROGRESS_REPORT_INTERVAL = 5000L;
+    
     private boolean locked = false;
+    
+    /**
+     * Encoded persistence data of the accounts in the current chunk,
+     * per lowercase username.
+     */
+    private final Map<String, String> importedPersistence =
+            new ConcurrentHashMap<>();
 }
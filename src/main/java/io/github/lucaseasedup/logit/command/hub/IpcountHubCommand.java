@@ -2,7 +2,7 @@ package io.github.lucaseasedup.logit.command.hub;
 
 import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
-import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.account.AccountView;
 import io.github.lucaseasedup.logit.command.CommandAccess;
 import io.github.lucaseasedup.logit.command.CommandHelpLine;
 import io.github.lucaseasedup.logit.storage.Infix;
@@ -30,7 +30,7 @@ public final class IpcountHubCommand extends HubCommand
     @Override
     public void execute(CommandSender sender, String[] args)
     {
-        List<Account> accounts = getAccountManager().selectAccounts(
+        List<AccountView> accounts = getAccountManager().selectAccountViews(
                 Arrays.asList(
                         keys().username(),
                         keys().ip()
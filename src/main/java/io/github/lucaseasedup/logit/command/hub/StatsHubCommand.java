@@ -2,9 +2,12 @@ package io.github.lucaseasedup.logit.command.hub;
 
 import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
-import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.account.AccountView;
+import io.github.lucaseasedup.logit.account.FlushPolicy;
 import io.github.lucaseasedup.logit.command.CommandAccess;
 import io.github.lucaseasedup.logit.command.CommandHelpLine;
+import io.github.lucaseasedup.logit.common.LatencyHistogram;
+import io.github.lucaseasedup.logit.security.HashingPool;
 import io.github.lucaseasedup.logit.storage.SelectorConstant;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -33,7 +36,7 @@ public final class StatsHubCommand extends HubCommand
     @Override
     public void execute(CommandSender sender, String[] args)
     {
-        List<Account> accounts = getAccountManager().selectAccounts(
+        List<AccountView> accounts = getAccountManager().selectAccountViews(
                 Arrays.asList(
                         keys().username(),
                         keys().ip()
@@ -47,7 +50,7 @@ public final class StatsHubCommand extends HubCommand
         {
             uniqueIps = new HashSet<>();
             
-            for (Account account : accounts)
+            for (AccountView account : accounts)
             {
                 String ip = account.getIp();
                 
@@ -78,15 +81,52 @@ public final class StatsHubCommand extends HubCommand
         sendMsg(sender, t("stats.backupCount")
                 .replace("{0}", String.valueOf(backupCount)));
         
+        FlushPolicy flushPolicy = getAccountManager().getFlushPolicy();
+        long flushLatency = flushPolicy.getAverageLatency();
+        
+        sendMsg(sender, t("stats.bufferFlushCount")
+                .replace("{0}", String.valueOf(flushPolicy.getFlushCount())));
+        sendMsg(sender, t("stats.bufferFlushSize")
+                .replace("{0}", String.valueOf(flushPolicy.getLastFlushSize()))
+                .replace("{1}", String.valueOf(flushPolicy.getLastFlushBytes())));
+        sendMsg(sender, t("stats.bufferFlushLatency")
+                .replace("{0}", (flushLatency >= 0)
+                        ? String.valueOf(flushLatency) : "?"));
+        sendMsg(sender, t("stats.bufferFlushStaleness")
+                .replace("{0}", String.valueOf(flushPolicy.getLastFlushStaleness()))
+                .replace("{1}", String.valueOf(flushPolicy.getMaxObservedStaleness())));
+        sendMsg(sender, t("stats.bufferFlushInterval")
+                .replace("{0}", String.valueOf(flushPolicy.getCurrentInterval())));
+        
+        HashingPool hashingPool = getHashingPool();
+        
+        sendMsg(sender, formatPercentiles(t("stats.hashingQueueWait"),
+                hashingPool.getQueueWait()));
+        sendMsg(sender, formatPercentiles(t("stats.hashingLatency"),
+                hashingPool.getHashLatency()));
+        sendMsg(sender, t("stats.hashingRejected")
+                .replace("{0}", String.valueOf(hashingPool.getRejectedCount())));
+        sendMsg(sender, t("stats.throttledAttempts")
+                .replace("{0}", String.valueOf(getAttemptThrottle().getRejectedCount())));
+        sendMsg(sender, t("stats.rejectedJoins")
+                .replace("{0}", String.valueOf(getJoinGuard().getRejectedCount())));
+        
         if (getConfig("config.yml").getBoolean("stats.enabled"))
         {
             int logins = getConfig("stats.yml").getInt("logins");
             int passwordChanges = getConfig("stats.yml").getInt("passwordChanges");
+            int inactiveAccountsExamined =
+                    getConfig("stats.yml").getInt("inactiveAccountsExamined");
+            int inactiveAccountsRemoved =
+                    getConfig("stats.yml").getInt("inactiveAccountsRemoved");
             
             sendMsg(sender, t("stats.logins")
                     .replace("{0}", String.valueOf(logins)));
             sendMsg(sender, t("stats.passwordChanges")
                     .replace("{0}", String.valueOf(passwordChanges)));
+            sendMsg(sender, t("stats.inactiveAccounts")
+                    .replace("{0}", String.valueOf(inactiveAccountsExamined))
+                    .replace("{1}", String.valueOf(inactiveAccountsRemoved)));
         }
         
         if (sender instanceof Player)
@@ -94,4 +134,19 @@ public final class StatsHubCommand extends HubCommand
             sendMsg(sender, "");
         }
     }
+    
+    private static String formatPercentiles(String message, LatencyHistogram histogram)
+    {
+        double[] percentiles = {50, 95, 99};
+        
+        for (int i = 0; i < percentiles.length; i++)
+        {
+            long value = histogram.getPercentile(percentiles[i]);
+            
+            message = message.replace("{" + i + "}",
+                    (value >= 0) ? String.valueOf(value) : "?");
+        }
+        
+        return message;
+    }
 }
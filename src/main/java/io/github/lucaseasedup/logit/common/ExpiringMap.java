@@ -0,0 +1,480 @@
+package io.github.lucaseasedup.logit.common;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map whose entries expire after a time-to-live given when they are put.
+ *
+ * <p> Lookups run in constant time and drop an entry found to have expired.
+ * Entries that are never looked up again are dropped by {@link #expire()},
+ * which is meant to be called periodically. It uses a hashed timing wheel,
+ * so a sweep only visits the entries due around the ticks that have passed
+ * since the previous one, not every entry in the map.
+ *
+ * <p> The map holds at most {@code maxEntries} entries; putting a new key
+ * into a full map evicts the least recently put entry.
+ * Eviction, removal and replacement do not notify expiration listeners.
+ *
+ * <p> Entries are put with {@link #put(Object, Object, long)};
+ * {@link #put(Object, Object)} is not supported.
+ * The size of the map may include entries that have expired
+ * but have not been dropped yet.
+ *
+ * <p> This class is not thread-safe.
+ */
+public final class ExpiringMap<K, V> extends AbstractMap<K, V>
+{
+    /**
+     * Constructs a new {@code ExpiringMap}.
+     *
+     * @param tickMillis the time in milliseconds covered by one slot
+     *                   of the timing wheel.
+     * @param wheelSize  the number of slots in the timing wheel,
+     *                   rounded up to a power of two
+     *                   and capped at {@value #MAX_WHEEL_SIZE}.
+     * @param maxEntries the maximum number of entries held at once.
+     *
+     * @throws IllegalArgumentException if any of the values is not positive.
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiringMap(long tickMillis, int wheelSize, int maxEntries)
+    {
+        if (tickMillis <= 0 || wheelSize <= 0 || maxEntries <= 0)
+            throw new IllegalArgumentException();
+        
+        int requestedSlotCount = Math.min(wheelSize, MAX_WHEEL_SIZE);
+        int slotCount = Integer.highestOneBit(requestedSlotCount);
+        
+        if (slotCount < requestedSlotCount)
+        {
+            slotCount <<= 1;
+        }
+        
+        this.tickMillis = tickMillis;
+        this.maxEntries = maxEntries;
+        
+        wheel = new Node[slotCount];
+        origin = currentTimeMillis();
+    }
+    
+    /**
+     * Puts an entry into this map, replacing any entry with the same key.
+     *
+     * @param key        the key.
+     * @param value      the value.
+     * @param ttlMillis  the time in milliseconds after which
+     *                   the entry expires.
+     *
+     * @return the value previously associated with the key,
+     *         or {@code null} if there was none or it has expired.
+     *
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     *                                  or {@code ttlMillis} is negative.
+     */
+    public V put(K key, V value, long ttlMillis)
+    {
+        if (key == null || ttlMillis < 0)
+            throw new IllegalArgumentException();
+        
+        long now = currentTimeMillis();
+        Node<K, V> oldNode = index.remove(key);
+        V oldValue = null;
+        
+        if (oldNode != null)
+        {
+            unlink(oldNode);
+            
+            if (oldNode.expirationTime > now)
+            {
+                oldValue = oldNode.value;
+            }
+        }
+        
+        if (index.size() >= maxEntries)
+        {
+            Iterator<Node<K, V>> it = index.values().iterator();
+            
+            unlink(it.next());
+            it.remove();
+        }
+        
+        Node<K, V> node = new Node<>(key, value, now + ttlMillis);
+        
+        index.put(key, node);
+        link(node);
+        
+        return oldValue;
+    }
+    
+    @Override
+    public V get(Object key)
+    {
+        Node<K, V> node = getLiveNode(key);
+        
+        return (node != null) ? node.value : null;
+    }
+    
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return getLiveNode(key) != null;
+    }
+    
+    /**
+     * Returns the time left until an entry expires.
+     *
+     * @param key the key.
+     *
+     * @return the time in milliseconds, or {@code -1}
+     *         if there is no entry with this key.
+     */
+    public long getRemainingMillis(Object key)
+    {
+        Node<K, V> node = getLiveNode(key);
+        
+        if (node == null)
+            return -1;
+        
+        return node.expirationTime - currentTimeMillis();
+    }
+    
+    @Override
+    public V remove(Object key)
+    {
+        if (key == null)
+            return null;
+        
+        Node<K, V> node = index.remove(key);
+        
+        if (node == null)
+            return null;
+        
+        unlink(node);
+        
+        return (node.expirationTime > currentTimeMillis()) ? node.value : null;
+    }
+    
+    @Override
+    public void clear()
+    {
+        index.clear();
+        
+        for (int i = 0; i < wheel.length; i++)
+        {
+            wheel[i] = null;
+        }
+    }
+    
+    @Override
+    public int size()
+    {
+        return index.size();
+    }
+    
+    @Override
+    public Set<Map.Entry<K, V>> entrySet()
+    {
+        return entrySet;
+    }
+    
+    /**
+     * Drops all the entries that have expired by now,
+     * notifying the expiration listeners of each.
+     */
+    public void expire()
+    {
+        long now = currentTimeMillis();
+        long currentTick = (now - origin) / tickMillis;
+        long tickCount = Math.min(currentTick - sweptTick + 1, wheel.length);
+        List<Node<K, V>> expiredNodes = null;
+        
+        // The slot of the tick swept last is visited again, since it may hold
+        // entries which were not due yet at that time.
+        for (long tick = currentTick - tickCount + 1; tick <= currentTick; tick++)
+        {
+            Node<K, V> node = wheel[(int) (tick & (wheel.length - 1))];
+            
+            while (node != null)
+            {
+                Node<K, V> next = node.next;
+                
+                if (node.expirationTime <= now)
+                {
+                    unlink(node);
+                    index.remove(node.key);
+                    
+                    if (!listeners.isEmpty())
+                    {
+                        if (expiredNodes == null)
+                        {
+                            expiredNodes = new ArrayList<>();
+                        }
+                        
+                        expiredNodes.add(node);
+                    }
+                }
+                
+                node = next;
+            }
+        }
+        
+        sweptTick = currentTick;
+        
+        if (expiredNodes != null)
+        {
+            for (Node<K, V> node : expiredNodes)
+            {
+                notifyExpired(node);
+            }
+        }
+    }
+    
+    /**
+     * Registers a listener to be notified whenever an entry of this map
+     * is dropped because it has expired.
+     *
+     * @param listener the listener.
+     *
+     * @throws IllegalArgumentException if {@code listener} is {@code null}.
+     */
+    public void addExpirationListener(ExpirationListener<? super K, ? super V> listener)
+    {
+        if (listener == null)
+            throw new IllegalArgumentException();
+        
+        listeners.add(listener);
+    }
+    
+    public void removeExpirationListener(ExpirationListener<? super K, ? super V> listener)
+    {
+        listeners.remove(listener);
+    }
+    
+    private Node<K, V> getLiveNode(Object key)
+    {
+        if (key == null)
+            return null;
+        
+        Node<K, V> node = index.get(key);
+        
+        if (node == null)
+            return null;
+        
+        if (node.expirationTime > currentTimeMillis())
+            return node;
+        
+        index.remove(key);
+        unlink(node);
+        notifyExpired(node);
+        
+        return null;
+    }
+    
+    private void link(Node<K, V> node)
+    {
+        // Entries already due go into the current slot,
+        // so that the next sweep does not miss them.
+        long tick = Math.max((node.expirationTime - origin) / tickMillis, sweptTick);
+        int slot = (int) (tick & (wheel.length - 1));
+        Node<K, V> head = wheel[slot];
+        
+        node.slot = slot;
+        node.prev = null;
+        node.next = head;
+        
+        if (head != null)
+        {
+            head.prev = node;
+        }
+        
+        wheel[slot] = node;
+    }
+    
+    private void unlink(Node<K, V> node)
+    {
+        if (node.prev != null)
+        {
+            node.prev.next = node.next;
+        }
+        else if (wheel[node.slot] == node)
+        {
+            wheel[node.slot] = node.next;
+        }
+        
+        if (node.next != null)
+        {
+            node.next.prev = node.prev;
+        }
+        
+        node.prev = null;
+        node.next = null;
+    }
+    
+    private void notifyExpired(Node<K, V> node)
+    {
+        for (ExpirationListener<? super K, ? super V> listener
+                : new ArrayList<>(listeners))
+        {
+            listener.onExpired(node.key, node.value);
+        }
+    }
+    
+    private static long currentTimeMillis()
+    {
+        return System.nanoTime() / 1000000L;
+    }
+    
+    public static interface ExpirationListener<K, V>
+    {
+        /**
+         * Called after an entry has been dropped from the map
+         * because it has expired.
+         *
+         * @param key   the key of the entry.
+         * @param value the value of the entry.
+         */
+        public void onExpired(K key, V value);
+    }
+    
+    private static final class Node<K, V> implements Map.Entry<K, V>
+    {
+        public Node(K key, V value, long expirationTime)
+        {
+            this.key = key;
+            this.value = value;
+            this.expirationTime = expirationTime;
+        }
+        
+        @Override
+        public K getKey()
+        {
+            return key;
+        }
+        
+        @Override
+        public V getValue()
+        {
+            return value;
+        }
+        
+        @Override
+        public V setValue(V value)
+        {
+            V oldValue = this.value;
+            
+            this.value = value;
+            
+            return oldValue;
+        }
+        
+        private final K key;
+        private V value;
+        private final long expirationTime;
+        private int slot;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+    }
+    
+    private final class EntrySet extends AbstractSet<Map.Entry<K, V>>
+    {
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator()
+        {
+            return new EntryIterator();
+        }
+        
+        @Override
+        public int size()
+        {
+            return index.size();
+        }
+    }
+    
+    /**
+     * Iterates over a snapshot of the entries that had not expired
+     * when the iteration began.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>>
+    {
+        public EntryIterator()
+        {
+            advance();
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+        
+        @Override
+        public Map.Entry<K, V> next()
+        {
+            if (next == null)
+                throw new NoSuchElementException();
+            
+            current = next;
+            advance();
+            
+            return current;
+        }
+        
+        @Override
+        public void remove()
+        {
+            if (current == null)
+                throw new IllegalStateException();
+            
+            // The entry may have been replaced since the iteration began.
+            if (index.get(current.key) == current)
+            {
+                ExpiringMap.this.remove(current.key);
+            }
+            
+            current = null;
+        }
+        
+        private void advance()
+        {
+            next = null;
+            
+            while (it.hasNext())
+            {
+                Node<K, V> node = it.next();
+                
+                if (node.expirationTime > now)
+                {
+                    next = node;
+                    
+                    break;
+                }
+            }
+        }
+        
+        private final Iterator<Node<K, V>> it =
+                new ArrayList<>(index.values()).iterator();
+        private final long now = currentTimeMillis();
+        private Node<K, V> next;
+        private Node<K, V> current;
+    }
+    
+    public static final int MAX_WHEEL_SIZE = 1 << 20;
+    
+    private final long tickMillis;
+    private final int maxEntries;
+    private final Node<K, V>[] wheel;
+    private final long origin;
+    private final Map<K, Node<K, V>> index = new LinkedHashMap<>();
+    private final Set<Map.Entry<K, V>> entrySet = new EntrySet();
+    private final List<ExpirationListener<? super K, ? super V>> listeners =
+            new ArrayList<>();
+    private long sweptTick = 0;
+}
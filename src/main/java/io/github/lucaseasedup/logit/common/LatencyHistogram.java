@@ -0,0 +1,109 @@
+package io.github.lucaseasedup.logit.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of non-negative values, such as latencies,
+ * for estimating percentiles.
+ *
+ * <p> Values are counted in buckets growing exponentially, each power
+ * of two being split into eight linear sub-buckets, so percentiles are
+ * reported with a relative error of at most 12.5%. Recording a value
+ * takes constant time and never blocks.
+ */
+public final class LatencyHistogram
+{
+    /**
+     * Records a value. Negative values are recorded as {@code 0}.
+     *
+     * @param value the value.
+     */
+    public void record(long value)
+    {
+        counts.incrementAndGet(indexOf(Math.max(0, value)));
+        count.incrementAndGet();
+    }
+    
+    /**
+     * Returns the number of values recorded so far.
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+    
+    /**
+     * Estimates a percentile of the recorded values.
+     *
+     * @param percentile the percentile, between {@code 0} and {@code 100}.
+     *
+     * @return the highest value of the bucket the percentile falls into,
+     *         or {@code -1} if no values have been recorded.
+     *
+     * @throws IllegalArgumentException if {@code percentile} is out of range.
+     */
+    public long getPercentile(double percentile)
+    {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException();
+        
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        
+        if (total == 0)
+            return -1;
+        
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += snapshot[i];
+            
+            if (seen >= rank)
+                return highestValueOf(i);
+        }
+        
+        return highestValueOf(BUCKET_COUNT - 1);
+    }
+    
+    private static int indexOf(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+                & (SUB_BUCKET_COUNT - 1);
+        
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+    
+    private static long highestValueOf(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+        
+        int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (SUB_BUCKET_COUNT + subBucket) * width;
+        
+        return lowest + width - 1;
+    }
+    
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT =
+            (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+}
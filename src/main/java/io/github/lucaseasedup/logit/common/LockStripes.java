@@ -0,0 +1,167 @@
+package io.github.lucaseasedup.logit.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of reentrant locks shared by keys hashing to the same stripe.
+ *
+ * <p> Operations on different keys usually proceed in parallel, while
+ * those on the same key are serialized. Multiple stripes are always locked
+ * in ascending stripe order, so that two threads locking overlapping sets
+ * of keys cannot deadlock.
+ */
+public final class LockStripes
+{
+    /**
+     * Constructs new {@code LockStripes}.
+     *
+     * @param stripeCount the minimum number of stripes;
+     *                    rounded up to a power of two.
+     *
+     * @throws IllegalArgumentException if {@code stripeCount} is not positive
+     *                                  or greater than 2<sup>30</sup>.
+     */
+    public LockStripes(int stripeCount)
+    {
+        if (stripeCount <= 0 || stripeCount > (1 << 30))
+            throw new IllegalArgumentException();
+        
+        int size = Integer.highestOneBit(stripeCount);
+        
+        if (size < stripeCount)
+        {
+            size <<= 1;
+        }
+        
+        stripes = new ReentrantLock[size];
+        
+        for (int i = 0; i < size; i++)
+        {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+    
+    /**
+     * Returns the lock guarding the given key.
+     *
+     * @param key the key.
+     *
+     * @return the lock.
+     *
+     * @throws IllegalArgumentException if {@code key} is {@code null}.
+     */
+    public Lock get(Object key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        return stripes[indexOf(key)];
+    }
+    
+    /**
+     * Checks whether the stripe of the given key is held by any thread.
+     *
+     * <p> Since stripes are shared, the key itself might not be in use.
+     *
+     * @param key the key.
+     *
+     * @return {@code true} if the stripe is locked.
+     *
+     * @throws IllegalArgumentException if {@code key} is {@code null}.
+     */
+    public boolean isLocked(Object key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        return stripes[indexOf(key)].isLocked();
+    }
+    
+    /**
+     * Locks the stripes of all the given keys in ascending stripe order.
+     *
+     * @param keys the keys.
+     *
+     * @return the locked stripes, to be passed to {@link #unlockAll(List)}.
+     *
+     * @throws IllegalArgumentException if {@code keys} is {@code null}
+     *                                  or contains {@code null}.
+     */
+    public List<Lock> lockAll(Collection<?> keys)
+    {
+        if (keys == null)
+            throw new IllegalArgumentException();
+        
+        boolean[] selected = new boolean[stripes.length];
+        
+        for (Object key : keys)
+        {
+            if (key == null)
+                throw new IllegalArgumentException();
+            
+            selected[indexOf(key)] = true;
+        }
+        
+        List<Lock> locked = new ArrayList<>();
+        
+        try
+        {
+            for (int i = 0; i < stripes.length; i++)
+            {
+                if (selected[i])
+                {
+                    stripes[i].lock();
+                    locked.add(stripes[i]);
+                }
+            }
+        }
+        catch (RuntimeException | Error ex)
+        {
+            unlockAll(locked);
+            
+            throw ex;
+        }
+        
+        return locked;
+    }
+    
+    /**
+     * Unlocks stripes locked with {@link #lockAll(Collection)},
+     * in reverse order.
+     *
+     * @param locks the locked stripes.
+     *
+     * @throws IllegalArgumentException if {@code locks} is {@code null}.
+     */
+    public void unlockAll(List<Lock> locks)
+    {
+        if (locks == null)
+            throw new IllegalArgumentException();
+        
+        for (int i = locks.size() - 1; i >= 0; i--)
+        {
+            locks.get(i).unlock();
+        }
+    }
+    
+    public int getStripeCount()
+    {
+        return stripes.length;
+    }
+    
+    private int indexOf(Object key)
+    {
+        int h = key.hashCode();
+        
+        // Spread the higher bits, as HashMap does.
+        h ^= (h >>> 16);
+        
+        return h & (stripes.length - 1);
+    }
+    
+    private final ReentrantLock[] stripes;
+}
@@ -1,180 +1,490 @@
 package io.github.lucaseasedup.logit.common;
 
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Thread-safe map that keeps its entries in insertion order
+ * and can be drained like a queue.
+ *
+ * <p> Putting a value under a key that is already present replaces
+ * the value but keeps the position of the entry in the queue,
+ * so repeated writes to the same key are coalesced.
+ *
+ * <p> All the single-key operations and {@link #poll()} run
+ * in constant time and don't lock the whole map.
+ * Removed entries are unlinked from the queue lazily.
+ */
 public final class QueuedMap<K, V> implements Map<K, V>
 {
     @Override
-    public synchronized V put(K key, V value)
+    public V put(K key, V value)
     {
         if (key == null)
             throw new IllegalArgumentException();
         
-        if (keys.contains(key))
+        while (true)
         {
-            return values.put(key, value);
-        }
-        else
-        {
-            enqueue(key, value);
+            Node<K, V> node = index.get(key);
             
-            return null;
+            if (node == null)
+            {
+                Node<K, V> newNode = new Node<>(key, value);
+                
+                if (index.putIfAbsent(key, newNode) == null)
+                {
+                    queue.add(newNode);
+                    size.incrementAndGet();
+                    
+                    return null;
+                }
+            }
+            else
+            {
+                synchronized (node)
+                {
+                    if (!node.removed)
+                    {
+                        V oldValue = node.value;
+                        
+                        node.value = value;
+                        
+                        return oldValue;
+                    }
+                }
+                
+                // The node has just been removed; try again with a new one.
+                index.remove(key, node);
+            }
         }
     }
     
     @Override
-    public synchronized V get(Object key)
+    public V get(Object key)
     {
         if (key == null)
             throw new IllegalArgumentException();
         
-        return values.get(key);
+        Node<K, V> node = index.get(key);
+        
+        if (node == null)
+            return null;
+        
+        return node.value;
     }
     
     @Override
-    public synchronized V remove(Object key)
+    public V remove(Object key)
     {
         if (key == null)
             throw new IllegalArgumentException();
         
-        keys.remove(key);
+        Node<K, V> node = index.get(key);
+        
+        if (node == null || !removeNode(node))
+            return null;
+        
+        return node.value;
+    }
+    
+    /**
+     * Removes the eldest entry from this map.
+     *
+     * @return the eldest entry.
+     *
+     * @throws NoSuchElementException if this map is empty.
+     */
+    public Map.Entry<K, V> remove()
+    {
+        Map.Entry<K, V> entry = poll();
+        
+        if (entry == null)
+            throw new NoSuchElementException();
         
-        return values.remove(key);
+        return entry;
     }
     
-    public synchronized Map.Entry<K, V> remove()
+    /**
+     * Removes the eldest entry from this map.
+     *
+     * @return the eldest entry, or {@code null} if this map is empty.
+     */
+    public Map.Entry<K, V> poll()
     {
-        final K key = keys.remove();
-        final V value = values.remove(key);
+        Node<K, V> node;
         
-        return new Map.Entry<K, V>()
+        while ((node = queue.poll()) != null)
         {
-            @Override
-            public K getKey()
+            if (index.remove(node.key, node))
             {
-                return key;
+                unlink(node);
+                
+                return new ImmutableEntry<>(node.key, node.value);
             }
             
-            @Override
-            public V getValue()
-            {
-                return value;
-            }
+            staleCount.decrementAndGet();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the eldest entry in this map without removing it.
+     *
+     * @return the eldest entry.
+     *
+     * @throws NoSuchElementException if this map is empty.
+     */
+    public Map.Entry<K, V> element()
+    {
+        Node<K, V> node;
+        
+        while ((node = queue.peek()) != null)
+        {
+            if (isLive(node))
+                return new ImmutableEntry<>(node.key, node.value);
             
-            @Override
-            public V setValue(V value)
+            if (queue.remove(node))
             {
-                throw new UnsupportedOperationException();
+                staleCount.decrementAndGet();
             }
-        };
+        }
+        
+        throw new NoSuchElementException();
+    }
+    
+    @Override
+    public int size()
+    {
+        return Math.max(size.get(), 0);
     }
     
-    public synchronized Map.Entry<K, V> element()
+    @Override
+    public boolean isEmpty()
     {
-        final K key = keys.element();
-        final V value = values.get(key);
+        return size() == 0;
+    }
+    
+    @Override
+    public boolean containsKey(Object key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
         
-        return new Map.Entry<K, V>()
+        return index.containsKey(key);
+    }
+    
+    @Override
+    public boolean containsValue(Object value)
+    {
+        return values().contains(value);
+    }
+    
+    @Override
+    public Set<K> keySet()
+    {
+        return new AbstractSet<K>()
         {
             @Override
-            public K getKey()
+            public Iterator<K> iterator()
             {
-                return key;
+                final Iterator<Node<K, V>> it = new NodeIterator();
+                
+                return new Iterator<K>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return it.hasNext();
+                    }
+                    
+                    @Override
+                    public K next()
+                    {
+                        return it.next().key;
+                    }
+                    
+                    @Override
+                    public void remove()
+                    {
+                        it.remove();
+                    }
+                };
             }
             
             @Override
-            public V getValue()
+            public boolean contains(Object o)
             {
-                return value;
+                return index.containsKey(o);
             }
             
             @Override
-            public V setValue(V value)
+            public int size()
             {
-                throw new UnsupportedOperationException();
+                return QueuedMap.this.size();
             }
         };
     }
     
     @Override
-    public synchronized int size()
+    public Collection<V> values()
     {
-        return keys.size();
+        return new AbstractCollection<V>()
+        {
+            @Override
+            public Iterator<V> iterator()
+            {
+                final Iterator<Node<K, V>> it = new NodeIterator();
+                
+                return new Iterator<V>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return it.hasNext();
+                    }
+                    
+                    @Override
+                    public V next()
+                    {
+                        return it.next().value;
+                    }
+                    
+                    @Override
+                    public void remove()
+                    {
+                        it.remove();
+                    }
+                };
+            }
+            
+            @Override
+            public int size()
+            {
+                return QueuedMap.this.size();
+            }
+        };
     }
     
     @Override
-    public synchronized boolean isEmpty()
+    public Set<Map.Entry<K, V>> entrySet()
     {
-        return size() == 0;
+        return new AbstractSet<Map.Entry<K, V>>()
+        {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                final Iterator<Node<K, V>> it = new NodeIterator();
+                
+                return new Iterator<Map.Entry<K, V>>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return it.hasNext();
+                    }
+                    
+                    @Override
+                    public Map.Entry<K, V> next()
+                    {
+                        Node<K, V> node = it.next();
+                        
+                        return new ImmutableEntry<>(node.key, node.value);
+                    }
+                    
+                    @Override
+                    public void remove()
+                    {
+                        it.remove();
+                    }
+                };
+            }
+            
+            @Override
+            public int size()
+            {
+                return QueuedMap.this.size();
+            }
+        };
     }
     
     @Override
-    public synchronized boolean containsKey(Object key)
+    public void putAll(Map<? extends K, ? extends V> m)
     {
-        return keys.contains(key);
+        for (Map.Entry<? extends K, ? extends V> e : m.entrySet())
+        {
+            put(e.getKey(), e.getValue());
+        }
     }
     
     @Override
-    public synchronized boolean containsValue(Object value)
+    public void clear()
     {
-        return values.containsValue(value);
+        Map.Entry<K, V> entry;
+        
+        do
+        {
+            entry = poll();
+        }
+        while (entry != null);
     }
     
-    @Override
-    public Set<K> keySet()
+    /**
+     * Removes a node from the index, leaving it in the queue.
+     */
+    private boolean removeNode(Node<K, V> node)
     {
-        Set<K> keySet = new TreeSet<>();
+        if (!index.remove(node.key, node))
+            return false;
+        
+        unlink(node);
         
-        keySet.addAll(keys);
+        // Get rid of removed nodes once they outnumber the live ones.
+        if (staleCount.incrementAndGet() > Math.max(MIN_STALE_COUNT, size()))
+        {
+            purge();
+        }
         
-        return keySet;
+        return true;
     }
     
-    @Override
-    public Collection<V> values()
+    private boolean isLive(Node<K, V> node)
     {
-        return values.values();
+        return index.get(node.key) == node;
     }
     
-    @Override
-    public Set<Map.Entry<K, V>> entrySet()
+    private void unlink(Node<K, V> node)
     {
-        return values.entrySet();
+        synchronized (node)
+        {
+            node.removed = true;
+        }
+        
+        size.decrementAndGet();
     }
     
-    @Override
-    public void putAll(Map<? extends K, ? extends V> m)
+    /**
+     * Unlinks all removed nodes from the queue.
+     */
+    private void purge()
     {
-        for (Map.Entry<? extends K, ? extends V> e : m.entrySet())
+        Iterator<Node<K, V>> it = queue.iterator();
+        
+        while (it.hasNext())
         {
-            put(e.getKey(), e.getValue());
+            if (!isLive(it.next()))
+            {
+                it.remove();
+                staleCount.decrementAndGet();
+            }
         }
     }
     
-    @Override
-    public synchronized void clear()
+    private static final class Node<K, V>
     {
-        keys.clear();
-        values.clear();
+        private Node(K key, V value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+        
+        private final K key;
+        private volatile V value;
+        private boolean removed = false;
     }
     
-    private void enqueue(K key, V value)
+    private static final class ImmutableEntry<K, V> implements Map.Entry<K, V>
     {
-        if (key == null)
-            throw new IllegalArgumentException();
+        private ImmutableEntry(K key, V value)
+        {
+            this.key = key;
+            this.value = value;
+        }
         
-        if (keys.add(key))
+        @Override
+        public K getKey()
         {
-            values.put(key, value);
+            return key;
         }
+        
+        @Override
+        public V getValue()
+        {
+            return value;
+        }
+        
+        @Override
+        public V setValue(V value)
+        {
+            throw new UnsupportedOperationException();
+        }
+        
+        private final K key;
+        private final V value;
     }
     
-    private final Queue<K> keys = new LinkedList<>();
-    private final Map<K, V> values = new HashMap<>();
+    /**
+     * Iterates over the live nodes in insertion order.
+     */
+    private final class NodeIterator implements Iterator<Node<K, V>>
+    {
+        @Override
+        public boolean hasNext()
+        {
+            while (next == null && it.hasNext())
+            {
+                Node<K, V> node = it.next();
+                
+                if (isLive(node))
+                {
+                    next = node;
+                }
+            }
+            
+            return next != null;
+        }
+        
+        @Override
+        public Node<K, V> next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            
+            current = next;
+            next = null;
+            
+            return current;
+        }
+        
+        @Override
+        public void remove()
+        {
+            if (current == null)
+                throw new IllegalStateException();
+            
+            removeNode(current);
+            current = null;
+        }
+        
+        private final Iterator<Node<K, V>> it = queue.iterator();
+        private Node<K, V> next;
+        private Node<K, V> current;
+    }
+    
+    private static final int MIN_STALE_COUNT = 32;
+    
+    private final ConcurrentMap<K, Node<K, V>> index = new ConcurrentHashMap<>();
+    private final Queue<Node<K, V>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger staleCount = new AtomicInteger();
 }
@@ -0,0 +1,131 @@
+package io.github.lucaseasedup.logit.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token buckets keyed by arbitrary objects, for rate limiting.
+ *
+ * <p> Each bucket holds up to {@code capacity} tokens and regains one
+ * every refill interval. A bucket is stored as the single point in time
+ * at which it will be full again, so checking a bucket never modifies it.
+ * Only the most recently used keys are tracked, up to a fixed limit;
+ * the bucket of a forgotten key starts full again.
+ *
+ * <p> This class is not thread-safe.
+ */
+public final class TokenBucketMap<K>
+{
+    /**
+     * Constructs new {@code TokenBucketMap}.
+     *
+     * @param capacity       the number of tokens in a full bucket,
+     *                       or {@code 0} for no limit.
+     * @param refillInterval the time in milliseconds in which one token
+     *                       is regained.
+     * @param maxKeys        the maximum number of keys tracked at once.
+     *
+     * @throws IllegalArgumentException if {@code capacity} is negative,
+     *                                  or {@code refillInterval}
+     *                                  or {@code maxKeys} is not positive.
+     */
+    public TokenBucketMap(int capacity, long refillInterval, final int maxKeys)
+    {
+        if (capacity < 0 || refillInterval <= 0 || maxKeys <= 0)
+            throw new IllegalArgumentException();
+        
+        this.capacity = capacity;
+        this.refillInterval = refillInterval;
+        
+        fullTimes = new LinkedHashMap<K, Long>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Long> eldest)
+            {
+                return size() > maxKeys;
+            }
+        };
+    }
+    
+    /**
+     * Checks whether the bucket of a key has a token left.
+     *
+     * @param key the key.
+     * @param now the current time in milliseconds.
+     *
+     * @return {@code true} if a token can be taken.
+     */
+    public boolean hasToken(K key, long now)
+    {
+        if (capacity == 0)
+            return true;
+        
+        Long fullTime = fullTimes.get(key);
+        
+        if (fullTime == null)
+            return true;
+        
+        // The bucket lacks (fullTime - now) / refillInterval tokens.
+        return fullTime - now <= (capacity - 1) * refillInterval;
+    }
+    
+    /**
+     * Takes a token from the bucket of a key, whether or not
+     * {@link #hasToken} would allow it.
+     *
+     * @param key the key.
+     * @param now the current time in milliseconds.
+     */
+    public void takeToken(K key, long now)
+    {
+        if (capacity == 0)
+            return;
+        
+        Long fullTime = fullTimes.get(key);
+        
+        if (fullTime == null || fullTime < now)
+        {
+            fullTimes.put(key, now + refillInterval);
+        }
+        else
+        {
+            fullTimes.put(key, fullTime + refillInterval);
+        }
+    }
+    
+    /**
+     * Forgets the buckets that have been refilled by now.
+     *
+     * @param now the current time in milliseconds.
+     */
+    public void expire(long now)
+    {
+        Iterator<Long> it = fullTimes.values().iterator();
+        
+        while (it.hasNext())
+        {
+            if (it.next() <= now)
+            {
+                it.remove();
+            }
+        }
+    }
+    
+    public void clear()
+    {
+        fullTimes.clear();
+    }
+    
+    /**
+     * Returns the number of keys currently tracked.
+     */
+    public int size()
+    {
+        return fullTimes.size();
+    }
+    
+    private final int capacity;
+    private final long refillInterval;
+    private final Map<K, Long> fullTimes;
+}
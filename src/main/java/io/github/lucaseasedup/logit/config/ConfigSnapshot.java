@@ -0,0 +1,414 @@
+package io.github.lucaseasedup.logit.config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable, typed copy of the config.yml properties read on hot paths,
+ * such as every player movement, chat message or log line.
+ *
+ * <p> Values are converted once, when the snapshot is taken:
+ * time strings are decoded into the units they are read in,
+ * and lists looked up by membership become hash sets.
+ * Lists of usernames matched case-insensitively are lower-cased.
+ *
+ * <p> A new snapshot is taken by {@link ConfigurationManager}
+ * whenever the configuration is loaded or one of its properties is set.
+ */
+public final class ConfigSnapshot
+{
+    /**
+     * Takes a snapshot of a configuration.
+     *
+     * @param config the config.yml configuration.
+     *
+     * @throws IllegalArgumentException if {@code config} is {@code null}.
+     */
+    public ConfigSnapshot(PropertyHolder config)
+    {
+        if (config == null)
+            throw new IllegalArgumentException();
+        
+        forceLoginGlobal = config.getBoolean("forceLogin.global");
+        forceLoginWorlds = toSet(config.getStringList("forceLogin.inWorlds"), false);
+        forceLoginExemptPlayers = toSet(config.getStringList("forceLogin.exemptPlayers"), true);
+        
+        timeoutEnabled = config.getBoolean("forceLogin.timeout.enabled");
+        loginTimeoutTicks = config.getTime("forceLogin.timeout.value.login", TimeUnit.TICKS);
+        registerTimeoutTicks = config.getTime("forceLogin.timeout.value.register", TimeUnit.TICKS);
+        timeoutExemptPlayers = toSet(config.getStringList("forceLogin.timeout.disableForPlayers"), true);
+        
+        allowedCommands = Collections.unmodifiableList(
+                new ArrayList<>(config.getStringList("forceLogin.allowedCommands"))
+        );
+        moveRadius = config.getInt("forceLogin.moveRadius");
+        
+        movePrevented = config.getBoolean("forceLogin.prevent.move");
+        toggleSneakPrevented = config.getBoolean("forceLogin.prevent.toggleSneak");
+        blockPlacePrevented = config.getBoolean("forceLogin.prevent.blockPlace");
+        blockBreakPrevented = config.getBoolean("forceLogin.prevent.blockBreak");
+        damageInPrevented = config.getBoolean("forceLogin.prevent.damageIn");
+        damageOutPrevented = config.getBoolean("forceLogin.prevent.damageOut");
+        regainHealthPrevented = config.getBoolean("forceLogin.prevent.regainHealth");
+        foodLevelChangePrevented = config.getBoolean("forceLogin.prevent.foodLevelChange");
+        entityTargetPrevented = config.getBoolean("forceLogin.prevent.entityTarget");
+        chatPrevented = config.getBoolean("forceLogin.prevent.chat");
+        commandPreprocessPrevented = config.getBoolean("forceLogin.prevent.commandPreprocess");
+        pickupItemPrevented = config.getBoolean("forceLogin.prevent.pickupItem");
+        dropItemPrevented = config.getBoolean("forceLogin.prevent.dropItem");
+        interactPrevented = config.getBoolean("forceLogin.prevent.interact");
+        interactEntityPrevented = config.getBoolean("forceLogin.prevent.interactEntity");
+        inventoryClickPrevented = config.getBoolean("forceLogin.prevent.inventoryClick");
+        
+        loginPromptEnabled = config.getBoolean("forceLogin.prompt.login");
+        registerPromptEnabled = config.getBoolean("forceLogin.prompt.register");
+        promptMinIntervalMillis = config.getTime("forceLogin.prompt.minInterval", TimeUnit.MILLISECONDS);
+        promptedOnDropItem = config.getBoolean("forceLogin.promptOn.dropItem");
+        promptedOnBlockPlace = config.getBoolean("forceLogin.promptOn.blockPlace");
+        promptedOnBlockBreak = config.getBoolean("forceLogin.promptOn.blockBreak");
+        promptedOnInteract = config.getBoolean("forceLogin.promptOn.interact");
+        promptedOnInteractEntity = config.getBoolean("forceLogin.promptOn.interactEntity");
+        
+        chatMessagesHidden = config.getBoolean("forceLogin.hideChatMessages");
+        otherPlayersHidden = config.getBoolean("forceLogin.hideOtherPlayers");
+        
+        automaticLogoutEnabled = config.getBoolean("automaticLogout.enabled");
+        inactivityTimeMillis = config.getTime("automaticLogout.inactivityTime", TimeUnit.MILLISECONDS);
+        
+        blockLoginAttempts = config.getInt("bruteForce.blockLogin.attempts");
+        blockLoginMillis = config.getTime("bruteForce.blockLogin.forTime", TimeUnit.MILLISECONDS);
+        kickAttempts = config.getInt("bruteForce.kick.attempts");
+        banAttempts = config.getInt("bruteForce.ban.attempts");
+        
+        statsEnabled = config.getBoolean("stats.enabled");
+        loginSessionsEnabled = config.getBoolean("loginSessions.enabled");
+        
+        fileLogEnabled = config.getBoolean("logging.file.enabled");
+        fileLogLevel = config.getInt("logging.file.level");
+        verboseConsole = config.getBoolean("logging.verboseConsole");
+    }
+    
+    /**
+     * Checks whether players in a world are forced to log in,
+     * unless exempted by their usernames.
+     *
+     * @param worldName the name of the world.
+     *
+     * @return {@code true} if players in this world are forced to log in.
+     */
+    public boolean isForcedLoginWorld(String worldName)
+    {
+        return forceLoginGlobal || forceLoginWorlds.contains(worldName);
+    }
+    
+    /**
+     * Checks whether a player is exempted from being forced to log in.
+     *
+     * @param username the username, case-insensitive.
+     *
+     * @return {@code true} if the player is exempted.
+     */
+    public boolean isForceLoginExempt(String username)
+    {
+        return forceLoginExemptPlayers.contains(username.toLowerCase());
+    }
+    
+    public boolean isTimeoutEnabled()
+    {
+        return timeoutEnabled;
+    }
+    
+    public long getLoginTimeoutTicks()
+    {
+        return loginTimeoutTicks;
+    }
+    
+    public long getRegisterTimeoutTicks()
+    {
+        return registerTimeoutTicks;
+    }
+    
+    /**
+     * Checks whether the login timeout is disabled for a player.
+     *
+     * @param username the username, case-insensitive.
+     *
+     * @return {@code true} if the timeout does not apply to the player.
+     */
+    public boolean isTimeoutExempt(String username)
+    {
+        return timeoutExemptPlayers.contains(username.toLowerCase());
+    }
+    
+    /**
+     * Returns the commands players can use before logging in.
+     *
+     * @return an unmodifiable list of the commands.
+     */
+    public List<String> getAllowedCommands()
+    {
+        return allowedCommands;
+    }
+    
+    public int getMoveRadius()
+    {
+        return moveRadius;
+    }
+    
+    public boolean isMovePrevented()
+    {
+        return movePrevented;
+    }
+    
+    public boolean isToggleSneakPrevented()
+    {
+        return toggleSneakPrevented;
+    }
+    
+    public boolean isBlockPlacePrevented()
+    {
+        return blockPlacePrevented;
+    }
+    
+    public boolean isBlockBreakPrevented()
+    {
+        return blockBreakPrevented;
+    }
+    
+    public boolean isDamageInPrevented()
+    {
+        return damageInPrevented;
+    }
+    
+    public boolean isDamageOutPrevented()
+    {
+        return damageOutPrevented;
+    }
+    
+    public boolean isRegainHealthPrevented()
+    {
+        return regainHealthPrevented;
+    }
+    
+    public boolean isFoodLevelChangePrevented()
+    {
+        return foodLevelChangePrevented;
+    }
+    
+    public boolean isEntityTargetPrevented()
+    {
+        return entityTargetPrevented;
+    }
+    
+    public boolean isChatPrevented()
+    {
+        return chatPrevented;
+    }
+    
+    public boolean isCommandPreprocessPrevented()
+    {
+        return commandPreprocessPrevented;
+    }
+    
+    public boolean isPickupItemPrevented()
+    {
+        return pickupItemPrevented;
+    }
+    
+    public boolean isDropItemPrevented()
+    {
+        return dropItemPrevented;
+    }
+    
+    public boolean isInteractPrevented()
+    {
+        return interactPrevented;
+    }
+    
+    public boolean isInteractEntityPrevented()
+    {
+        return interactEntityPrevented;
+    }
+    
+    public boolean isInventoryClickPrevented()
+    {
+        return inventoryClickPrevented;
+    }
+    
+    public boolean isLoginPromptEnabled()
+    {
+        return loginPromptEnabled;
+    }
+    
+    public boolean isRegisterPromptEnabled()
+    {
+        return registerPromptEnabled;
+    }
+    
+    public long getPromptMinIntervalMillis()
+    {
+        return promptMinIntervalMillis;
+    }
+    
+    public boolean isPromptedOnDropItem()
+    {
+        return promptedOnDropItem;
+    }
+    
+    public boolean isPromptedOnBlockPlace()
+    {
+        return promptedOnBlockPlace;
+    }
+    
+    public boolean isPromptedOnBlockBreak()
+    {
+        return promptedOnBlockBreak;
+    }
+    
+    public boolean isPromptedOnInteract()
+    {
+        return promptedOnInteract;
+    }
+    
+    public boolean isPromptedOnInteractEntity()
+    {
+        return promptedOnInteractEntity;
+    }
+    
+    public boolean areChatMessagesHidden()
+    {
+        return chatMessagesHidden;
+    }
+    
+    public boolean areOtherPlayersHidden()
+    {
+        return otherPlayersHidden;
+    }
+    
+    public boolean isAutomaticLogoutEnabled()
+    {
+        return automaticLogoutEnabled;
+    }
+    
+    public long getInactivityTimeMillis()
+    {
+        return inactivityTimeMillis;
+    }
+    
+    public int getBlockLoginAttempts()
+    {
+        return blockLoginAttempts;
+    }
+    
+    public long getBlockLoginMillis()
+    {
+        return blockLoginMillis;
+    }
+    
+    public int getKickAttempts()
+    {
+        return kickAttempts;
+    }
+    
+    public int getBanAttempts()
+    {
+        return banAttempts;
+    }
+    
+    public boolean isStatsEnabled()
+    {
+        return statsEnabled;
+    }
+    
+    public boolean isLoginSessionsEnabled()
+    {
+        return loginSessionsEnabled;
+    }
+    
+    public boolean isFileLogEnabled()
+    {
+        return fileLogEnabled;
+    }
+    
+    public int getFileLogLevel()
+    {
+        return fileLogLevel;
+    }
+    
+    public boolean isVerboseConsole()
+    {
+        return verboseConsole;
+    }
+    
+    private static Set<String> toSet(Collection<String> strings, boolean lowerCase)
+    {
+        Set<String> set = new HashSet<>(strings.size() * 4 / 3 + 1);
+        
+        for (String s : strings)
+        {
+            set.add(lowerCase ? s.toLowerCase() : s);
+        }
+        
+        return Collections.unmodifiableSet(set);
+    }
+    
+    private final boolean forceLoginGlobal;
+    private final Set<String> forceLoginWorlds;
+    private final Set<String> forceLoginExemptPlayers;
+    
+    private final boolean timeoutEnabled;
+    private final long loginTimeoutTicks;
+    private final long registerTimeoutTicks;
+    private final Set<String> timeoutExemptPlayers;
+    
+    private final List<String> allowedCommands;
+    private final int moveRadius;
+    
+    private final boolean movePrevented;
+    private final boolean toggleSneakPrevented;
+    private final boolean blockPlacePrevented;
+    private final boolean blockBreakPrevented;
+    private final boolean damageInPrevented;
+    private final boolean damageOutPrevented;
+    private final boolean regainHealthPrevented;
+    private final boolean foodLevelChangePrevented;
+    private final boolean entityTargetPrevented;
+    private final boolean chatPrevented;
+    private final boolean commandPreprocessPrevented;
+    private final boolean pickupItemPrevented;
+    private final boolean dropItemPrevented;
+    private final boolean interactPrevented;
+    private final boolean interactEntityPrevented;
+    private final boolean inventoryClickPrevented;
+    
+    private final boolean loginPromptEnabled;
+    private final boolean registerPromptEnabled;
+    private final long promptMinIntervalMillis;
+    private final boolean promptedOnDropItem;
+    private final boolean promptedOnBlockPlace;
+    private final boolean promptedOnBlockBreak;
+    private final boolean promptedOnInteract;
+    private final boolean promptedOnInteractEntity;
+    
+    private final boolean chatMessagesHidden;
+    private final boolean otherPlayersHidden;
+    
+    private final boolean automaticLogoutEnabled;
+    private final long inactivityTimeMillis;
+    
+    private final int blockLoginAttempts;
+    private final long blockLoginMillis;
+    private final int kickAttempts;
+    private final int banAttempts;
+    
+    private final boolean statsEnabled;
+    private final boolean loginSessionsEnabled;
+    
+    private final boolean fileLogEnabled;
+    private final int fileLogLevel;
+    private final boolean verboseConsole;
+}
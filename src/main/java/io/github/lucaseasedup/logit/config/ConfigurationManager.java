@@ -11,6 +11,8 @@ public final class ConfigurationManager extends LogItCoreObject
     @Override
     public void dispose()
     {
+        snapshot = null;
+        
         if (registrations != null)
         {
             for (PredefinedConfiguration configuration : registrations.values())
@@ -67,6 +69,8 @@ public final class ConfigurationManager extends LogItCoreObject
         {
             configuration.load();
         }
+        
+        takeSnapshot();
     }
     
     public PredefinedConfiguration getConfiguration(String filename)
@@ -77,5 +81,56 @@ public final class ConfigurationManager extends LogItCoreObject
         return registrations.get(filename);
     }
     
+    /**
+     * Returns the latest snapshot of config.yml.
+     * 
+     * <p> A new snapshot is taken whenever the configurations are loaded
+     * or one of the config.yml properties is set, and replaces this one
+     * at once; a snapshot itself never changes.
+     * 
+     * @return the snapshot, or {@code null} if config.yml
+     *         has not been loaded yet.
+     */
+    public ConfigSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+    
+    private void takeSnapshot()
+    {
+        PredefinedConfiguration configuration = registrations.get(SNAPSHOT_FILENAME);
+        
+        if (configuration == null || !configuration.isLoaded())
+        {
+            snapshot = null;
+            
+            return;
+        }
+        
+        // Loading a configuration creates new properties,
+        // so the updater is attached on every load.
+        // Observers are notified in reverse order of attachment,
+        // so property observers find the snapshot already updated.
+        for (Property property : configuration.getProperties().values())
+        {
+            property.addObserver(snapshotUpdater);
+        }
+        
+        snapshot = new ConfigSnapshot(configuration);
+    }
+    
+    private final class SnapshotUpdater extends PropertyObserver
+    {
+        @Override
+        public void update(Property p)
+        {
+            takeSnapshot();
+        }
+    }
+    
+    private static final String SNAPSHOT_FILENAME = "config.yml";
+    
     private Map<String, PredefinedConfiguration> registrations = new HashMap<>();
+    private final PropertyObserver snapshotUpdater = new SnapshotUpdater();
+    private volatile ConfigSnapshot snapshot;
 }
@@ -73,8 +73,7 @@ public final class SerializerObserver extends PropertyObserver
             Account account = getAccountManager().selectAccount(
                     player.getName(),
                     Arrays.asList(
-                            keys().username(),
-                            keys().persistence()
+                            keys().username()
                     )
             );
             
@@ -102,8 +101,7 @@ public final class SerializerObserver extends PropertyObserver
             Account account = getAccountManager().selectAccount(
                     player.getName(),
                     Arrays.asList(
-                            keys().username(),
-                            keys().persistence()
+                            keys().username()
                     )
             );
             
@@ -1,41 +1,39 @@
 package io.github.lucaseasedup.logit.cooldown;
 
 import io.github.lucaseasedup.logit.LogItCoreObject;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.WeakHashMap;
+import io.github.lucaseasedup.logit.common.ExpiringMap;
+import io.github.lucaseasedup.logit.config.TimeUnit;
+import java.util.HashSet;
+import java.util.Set;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerQuitEvent;
 
-public final class CooldownManager extends LogItCoreObject implements Listener
+public final class CooldownManager extends LogItCoreObject implements Runnable, Listener
 {
+    @Override
+    public void dispose()
+    {
+        cooldowns.clear();
+        cooldownTypes.clear();
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public void run()
+    {
+        cooldowns.expire();
+    }
+    
     public boolean isCooldownActive(Player player, Cooldown cooldown)
     {
         if (player == null || cooldown == null)
             throw new IllegalArgumentException();
         
-        Map<Cooldown, Long> playerCooldowns = cooldowns.get(player);
-        
-        if (playerCooldowns == null)
-            return false;
-        
-        Long cooldownExpirationMillis = playerCooldowns.get(cooldown);
-        
-        if (cooldownExpirationMillis == null)
-            return false;
-        
-        if (cooldownExpirationMillis > System.currentTimeMillis())
-        {
-            return true;
-        }
-        else
-        {
-            playerCooldowns.remove(cooldown);
-            
-            return false;
-        }
+        return cooldowns.containsKey(new CooldownKey(player, cooldown));
     }
     
     /**
@@ -44,24 +42,15 @@ public final class CooldownManager extends LogItCoreObject implements Listener
      * @param player   the player who is affected by the cooldown.
      * @param cooldown the cooldown type.
      * 
-     * @return the cooldown in milliseconds.
+     * @return the cooldown in milliseconds,
+     *         or {@code -1} if the cooldown is not active.
      */
     public long getCooldownMillis(Player player, Cooldown cooldown)
     {
         if (player == null || cooldown == null)
             throw new IllegalArgumentException();
         
-        Map<Cooldown, Long> playerCooldowns = cooldowns.get(player);
-        
-        if (playerCooldowns == null)
-            return -1;
-        
-        Long cooldownExpirationMillis = playerCooldowns.get(cooldown);
-        
-        if (cooldownExpirationMillis == null)
-            return -1;
-        
-        return cooldownExpirationMillis - System.currentTimeMillis();
+        return cooldowns.getRemainingMillis(new CooldownKey(player, cooldown));
     }
     
     public void activateCooldown(
@@ -71,14 +60,8 @@ public final class CooldownManager extends LogItCoreObject implements Listener
         if (player == null || cooldown == null || cooldownMillis < 0)
             throw new IllegalArgumentException();
         
-        if (!cooldowns.containsKey(player))
-        {
-            cooldowns.put(player, new HashMap<Cooldown, Long>());
-        }
-        
-        cooldowns.get(player).put(
-                cooldown, System.currentTimeMillis() + cooldownMillis
-        );
+        cooldownTypes.add(cooldown);
+        cooldowns.put(new CooldownKey(player, cooldown), Boolean.TRUE, cooldownMillis);
     }
     
     public void deactivateCooldown(Player player, Cooldown cooldown)
@@ -86,17 +69,62 @@ public final class CooldownManager extends LogItCoreObject implements Listener
         if (player == null || cooldown == null)
             throw new IllegalArgumentException();
         
-        if (!cooldowns.containsKey(player))
-            return;
-        
-        cooldowns.get(player).remove(cooldown);
+        cooldowns.remove(new CooldownKey(player, cooldown));
     }
     
     @EventHandler
     private void onPlayerQuit(PlayerQuitEvent event)
     {
-        cooldowns.remove(event.getPlayer());
+        for (Cooldown cooldown : cooldownTypes)
+        {
+            cooldowns.remove(new CooldownKey(event.getPlayer(), cooldown));
+        }
     }
     
-    private Map<Player, Map<Cooldown, Long>> cooldowns = new WeakHashMap<>();
+    private static final class CooldownKey
+    {
+        public CooldownKey(Player player, Cooldown cooldown)
+        {
+            this.player = player;
+            this.cooldown = cooldown;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof CooldownKey))
+                return false;
+            
+            CooldownKey other = (CooldownKey) obj;
+            
+            return player.equals(other.player) && cooldown == other.cooldown;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return player.hashCode() * 31 + System.identityHashCode(cooldown);
+        }
+        
+        private final Player player;
+        private final Cooldown cooldown;
+    }
+    
+    /**
+     * Recommended task period of {@code CooldownManager} running as a Bukkit task.
+     */
+    public static final long TASK_PERIOD =
+            TimeUnit.SECONDS.convertTo(1, TimeUnit.TICKS);
+    
+    private static final int MAX_COOLDOWNS = 100000;
+    
+    /**
+     * All the cooldown types ever activated, so that the cooldowns
+     * of a player who quits can be looked up one by one.
+     */
+    private final Set<Cooldown> cooldownTypes = new HashSet<>();
+    private final ExpiringMap<CooldownKey, Boolean> cooldowns = new ExpiringMap<>(
+            TimeUnit.TICKS.convertTo(TASK_PERIOD, TimeUnit.MILLISECONDS),
+            512, MAX_COOLDOWNS
+    );
 }
@@ -14,7 +14,7 @@ public final class BlockEventListener extends LogItCoreObject implements Listene
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     private void onPlace(BlockPlaceEvent event)
     {
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.blockPlace"))
+        if (!getConfigSnapshot().isBlockPlacePrevented())
             return;
         
         Player player = event.getPlayer();
@@ -24,7 +24,7 @@ public final class BlockEventListener extends LogItCoreObject implements Listene
         {
             event.setCancelled(true);
             
-            if (getConfig("config.yml").getBoolean("forceLogin.promptOn.blockPlace"))
+            if (getConfigSnapshot().isPromptedOnBlockPlace())
             {
                 getMessageDispatcher().sendForceLoginMessage(player);
             }
@@ -34,7 +34,7 @@ public final class BlockEventListener extends LogItCoreObject implements Listene
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     private void onBreak(BlockBreakEvent event)
     {
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.blockBreak"))
+        if (!getConfigSnapshot().isBlockBreakPrevented())
             return;
         
         Player player = event.getPlayer();
@@ -44,7 +44,7 @@ public final class BlockEventListener extends LogItCoreObject implements Listene
         {
             event.setCancelled(true);
             
-            if (getConfig("config.yml").getBoolean("forceLogin.promptOn.blockBreak"))
+            if (getConfigSnapshot().isPromptedOnBlockBreak())
             {
                 getMessageDispatcher().sendForceLoginMessage(player);
             }
@@ -54,7 +54,7 @@ public final class BlockEventListener extends LogItCoreObject implements Listene
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     private void onHangingBreak(HangingBreakByEntityEvent event)
     {
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.blockBreak")
+        if (!getConfigSnapshot().isBlockBreakPrevented()
                 || !(event.getRemover() instanceof Player))
             return;
         
@@ -65,7 +65,7 @@ public final class BlockEventListener extends LogItCoreObject implements Listene
         {
             event.setCancelled(true);
             
-            if (getConfig("config.yml").getBoolean("forceLogin.promptOn.blockBreak"))
+            if (getConfigSnapshot().isPromptedOnBlockBreak())
             {
                 getMessageDispatcher().sendForceLoginMessage(player);
             }
@@ -16,7 +16,7 @@ public final class EntityEventListener extends LogItCoreObject implements Listen
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     private void onDamageIn(EntityDamageEvent event)
     {
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.damageIn")
+        if (!getConfigSnapshot().isDamageInPrevented()
                 || !(event.getEntity() instanceof Player))
         {
             return;
@@ -34,7 +34,7 @@ public final class EntityEventListener extends LogItCoreObject implements Listen
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     private void onDamageOut(EntityDamageByEntityEvent event)
     {
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.damageOut")
+        if (!getConfigSnapshot().isDamageOutPrevented()
                 || !(event.getDamager() instanceof Player))
         {
             return;
@@ -52,7 +52,7 @@ public final class EntityEventListener extends LogItCoreObject implements Listen
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     private void onRegainHealth(EntityRegainHealthEvent event)
     {
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.regainHealth")
+        if (!getConfigSnapshot().isRegainHealthPrevented()
                 || !(event.getEntity() instanceof Player))
         {
             return;
@@ -70,7 +70,7 @@ public final class EntityEventListener extends LogItCoreObject implements Listen
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     private void onFoodLevelChange(FoodLevelChangeEvent event)
     {
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.foodLevelChange")
+        if (!getConfigSnapshot().isFoodLevelChangePrevented()
                 || !(event.getEntity() instanceof Player))
         {
             return;
@@ -88,7 +88,7 @@ public final class EntityEventListener extends LogItCoreObject implements Listen
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     private void onEntityTarget(EntityTargetEvent event)
     {
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.entityTarget")
+        if (!getConfigSnapshot().isEntityTargetPrevented()
                 || !(event.getTarget() instanceof Player))
         {
             return;
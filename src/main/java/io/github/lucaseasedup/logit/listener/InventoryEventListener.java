@@ -28,7 +28,7 @@ public final class InventoryEventListener extends LogItCoreObject implements Lis
         if (event.isCancelled())
             return;
         
-        if (getConfig("config.yml").getBoolean("forceLogin.prevent.inventoryClick")
+        if (getConfigSnapshot().isInventoryClickPrevented()
                 && !getSessionManager().isSessionAlive(player)
                 && getCore().isPlayerForcedToLogIn(player))
         {
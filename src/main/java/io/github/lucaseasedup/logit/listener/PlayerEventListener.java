@@ -4,6 +4,8 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.account.AccountManager;
+import io.github.lucaseasedup.logit.account.AccountView;
 import io.github.lucaseasedup.logit.config.TimeUnit;
 import io.github.lucaseasedup.logit.hooks.BukkitSmerfHook;
 import io.github.lucaseasedup.logit.hooks.EssentialsHook;
@@ -13,7 +15,9 @@ import io.github.lucaseasedup.logit.logging.timing.PlayerLoginTiming;
 import io.github.lucaseasedup.logit.message.JoinMessageGenerator;
 import io.github.lucaseasedup.logit.message.QuitMessageGenerator;
 import io.github.lucaseasedup.logit.persistence.LocationSerializer;
+import io.github.lucaseasedup.logit.security.JoinGuard;
 import io.github.lucaseasedup.logit.session.Session;
+import io.github.lucaseasedup.logit.session.SessionHandoff;
 import io.github.lucaseasedup.logit.storage.Infix;
 import io.github.lucaseasedup.logit.storage.SelectorBinary;
 import io.github.lucaseasedup.logit.storage.SelectorCondition;
@@ -40,6 +44,7 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
 import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
@@ -59,6 +64,46 @@ import org.bukkit.scheduler.BukkitRunnable;
 public final class PlayerEventListener extends LogItCoreObject
         implements Listener
 {
+    /**
+     * Prefetches the account and the handed-off session of a joining player
+     * off the main thread, so that {@link #onLogin} and {@link #onJoin}
+     * can be served from memory.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onAsyncPreLogin(AsyncPlayerPreLoginEvent event)
+    {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
+            return;
+        
+        if (!isCoreStarted())
+            return;
+        
+        AccountManager accountManager = getAccountManager();
+        
+        if (accountManager == null)
+            return;
+        
+        JoinGuard joinGuard = getJoinGuard();
+        
+        // Do not let a flood of made-up usernames reach the storage.
+        if (joinGuard != null && joinGuard.isEnabled()
+                && joinGuard.isKnownUnregistered(event.getName()))
+            return;
+        
+        SessionHandoff sessionHandoff = getSessionHandoff();
+        
+        if (sessionHandoff != null && event.getAddress() != null)
+        {
+            sessionHandoff.prefetch(event.getName(),
+                    event.getAddress().getHostAddress());
+        }
+        
+        if (!getConfig("secret.yml").getBoolean("prefetchAccounts"))
+            return;
+        
+        accountManager.prefetchAccount(event.getName(), event.getUniqueId());
+    }
+    
     @EventHandler(priority = EventPriority.NORMAL)
     private void onLogin(final PlayerLoginEvent event)
     {
@@ -125,7 +170,20 @@ public final class PlayerEventListener extends LogItCoreObject
         }
         else
         {
-            onValidLogin(player, address, kicker);
+            JoinGuard.Verdict verdict = getJoinGuard().admit(username, address);
+            
+            if (verdict == JoinGuard.Verdict.THROTTLED)
+            {
+                kicker.kick(player, t("joinGuard.throttled"));
+            }
+            else if (verdict == JoinGuard.Verdict.UNREGISTERED)
+            {
+                kicker.kick(player, t("joinGuard.registeredOnly"));
+            }
+            else
+            {
+                onValidLogin(player, address, kicker);
+            }
         }
     }
     
@@ -141,6 +199,10 @@ public final class PlayerEventListener extends LogItCoreObject
         
         String username = player.getName().toLowerCase();
         
+        timing.setPrefetchHit(
+                getAccountManager().isAccountPrefetched(username)
+        );
+        
         // =======================================
         timing.startSelectAccount();
         
@@ -157,12 +219,26 @@ public final class PlayerEventListener extends LogItCoreObject
                     keys().uuid(), // for onJoin()
                     keys().login_session(),
                     keys().is_locked(),
-                    keys().display_name(),
-                    keys().persistence()
+                    keys().display_name()
             );
         }
         
-        Account account = getAccountManager().selectAccount(username, keys);
+        Account account;
+        boolean joinGuardEnabled = getJoinGuard().isEnabled();
+        
+        if (joinGuardEnabled && getJoinGuard().isKnownUnregistered(username))
+        {
+            account = null;
+        }
+        else
+        {
+            account = getAccountManager().selectAccount(username, keys);
+            
+            if (account == null && joinGuardEnabled)
+            {
+                getJoinGuard().rememberUnregistered(username);
+            }
+        }
         
         timing.endSelectAccount();
         // =======================================
@@ -277,6 +353,12 @@ public final class PlayerEventListener extends LogItCoreObject
         }
         
         timing.endCreateSession();
+        // =======================================
+        
+        boolean prefetchHit =
+                getAccountManager().isAccountPrefetched(username);
+        timing.setPrefetchHit(prefetchHit);
+        
         // =======================================
         timing.startSelectAccount();
         
@@ -284,8 +366,7 @@ public final class PlayerEventListener extends LogItCoreObject
                 keys().username(),
                 keys().uuid(),
                 keys().login_session(),
-                keys().display_name(),
-                keys().persistence()
+                keys().display_name()
         );
         Account account = getAccountManager().selectAccount(
                 username, joinQueryKeys
@@ -299,44 +380,54 @@ public final class PlayerEventListener extends LogItCoreObject
             // =======================================
             timing.startUuidMatching();
             
-            List<Account> uuidMatchedAccounts = getAccountManager().selectAccounts(
-                    Arrays.asList(
-                            keys().username(),
-                            keys().uuid()
-                    ),
-                    new SelectorBinary(
-                            new SelectorNegation(new SelectorCondition(
-                                    keys().username(),
-                                    Infix.CONTAINS,
-                                    "$"
-                            )),
-                            Infix.AND,
-                            new SelectorCondition(
-                                    keys().uuid(),
-                                    Infix.EQUALS,
-                                    uuid.toString()
-                            )
-                    )
-            );
+            String uuidMatchedUsername = null;
             
-            if (uuidMatchedAccounts != null && !uuidMatchedAccounts.isEmpty())
+            if (prefetchHit)
+            {
+                uuidMatchedUsername =
+                        getAccountManager().getPrefetchedUuidMatch(username);
+            }
+            else
             {
-                Account uuidMatchedAccount = uuidMatchedAccounts.get(0);
-                String uuidMatchedUsername = uuidMatchedAccount.getUsername();
+                List<AccountView> uuidMatchedAccounts = getAccountManager().selectAccountViews(
+                        Arrays.asList(
+                                keys().username(),
+                                keys().uuid()
+                        ),
+                        new SelectorBinary(
+                                new SelectorNegation(new SelectorCondition(
+                                        keys().username(),
+                                        Infix.CONTAINS,
+                                        "$"
+                                )),
+                                Infix.AND,
+                                new SelectorCondition(
+                                        keys().uuid(),
+                                        Infix.EQUALS,
+                                        uuid.toString()
+                                )
+                        )
+                );
                 
-                if (!uuidMatchedUsername.equalsIgnoreCase(username))
+                if (uuidMatchedAccounts != null && !uuidMatchedAccounts.isEmpty())
                 {
-                    getAccountManager().renameAccount(
-                            uuidMatchedUsername, username
-                    );
-                    
-                    // Load the new account.
-                    account = getAccountManager().selectAccount(
-                            username, joinQueryKeys
-                    );
+                    uuidMatchedUsername = uuidMatchedAccounts.get(0).getUsername();
                 }
             }
             
+            if (uuidMatchedUsername != null
+                    && !uuidMatchedUsername.equalsIgnoreCase(username))
+            {
+                getAccountManager().renameAccount(
+                        uuidMatchedUsername, username
+                );
+                
+                // Load the new account.
+                account = getAccountManager().selectAccount(
+                        username, joinQueryKeys
+                );
+            }
+            
             timing.endUuidMatching();
             // =======================================
             
@@ -357,7 +448,7 @@ public final class PlayerEventListener extends LogItCoreObject
                     .getTime("loginSessions.validnessTime", TimeUnit.SECONDS);
             String ip = PlayerUtils.getPlayerIp(player);
             
-            if (getConfig("config.yml").getBoolean("loginSessions.enabled")
+            if (getConfigSnapshot().isLoginSessionsEnabled()
                     && validnessTime > 0 && ip != null)
             {
                 String loginSession = account.getLoginSession();
@@ -382,6 +473,15 @@ public final class PlayerEventListener extends LogItCoreObject
                 }
             }
             
+            // Players who have just logged in on another server
+            // of the network do not have to log in again.
+            if (ip != null && getSessionHandoff() != null
+                    && getSessionHandoff().claim(username, ip)
+                    && !getSessionManager().isSessionAlive(username))
+            {
+                getSessionManager().startSession(player);
+            }
+            
             String displayName = account.getDisplayName();
             
             if (!StringUtils.isBlank(displayName)
@@ -418,7 +518,7 @@ public final class PlayerEventListener extends LogItCoreObject
         if (getSessionManager().isSessionAlive(player)
                 || !getCore().isPlayerForcedToLogIn(player))
         {
-            if (getConfig("config.yml").getBoolean("forceLogin.hideOtherPlayers"))
+            if (getConfigSnapshot().areOtherPlayersHidden())
             {
                 for (Player onlinePlayer : PlayerUtils.getOnlinePlayers())
                 {
@@ -457,7 +557,7 @@ public final class PlayerEventListener extends LogItCoreObject
                 // =======================================
             }
             
-            if (getConfig("config.yml").getBoolean("forceLogin.hideOtherPlayers"))
+            if (getConfigSnapshot().areOtherPlayersHidden())
             {
                 for (Player onlinePlayer : PlayerUtils.getOnlinePlayers())
                 {
@@ -546,6 +646,8 @@ public final class PlayerEventListener extends LogItCoreObject
             getCore().updatePlayerGroup(player);
         }
         
+        getAccountManager().releasePrefetchedAccount(username);
+        
         timing.end();
         
         if (getConfig("secret.yml").getBoolean("timings.enabled"))
@@ -576,11 +678,12 @@ public final class PlayerEventListener extends LogItCoreObject
         
         playersDeadOnJoin.remove(player);
         
+        getAccountManager().releasePrefetchedAccount(player.getName());
+        
         Account account = getAccountManager().selectAccount(
                 player.getName(),
                 Arrays.asList(
-                        keys().username(),
-                        keys().persistence()
+                        keys().username()
                 )
         );
         
@@ -619,14 +722,13 @@ public final class PlayerEventListener extends LogItCoreObject
         {
             boolean preventMovement = false;
             
-            if (getConfig("config.yml").getBoolean("forceLogin.prevent.move"))
+            if (getConfigSnapshot().isMovePrevented())
             {
                 preventMovement = true;
             }
             else if (session != null)
             {
-                int moveRadius = getConfig("config.yml")
-                        .getInt("forceLogin.moveRadius");
+                int moveRadius = getConfigSnapshot().getMoveRadius();
                 
                 if (moveRadius >= 0)
                 {
@@ -673,7 +775,7 @@ public final class PlayerEventListener extends LogItCoreObject
         if (event.isCancelled())
             return;
         
-        if (getConfig("config.yml").getBoolean("forceLogin.prevent.toggleSneak")
+        if (getConfigSnapshot().isToggleSneakPrevented()
                 && !getSessionManager().isSessionAlive(player)
                 && getCore().isPlayerForcedToLogIn(player))
         {
@@ -698,7 +800,7 @@ public final class PlayerEventListener extends LogItCoreObject
         if (event.isCancelled())
             return;
         
-        if (getConfig("config.yml").getBoolean("forceLogin.prevent.chat")
+        if (getConfigSnapshot().isChatPrevented()
                 && !getSessionManager().isSessionAlive(player)
                 && getCore().isPlayerForcedToLogIn(player))
         {
@@ -713,7 +815,7 @@ public final class PlayerEventListener extends LogItCoreObject
         if (!isCoreStarted())
             return;
         
-        if (!getConfig("config.yml").getBoolean("forceLogin.hideChatMessages"))
+        if (!getConfigSnapshot().areChatMessagesHidden())
             return;
         
         Iterator<Player> recipients = event.getRecipients().iterator();
@@ -747,7 +849,7 @@ public final class PlayerEventListener extends LogItCoreObject
         if (event.isCancelled())
             return;
         
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.commandPreprocess"))
+        if (!getConfigSnapshot().isCommandPreprocessPrevented())
             return;
         
         String message = event.getMessage();
@@ -760,8 +862,7 @@ public final class PlayerEventListener extends LogItCoreObject
             return;
         }
         
-        List<String> allowedCommands = getConfig("config.yml")
-                .getStringList("forceLogin.allowedCommands");
+        List<String> allowedCommands = getConfigSnapshot().getAllowedCommands();
         
         if (matchesCommand(allowedCommands, message))
         {
@@ -834,7 +935,7 @@ public final class PlayerEventListener extends LogItCoreObject
         if (event.isCancelled())
             return;
         
-        if (getConfig("config.yml").getBoolean("forceLogin.prevent.interact")
+        if (getConfigSnapshot().isInteractPrevented()
                 && !getSessionManager().isSessionAlive(player)
                 && getCore().isPlayerForcedToLogIn(player))
         {
@@ -846,7 +947,7 @@ public final class PlayerEventListener extends LogItCoreObject
             if (clickedBlock == null || (clickedBlock.getType() != Material.WOOD_PLATE
                     && clickedBlock.getType() != Material.STONE_PLATE))
             {
-                if (getConfig("config.yml").getBoolean("forceLogin.promptOn.interact"))
+                if (getConfigSnapshot().isPromptedOnInteract())
                 {
                     getMessageDispatcher().sendForceLoginMessage(player);
                 }
@@ -868,13 +969,13 @@ public final class PlayerEventListener extends LogItCoreObject
         if (event.isCancelled())
             return;
         
-        if (getConfig("config.yml").getBoolean("forceLogin.prevent.interactEntity")
+        if (getConfigSnapshot().isInteractEntityPrevented()
                 && !getSessionManager().isSessionAlive(player)
                 && getCore().isPlayerForcedToLogIn(player))
         {
             event.setCancelled(true);
             
-            if (getConfig("config.yml").getBoolean("forceLogin.promptOn.interactEntity"))
+            if (getConfigSnapshot().isPromptedOnInteractEntity())
             {
                 getMessageDispatcher().sendForceLoginMessage(player);
             }
@@ -884,7 +985,7 @@ public final class PlayerEventListener extends LogItCoreObject
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     private void onPickupItem(PlayerPickupItemEvent event)
     {
-        if (!getConfig("config.yml").getBoolean("forceLogin.prevent.pickupItem"))
+        if (!getConfigSnapshot().isPickupItemPrevented())
             return;
         
         Player player = event.getPlayer();
@@ -910,13 +1011,13 @@ public final class PlayerEventListener extends LogItCoreObject
         if (event.isCancelled())
             return;
         
-        if (getConfig("config.yml").getBoolean("forceLogin.prevent.dropItem")
+        if (getConfigSnapshot().isDropItemPrevented()
                 && !getSessionManager().isSessionAlive(player)
                 && getCore().isPlayerForcedToLogIn(player))
         {
             event.setCancelled(true);
             
-            if (getConfig("config.yml").getBoolean("forceLogin.promptOn.dropItem"))
+            if (getConfigSnapshot().isPromptedOnDropItem())
             {
                 getMessageDispatcher().sendForceLoginMessage(player);
             }
@@ -952,8 +1053,7 @@ public final class PlayerEventListener extends LogItCoreObject
                 Account account = getAccountManager().selectAccount(
                         playerName,
                         Arrays.asList(
-                                keys().username(),
-                                keys().persistence()
+                                keys().username()
                         )
                 );
                 
@@ -22,8 +22,7 @@ public final class SessionEventListener extends LogItCoreObject
     {
         String username = event.getUsername();
         Account account = getAccountManager().selectAccount(username, Arrays.asList(
-                keys().username(),
-                keys().persistence()
+                keys().username()
         ));
         
         if (account != null)
@@ -86,8 +85,7 @@ public final class SessionEventListener extends LogItCoreObject
     {
         String username = event.getUsername();
         Account account = getAccountManager().selectAccount(username, Arrays.asList(
-                keys().username(),
-                keys().persistence()
+                keys().username()
         ));
         
         if (account != null)
@@ -2,6 +2,7 @@ package io.github.lucaseasedup.logit.logging;
 
 import io.github.lucaseasedup.logit.LogItCore;
 import io.github.lucaseasedup.logit.common.Disposable;
+import io.github.lucaseasedup.logit.config.ConfigSnapshot;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -73,15 +74,12 @@ public final class LogItCoreLogger implements Disposable
         if (level == null || message == null)
             throw new IllegalArgumentException();
         
-        if (core.getConfig("config.yml") != null
-                && core.getConfig("config.yml").isLoaded())
+        ConfigSnapshot config = core.getConfigSnapshot();
+        
+        if (config != null)
         {
-            boolean fileLogEnabled = core.getConfig("config.yml")
-                    .getBoolean("logging.file.enabled");
-            int fileLogLevel = core.getConfig("config.yml")
-                    .getInt("logging.file.level");
-            
-            if (fileLogEnabled && level.intValue() >= fileLogLevel)
+            if (config.isFileLogEnabled()
+                    && level.intValue() >= config.getFileLogLevel())
             {
                 try
                 {
@@ -100,7 +98,7 @@ public final class LogItCoreLogger implements Disposable
                 }
             }
             
-            if (core.getConfig("config.yml").getBoolean("logging.verboseConsole"))
+            if (config.isVerboseConsole())
             {
                 System.out.println("[" + level + "] "
                         + ChatColor.stripColor(message));
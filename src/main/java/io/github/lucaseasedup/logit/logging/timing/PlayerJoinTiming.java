@@ -39,6 +39,11 @@ public final class PlayerJoinTiming extends Timing
         postSelectAccount = getCurrentTimestamp();
     }
     
+    public void setPrefetchHit(boolean prefetchHit)
+    {
+        this.prefetchHit = prefetchHit;
+    }
+    
     public void startUuidMatching()
     {
         if (preUuidMatching > 0)
@@ -100,6 +105,7 @@ public final class PlayerJoinTiming extends Timing
         timings.set("lastPlayerJoin.total", end - start);
         timings.set("lastPlayerJoin.createSession", postCreateSession - preCreateSession);
         timings.set("lastPlayerJoin.selectAccount", postSelectAccount - preSelectAccount);
+        timings.set("lastPlayerJoin.prefetchHit", prefetchHit);
         timings.set("lastPlayerJoin.uuidMatching", postUuidMatching - preUuidMatching);
         timings.set("lastPlayerJoin.safeLocation", postSafeLocation - preSafeLocation);
         
@@ -120,4 +126,6 @@ public final class PlayerJoinTiming extends Timing
     
     private long preSafeLocation = -1;
     private long postSafeLocation = -2;
+    
+    private boolean prefetchHit = false;
 }
@@ -23,6 +23,11 @@ public final class PlayerLoginTiming extends Timing
         postSelectAccount = getCurrentTimestamp();
     }
     
+    public void setPrefetchHit(boolean prefetchHit)
+    {
+        this.prefetchHit = prefetchHit;
+    }
+    
     @Override
     public void saveTiming(File reportFile) throws IOException
     {
@@ -35,10 +40,13 @@ public final class PlayerLoginTiming extends Timing
         timings.set("lastPlayerLogin.timestamp", new Date().toString());
         timings.set("lastPlayerLogin.total", end - start);
         timings.set("lastPlayerLogin.selectAccount", postSelectAccount - preSelectAccount);
+        timings.set("lastPlayerLogin.prefetchHit", prefetchHit);
         
         timings.save(reportFile);
     }
     
     private long preSelectAccount = -1;
     private long postSelectAccount = -2;
+    
+    private boolean prefetchHit = false;
 }
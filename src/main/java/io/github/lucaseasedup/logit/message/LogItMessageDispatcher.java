@@ -51,8 +51,7 @@ public final class LogItMessageDispatcher extends LogItCoreObject
         if (player == null)
             throw new IllegalArgumentException();
         
-        long minInterval = getConfig("config.yml")
-                .getTime("forceLogin.prompt.minInterval", TimeUnit.MILLISECONDS);
+        long minInterval = getConfigSnapshot().getPromptMinIntervalMillis();
         
         if (minInterval > 0)
         {
@@ -70,7 +69,7 @@ public final class LogItMessageDispatcher extends LogItCoreObject
         
         if (getAccountManager().isRegistered(player.getName()))
         {
-            if (getConfig("config.yml").getBoolean("forceLogin.prompt.login"))
+            if (getConfigSnapshot().isLoginPromptEnabled())
             {
                 if (!getConfig("secret.yml").getBoolean("passwords.disable"))
                 {
@@ -84,7 +83,7 @@ public final class LogItMessageDispatcher extends LogItCoreObject
         }
         else
         {
-            if (getConfig("config.yml").getBoolean("forceLogin.prompt.register"))
+            if (getConfigSnapshot().isRegisterPromptEnabled())
             {
                 if (!getConfig("secret.yml").getBoolean("passwords.disable"))
                 {
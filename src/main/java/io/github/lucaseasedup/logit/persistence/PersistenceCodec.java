@@ -0,0 +1,253 @@
+package io.github.lucaseasedup.logit.persistence;
+
+import io.github.lucaseasedup.logit.util.IniUtils;
+import it.sauronsoftware.base64.Base64;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Converts persistence data to and from the string stored
+ * in the <i>persistence</i> key of an account.
+ *
+ * <p> Persistence data is written in a compact binary format,
+ * prefixed with {@link #BINARY_PREFIX} and encoded in Base64:
+ *
+ * <pre>
+ * version        1 byte
+ * entry count    varint
+ * entries        (key length varint, key UTF-8,
+ *                 value length varint, value UTF-8) * entry count
+ * </pre>
+ *
+ * <p> The legacy INI format, plain or encoded in Base64,
+ * can still be read, and is written on request for debugging.
+ */
+public final class PersistenceCodec
+{
+    private PersistenceCodec()
+    {
+    }
+    
+    /**
+     * Encodes persistence data.
+     *
+     * @param persistence the persistence data.
+     * @param binary      whether to use the binary format instead of
+     *                    the human-readable INI format.
+     *
+     * @return the encoded persistence data.
+     *
+     * @throws IOException              if the INI serialization failed.
+     * @throws IllegalArgumentException if {@code persistence} is {@code null}.
+     */
+    public static String encode(Map<String, String> persistence, boolean binary)
+            throws IOException
+    {
+        if (persistence == null)
+            throw new IllegalArgumentException();
+        
+        if (!binary)
+        {
+            Map<String, Map<String, String>> persistenceIni = new HashMap<>(1);
+            
+            persistenceIni.put(INI_SECTION, persistence);
+            
+            return IniUtils.serialize(persistenceIni);
+        }
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                16 + persistence.size() * 16
+        );
+        int count = 0;
+        
+        for (String value : persistence.values())
+        {
+            if (value != null)
+            {
+                count++;
+            }
+        }
+        
+        out.write(VERSION);
+        writeVarint(out, count);
+        
+        for (Map.Entry<String, String> e : persistence.entrySet())
+        {
+            if (e.getValue() != null)
+            {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+        }
+        
+        return BINARY_PREFIX + new String(
+                Base64.encode(out.toByteArray()), StandardCharsets.US_ASCII
+        );
+    }
+    
+    /**
+     * Decodes persistence data written in any of the supported formats.
+     *
+     * @param encoded the encoded persistence data.
+     *
+     * @return a new mutable map of the persistence data,
+     *         in the order it was encoded.
+     *
+     * @throws IOException              if the data is malformed.
+     * @throws IllegalArgumentException if {@code encoded} is {@code null}.
+     */
+    public static Map<String, String> decode(String encoded) throws IOException
+    {
+        if (encoded == null)
+            throw new IllegalArgumentException();
+        
+        if (encoded.isEmpty())
+            return new LinkedHashMap<>();
+        
+        if (encoded.startsWith(BINARY_PREFIX))
+            return decodeBinary(encoded.substring(BINARY_PREFIX.length()));
+        
+        // Base64 never contains '[', which plain INI starts with.
+        if (!encoded.trim().startsWith("["))
+        {
+            try
+            {
+                encoded = Base64.decode(encoded);
+            }
+            catch (RuntimeException ex)
+            {
+                throw new IOException("Malformed persistence data", ex);
+            }
+        }
+        
+        Map<String, String> persistence =
+                IniUtils.unserialize(encoded).get(INI_SECTION);
+        
+        if (persistence == null)
+            return new LinkedHashMap<>();
+        
+        return persistence;
+    }
+    
+    private static Map<String, String> decodeBinary(String base64)
+            throws IOException
+    {
+        byte[] bytes;
+        
+        try
+        {
+            bytes = Base64.decode(base64.getBytes(StandardCharsets.US_ASCII));
+        }
+        catch (RuntimeException ex)
+        {
+            throw new IOException("Malformed persistence data", ex);
+        }
+        
+        Reader reader = new Reader(bytes);
+        int version = reader.readByte();
+        
+        if (version != VERSION)
+            throw new IOException("Unsupported persistence version: " + version);
+        
+        int count = reader.readVarint();
+        Map<String, String> persistence = new LinkedHashMap<>(
+                Math.max(16, count * 2)
+        );
+        
+        for (int i = 0; i < count; i++)
+        {
+            String key = reader.readString();
+            
+            persistence.put(key, reader.readString());
+        }
+        
+        return persistence;
+    }
+    
+    private static void writeString(ByteArrayOutputStream out, String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+    
+    private static void writeVarint(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        
+        out.write(value);
+    }
+    
+    private static final class Reader
+    {
+        private Reader(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+        
+        private int readByte() throws IOException
+        {
+            if (position >= bytes.length)
+                throw new IOException("Truncated persistence data");
+            
+            return bytes[position++] & 0xFF;
+        }
+        
+        private int readVarint() throws IOException
+        {
+            int value = 0;
+            
+            for (int shift = 0; shift < 32; shift += 7)
+            {
+                int b = readByte();
+                
+                value |= (b & 0x7F) << shift;
+                
+                if ((b & 0x80) == 0)
+                {
+                    if (value < 0)
+                        throw new IOException("Malformed persistence data");
+                    
+                    return value;
+                }
+            }
+            
+            throw new IOException("Malformed persistence data");
+        }
+        
+        private String readString() throws IOException
+        {
+            int length = readVarint();
+            
+            if (length > bytes.length - position)
+                throw new IOException("Truncated persistence data");
+            
+            String s = new String(bytes, position, length, StandardCharsets.UTF_8);
+            
+            position += length;
+            
+            return s;
+        }
+        
+        private final byte[] bytes;
+        private int position = 0;
+    }
+    
+    /**
+     * Marks persistence data written in the binary format.
+     * Neither Base64 nor INI strings start with this character.
+     */
+    public static final String BINARY_PREFIX = "!";
+    
+    private static final int VERSION = 1;
+    private static final String INI_SECTION = "persistence";
+}
@@ -18,6 +18,21 @@ import org.bukkit.entity.Player;
  */
 public final class PersistenceManager extends LogItCoreObject
 {
+    /**
+     * Constructs a new {@code PersistenceManager}.
+     * 
+     * @param store the store that persistence data will be kept in.
+     * 
+     * @throws IllegalArgumentException if {@code store} is {@code null}.
+     */
+    public PersistenceManager(PersistenceStore store)
+    {
+        if (store == null)
+            throw new IllegalArgumentException();
+        
+        this.store = store;
+    }
+    
     /**
      * Serializes player data using the specified persistence serializer
      * 
@@ -58,7 +73,7 @@ public final class PersistenceManager extends LogItCoreObject
         if (account == null || player == null || serializer == null)
             throw new IllegalArgumentException();
         
-        Map<String, String> persistence = account.getPersistence();
+        Map<String, String> persistence = store.load(account);
         
         if (persistence == null)
             return;
@@ -67,7 +82,7 @@ public final class PersistenceManager extends LogItCoreObject
         {
             serializer.serialize(persistence, player);
             
-            account.savePersistence(persistence);
+            store.save(account, persistence);
         }
     }
     
@@ -89,7 +104,11 @@ public final class PersistenceManager extends LogItCoreObject
         if (account == null || player == null)
             throw new IllegalArgumentException();
         
-        Map<String, String> persistence = account.getPersistence();
+        // Don't load persistence data that no serializer would use.
+        if (serializers.isEmpty())
+            return;
+        
+        Map<String, String> persistence = store.load(account);
         
         if (persistence == null)
             return;
@@ -107,7 +126,7 @@ public final class PersistenceManager extends LogItCoreObject
             }
         }
         
-        account.savePersistence(persistence);
+        store.save(account, persistence);
     }
     
     /**
@@ -150,7 +169,7 @@ public final class PersistenceManager extends LogItCoreObject
         if (account == null || player == null || serializer == null)
             throw new IllegalArgumentException();
         
-        Map<String, String> persistence = account.getPersistence();
+        Map<String, String> persistence = store.load(account);
         
         if (persistence == null)
             return;
@@ -164,7 +183,7 @@ public final class PersistenceManager extends LogItCoreObject
                 persistence.put(key.name(), key.defaultValue());
             }
             
-            account.savePersistence(persistence);
+            store.save(account, persistence);
         }
     }
     
@@ -186,7 +205,11 @@ public final class PersistenceManager extends LogItCoreObject
         if (account == null || player == null)
             throw new IllegalArgumentException();
         
-        Map<String, String> persistence = account.getPersistence();
+        // Don't load persistence data that no serializer would use.
+        if (serializers.isEmpty())
+            return;
+        
+        Map<String, String> persistence = store.load(account);
         
         if (persistence == null)
             return;
@@ -215,7 +238,12 @@ public final class PersistenceManager extends LogItCoreObject
             persistence.put(key.name(), key.defaultValue());
         }
         
-        account.savePersistence(persistence);
+        store.save(account, persistence);
+    }
+    
+    public PersistenceStore getStore()
+    {
+        return store;
     }
     
     /**
@@ -455,6 +483,7 @@ public final class PersistenceManager extends LogItCoreObject
         return clazz.getConstructor().newInstance();
     }
     
+    private final PersistenceStore store;
     private final Map<Class<? extends PersistenceSerializer>, PersistenceSerializer> serializers
             = new HashMap<>();
 }
@@ -0,0 +1,529 @@
+package io.github.lucaseasedup.logit.persistence;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.account.AccountWritePipeline;
+import io.github.lucaseasedup.logit.common.ReportedException;
+import io.github.lucaseasedup.logit.config.TimeUnit;
+import io.github.lucaseasedup.logit.logging.CustomLevel;
+import io.github.lucaseasedup.logit.storage.DataType;
+import io.github.lucaseasedup.logit.storage.Infix;
+import io.github.lucaseasedup.logit.storage.SelectorCondition;
+import io.github.lucaseasedup.logit.storage.StorageEntry;
+import io.github.lucaseasedup.logit.storage.StorageObserver;
+import io.github.lucaseasedup.logit.storage.UnitKeys;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import io.github.lucaseasedup.logit.util.PlayerUtils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Keeps persistence data in a storage unit of its own, keyed by username,
+ * so that the accounts unit does not have to carry it around.
+ *
+ * <p> Persistence data is read only when a serializer needs it
+ * and is cached while the player is online. Changes are written
+ * in the background by the task, separately from account changes.
+ *
+ * <p> Accounts whose persistence has not been moved to this unit yet
+ * are read from the legacy <i>persistence</i> key of the accounts unit,
+ * and moved on the first change.
+ */
+public final class PersistenceStore extends LogItCoreObject implements Runnable
+{
+    /**
+     * Constructs a new {@code PersistenceStore}.
+     *
+     * @param storage the storage that this {@code PersistenceStore} will
+     *                operate on.
+     * @param unit    the name of a unit eligible for persistence storage.
+     *                It will be created if it does not exist.
+     *
+     * @throws IOException if the unit could not be created.
+     */
+    public PersistenceStore(WrapperStorage storage, String unit)
+            throws IOException
+    {
+        if (storage == null || unit == null)
+            throw new IllegalArgumentException();
+        
+        UnitKeys keys = new UnitKeys();
+        
+        keys.put(KEY_USERNAME, DataType.TINYTEXT);
+        keys.put(KEY_DATA,     DataType.TEXT);
+        
+        storage.createUnit(unit, keys, KEY_USERNAME);
+        storage.addObserver(new StorageObserver()
+        {
+            @Override
+            public void beforeClose()
+            {
+                // The storage is locked at this point,
+                // so the pending writes have to be performed on this thread.
+                flush();
+                writePipeline.shutdownNow();
+            }
+        });
+        
+        this.storage = storage;
+        this.unit = unit;
+        this.writePipeline = new AccountWritePipeline();
+        this.writesShutdownTimeout = getConfig("secret.yml")
+                .getTime("accountWrites.shutdownTimeout", TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public void dispose()
+    {
+        if (writePipeline != null)
+        {
+            writePipeline.dispose();
+            writePipeline = null;
+        }
+        
+        cache.clear();
+        dirty.clear();
+        pendingWrites.clear();
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public void run()
+    {
+        writePipeline.runCompletions();
+        
+        flush();
+        
+        Iterator<String> it = cache.keySet().iterator();
+        
+        while (it.hasNext())
+        {
+            String username = it.next();
+            
+            if (!dirty.containsKey(username)
+                    && !pendingWrites.containsKey(username)
+                    && !PlayerUtils.isPlayerOnline(username))
+            {
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Returns the persistence data of an account,
+     * reading it from the storage if it has not been cached.
+     *
+     * @param account the account.
+     *
+     * @return a copy of the persistence data that can be modified
+     *         and passed to {@link #save}, or {@code null}
+     *         if an I/O error occurred.
+     *
+     * @throws IllegalArgumentException if {@code account} is {@code null}.
+     *
+     * @throws ReportedException        if an I/O error occurred,
+     *                                  and it was reported to the logger.
+     */
+    public Map<String, String> load(Account account)
+    {
+        if (account == null)
+            throw new IllegalArgumentException();
+        
+        String username = account.getUsername().toLowerCase();
+        Map<String, String> persistence = cache.get(username);
+        
+        if (persistence == null)
+        {
+            persistence = select(username);
+            
+            if (persistence == null)
+                return null;
+            
+            cache.put(username, persistence);
+        }
+        
+        return new LinkedHashMap<>(persistence);
+    }
+    
+    /**
+     * Saves the persistence data of an account.
+     * It will be written to the storage by the next run of the task.
+     *
+     * @param account     the account.
+     * @param persistence the new persistence data.
+     *
+     * @throws IllegalArgumentException if {@code account}
+     *                                  or {@code persistence} is {@code null}.
+     */
+    public void save(Account account, Map<String, String> persistence)
+    {
+        if (account == null || persistence == null)
+            throw new IllegalArgumentException();
+        
+        if (!getConfig("secret.yml").getBoolean("debug.writePersistence"))
+            return;
+        
+        String username = account.getUsername().toLowerCase();
+        
+        if (persistence.equals(cache.get(username)))
+            return;
+        
+        Map<String, String> copy = new LinkedHashMap<>(persistence);
+        
+        cache.put(username, copy);
+        dirty.put(username, copy);
+    }
+    
+    /**
+     * Removes the persistence data of a removed account.
+     *
+     * @param username the username of the account.
+     */
+    public void remove(String username)
+    {
+        if (username == null)
+            throw new IllegalArgumentException();
+        
+        final String removedUsername = username.toLowerCase();
+        
+        dirty.remove(removedUsername);
+        
+        // Until the removal is written, the storage would still return
+        // the old data.
+        cache.put(removedUsername, new LinkedHashMap<String, String>());
+        
+        submit(Arrays.asList(removedUsername), new AccountWritePipeline.Write()
+        {
+            @Override
+            public void write() throws IOException
+            {
+                storage.removeEntries(unit, new SelectorCondition(
+                        KEY_USERNAME, Infix.EQUALS, removedUsername
+                ));
+            }
+            
+            @Override
+            public void complete(IOException error)
+            {
+            }
+        });
+    }
+    
+    /**
+     * Moves the persistence data of a renamed account to its new username.
+     *
+     * @param username    the old username.
+     * @param newUsername the new username.
+     */
+    public void rename(String username, String newUsername)
+    {
+        if (username == null || newUsername == null)
+            throw new IllegalArgumentException();
+        
+        final String oldUsername = username.toLowerCase();
+        final String renamedUsername = newUsername.toLowerCase();
+        Map<String, String> cached = cache.remove(oldUsername);
+        Map<String, String> dirtyPersistence = dirty.remove(oldUsername);
+        
+        cache.put(oldUsername, new LinkedHashMap<String, String>());
+        cache.remove(renamedUsername);
+        dirty.remove(renamedUsername);
+        
+        if (cached != null)
+        {
+            cache.put(renamedUsername, cached);
+        }
+        
+        if (dirtyPersistence != null)
+        {
+            dirty.put(renamedUsername, dirtyPersistence);
+        }
+        
+        submit(Arrays.asList(oldUsername, renamedUsername),
+                new AccountWritePipeline.Write()
+        {
+            @Override
+            public void write() throws IOException
+            {
+                synchronized (storage)
+                {
+                    storage.removeEntries(unit, new SelectorCondition(
+                            KEY_USERNAME, Infix.EQUALS, renamedUsername
+                    ));
+                    storage.updateEntries(unit, new StorageEntry.Builder()
+                            .put(KEY_USERNAME, renamedUsername)
+                            .build(),
+                            new SelectorCondition(
+                                    KEY_USERNAME, Infix.EQUALS, oldUsername
+                            ));
+                }
+            }
+            
+            @Override
+            public void complete(IOException error)
+            {
+            }
+        });
+    }
+    
+    /**
+     * Submits all the changed persistence data to be written
+     * in the background, as a single batch.
+     */
+    public void flush()
+    {
+        if (dirty.isEmpty())
+            return;
+        
+        boolean binary = getConfig("secret.yml")
+                .getBoolean("debug.encodePersistence");
+        List<AccountWritePipeline.Write> writes = new ArrayList<>();
+        
+        for (Map.Entry<String, Map<String, String>> e : dirty.entrySet())
+        {
+            final String username = e.getKey();
+            final String data;
+            
+            try
+            {
+                data = PersistenceCodec.encode(e.getValue(), binary);
+            }
+            catch (IOException ex)
+            {
+                log(Level.WARNING, "Could not serialize persistence"
+                                 + " {username: " + username + "}", ex);
+                
+                continue;
+            }
+            
+            writes.add(new AccountWritePipeline.Write()
+            {
+                @Override
+                public void write() throws IOException
+                {
+                    upsert(username, data);
+                }
+                
+                @Override
+                public void complete(IOException error)
+                {
+                }
+            });
+        }
+        
+        log(CustomLevel.INTERNAL, "Flushing persistence {"
+                + "accounts = " + writes.size() + "}");
+        
+        submit(new ArrayList<>(dirty.keySet()),
+                AccountWritePipeline.batch(storage, writes));
+        
+        dirty.clear();
+    }
+    
+    /**
+     * Writes the persistence data of newly imported accounts
+     * on the calling thread, as a single batch.
+     *
+     * <p> Meant for accounts that have just been inserted
+     * from an external source, so none of their data is cached.
+     *
+     * @param data the encoded persistence data, per username.
+     *
+     * @throws IllegalArgumentException if {@code data} is {@code null}.
+     * @throws IOException              if the batch could not be written.
+     */
+    public void importData(Map<String, String> data) throws IOException
+    {
+        if (data == null)
+            throw new IllegalArgumentException();
+        
+        List<AccountWritePipeline.Write> writes = new ArrayList<>(data.size());
+        
+        for (Map.Entry<String, String> e : data.entrySet())
+        {
+            final String username = e.getKey().toLowerCase();
+            final String encodedData = e.getValue();
+            
+            writes.add(new AccountWritePipeline.Write()
+            {
+                @Override
+                public void write() throws IOException
+                {
+                    upsert(username, encodedData);
+                }
+                
+                @Override
+                public void complete(IOException error)
+                {
+                }
+            });
+        }
+        
+        AccountWritePipeline.batch(storage, writes).write();
+    }
+    
+    /**
+     * Writes the changed persistence data and waits for the pending writes
+     * to be performed, for no longer than
+     * <i>accountWrites.shutdownTimeout</i>.
+     */
+    public void shutdownWrites()
+    {
+        flush();
+        
+        writePipeline.shutdown(writesShutdownTimeout);
+    }
+    
+    private Map<String, String> select(String username)
+    {
+        List<StorageEntry> entries = null;
+        
+        try
+        {
+            entries = storage.selectEntries(unit, Arrays.asList(KEY_DATA),
+                    new SelectorCondition(KEY_USERNAME, Infix.EQUALS, username));
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            ReportedException.throwNew(ex);
+        }
+        
+        if (entries == null)
+            return null;
+        
+        if (entries.isEmpty())
+            return selectLegacy(username);
+        
+        try
+        {
+            return PersistenceCodec.decode(entries.get(0).get(KEY_DATA));
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, "Could not unserialize persistence"
+                             + " {username: " + username + "}", ex);
+            
+            ReportedException.throwNew(ex);
+            
+            return null;
+        }
+    }
+    
+    /**
+     * Reads persistence data that has not been moved
+     * from the accounts unit yet.
+     */
+    private Map<String, String> selectLegacy(String username)
+    {
+        Account account = getAccountManager().selectAccount(username,
+                Arrays.asList(
+                        keys().username(),
+                        keys().persistence()
+                )
+        );
+        
+        if (account == null)
+            return new LinkedHashMap<>();
+        
+        return account.getPersistence();
+    }
+    
+    /**
+     * Called with the storage locked by a batch.
+     */
+    private void upsert(String username, String data) throws IOException
+    {
+        SelectorCondition selector =
+                new SelectorCondition(KEY_USERNAME, Infix.EQUALS, username);
+        StorageEntry entry = new StorageEntry.Builder()
+                .put(KEY_USERNAME, username)
+                .put(KEY_DATA, data)
+                .build();
+        
+        if (storage.selectEntries(unit, Arrays.asList(KEY_USERNAME), selector)
+                .isEmpty())
+        {
+            storage.addEntry(unit, entry);
+        }
+        else
+        {
+            storage.updateEntries(unit, entry, selector);
+        }
+    }
+    
+    /**
+     * Submits a write to the pipeline. The given usernames stay cached
+     * until the write has been performed.
+     */
+    private void submit(
+            final List<String> usernames, final AccountWritePipeline.Write write
+    )
+    {
+        for (String username : usernames)
+        {
+            Integer count = pendingWrites.get(username);
+            
+            pendingWrites.put(username, (count == null) ? 1 : count + 1);
+        }
+        
+        writePipeline.submit(new AccountWritePipeline.Write()
+        {
+            @Override
+            public void write() throws IOException
+            {
+                write.write();
+            }
+            
+            @Override
+            public void complete(IOException error)
+            {
+                for (String username : usernames)
+                {
+                    Integer count = pendingWrites.remove(username);
+                    
+                    if (count != null && count > 1)
+                    {
+                        pendingWrites.put(username, count - 1);
+                    }
+                }
+                
+                if (error != null)
+                {
+                    log(Level.WARNING, "Could not write persistence", error);
+                }
+                
+                write.complete(error);
+            }
+        });
+    }
+    
+    /**
+     * Recommended task period of {@code PersistenceStore}
+     * running as a Bukkit task.
+     */
+    public static final long TASK_PERIOD =
+            TimeUnit.SECONDS.convertTo(1, TimeUnit.TICKS);
+    
+    private static final String KEY_USERNAME = "username";
+    private static final String KEY_DATA = "data";
+    
+    private final WrapperStorage storage;
+    private final String unit;
+    private AccountWritePipeline writePipeline;
+    private final long writesShutdownTimeout;
+    
+    private final Map<String, Map<String, String>> cache = new HashMap<>();
+    private final Map<String, Map<String, String>> dirty = new LinkedHashMap<>();
+    private final Map<String, Integer> pendingWrites = new HashMap<>();
+}
@@ -0,0 +1,134 @@
+package io.github.lucaseasedup.logit.security;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.common.TokenBucketMap;
+import io.github.lucaseasedup.logit.config.TimeUnit;
+
+/**
+ * Token-bucket limiter for attempts that involve password hashing,
+ * applied per IP address and globally before any hash is computed.
+ *
+ * <p> Each bucket holds up to {@code capacity} attempts and regains one
+ * every refill interval. A rejected attempt changes nothing
+ * but the rejection counter. Buckets that have refilled are dropped
+ * by {@link #run()}, and only the most recently used IP addresses
+ * are tracked, up to a fixed limit.
+ */
+public final class AttemptThrottle extends LogItCoreObject implements Runnable
+{
+    /**
+     * Constructs a new {@code AttemptThrottle}.
+     *
+     * @param ipCapacity           the number of attempts an IP address can make
+     *                             in a burst, or {@code 0} for no per-IP limit.
+     * @param ipRefillInterval     the time in milliseconds in which an IP address
+     *                             regains one attempt.
+     * @param globalCapacity       the number of attempts all players can make
+     *                             in a burst, or {@code 0} for no global limit.
+     * @param globalRefillInterval the time in milliseconds in which
+     *                             one global attempt is regained.
+     * @param maxTrackedIps        the maximum number of IP addresses tracked
+     *                             at once.
+     *
+     * @throws IllegalArgumentException if any of the capacities is negative,
+     *                                  any of the intervals is not positive,
+     *                                  or {@code maxTrackedIps} is not positive.
+     */
+    public AttemptThrottle(int ipCapacity,
+                           long ipRefillInterval,
+                           int globalCapacity,
+                           long globalRefillInterval,
+                           int maxTrackedIps)
+    {
+        if (ipCapacity < 0 || ipRefillInterval <= 0
+                || globalCapacity < 0 || globalRefillInterval <= 0
+                || maxTrackedIps <= 0)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        ipBuckets = new TokenBucketMap<>(ipCapacity, ipRefillInterval, maxTrackedIps);
+        globalBucket = new TokenBucketMap<>(globalCapacity, globalRefillInterval, 1);
+    }
+    
+    @Override
+    public synchronized void dispose()
+    {
+        ipBuckets.clear();
+        globalBucket.clear();
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public synchronized void run()
+    {
+        ipBuckets.expire(currentTimeMillis());
+    }
+    
+    /**
+     * Takes one attempt from the bucket of the given IP address
+     * and from the global bucket.
+     *
+     * @param ip the IP address, or {@code null} if unknown,
+     *           in which case only the global limit applies.
+     *
+     * @return {@code true} if the attempt may proceed;
+     *         {@code false} if it has been rejected.
+     */
+    public synchronized boolean tryAcquire(String ip)
+    {
+        long now = currentTimeMillis();
+        
+        if ((ip != null && !ipBuckets.hasToken(ip, now))
+                || !globalBucket.hasToken(GLOBAL_KEY, now))
+        {
+            rejectedCount++;
+            
+            return false;
+        }
+        
+        if (ip != null)
+        {
+            ipBuckets.takeToken(ip, now);
+        }
+        
+        globalBucket.takeToken(GLOBAL_KEY, now);
+        
+        return true;
+    }
+    
+    /**
+     * Returns the number of attempts rejected so far.
+     */
+    public synchronized long getRejectedCount()
+    {
+        return rejectedCount;
+    }
+    
+    /**
+     * Returns the number of IP addresses currently tracked.
+     */
+    public synchronized int getTrackedIpCount()
+    {
+        return ipBuckets.size();
+    }
+    
+    private static long currentTimeMillis()
+    {
+        return System.nanoTime() / 1000000L;
+    }
+    
+    /**
+     * Recommended task period of {@code AttemptThrottle} running as a Bukkit task.
+     */
+    public static final long TASK_PERIOD =
+            TimeUnit.MINUTES.convertTo(1, TimeUnit.TICKS);
+    
+    private static final String GLOBAL_KEY = "";
+    
+    private final TokenBucketMap<String> ipBuckets;
+    private final TokenBucketMap<String> globalBucket;
+    private long rejectedCount = 0;
+}
@@ -1,10 +1,8 @@
 package io.github.lucaseasedup.logit.security;
 
 import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.common.ExpiringMap;
 import io.github.lucaseasedup.logit.config.TimeUnit;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 
 public final class GlobalPasswordManager extends LogItCoreObject implements Runnable
 {
@@ -24,21 +22,7 @@ public final class GlobalPasswordManager extends LogItCoreObject implements Runn
     @Override
     public void run()
     {
-        Iterator<Map.Entry<String, Long>> it = passwords.entrySet().iterator();
-        
-        while (it.hasNext())
-        {
-            Map.Entry<String, Long> e = it.next();
-            
-            if (e.getValue() <= 0)
-            {
-                it.remove();
-                
-                continue;
-            }
-            
-            e.setValue(e.getValue() - TASK_PERIOD);
-        }
+        passwords.expire();
     }
     
     public boolean checkPassword(String password)
@@ -46,21 +30,7 @@ public final class GlobalPasswordManager extends LogItCoreObject implements Runn
         if (password == null)
             throw new IllegalArgumentException();
         
-        Iterator<Map.Entry<String, Long>> it = passwords.entrySet().iterator();
-        
-        while (it.hasNext())
-        {
-            Map.Entry<String, Long> e = it.next();
-            
-            if (e.getKey().equals(password) && e.getValue() > 0)
-            {
-                it.remove();
-                
-                return true;
-            }
-        }
-        
-        return false;
+        return passwords.remove(password) != null;
     }
     
     public String generatePassword()
@@ -69,10 +39,10 @@ public final class GlobalPasswordManager extends LogItCoreObject implements Runn
         String password = getSecurityHelper().generatePassword(
                 length, "0123456789"
         );
-        long lifetimeTicks = getConfig("config.yml")
-                .getTime("globalPassword.invalidateAfter", TimeUnit.TICKS);
+        long lifetimeMillis = getConfig("config.yml")
+                .getTime("globalPassword.invalidateAfter", TimeUnit.MILLISECONDS);
         
-        passwords.put(password, lifetimeTicks);
+        passwords.put(password, Boolean.TRUE, lifetimeMillis);
         
         return password;
     }
@@ -89,5 +59,10 @@ public final class GlobalPasswordManager extends LogItCoreObject implements Runn
     public static final long TASK_PERIOD =
             TimeUnit.SECONDS.convertTo(1, TimeUnit.TICKS);
     
-    private Map<String, Long> passwords = new HashMap<>();
+    private static final int MAX_PASSWORDS = 1000;
+    
+    private ExpiringMap<String, Boolean> passwords = new ExpiringMap<>(
+            TimeUnit.TICKS.convertTo(TASK_PERIOD, TimeUnit.MILLISECONDS),
+            64, MAX_PASSWORDS
+    );
 }
@@ -0,0 +1,133 @@
+package io.github.lucaseasedup.logit.security;
+
+import io.github.lucaseasedup.logit.security.model.BCryptHashingModel;
+import io.github.lucaseasedup.logit.security.model.CommonHashingModel;
+import io.github.lucaseasedup.logit.security.model.HashingModel;
+
+/**
+ * Picks the cost of a hashing model by benchmarking it on this machine.
+ *
+ * <p> Only bcrypt and the roundful digest models have a tunable cost;
+ * other models are returned unchanged. The cost is never lowered below
+ * the one of the model being calibrated.
+ */
+public final class HashingCalibrator
+{
+    private HashingCalibrator()
+    {
+    }
+    
+    /**
+     * Calibrates a hashing model so that verifying a password
+     * takes about {@code targetMillis} milliseconds.
+     *
+     * @param model        the model to be calibrated.
+     * @param targetMillis the target verification latency in milliseconds.
+     *
+     * @return a model of the same kind with the calibrated cost.
+     *
+     * @throws IllegalArgumentException if {@code model} is {@code null}
+     *                                  or {@code targetMillis} is not positive.
+     */
+    public static HashingModel calibrate(HashingModel model, long targetMillis)
+    {
+        if (model == null || targetMillis <= 0)
+            throw new IllegalArgumentException();
+        
+        long targetNanos = targetMillis * 1000000L;
+        
+        if (model instanceof BCryptHashingModel)
+        {
+            return calibrateBCrypt((BCryptHashingModel) model, targetNanos);
+        }
+        else if (model instanceof CommonHashingModel)
+        {
+            return calibrateCommon((CommonHashingModel) model, targetNanos);
+        }
+        else
+        {
+            return model;
+        }
+    }
+    
+    private static HashingModel calibrateBCrypt(
+            BCryptHashingModel model, long targetNanos
+    )
+    {
+        // Warm up on the cheapest cost before measuring the actual one.
+        measure(new BCryptHashingModel(BCryptHashingModel.MIN_LOG_ROUNDS), 3);
+        
+        int logRounds = model.getLogRounds();
+        long elapsed = measure(model, 1);
+        
+        // Each extra log-round doubles the time taken,
+        // so step up while it brings the latency closer to the target.
+        while (logRounds < BCryptHashingModel.MAX_LOG_ROUNDS
+                && Math.abs(elapsed * 2 - targetNanos) < Math.abs(elapsed - targetNanos))
+        {
+            logRounds++;
+            elapsed *= 2;
+        }
+        
+        if (logRounds == model.getLogRounds())
+            return model;
+        
+        return new BCryptHashingModel(logRounds);
+    }
+    
+    private static HashingModel calibrateCommon(
+            CommonHashingModel model, long targetNanos
+    )
+    {
+        if (model.getAlgorithm() == CommonHashingModel.Algorithm.PLAIN)
+            return model;
+        
+        int probeRounds = 16;
+        long elapsed;
+        
+        // Grow the probe until it runs long enough to be measured reliably,
+        // taking the best of a few attempts to leave out the warm-up.
+        do
+        {
+            probeRounds *= 2;
+            elapsed = measure(
+                    new CommonHashingModel(model.getAlgorithm(), probeRounds), 3
+            );
+        }
+        while (elapsed < MIN_PROBE_NANOS && probeRounds < MAX_COMMON_ROUNDS / 2);
+        
+        long rounds = (long) ((double) probeRounds * targetNanos / Math.max(1L, elapsed));
+        
+        rounds = Math.min(rounds, MAX_COMMON_ROUNDS);
+        
+        if (rounds <= model.getRounds())
+            return model;
+        
+        return new CommonHashingModel(model.getAlgorithm(), (int) rounds);
+    }
+    
+    /**
+     * Returns the shortest time, in nanoseconds,
+     * of hashing a sample password in a number of attempts.
+     */
+    private static long measure(HashingModel model, int attempts)
+    {
+        long shortest = Long.MAX_VALUE;
+        
+        for (int i = 0; i < attempts; i++)
+        {
+            String salt = model.generateSalt();
+            long startTime = System.nanoTime();
+            
+            model.getHash(SAMPLE_PASSWORD, salt);
+            
+            shortest = Math.min(shortest, System.nanoTime() - startTime);
+        }
+        
+        return shortest;
+    }
+    
+    private static final String SAMPLE_PASSWORD = "calibration-sample";
+    private static final long MIN_PROBE_NANOS = 20000000L;
+    private static final int MAX_COMMON_ROUNDS = 10000000;
+}
@@ -0,0 +1,222 @@
+package io.github.lucaseasedup.logit.security;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.common.LatencyHistogram;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Performs password hashing and verification on a bounded pool
+ * of worker threads, so that expensive hashing algorithms do not
+ * hold up the server thread.
+ *
+ * <p> Once a job has been performed, its completion is queued and run
+ * on the server thread by {@link #run()}. If too many jobs are waiting
+ * already, new ones are rejected instead of being queued.
+ */
+public final class HashingPool extends LogItCoreObject implements Runnable
+{
+    /**
+     * Constructs a new {@code HashingPool}.
+     *
+     * @param threadCount the number of worker threads.
+     * @param queueLimit  the maximum number of jobs waiting for a thread.
+     *
+     * @throws IllegalArgumentException if {@code threadCount}
+     *                                  or {@code queueLimit} is not positive.
+     */
+    public HashingPool(int threadCount, int queueLimit)
+    {
+        if (threadCount <= 0 || queueLimit <= 0)
+            throw new IllegalArgumentException();
+        
+        executor = new ThreadPoolExecutor(
+                threadCount, threadCount,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueLimit),
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r,
+                                "LogIt Hashing #" + threadNumber.incrementAndGet());
+                        
+                        thread.setDaemon(true);
+                        
+                        return thread;
+                    }
+                    
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+                }
+        );
+    }
+    
+    @Override
+    public void dispose()
+    {
+        executor.shutdownNow();
+        completions.clear();
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public void run()
+    {
+        Runnable completion;
+        
+        while ((completion = completions.poll()) != null)
+        {
+            completion.run();
+        }
+    }
+    
+    /**
+     * Submits a task to be performed on a worker thread.
+     *
+     * @param task     the task; it must not touch the state of the server.
+     * @param callback the callback to be run on the server thread
+     *                 once the task has been performed.
+     *
+     * @return {@code false} if the task was rejected because the queue
+     *         is full or this pool has been disposed of, in which case
+     *         the callback will not be run; {@code true} otherwise.
+     *
+     * @throws IllegalArgumentException if {@code task} or {@code callback}
+     *                                  is {@code null}.
+     */
+    public <T> boolean submit(final Callable<T> task, final Callback<T> callback)
+    {
+        if (task == null || callback == null)
+            throw new IllegalArgumentException();
+        
+        final long submitTime = System.nanoTime();
+        
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    perform(task, callback, submitTime);
+                }
+            });
+        }
+        catch (RejectedExecutionException ex)
+        {
+            rejectedCount.incrementAndGet();
+            
+            return false;
+        }
+        
+        return true;
+    }
+    
+    private <T> void perform(
+            Callable<T> task, final Callback<T> callback, long submitTime
+    )
+    {
+        long startTime = System.nanoTime();
+        T result = null;
+        Exception error = null;
+        
+        queueWait.record((startTime - submitTime) / 1000L);
+        
+        try
+        {
+            result = task.call();
+        }
+        catch (Exception ex)
+        {
+            error = ex;
+        }
+        
+        hashLatency.record((System.nanoTime() - startTime) / 1000L);
+        
+        final T finalResult = result;
+        final Exception finalError = error;
+        
+        completions.add(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (finalError != null)
+                {
+                    log(Level.WARNING, "Could not hash password", finalError);
+                }
+                
+                callback.complete(finalResult, finalError);
+            }
+        });
+    }
+    
+    /**
+     * Returns the number of jobs waiting for a worker thread.
+     */
+    public int getQueueSize()
+    {
+        return executor.getQueue().size();
+    }
+    
+    /**
+     * Returns the number of jobs rejected because the queue was full.
+     */
+    public long getRejectedCount()
+    {
+        return rejectedCount.get();
+    }
+    
+    /**
+     * Returns the distribution of the time jobs spent waiting
+     * for a worker thread, in microseconds.
+     */
+    public LatencyHistogram getQueueWait()
+    {
+        return queueWait;
+    }
+    
+    /**
+     * Returns the distribution of the time taken by the jobs
+     * themselves, in microseconds.
+     */
+    public LatencyHistogram getHashLatency()
+    {
+        return hashLatency;
+    }
+    
+    public static interface Callback<T>
+    {
+        /**
+         * Called on the server thread once a task has been performed.
+         *
+         * @param result the result of the task,
+         *               or {@code null} if it has thrown an exception.
+         * @param error  the exception thrown by the task, or {@code null}.
+         */
+        public void complete(T result, Exception error);
+    }
+    
+    /**
+     * Recommended task period of {@code HashingPool} running as a Bukkit task.
+     */
+    public static final long TASK_PERIOD = 1L;
+    
+    private final ThreadPoolExecutor executor;
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram hashLatency = new LatencyHistogram();
+}
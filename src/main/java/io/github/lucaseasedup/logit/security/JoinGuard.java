@@ -0,0 +1,328 @@
+package io.github.lucaseasedup.logit.security;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.account.AccountInsertEvent;
+import io.github.lucaseasedup.logit.account.AccountManager.RegistrationFetchMode;
+import io.github.lucaseasedup.logit.common.TokenBucketMap;
+import io.github.lucaseasedup.logit.config.TimeUnit;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+
+/**
+ * Admission control for joining players, applied before their accounts
+ * are looked up in the storage.
+ *
+ * <p> When <i>joinGuard.enabled</i> is set, joins are rate-limited
+ * per IP address, per subnet (/24 for IPv4, /64 for IPv6) and globally.
+ * A limit with a capacity of {@code 0} is disabled; behind a proxy that
+ * does not forward player addresses, the per-IP and per-subnet limits
+ * should be. Whenever the global limit is exceeded,
+ * the guard enters attack mode for a while, during which unregistered
+ * usernames can optionally be turned away.
+ *
+ * <p> While the guard is enabled, usernames recently found not to be
+ * registered are remembered for a short time, so that repeated joins
+ * with the same fake username do not hit the storage again.
+ */
+public final class JoinGuard extends LogItCoreObject implements Runnable, Listener
+{
+    /**
+     * Constructs a new {@code JoinGuard}.
+     *
+     * @param ipBuckets          the join-rate buckets of IP addresses.
+     * @param subnetBuckets      the join-rate buckets of subnets.
+     * @param globalBucket       the global join-rate bucket.
+     * @param attackModeDuration the time in milliseconds attack mode lasts
+     *                           after the global limit was last exceeded.
+     * @param unregisteredTtl    the time in milliseconds an unregistered
+     *                           username is remembered for.
+     * @param maxUnregistered    the maximum number of unregistered
+     *                           usernames remembered at once.
+     *
+     * @throws IllegalArgumentException if any of the buckets is {@code null}
+     *                                  or any of the other values
+     *                                  is not positive.
+     */
+    public JoinGuard(TokenBucketMap<String> ipBuckets,
+                     TokenBucketMap<String> subnetBuckets,
+                     TokenBucketMap<String> globalBucket,
+                     long attackModeDuration,
+                     long unregisteredTtl,
+                     final int maxUnregistered)
+    {
+        if (ipBuckets == null || subnetBuckets == null || globalBucket == null
+                || attackModeDuration <= 0 || unregisteredTtl <= 0
+                || maxUnregistered <= 0)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        this.ipBuckets = ipBuckets;
+        this.subnetBuckets = subnetBuckets;
+        this.globalBucket = globalBucket;
+        this.attackModeDuration = attackModeDuration;
+        this.unregisteredTtl = unregisteredTtl;
+        
+        unregistered = new LinkedHashMap<String, Long>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+            {
+                return size() > maxUnregistered;
+            }
+        };
+    }
+    
+    @Override
+    public synchronized void dispose()
+    {
+        ipBuckets.clear();
+        subnetBuckets.clear();
+        globalBucket.clear();
+        unregistered.clear();
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public synchronized void run()
+    {
+        long now = currentTimeMillis();
+        
+        ipBuckets.expire(now);
+        subnetBuckets.expire(now);
+        
+        Iterator<Long> it = unregistered.values().iterator();
+        
+        while (it.hasNext())
+        {
+            if (it.next() <= now)
+            {
+                it.remove();
+            }
+        }
+        
+        if (attackMode && attackModeUntil <= now)
+        {
+            attackMode = false;
+            
+            log(Level.INFO, "Join flood has subsided; leaving attack mode.");
+        }
+    }
+    
+    /**
+     * Decides whether a player may proceed to join.
+     *
+     * <p> A rejected join changes nothing but the rejection counter.
+     * Every join is admitted while <i>joinGuard.enabled</i> is not set.
+     *
+     * @param username the username of the player.
+     * @param address  the address the player is connecting from.
+     *
+     * @return the verdict.
+     *
+     * @throws IllegalArgumentException if {@code username}
+     *                                  or {@code address} is {@code null}.
+     */
+    public Verdict admit(String username, InetAddress address)
+    {
+        if (username == null || address == null)
+            throw new IllegalArgumentException();
+        
+        if (!isEnabled())
+            return Verdict.ADMITTED;
+        
+        // Looked up before locking this guard, since the registration index
+        // has locks of its own, some held while account events are fired.
+        boolean knownUnregistered = isKnownUnregistered(username);
+        boolean registeredOnly = getConfig("config.yml")
+                .getBoolean("joinGuard.attackMode.registeredOnly");
+        String ip = address.getHostAddress();
+        String subnet = getSubnet(address);
+        
+        synchronized (this)
+        {
+            long now = currentTimeMillis();
+            
+            if (!globalBucket.hasToken(GLOBAL_KEY, now))
+            {
+                if (!attackMode)
+                {
+                    attackMode = true;
+                    
+                    log(Level.WARNING, "Join flood detected; entering attack mode.");
+                }
+                
+                attackModeUntil = now + attackModeDuration;
+                rejectedCount++;
+                
+                return Verdict.THROTTLED;
+            }
+            
+            if (!ipBuckets.hasToken(ip, now) || !subnetBuckets.hasToken(subnet, now))
+            {
+                rejectedCount++;
+                
+                return Verdict.THROTTLED;
+            }
+            
+            if (attackMode && registeredOnly && knownUnregistered)
+            {
+                rejectedCount++;
+                
+                return Verdict.UNREGISTERED;
+            }
+            
+            ipBuckets.takeToken(ip, now);
+            subnetBuckets.takeToken(subnet, now);
+            globalBucket.takeToken(GLOBAL_KEY, now);
+            
+            return Verdict.ADMITTED;
+        }
+    }
+    
+    /**
+     * Checks whether this guard is enabled with <i>joinGuard.enabled</i>.
+     * Callers should skip the unregistered-username shortcut while it is not.
+     */
+    public boolean isEnabled()
+    {
+        return getConfig("config.yml").getBoolean("joinGuard.enabled");
+    }
+    
+    /**
+     * Checks whether a username is known not to be registered without
+     * querying the storage, either from the registration index
+     * or because it has been recently remembered as unregistered.
+     *
+     * @param username the username.
+     *
+     * @return {@code true} if the username is known not to be registered;
+     *         {@code false} if it is registered or not known either way.
+     *
+     * @throws IllegalArgumentException if {@code username} is {@code null}.
+     */
+    public boolean isKnownUnregistered(String username)
+    {
+        if (username == null)
+            throw new IllegalArgumentException();
+        
+        username = username.toLowerCase();
+        
+        synchronized (this)
+        {
+            Long expirationTime = unregistered.get(username);
+            
+            if (expirationTime != null && expirationTime > currentTimeMillis())
+                return true;
+        }
+        
+        return !getAccountManager().isRegistered(
+                username, RegistrationFetchMode.CACHE_ELSE_TRUE
+        );
+    }
+    
+    /**
+     * Remembers that a username has been found not to be registered.
+     *
+     * @param username the username.
+     *
+     * @throws IllegalArgumentException if {@code username} is {@code null}.
+     */
+    public synchronized void rememberUnregistered(String username)
+    {
+        if (username == null)
+            throw new IllegalArgumentException();
+        
+        unregistered.put(username.toLowerCase(), currentTimeMillis() + unregisteredTtl);
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR)
+    private synchronized void onAccountInsert(AccountInsertEvent event)
+    {
+        String username = event.getDatumValue(keys().username());
+        
+        if (username != null)
+        {
+            unregistered.remove(username.toLowerCase());
+        }
+    }
+    
+    public synchronized boolean isAttackModeActive()
+    {
+        return attackMode;
+    }
+    
+    /**
+     * Returns the number of joins rejected so far.
+     */
+    public synchronized long getRejectedCount()
+    {
+        return rejectedCount;
+    }
+    
+    private static String getSubnet(InetAddress address)
+    {
+        byte[] bytes = address.getAddress();
+        int prefixLength = (address instanceof Inet4Address) ? 3 : 8;
+        StringBuilder sb = new StringBuilder(prefixLength * 3);
+        
+        for (int i = 0; i < prefixLength && i < bytes.length; i++)
+        {
+            sb.append(bytes[i] & 0xFF).append('.');
+        }
+        
+        return sb.toString();
+    }
+    
+    private static long currentTimeMillis()
+    {
+        return System.nanoTime() / 1000000L;
+    }
+    
+    public static enum Verdict
+    {
+        /**
+         * The player may proceed to join.
+         */
+        ADMITTED,
+        
+        /**
+         * Too many players have joined from the same address
+         * or subnet, or globally.
+         */
+        THROTTLED,
+        
+        /**
+         * The username is not registered and only registered usernames
+         * are admitted in attack mode.
+         */
+        UNREGISTERED;
+    }
+    
+    /**
+     * Recommended task period of {@code JoinGuard} running as a Bukkit task.
+     */
+    public static final long TASK_PERIOD =
+            TimeUnit.SECONDS.convertTo(5, TimeUnit.TICKS);
+    
+    private static final String GLOBAL_KEY = "";
+    
+    private final TokenBucketMap<String> ipBuckets;
+    private final TokenBucketMap<String> subnetBuckets;
+    private final TokenBucketMap<String> globalBucket;
+    private final long attackModeDuration;
+    private final long unregisteredTtl;
+    private final Map<String, Long> unregistered;
+    private boolean attackMode = false;
+    private long attackModeUntil;
+    private long rejectedCount = 0;
+}
@@ -15,11 +15,41 @@ public final class SecurityHelper extends LogItCoreObject
      */
     public HashingModel getDefaultHashingModel()
     {
+        if (calibratedHashingModel != null)
+            return calibratedHashingModel;
+        
         return HashingModelDecoder.decode(
                 getConfig("config.yml").getString("passwords.hashingAlgorithm")
         );
     }
     
+    /**
+     * Benchmarks the hashing model specified in the config file and, from now on,
+     * makes {@link #getDefaultHashingModel()} return it with the cost
+     * that brings password verification closest to the given latency.
+     * 
+     * <p> Passwords hashed with a different model will be rehashed
+     * on the next login if <i>passwords.rehashOnLogin</i> is enabled.
+     * 
+     * @param targetMillis the target verification latency in milliseconds.
+     * 
+     * @return the calibrated hashing model.
+     * 
+     * @throws IllegalArgumentException if {@code targetMillis} is not positive.
+     */
+    public HashingModel calibrateDefaultHashingModel(long targetMillis)
+    {
+        if (targetMillis <= 0)
+            throw new IllegalArgumentException();
+        
+        calibratedHashingModel = null;
+        calibratedHashingModel = HashingCalibrator.calibrate(
+                getDefaultHashingModel(), targetMillis
+        );
+        
+        return calibratedHashingModel;
+    }
+    
     public boolean containsLowercaseLetters(String password)
     {
         if (password == null)
@@ -94,6 +124,8 @@ public final class SecurityHelper extends LogItCoreObject
         return sb.toString();
     }
     
+    private HashingModel calibratedHashingModel = null;
+    
     private static final Pattern LOWERCASE_LETTERS =
             Pattern.compile("[a-z]");
     private static final Pattern UPPERCASE_LETTERS =
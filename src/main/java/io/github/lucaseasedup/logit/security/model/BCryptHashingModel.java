@@ -4,6 +4,27 @@ import io.github.lucaseasedup.logit.security.lib.BCrypt;
 
 public final class BCryptHashingModel implements HashingModel
 {
+    public BCryptHashingModel()
+    {
+        this(DEFAULT_LOG_ROUNDS);
+    }
+    
+    /**
+     * Constructs a new {@code BCryptHashingModel} generating salts
+     * for the given cost.
+     * 
+     * @param logRounds the base-2 logarithm of the number of rounds.
+     * 
+     * @throws IllegalArgumentException if {@code logRounds} is out of range.
+     */
+    public BCryptHashingModel(int logRounds)
+    {
+        if (logRounds < MIN_LOG_ROUNDS || logRounds > MAX_LOG_ROUNDS)
+            throw new IllegalArgumentException();
+        
+        this.logRounds = logRounds;
+    }
+    
     @Override
     public String getHash(String string)
     {
@@ -46,12 +67,28 @@ public final class BCryptHashingModel implements HashingModel
     @Override
     public String generateSalt()
     {
-        return BCrypt.gensalt(12);
+        return BCrypt.gensalt(logRounds);
     }
     
     @Override
     public String encode()
     {
-        return "bcrypt";
+        // The default cost is left out for compatibility
+        // with hashing algorithms stored by older versions.
+        if (logRounds == DEFAULT_LOG_ROUNDS)
+            return "bcrypt";
+        
+        return "bcrypt(" + logRounds + ")";
+    }
+    
+    public int getLogRounds()
+    {
+        return logRounds;
     }
+    
+    public static final int MIN_LOG_ROUNDS = 4;
+    public static final int MAX_LOG_ROUNDS = 30;
+    public static final int DEFAULT_LOG_ROUNDS = 12;
+    
+    private final int logRounds;
 }
@@ -1,6 +1,9 @@
 package io.github.lucaseasedup.logit.security.model;
 
 import io.github.lucaseasedup.logit.security.lib.Whirlpool;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Random;
@@ -19,76 +22,67 @@ public final class CommonHashingModel implements HashingModel
     @Override
     public String getHash(String string)
     {
-        String output = "";
-        
-        for (int i = 0; i < rounds; i++)
-        {
-            output = getSingleHash(output + string);
-        }
-        
-        return output;
+        return getHash(string, StandardCharsets.UTF_8);
     }
     
     @Override
     public String getHash(String string, String salt)
     {
-        String output = "";
-        
-        for (int i = 0; i < rounds; i++)
-        {
-            output = getSingleHash(output + string + salt);
-        }
-        
-        return output;
+        return getHash(string + salt, StandardCharsets.UTF_8);
     }
     
-    private String getSingleHash(String string)
+    /**
+     * Hashes {@code input} in as many rounds as this model specifies,
+     * each round hashing the output of the previous one followed by the input.
+     */
+    private String getHash(String input, Charset charset)
     {
-        switch (algorithm)
+        if (algorithm == Algorithm.PLAIN)
         {
-            case PLAIN:
-                return string;
-                
-            case MD2:
-                return getMd2(string);
-                
-            case MD5:
-                return getMd5(string);
-                
-            case SHA1:
-                return getSha1(string);
-                
-            case SHA256:
-                return getSha256(string);
-                
-            case SHA384:
-                return getSha384(string);
-                
-            case SHA512:
-                return getSha512(string);
-                
-            case WHIRLPOOL:
-                return getWhirlpool(string);
-                
-            default:
+            String output = "";
+            
+            for (int i = 0; i < rounds; i++)
             {
-                throw new IllegalArgumentException(
-                        "Unsupported algorithm: " + algorithm
-                );
+                output = output + input;
             }
+            
+            return output;
         }
+        
+        return digesters.get().digest(
+                algorithm, encode(algorithm, input, charset), rounds
+        );
     }
     
     @Override
     public boolean verify(String string, String hash)
     {
-        return hash.equals(getHash(string));
+        return matches(string, hash);
     }
     
     @Override
     public boolean verify(String string, String salt, String hash)
     {
-        return hash.equals(getHash(string, salt));
+        return matches(string + salt, hash);
+    }
+    
+    private boolean matches(String input, String hash)
+    {
+        if (hash.equals(getHash(input, StandardCharsets.UTF_8)))
+            return true;
+        
+        // Hashes created before UTF-8 was enforced were encoded
+        // with the platform charset, which only makes a difference
+        // for non-ASCII input on non-UTF-8 platforms.
+        Charset platformCharset = Charset.defaultCharset();
+        
+        if (algorithm == Algorithm.PLAIN || algorithm == Algorithm.WHIRLPOOL
+                || platformCharset.equals(StandardCharsets.UTF_8) || isAscii(input))
+        {
+            return false;
+        }
+        
+        return hash.equals(getHash(input, platformCharset));
     }
     
     @Override
@@ -137,7 +131,7 @@ public final class CommonHashingModel implements HashingModel
      */
     public static String getMd2(String string)
     {
-        return getOriginHash(string, "MD2");
+        return getSingleHash(Algorithm.MD2, string);
     }
     
     /**
@@ -148,7 +142,7 @@ public final class CommonHashingModel implements HashingModel
      */
     public static String getMd5(String string)
     {
-        return getOriginHash(string, "MD5");
+        return getSingleHash(Algorithm.MD5, string);
     }
     
     /**
@@ -159,7 +153,7 @@ public final class CommonHashingModel implements HashingModel
      */
     public static String getSha1(String string)
     {
-        return getOriginHash(string, "SHA-1");
+        return getSingleHash(Algorithm.SHA1, string);
     }
     
     /**
@@ -170,7 +164,7 @@ public final class CommonHashingModel implements HashingModel
      */
     public static String getSha256(String string)
     {
-        return getOriginHash(string, "SHA-256");
+        return getSingleHash(Algorithm.SHA256, string);
     }
     
     /**
@@ -181,7 +175,7 @@ public final class CommonHashingModel implements HashingModel
      */
     public static String getSha384(String string)
     {
-        return getOriginHash(string, "SHA-384");
+        return getSingleHash(Algorithm.SHA384, string);
     }
     
     /**
@@ -192,7 +186,7 @@ public final class CommonHashingModel implements HashingModel
      */
     public static String getSha512(String string)
     {
-        return getOriginHash(string, "SHA-512");
+        return getSingleHash(Algorithm.SHA512, string);
     }
     
     /**
@@ -203,54 +197,61 @@ public final class CommonHashingModel implements HashingModel
      */
     public static String getWhirlpool(String string)
     {
-        Whirlpool whirlpool = new Whirlpool();
-        byte[] digest = new byte[64];
-        
-        whirlpool.NESSIEinit();
-        whirlpool.NESSIEadd(string);
-        whirlpool.NESSIEfinalize(digest);
-        
-        return Whirlpool.display(digest);
+        return getSingleHash(Algorithm.WHIRLPOOL, string);
     }
     
-    private static String getOriginHash(String string, String algorithm)
+    private static String getSingleHash(Algorithm algorithm, String string)
     {
-        MessageDigest digest;
+        return digesters.get().digest(
+                algorithm, encode(algorithm, string, Charset.defaultCharset()), 1
+        );
+    }
+    
+    /**
+     * Encodes the input of a hash. Whirlpool has always been fed
+     * the low byte of each character, so it ignores the charset.
+     */
+    private static byte[] encode(Algorithm algorithm, String input, Charset charset)
+    {
+        if (algorithm != Algorithm.WHIRLPOOL)
+            return input.getBytes(charset);
         
-        try
-        {
-            digest = MessageDigest.getInstance(algorithm);
-            digest.update(string.getBytes());
-        }
-        catch (NoSuchAlgorithmException ex)
+        byte[] data = new byte[input.length()];
+        
+        for (int i = 0, n = input.length(); i < n; i++)
         {
-            return null;
+            data[i] = (byte) input.charAt(i);
         }
         
-        byte[] bytes = digest.digest();
-        StringBuilder sb = new StringBuilder();
-        
-        for (byte b : bytes)
+        return data;
+    }
+    
+    private static boolean isAscii(String string)
+    {
+        for (int i = 0, n = string.length(); i < n; i++)
         {
-            sb.append(Integer.toString((b & 0xFF) + 0x100, 16).substring(1));
+            if (string.charAt(i) >= 0x80)
+                return false;
         }
         
-        return sb.toString();
+        return true;
     }
     
     public static enum Algorithm
     {
-        PLAIN("plain"),
-        MD2("md2"), MD5("md5"),
-        SHA1("sha-1"), SHA256("sha-256"), SHA384("sha-384"), SHA512("sha-512"),
-        WHIRLPOOL("whirlpool");
+        PLAIN("plain", null),
+        MD2("md2", "MD2"), MD5("md5", "MD5"),
+        SHA1("sha-1", "SHA-1"), SHA256("sha-256", "SHA-256"),
+        SHA384("sha-384", "SHA-384"), SHA512("sha-512", "SHA-512"),
+        WHIRLPOOL("whirlpool", null);
         
-        private Algorithm(String name)
+        private Algorithm(String name, String jcaName)
         {
             if (name == null)
                 throw new IllegalArgumentException("Null name");
             
             this.name = name;
+            this.jcaName = jcaName;
         }
         
         /**
@@ -284,9 +285,148 @@ public final class CommonHashingModel implements HashingModel
             return null;
         }
         
+        /**
+         * Returns the name of this {@code Algorithm} in the Java Cryptography
+         * Architecture, or {@code null} if it is not provided by the JCA.
+         */
+        public String getJcaName()
+        {
+            return jcaName;
+        }
+        
         private final String name;
+        private final String jcaName;
     }
     
+    /**
+     * Per-thread digest state reused across hashes, so that hashing
+     * in multiple rounds allocates nothing but the input and the result.
+     */
+    private static final class Digester
+    {
+        /**
+         * Hashes {@code input} in the given number of rounds, each round
+         * hashing the hex output of the previous one followed by the input.
+         * 
+         * @return the hex output of the last round, or {@code null}
+         *         if the algorithm is not available.
+         */
+        public String digest(Algorithm algorithm, byte[] input, int rounds)
+        {
+            MessageDigest messageDigest = null;
+            int digestLength;
+            byte[] hexDigits;
+            
+            if (algorithm == Algorithm.WHIRLPOOL)
+            {
+                digestLength = Whirlpool.DIGESTBYTES;
+                hexDigits = UPPERCASE_HEX_DIGITS;
+            }
+            else
+            {
+                messageDigest = getMessageDigest(algorithm);
+                
+                if (messageDigest == null)
+                    return null;
+                
+                digestLength = messageDigest.getDigestLength();
+                hexDigits = LOWERCASE_HEX_DIGITS;
+            }
+            
+            int hexLength = 0;
+            
+            for (int i = 0; i < rounds; i++)
+            {
+                if (messageDigest != null)
+                {
+                    messageDigest.update(hex, 0, hexLength);
+                    messageDigest.update(input);
+                    
+                    try
+                    {
+                        messageDigest.digest(digest, 0, digestLength);
+                    }
+                    catch (DigestException ex)
+                    {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+                else
+                {
+                    whirlpool.NESSIEinit();
+                    
+                    if (hexLength > 0)
+                    {
+                        whirlpool.NESSIEadd(hex, 8L * hexLength);
+                    }
+                    
+                    if (input.length > 0)
+                    {
+                        whirlpool.NESSIEadd(input, 8L * input.length);
+                    }
+                    
+                    whirlpool.NESSIEfinalize(digest);
+                }
+                
+                for (int j = 0; j < digestLength; j++)
+                {
+                    int b = digest[j] & 0xFF;
+                    
+                    hex[2 * j] = hexDigits[b >>> 4];
+                    hex[2 * j + 1] = hexDigits[b & 0x0F];
+                }
+                
+                hexLength = 2 * digestLength;
+            }
+            
+            return new String(hex, 0, hexLength, StandardCharsets.US_ASCII);
+        }
+        
+        private MessageDigest getMessageDigest(Algorithm algorithm)
+        {
+            MessageDigest messageDigest = messageDigests[algorithm.ordinal()];
+            
+            if (messageDigest == null)
+            {
+                try
+                {
+                    messageDigest = MessageDigest.getInstance(algorithm.getJcaName());
+                }
+                catch (NoSuchAlgorithmException ex)
+                {
+                    return null;
+                }
+                
+                messageDigests[algorithm.ordinal()] = messageDigest;
+            }
+            
+            messageDigest.reset();
+            
+            return messageDigest;
+        }
+        
+        private final MessageDigest[] messageDigests =
+                new MessageDigest[Algorithm.values().length];
+        private final Whirlpool whirlpool = new Whirlpool();
+        private final byte[] digest = new byte[MAX_DIGEST_LENGTH];
+        private final byte[] hex = new byte[2 * MAX_DIGEST_LENGTH];
+    }
+    
+    private static final int MAX_DIGEST_LENGTH = 64;
+    private static final byte[] LOWERCASE_HEX_DIGITS =
+            "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UPPERCASE_HEX_DIGITS =
+            "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<Digester> digesters =
+            new ThreadLocal<Digester>()
+            {
+                @Override
+                protected Digester initialValue()
+                {
+                    return new Digester();
+                }
+            };
+    
     private final Algorithm algorithm;
     private final int rounds;
 }
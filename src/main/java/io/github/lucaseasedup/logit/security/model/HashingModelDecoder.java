@@ -42,6 +42,23 @@ public final class HashingModelDecoder
         {
             return new BCryptHashingModel();
         }
+        else if (string.startsWith("bcrypt("))
+        {
+            Matcher bcryptMatcher = BCRYPT_MODEL_PATTERN.matcher(string);
+            
+            if (!bcryptMatcher.find())
+                return null;
+            
+            int logRounds = Integer.parseInt(bcryptMatcher.group(1));
+            
+            if (logRounds < BCryptHashingModel.MIN_LOG_ROUNDS
+                    || logRounds > BCryptHashingModel.MAX_LOG_ROUNDS)
+            {
+                return null;
+            }
+            
+            return new BCryptHashingModel(logRounds);
+        }
         else
         {
             Matcher roundfulMatcher = ROUNDFUL_MODEL_PATTERN.matcher(string);
@@ -71,6 +88,8 @@ public final class HashingModelDecoder
     
     private static final Pattern ROUNDFUL_MODEL_PATTERN =
             Pattern.compile("^([A-Za-z0-9_-]+)\\(([0-9]+)\\)$");
+    private static final Pattern BCRYPT_MODEL_PATTERN =
+            Pattern.compile("^bcrypt\\(([0-9]{1,2})\\)$");
     private static final Map<String, HashingModel> cache =
             new MaintainableHashMap<>(50);
 }
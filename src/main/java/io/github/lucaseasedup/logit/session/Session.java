@@ -1,5 +1,6 @@
 package io.github.lucaseasedup.logit.session;
 
+import io.github.lucaseasedup.logit.config.TimeUnit;
 import org.bukkit.Location;
 
 /**
@@ -44,13 +45,18 @@ public final class Session
      * 
      * <p> Values above or equal to {@code 0} mean that the session is
      * alive (logged-in state). Values below {@code 0} mean that the session
-     * is not alive (logged-out state).
+     * is not alive (logged-out state); they decrease by one every server tick.
      * 
      * @return the session status.
      */
     public long getStatus()
     {
-        return status;
+        if (status >= 0L)
+            return status;
+        
+        return status - TimeUnit.MILLISECONDS.convertTo(
+                currentTimeMillis() - statusTime, TimeUnit.TICKS
+        );
     }
     
     /**
@@ -61,6 +67,7 @@ public final class Session
     public void setStatus(long status)
     {
         this.status = status;
+        this.statusTime = currentTimeMillis();
     }
     
     /**
@@ -70,7 +77,31 @@ public final class Session
      */
     public void updateStatus(long delta)
     {
-        status += delta;
+        setStatus(getStatus() + delta);
+    }
+    
+    /**
+     * Discards the time elapsed since the status was last set,
+     * so that a logged-out status stops counting down until now.
+     */
+    /* package */ void holdStatus()
+    {
+        statusTime = currentTimeMillis();
+    }
+    
+    /**
+     * Returns the time at which a logged-out status
+     * falls to {@code threshold} or below.
+     * 
+     * @param threshold the status threshold.
+     * 
+     * @return the time in milliseconds, as returned by {@link #currentTimeMillis()}.
+     */
+    /* package */ long getStatusDeadline(long threshold)
+    {
+        return statusTime + TimeUnit.TICKS.convertTo(
+                status - threshold, TimeUnit.MILLISECONDS
+        );
     }
     
     /**
@@ -92,25 +123,39 @@ public final class Session
      */
     public long getInactivityTime()
     {
-        return inactivityTime;
+        return TimeUnit.MILLISECONDS.convertTo(
+                currentTimeMillis() - lastActivityTime, TimeUnit.TICKS
+        );
+    }
+    
+    /**
+     * Resets player's inactivity time so that it's equal to {@code 0L}.
+     */
+    public void resetInactivityTime()
+    {
+        lastActivityTime = currentTimeMillis();
     }
     
     /**
-     * Adds a delta to player's inactivity time.
+     * Sets player's inactivity time, as if the player had last been active
+     * {@code inactivityTime} ticks ago.
      * 
-     * @param delta a value in server ticks by which the inactivity time will be changed.
+     * @param inactivityTime the inactivity time in server ticks.
      */
-    /* package */ void advanceInactivityTime(long delta)
+    /* package */ void setInactivityTime(long inactivityTime)
     {
-        inactivityTime += delta;
+        lastActivityTime = currentTimeMillis()
+                - TimeUnit.TICKS.convertTo(inactivityTime, TimeUnit.MILLISECONDS);
     }
     
     /**
-     * Resets player's inactivity time so that it's equal to {@code 0L}.
+     * Returns the time of the last player activity.
+     * 
+     * @return the time in milliseconds, as returned by {@link #currentTimeMillis()}.
      */
-    public void resetInactivityTime()
+    /* package */ long getLastActivityTime()
     {
-        inactivityTime = 0L;
+        return lastActivityTime;
     }
     
     public Location getLastForceLoginLocation()
@@ -123,8 +168,20 @@ public final class Session
         this.lastForceLoginLocation = lastForceLoginLocation;
     }
     
+    /**
+     * Returns the current time of the monotonic clock
+     * that session deadlines are measured with.
+     * 
+     * @return the time in milliseconds.
+     */
+    /* package */ static long currentTimeMillis()
+    {
+        return System.nanoTime() / 1000000L;
+    }
+    
     private String ip;
     private long status = -1L;
-    private long inactivityTime = 0L;
+    private long statusTime = currentTimeMillis();
+    private long lastActivityTime = currentTimeMillis();
     private Location lastForceLoginLocation = null;
 }
@@ -0,0 +1,649 @@
+package io.github.lucaseasedup.logit.session;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.account.AccountWritePipeline;
+import io.github.lucaseasedup.logit.config.TimeUnit;
+import io.github.lucaseasedup.logit.storage.DataType;
+import io.github.lucaseasedup.logit.storage.Infix;
+import io.github.lucaseasedup.logit.storage.Selector;
+import io.github.lucaseasedup.logit.storage.SelectorBinary;
+import io.github.lucaseasedup.logit.storage.SelectorCondition;
+import io.github.lucaseasedup.logit.storage.StorageEntry;
+import io.github.lucaseasedup.logit.storage.StorageObserver;
+import io.github.lucaseasedup.logit.storage.UnitKeys;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import io.github.lucaseasedup.logit.util.PlayerUtils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Hands logged-in sessions over between servers sharing one storage,
+ * such as the servers behind a proxy.
+ *
+ * <p> Each server publishes the sessions of its logged-in players
+ * to a shared unit as entries of a username, an IP address,
+ * an expiration time and a token signing them with
+ * <i>sessionSharing.secret</i>, which all the servers must share.
+ * Entries are published when a session starts, and renewed while
+ * the player stays and once more when the player quits, so that they
+ * outlive <i>sessionSharing.tokenLifetime</i> only by as long as the player
+ * takes to switch servers. Only the entry this server has published
+ * is ever renewed, so an entry that another server has claimed
+ * or replaced in the meantime is left alone. The entry renewed when
+ * a player quits is handed over to the next server; any other entry
+ * of this server is revoked when the session ends, whether its player
+ * is online or not.
+ *
+ * <p> The entry of a joining player is read, verified and removed
+ * off the main thread with {@link #prefetch}, before the player joins,
+ * and claimed on join with {@link #claim}. Only the server whose removal
+ * actually removed the entry may let the player in, so an entry
+ * cannot be claimed twice, even by two servers at once.
+ *
+ * <p> Entries are bound to the IP address of the player, so session sharing
+ * requires the servers to see the real addresses of players,
+ * i.e. IP forwarding to be enabled on the proxy and the servers.
+ */
+public final class SessionHandoff extends LogItCoreObject implements Runnable, Listener
+{
+    /**
+     * Constructs a new {@code SessionHandoff}.
+     *
+     * @param storage the storage that this {@code SessionHandoff} will
+     *                operate on.
+     * @param unit    the name of a unit eligible for session handoff storage.
+     *                It will be created if it does not exist.
+     * @param secret  the secret that tokens are signed with.
+     *
+     * @throws IOException              if the unit could not be created.
+     * @throws IllegalArgumentException if any of the arguments is {@code null}
+     *                                  or {@code secret} is empty.
+     */
+    public SessionHandoff(WrapperStorage storage, String unit, String secret)
+            throws IOException
+    {
+        if (storage == null || unit == null || secret == null || secret.isEmpty())
+            throw new IllegalArgumentException();
+        
+        storage.createUnit(unit, createKeys(), KEY_USERNAME);
+        storage.addObserver(new StorageObserver()
+        {
+            @Override
+            public void beforeClose()
+            {
+                // The storage is locked at this point,
+                // so the pending writes have to be performed on this thread.
+                writePipeline.shutdownNow();
+            }
+        });
+        
+        this.storage = storage;
+        this.unit = unit;
+        this.secretKey = new SecretKeySpec(
+                secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM
+        );
+        this.writePipeline = new AccountWritePipeline();
+        this.writesShutdownTimeout = getConfig("secret.yml")
+                .getTime("accountWrites.shutdownTimeout", TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public void dispose()
+    {
+        if (writePipeline != null)
+        {
+            writePipeline.dispose();
+            writePipeline = null;
+        }
+        
+        prefetchedHandoffs.clear();
+        publishedTokens.clear();
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public void run()
+    {
+        writePipeline.runCompletions();
+        
+        long now = currentUnixTime();
+        Iterator<Handoff> it = prefetchedHandoffs.values().iterator();
+        
+        while (it.hasNext())
+        {
+            if (it.next().expirationTime <= now)
+            {
+                it.remove();
+            }
+        }
+        
+        long tokenLifetime = getTokenLifetime();
+        
+        // Entries are refreshed halfway through their lifetime,
+        // so that a player switching servers always leaves one behind.
+        if (now - lastRefreshTime < Math.max(1, tokenLifetime / 2))
+            return;
+        
+        lastRefreshTime = now;
+        
+        List<AccountWritePipeline.Write> writes = new ArrayList<>();
+        
+        for (Player player : PlayerUtils.getOnlinePlayers())
+        {
+            Session session = getSessionManager().getSession(player);
+            
+            if (session != null && session.isAlive() && session.getIp() != null)
+            {
+                writes.add(new Renew(
+                        player.getName().toLowerCase(),
+                        session.getIp(),
+                        now + tokenLifetime,
+                        false
+                ));
+            }
+        }
+        
+        writes.add(new PruneExpired(now));
+        
+        writePipeline.submit(AccountWritePipeline.batch(storage, writes));
+    }
+    
+    /**
+     * Reads, verifies and removes the handed-off session of a player
+     * who is about to join, so that it can later be claimed.
+     *
+     * <p> The entry is removed from the storage here, not on join,
+     * so that it is prefetched by no more than one server. A player who
+     * does not join after all has to log in again on the next server.
+     *
+     * <p> Meant to be called off the main thread.
+     *
+     * @param username the username of the player.
+     * @param ip       the IP address the player is connecting from.
+     *
+     * @throws IllegalArgumentException if {@code username}
+     *                                  or {@code ip} is {@code null}.
+     */
+    public void prefetch(String username, String ip)
+    {
+        if (username == null || ip == null)
+            throw new IllegalArgumentException();
+        
+        String normalizedUsername = username.toLowerCase();
+        List<StorageEntry> entries;
+        
+        try
+        {
+            entries = storage.selectEntries(unit,
+                    Arrays.asList(KEY_USERNAME, KEY_IP, KEY_EXPIRES, KEY_TOKEN),
+                    new SelectorCondition(KEY_USERNAME, Infix.EQUALS, normalizedUsername));
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            return;
+        }
+        
+        for (StorageEntry entry : entries)
+        {
+            Handoff handoff = toHandoff(entry);
+            
+            if (handoff != null
+                    && normalizedUsername.equals(entry.get(KEY_USERNAME))
+                    && ip.equals(handoff.ip)
+                    && handoff.expirationTime > currentUnixTime()
+                    && isTokenValid(normalizedUsername, handoff))
+            {
+                int removed;
+                
+                try
+                {
+                    removed = storage.removeEntries(unit,
+                            selectEntry(normalizedUsername, handoff.token));
+                }
+                catch (IOException ex)
+                {
+                    log(Level.WARNING, ex);
+                    
+                    return;
+                }
+                
+                // Unless exactly this entry has been removed, it has been
+                // claimed or replaced since it was read.
+                if (removed == 1)
+                {
+                    prefetchedHandoffs.put(normalizedUsername, handoff);
+                }
+                
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Claims the handed-off session of a joining player,
+     * as verified by {@link #prefetch}.
+     *
+     * <p> A handoff can be claimed once; its entry has already been
+     * removed from the storage by {@link #prefetch}.
+     *
+     * @param username the username of the player.
+     * @param ip       the IP address of the player.
+     *
+     * @return {@code true} if the player had logged in on another server
+     *         and the session may be started without logging in again.
+     *
+     * @throws IllegalArgumentException if {@code username}
+     *                                  or {@code ip} is {@code null}.
+     */
+    public boolean claim(String username, String ip)
+    {
+        if (username == null || ip == null)
+            throw new IllegalArgumentException();
+        
+        String normalizedUsername = username.toLowerCase();
+        Handoff handoff = prefetchedHandoffs.remove(normalizedUsername);
+        
+        if (handoff == null
+                || !ip.equals(handoff.ip)
+                || handoff.expirationTime <= currentUnixTime())
+        {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Stops accepting background writes and waits for the pending ones
+     * to be performed, for no longer than <i>accountWrites.shutdownTimeout</i>.
+     */
+    public void shutdownWrites()
+    {
+        writePipeline.shutdown(writesShutdownTimeout);
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onSessionStart(SessionStartEvent event)
+    {
+        publish(event.getUsername(), event.getSession());
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onSessionEnd(SessionEndEvent event)
+    {
+        writePipeline.submit(new Revoke(event.getUsername().toLowerCase()));
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onQuit(PlayerQuitEvent event)
+    {
+        Player player = event.getPlayer();
+        Session session = getSessionManager().getSession(player);
+        
+        if (session != null && session.isAlive() && session.getIp() != null)
+        {
+            writePipeline.submit(new Renew(
+                    player.getName().toLowerCase(),
+                    session.getIp(),
+                    currentUnixTime() + getTokenLifetime(),
+                    true
+            ));
+        }
+    }
+    
+    private void publish(String username, Session session)
+    {
+        if (session.getIp() == null)
+            return;
+        
+        writePipeline.submit(new Publish(
+                username.toLowerCase(),
+                session.getIp(),
+                currentUnixTime() + getTokenLifetime()
+        ));
+    }
+    
+    private long getTokenLifetime()
+    {
+        return getConfig("config.yml")
+                .getTime("sessionSharing.tokenLifetime", TimeUnit.SECONDS);
+    }
+    
+    private boolean isTokenValid(String normalizedUsername, Handoff handoff)
+    {
+        if (handoff.token == null)
+            return false;
+        
+        String expectedToken = sign(normalizedUsername, handoff.ip, handoff.expirationTime);
+        
+        if (expectedToken == null)
+            return false;
+        
+        // Compared in constant time, not to leak how much of a forged token
+        // is correct.
+        return MessageDigest.isEqual(
+                expectedToken.getBytes(StandardCharsets.US_ASCII),
+                handoff.token.getBytes(StandardCharsets.US_ASCII)
+        );
+    }
+    
+    private String sign(String normalizedUsername, String ip, long expirationTime)
+    {
+        byte[] signature;
+        
+        try
+        {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            
+            mac.init(secretKey);
+            
+            signature = mac.doFinal((normalizedUsername
+                    + "\n" + ip
+                    + "\n" + expirationTime).getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            return null;
+        }
+        
+        StringBuilder sb = new StringBuilder(signature.length * 2);
+        
+        for (byte b : signature)
+        {
+            sb.append(HEX_DIGITS[(b >> 4) & 0xF]);
+            sb.append(HEX_DIGITS[b & 0xF]);
+        }
+        
+        return sb.toString();
+    }
+    
+    private static Handoff toHandoff(StorageEntry entry)
+    {
+        try
+        {
+            String ip = entry.get(KEY_IP);
+            
+            if (ip == null || ip.isEmpty())
+                return null;
+            
+            return new Handoff(ip, Long.parseLong(entry.get(KEY_EXPIRES)),
+                    entry.get(KEY_TOKEN));
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+    
+    private static long currentUnixTime()
+    {
+        return System.currentTimeMillis() / 1000L;
+    }
+    
+    private static UnitKeys createKeys()
+    {
+        UnitKeys keys = new UnitKeys();
+        
+        keys.put(KEY_USERNAME, DataType.TINYTEXT);
+        keys.put(KEY_IP,       DataType.TINYTEXT);
+        keys.put(KEY_EXPIRES,  DataType.INTEGER);
+        keys.put(KEY_TOKEN,    DataType.TINYTEXT);
+        
+        return keys;
+    }
+    
+    private static Selector selectEntry(String normalizedUsername, String token)
+    {
+        return new SelectorBinary(
+                new SelectorCondition(KEY_USERNAME, Infix.EQUALS, normalizedUsername),
+                Infix.AND,
+                new SelectorCondition(KEY_TOKEN, Infix.EQUALS, token)
+        );
+    }
+    
+    private static final class Handoff
+    {
+        public Handoff(String ip, long expirationTime, String token)
+        {
+            this.ip = ip;
+            this.expirationTime = expirationTime;
+            this.token = token;
+        }
+        
+        private final String ip;
+        private final long expirationTime;
+        private final String token;
+    }
+    
+    /**
+     * Replaces the entry of one player, whichever server has published it,
+     * with a freshly signed one.
+     */
+    private final class Publish implements AccountWritePipeline.Write
+    {
+        private Publish(String normalizedUsername, String ip, long expirationTime)
+        {
+            this.normalizedUsername = normalizedUsername;
+            this.ip = ip;
+            this.expirationTime = expirationTime;
+        }
+        
+        @Override
+        public void write() throws IOException
+        {
+            String token = sign(normalizedUsername, ip, expirationTime);
+            
+            if (token == null)
+                return;
+            
+            storage.removeEntries(unit, new SelectorCondition(
+                    KEY_USERNAME, Infix.EQUALS, normalizedUsername
+            ));
+            storage.addEntry(unit, new StorageEntry.Builder()
+                    .put(KEY_USERNAME, normalizedUsername)
+                    .put(KEY_IP, ip)
+                    .put(KEY_EXPIRES, String.valueOf(expirationTime))
+                    .put(KEY_TOKEN, token)
+                    .build());
+            
+            publishedTokens.put(normalizedUsername, token);
+        }
+        
+        @Override
+        public void complete(IOException error)
+        {
+            if (error != null)
+            {
+                log(Level.WARNING, error);
+            }
+        }
+        
+        private final String normalizedUsername;
+        private final String ip;
+        private final long expirationTime;
+    }
+    
+    /**
+     * Re-signs the entry of one player that this server has published
+     * with a later expiration time.
+     *
+     * <p> The entry is updated only if it is still signed with the token
+     * this server has published, so that an entry claimed or replaced
+     * by another server in the meantime is never brought back or overwritten.
+     * An entry that is handed over is left for the next server to claim,
+     * and is no longer revoked by this one.
+     */
+    private final class Renew implements AccountWritePipeline.Write
+    {
+        private Renew(
+                String normalizedUsername, String ip, long expirationTime, boolean handOver
+        )
+        {
+            this.normalizedUsername = normalizedUsername;
+            this.ip = ip;
+            this.expirationTime = expirationTime;
+            this.handOver = handOver;
+        }
+        
+        @Override
+        public void write() throws IOException
+        {
+            String publishedToken = publishedTokens.get(normalizedUsername);
+            
+            if (publishedToken == null)
+                return;
+            
+            String token = sign(normalizedUsername, ip, expirationTime);
+            
+            if (token == null)
+                return;
+            
+            storage.updateEntries(unit, new StorageEntry.Builder()
+                    .put(KEY_IP, ip)
+                    .put(KEY_EXPIRES, String.valueOf(expirationTime))
+                    .put(KEY_TOKEN, token)
+                    .build(), selectEntry(normalizedUsername, publishedToken));
+            
+            if (handOver)
+            {
+                publishedTokens.remove(normalizedUsername);
+            }
+            else
+            {
+                publishedTokens.put(normalizedUsername, token);
+            }
+        }
+        
+        @Override
+        public void complete(IOException error)
+        {
+            if (error != null)
+            {
+                log(Level.WARNING, error);
+            }
+        }
+        
+        private final String normalizedUsername;
+        private final String ip;
+        private final long expirationTime;
+        private final boolean handOver;
+    }
+    
+    /**
+     * Revokes the entry of one player that this server has published
+     * and not handed over, if there is one.
+     *
+     * <p> The entry is looked up when the write is performed,
+     * so that it reflects the writes submitted before.
+     */
+    private final class Revoke implements AccountWritePipeline.Write
+    {
+        private Revoke(String normalizedUsername)
+        {
+            this.normalizedUsername = normalizedUsername;
+        }
+        
+        @Override
+        public void write() throws IOException
+        {
+            String token = publishedTokens.remove(normalizedUsername);
+            
+            if (token == null)
+                return;
+            
+            storage.removeEntries(unit, selectEntry(normalizedUsername, token));
+        }
+        
+        @Override
+        public void complete(IOException error)
+        {
+            if (error != null)
+            {
+                log(Level.WARNING, error);
+            }
+        }
+        
+        private final String normalizedUsername;
+    }
+    
+    /**
+     * Removes the entries that have expired, of this server or any other.
+     */
+    private final class PruneExpired implements AccountWritePipeline.Write
+    {
+        private PruneExpired(long unixTime)
+        {
+            this.unixTime = unixTime;
+        }
+        
+        @Override
+        public void write() throws IOException
+        {
+            storage.removeEntries(unit, new SelectorCondition(
+                    KEY_EXPIRES, Infix.LESS_THAN, String.valueOf(unixTime)
+            ));
+        }
+        
+        @Override
+        public void complete(IOException error)
+        {
+            if (error != null)
+            {
+                log(Level.WARNING, error);
+            }
+        }
+        
+        private final long unixTime;
+    }
+    
+    /**
+     * Recommended task period of {@code SessionHandoff}
+     * running as a Bukkit task.
+     */
+    public static final long TASK_PERIOD =
+            TimeUnit.SECONDS.convertTo(1, TimeUnit.TICKS);
+    
+    private static final String KEY_USERNAME = "username";
+    private static final String KEY_IP = "ip";
+    private static final String KEY_EXPIRES = "expires";
+    private static final String KEY_TOKEN = "token";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    private final WrapperStorage storage;
+    private final String unit;
+    private final SecretKeySpec secretKey;
+    private AccountWritePipeline writePipeline;
+    private final long writesShutdownTimeout;
+    
+    private final Map<String, Handoff> prefetchedHandoffs = new ConcurrentHashMap<>();
+    
+    /**
+     * Tokens of the entries this server has published and not handed over.
+     * Accessed only by the writes, which are performed one at a time.
+     */
+    private final Map<String, String> publishedTokens = new ConcurrentHashMap<>();
+    private long lastRefreshTime = 0;
+}
@@ -5,17 +5,17 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.CancelledState;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.account.AccountManager.RegistrationFetchMode;
+import io.github.lucaseasedup.logit.common.ExpiringMap;
+import io.github.lucaseasedup.logit.config.ConfigSnapshot;
 import io.github.lucaseasedup.logit.config.TimeUnit;
-import io.github.lucaseasedup.logit.storage.DataType;
 import io.github.lucaseasedup.logit.storage.SqliteStorage;
 import io.github.lucaseasedup.logit.storage.Storage;
 import io.github.lucaseasedup.logit.storage.StorageEntry;
-import io.github.lucaseasedup.logit.storage.UnitKeys;
-import io.github.lucaseasedup.logit.util.CollectionUtils;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -24,12 +24,41 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 
 /**
  * Provides a facility manage login sessions.
+ *
+ * <p> Rather than checking every session each tick, each session has
+ * a single deadline at which it is next looked at (login timeout,
+ * automatic logout or destruction after its player has left).
+ * Deadlines are kept in a timing wheel and moved whenever a session
+ * changes state; player activity only records the time,
+ * which the automatic logout deadline is checked against once due.
+ * Sessions with no deadline of their own, such as while automatic logout
+ * is disabled, are looked at again every {@link #RECHECK_INTERVAL}
+ * milliseconds in case the settings change at runtime.
  */
-public final class SessionManager extends LogItCoreObject implements Runnable
+public final class SessionManager extends LogItCoreObject implements Runnable, Listener
 {
+    public SessionManager()
+    {
+        deadlines.addExpirationListener(
+                new ExpiringMap.ExpirationListener<String, Session>()
+                {
+                    @Override
+                    public void onExpired(String username, Session session)
+                    {
+                        expiredUsernames.add(username);
+                    }
+                }
+        );
+    }
+    
     /**
      * Do not call directly.
      */
@@ -41,6 +70,12 @@ public final class SessionManager extends LogItCoreObject implements Runnable
             sessions.clear();
             sessions = null;
         }
+        
+        synchronized (deadlines)
+        {
+            deadlines.clear();
+            expiredUsernames.clear();
+        }
     }
     
     /**
@@ -49,111 +84,186 @@ public final class SessionManager extends LogItCoreObject implements Runnable
     @Override
     public void run()
     {
-        boolean timeoutEnabled = getConfig("config.yml")
-                .getBoolean("forceLogin.timeout.enabled");
-        
-        long timeoutValueLogin = getConfig("config.yml")
-                .getTime("forceLogin.timeout.value.login", TimeUnit.TICKS);
-        
-        long timeoutValueRegister = getConfig("config.yml")
-                .getTime("forceLogin.timeout.value.register", TimeUnit.TICKS);
-        
-        List<String> disableTimeoutForPlayers = getConfig("config.yml")
-                .getStringList("forceLogin.timeout.disableForPlayers");
-        
-        boolean automaticLogoutEnabled = getConfig("config.yml")
-                .getBoolean("automaticLogout.enabled");
+        List<String> dueUsernames;
         
-        long inactivityTimeToLogOut = getConfig("config.yml")
-                .getTime("automaticLogout.inactivityTime", TimeUnit.TICKS);
+        synchronized (deadlines)
+        {
+            deadlines.expire();
+            
+            if (expiredUsernames.isEmpty())
+                return;
+            
+            dueUsernames = new ArrayList<>(expiredUsernames);
+            expiredUsernames.clear();
+        }
         
-        for (Map.Entry<String, Session> entry : sessions.entrySet())
+        for (String username : dueUsernames)
         {
-            String username = entry.getKey();
-            Session session = entry.getValue();
-            Player player = Bukkit.getPlayerExact(username);
+            Session session = sessions.get(username);
             
-            // Player is logged in, either online or offline.
-            if (session.getStatus() >= 0L)
+            if (session != null)
+            {
+                updateSession(username, session);
+            }
+        }
+    }
+    
+    /**
+     * Acts on a session whose deadline has passed
+     * and schedules its next deadline, if any.
+     */
+    private void updateSession(String username, Session session)
+    {
+        Player player = Bukkit.getPlayerExact(username);
+        ConfigSnapshot config = getConfigSnapshot();
+        long now = Session.currentTimeMillis();
+        
+        // Player is logged in, either online or offline.
+        if (session.isAlive())
+        {
+            // If player is online.
+            if (player != null)
             {
-                // If player is online.
-                if (player != null)
+                if (!config.isAutomaticLogoutEnabled())
                 {
-                    session.setStatus(0L);
+                    scheduleDeadline(username, session, now + RECHECK_INTERVAL);
                     
-                    if (automaticLogoutEnabled)
-                    {
-                        if (session.getInactivityTime() >= inactivityTimeToLogOut)
-                        {
-                            endSession(username);
-                            
-                            sendMsg(player, t("automaticallyLoggedOut"));
-                            
-                            if (getCore().isPlayerForcedToLogIn(player))
-                            {
-                                getMessageDispatcher().sendForceLoginMessage(player);
-                            }
-                            
-                            session.resetInactivityTime();
-                        }
-                        else
-                        {
-                            session.advanceInactivityTime(TASK_PERIOD);
-                        }
-                    }
+                    return;
                 }
-                else if (session.getIp() != null)
+                
+                long logoutTime = session.getLastActivityTime()
+                        + config.getInactivityTimeMillis();
+                
+                if (logoutTime > now)
                 {
-                    destroySession(username);
+                    scheduleDeadline(username, session, logoutTime);
+                    
+                    return;
                 }
-            }
-            // Player is online but otherwise logged out.
-            else if (player != null)
-            {
-                boolean disableTimeoutForPlayer =
-                        CollectionUtils.containsIgnoreCase(
-                                username, disableTimeoutForPlayers
-                        );
                 
-                if (!disableTimeoutForPlayer
-                        && getCore().isPlayerForcedToLogIn(player))
+                endSession(username);
+                
+                sendMsg(player, t("automaticallyLoggedOut"));
+                
+                if (getCore().isPlayerForcedToLogIn(player))
                 {
-                    boolean loginTimeoutElapsed =
-                            session.getStatus() <= -timeoutValueLogin;
-                    boolean registerTimeoutElapsed =
-                            session.getStatus() <= -timeoutValueRegister;
-                    boolean timedOut;
-                    
-                    if (!loginTimeoutElapsed && !registerTimeoutElapsed)
-                    {
-                        timedOut = false;
-                    }
-                    else
-                    {
-                        boolean playerRegistered =
-                                getAccountManager().isRegistered(username,
-                                        RegistrationFetchMode.STORAGE_FALLBACK);
-                        
-                        timedOut = (playerRegistered && loginTimeoutElapsed)
-                                || (!playerRegistered && registerTimeoutElapsed);
-                    }
-                    
-                    if (timeoutEnabled && timedOut)
-                    {
-                        player.kickPlayer(t("forcedLoginTimeout"));
-                    }
-                    else
-                    {
-                        session.updateStatus(-TASK_PERIOD);
-                    }
+                    getMessageDispatcher().sendForceLoginMessage(player);
                 }
+                
+                session.resetInactivityTime();
+                scheduleDeadline(username, session, now);
             }
-            // Player is logged out and offline.
-            else
+            else if (session.getIp() != null)
             {
                 destroySession(username);
             }
         }
+        // Player is online but otherwise logged out.
+        else if (player != null)
+        {
+            boolean timeoutEnabled = config.isTimeoutEnabled();
+            boolean disableTimeoutForPlayer = config.isTimeoutExempt(username);
+            
+            if (disableTimeoutForPlayer || !getCore().isPlayerForcedToLogIn(player))
+            {
+                // The timeout does not count down while it does not apply.
+                session.holdStatus();
+                scheduleDeadline(username, session, now + RECHECK_INTERVAL);
+                
+                return;
+            }
+            
+            if (!timeoutEnabled)
+            {
+                scheduleDeadline(username, session, now + RECHECK_INTERVAL);
+                
+                return;
+            }
+            
+            long loginDeadline = session.getStatusDeadline(-config.getLoginTimeoutTicks());
+            long registerDeadline = session.getStatusDeadline(-config.getRegisterTimeoutTicks());
+            long deadline;
+            
+            if (loginDeadline > now && registerDeadline > now)
+            {
+                deadline = Math.min(loginDeadline, registerDeadline);
+            }
+            else
+            {
+                boolean playerRegistered = getAccountManager().isRegistered(
+                        username, RegistrationFetchMode.STORAGE_FALLBACK
+                );
+                
+                deadline = (playerRegistered) ? loginDeadline : registerDeadline;
+            }
+            
+            if (deadline <= now)
+            {
+                player.kickPlayer(t("forcedLoginTimeout"));
+                
+                // Try again should the kick not make the player leave.
+                scheduleDeadline(username, session, now + TICK_MILLIS);
+            }
+            else
+            {
+                scheduleDeadline(username, session, deadline);
+            }
+        }
+        // Player is logged out and offline.
+        else
+        {
+            if (destroySession(username) == CancelledState.CANCELLED)
+            {
+                scheduleDeadline(username, session, now + RECHECK_INTERVAL);
+            }
+        }
+    }
+    
+    /**
+     * Makes the session of a username due to be updated at the given time,
+     * replacing its previous deadline.
+     */
+    private void scheduleDeadline(String username, Session session, long time)
+    {
+        synchronized (deadlines)
+        {
+            deadlines.put(username, session,
+                    Math.max(0L, time - Session.currentTimeMillis()));
+        }
+    }
+    
+    private void cancelDeadline(String username)
+    {
+        synchronized (deadlines)
+        {
+            deadlines.remove(username);
+        }
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onJoin(PlayerJoinEvent event)
+    {
+        String username = event.getPlayer().getName().toLowerCase();
+        Session session = sessions.get(username);
+        
+        if (session != null)
+        {
+            scheduleDeadline(username, session, Session.currentTimeMillis());
+        }
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onQuit(PlayerQuitEvent event)
+    {
+        String username = event.getPlayer().getName().toLowerCase();
+        Session session = sessions.get(username);
+        
+        // The player is still online until the event has been handled.
+        if (session != null)
+        {
+            scheduleDeadline(username, session,
+                    Session.currentTimeMillis() + TICK_MILLIS);
+        }
     }
     
     /**
@@ -286,6 +396,7 @@ public final class SessionManager extends LogItCoreObject implements Runnable
         // Create session.
         Session session = new Session(ip);
         sessions.put(username, session);
+        scheduleDeadline(username, session, Session.currentTimeMillis());
         
         log(Level.FINE, t("createSession.success.log")
                 .replace("{0}", username));
@@ -335,6 +446,7 @@ public final class SessionManager extends LogItCoreObject implements Runnable
             return CancelledState.CANCELLED;
         
         sessions.remove(username.toLowerCase());
+        cancelDeadline(username.toLowerCase());
         
         log(Level.FINE, t("destroySession.success.log")
                 .replace("{0}", username.toLowerCase()));
@@ -415,6 +527,8 @@ public final class SessionManager extends LogItCoreObject implements Runnable
         
         // Start the session.
         session.setStatus(0L);
+        session.resetInactivityTime();
+        scheduleDeadline(username, session, Session.currentTimeMillis());
         
         log(Level.FINE, t("startSession.success.log")
                 .replace("{0}", username));
@@ -501,6 +615,7 @@ public final class SessionManager extends LogItCoreObject implements Runnable
         
         // End the session.
         session.setStatus(-1L);
+        scheduleDeadline(username.toLowerCase(), session, Session.currentTimeMillis());
         
         log(Level.FINE, t("endSession.success.log")
                 .replace("{0}", username.toLowerCase()));
@@ -576,7 +691,7 @@ public final class SessionManager extends LogItCoreObject implements Runnable
     /**
      * Exports all sessions from this {@code SessionManager} to a file.
      *
-     * <p> The file will be deleted before exporting.
+     * <p> The file will be overwritten with a {@link SessionSnapshot}.
      *
      * @param file
      *       The file to which the sessions will be exported.
@@ -592,32 +707,7 @@ public final class SessionManager extends LogItCoreObject implements Runnable
         if (file == null)
             throw new IllegalArgumentException();
         
-        file.delete();
-        
-        try (Storage sessionsStorage = new SqliteStorage("jdbc:sqlite:" + file))
-        {
-            UnitKeys keys = new UnitKeys();
-            keys.put("username", DataType.TINYTEXT);
-            keys.put("status", DataType.INTEGER);
-            keys.put("ip", DataType.TINYTEXT);
-            
-            sessionsStorage.connect();
-            sessionsStorage.createUnit("sessions", keys, "username");
-            sessionsStorage.setAutobatchEnabled(true);
-            
-            for (Map.Entry<String, Session> e : sessions.entrySet())
-            {
-                sessionsStorage.addEntry("sessions", new StorageEntry.Builder()
-                        .put("username", e.getKey())
-                        .put("status", String.valueOf(e.getValue().getStatus()))
-                        .put("ip", e.getValue().getIp())
-                        .build());
-            }
-            
-            sessionsStorage.executeBatch();
-            sessionsStorage.clearBatch();
-            sessionsStorage.setAutobatchEnabled(false);
-        }
+        SessionSnapshot.write(file, sessions);
     }
     
     /**
@@ -626,6 +716,9 @@ public final class SessionManager extends LogItCoreObject implements Runnable
      * <p> Only the sessions that don't exist in this {@code SessionManager}
      * will be imported.
      *
+     * <p> Both {@link SessionSnapshot} files and the SQLite session files
+     * exported by earlier versions can be imported.
+     *
      * @param file
      *       The file from which the sessions will be imported.
      *
@@ -646,6 +739,21 @@ public final class SessionManager extends LogItCoreObject implements Runnable
         if (!file.isFile())
             throw new FileNotFoundException();
         
+        if (!SessionSnapshot.isSnapshot(file))
+        {
+            importLegacySessions(file);
+            
+            return;
+        }
+        
+        for (Map.Entry<String, Session> e : SessionSnapshot.read(file).entrySet())
+        {
+            importSession(e.getKey(), e.getValue());
+        }
+    }
+    
+    private void importLegacySessions(File file) throws IOException
+    {
         try (Storage sessionsStorage = new SqliteStorage("jdbc:sqlite:" + file))
         {
             sessionsStorage.connect();
@@ -655,25 +763,46 @@ public final class SessionManager extends LogItCoreObject implements Runnable
             
             for (StorageEntry entry : entries)
             {
-                String username = entry.get("username");
+                Session session = new Session(entry.get("ip"));
+                session.setStatus(Long.parseLong(entry.get("status")));
                 
-                if (getSession(username) == null)
-                {
-                    String ip = entry.get("ip");
-                    long status = Long.parseLong(entry.get("status"));
-                    
-                    Session session = new Session(ip);
-                    session.setStatus(status);
-                    sessions.put(username, session);
-                }
+                importSession(entry.get("username"), session);
             }
         }
     }
     
+    private void importSession(String username, Session session)
+    {
+        username = username.toLowerCase();
+        
+        if (getSession(username) == null)
+        {
+            sessions.put(username, session);
+            scheduleDeadline(username, session, Session.currentTimeMillis());
+        }
+    }
+    
     /**
      * Recommended task period of {@code SessionManager} running as a Bukkit task.
      */
     public static final long TASK_PERIOD = TimeUnit.TICKS.convertTo(1, TimeUnit.TICKS);
     
+    /**
+     * Time in milliseconds after which sessions waiting on a setting
+     * that may change at runtime are looked at again.
+     */
+    public static final long RECHECK_INTERVAL =
+            TimeUnit.SECONDS.convertTo(5, TimeUnit.MILLISECONDS);
+    
+    private static final long TICK_MILLIS =
+            TimeUnit.TICKS.convertTo(1, TimeUnit.MILLISECONDS);
+    
     private Map<String, Session> sessions = new ConcurrentHashMap<>();
+    
+    /**
+     * Session deadlines by username, guarded by its own monitor.
+     */
+    private final ExpiringMap<String, Session> deadlines =
+            new ExpiringMap<>(TICK_MILLIS, 1024, Integer.MAX_VALUE);
+    private final List<String> expiredUsernames = new ArrayList<>();
 }
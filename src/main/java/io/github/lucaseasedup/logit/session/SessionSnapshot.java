@@ -0,0 +1,262 @@
+package io.github.lucaseasedup.logit.session;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes session snapshots, which carry sessions
+ * across restarts and reloads.
+ *
+ * <p> A snapshot is a binary file laid out as follows,
+ * with all numbers in big-endian byte order:
+ *
+ * <pre>
+ * magic            4 bytes, "LISS"
+ * version          1 byte
+ * session count    4 bytes
+ * sessions         (status 8 bytes, inactivity time in ticks 8 bytes,
+ *                   username length 2 bytes, username UTF-8,
+ *                   IP length 2 bytes or 0xFFFF if none, IP UTF-8)
+ *                  * session count
+ * </pre>
+ *
+ * <p> A snapshot is written from a single buffer in one write,
+ * and read back with one sequential read.
+ */
+public final class SessionSnapshot
+{
+    private SessionSnapshot()
+    {
+    }
+    
+    /**
+     * Writes a snapshot of sessions to a file, replacing its content.
+     *
+     * @param file     the file.
+     * @param sessions the sessions by username.
+     *
+     * @throws IOException              if an I/O error occurred.
+     * @throws IllegalArgumentException if {@code file}
+     *                                  or {@code sessions} is {@code null}.
+     */
+    public static void write(File file, Map<String, Session> sessions)
+            throws IOException
+    {
+        if (file == null || sessions == null)
+            throw new IllegalArgumentException();
+        
+        List<byte[]> usernames = new ArrayList<>(sessions.size());
+        List<byte[]> ips = new ArrayList<>(sessions.size());
+        List<Session> values = new ArrayList<>(sessions.size());
+        int size = HEADER_SIZE;
+        
+        for (Map.Entry<String, Session> e : sessions.entrySet())
+        {
+            byte[] username = encode(e.getKey());
+            byte[] ip = (e.getValue().getIp() != null) ? encode(e.getValue().getIp()) : null;
+            
+            usernames.add(username);
+            ips.add(ip);
+            values.add(e.getValue());
+            
+            size += FIXED_RECORD_SIZE + username.length
+                    + ((ip != null) ? ip.length : 0);
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.putInt(values.size());
+        
+        for (int i = 0; i < values.size(); i++)
+        {
+            Session session = values.get(i);
+            byte[] username = usernames.get(i);
+            byte[] ip = ips.get(i);
+            
+            buffer.putLong(session.getStatus());
+            buffer.putLong(session.getInactivityTime());
+            buffer.putShort((short) username.length);
+            buffer.put(username);
+            
+            if (ip != null)
+            {
+                buffer.putShort((short) ip.length);
+                buffer.put(ip);
+            }
+            else
+            {
+                buffer.putShort(NO_IP);
+            }
+        }
+        
+        buffer.flip();
+        
+        try (FileOutputStream out = new FileOutputStream(file))
+        {
+            FileChannel channel = out.getChannel();
+            
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        }
+    }
+    
+    /**
+     * Reads a snapshot of sessions from a file.
+     *
+     * @param file the file.
+     *
+     * @return the sessions by username, in the order they were written.
+     *
+     * @throws IOException              if an I/O error occurred,
+     *                                  or the file is not a valid snapshot.
+     * @throws IllegalArgumentException if {@code file} is {@code null}.
+     */
+    public static Map<String, Session> read(File file) throws IOException
+    {
+        if (file == null)
+            throw new IllegalArgumentException();
+        
+        ByteBuffer buffer = readFully(file);
+        
+        try
+        {
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a session snapshot: " + file);
+            
+            byte version = buffer.get();
+            
+            if (version != VERSION)
+                throw new IOException("Unsupported session snapshot version: " + version);
+            
+            int count = buffer.getInt();
+            
+            if (count < 0)
+                throw new IOException("Corrupted session snapshot: " + file);
+            
+            Map<String, Session> sessions = new LinkedHashMap<>(
+                    Math.min(count, buffer.remaining() / FIXED_RECORD_SIZE) * 4 / 3 + 1
+            );
+            
+            for (int i = 0; i < count; i++)
+            {
+                long status = buffer.getLong();
+                long inactivityTime = buffer.getLong();
+                String username = decode(buffer, buffer.getShort() & 0xFFFF);
+                short ipLength = buffer.getShort();
+                String ip = (ipLength != NO_IP) ? decode(buffer, ipLength & 0xFFFF) : null;
+                Session session = new Session(ip);
+                
+                session.setStatus(status);
+                session.setInactivityTime(inactivityTime);
+                
+                sessions.put(username, session);
+            }
+            
+            return sessions;
+        }
+        catch (BufferUnderflowException ex)
+        {
+            throw new IOException("Truncated session snapshot: " + file, ex);
+        }
+    }
+    
+    /**
+     * Checks whether a file starts like a session snapshot,
+     * as opposed to a session file of an older format.
+     *
+     * @param file the file.
+     *
+     * @return {@code true} if the file starts with the snapshot magic number.
+     *
+     * @throws IOException              if an I/O error occurred.
+     * @throws IllegalArgumentException if {@code file} is {@code null}.
+     */
+    public static boolean isSnapshot(File file) throws IOException
+    {
+        if (file == null)
+            throw new IllegalArgumentException();
+        
+        try (FileInputStream in = new FileInputStream(file))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            FileChannel channel = in.getChannel();
+            
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer) < 0)
+                    return false;
+            }
+            
+            buffer.flip();
+            
+            return buffer.getInt() == MAGIC;
+        }
+    }
+    
+    private static ByteBuffer readFully(File file) throws IOException
+    {
+        try (FileInputStream in = new FileInputStream(file))
+        {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Session snapshot too large: " + file);
+            
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer) < 0)
+                    break;
+            }
+            
+            buffer.flip();
+            
+            return buffer;
+        }
+    }
+    
+    private static byte[] encode(String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        
+        if (bytes.length >= NO_IP_LENGTH)
+            throw new IOException("String too long for a session snapshot: " + s);
+        
+        return bytes;
+    }
+    
+    private static String decode(ByteBuffer buffer, int length)
+    {
+        if (length > buffer.remaining())
+            throw new BufferUnderflowException();
+        
+        String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        
+        buffer.position(buffer.position() + length);
+        
+        return s;
+    }
+    
+    private static final int MAGIC = 0x4C495353; // "LISS"
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 4;
+    private static final int FIXED_RECORD_SIZE = 8 + 8 + 2 + 2;
+    private static final int NO_IP_LENGTH = 0xFFFF;
+    private static final short NO_IP = (short) NO_IP_LENGTH;
+}
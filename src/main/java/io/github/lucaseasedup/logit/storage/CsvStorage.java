@@ -200,6 +200,20 @@ public final class CsvStorage implements Storage
         return entries;
     }
     
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector,
+            List<String> orderKeys, boolean descending, int limit
+    ) throws IOException
+    {
+        // The order keys need not be among the selected ones.
+        List<StorageEntry> entries = SqlUtils.orderEntries(
+                selectEntries(unit, null, selector), orderKeys, descending, limit
+        );
+        
+        return StorageEntry.copyList(entries, keys, new SelectorConstant(true));
+    }
+    
     @Override
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException
@@ -304,6 +318,15 @@ public final class CsvStorage implements Storage
         }
     }
     
+    @Override
+    public void createIndex(String unit, List<String> keys) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        // CSV units are always scanned in full.
+    }
+    
     @Override
     public void addEntry(String unit, StorageEntry entry) throws IOException
     {
@@ -374,7 +397,7 @@ public final class CsvStorage implements Storage
     }
     
     @Override
-    public void removeEntries(String unit, Selector selector) throws IOException
+    public int removeEntries(String unit, Selector selector) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
@@ -384,6 +407,8 @@ public final class CsvStorage implements Storage
         
         List<StorageEntry> entries = selectEntries(unit);
         
+        int removed = 0;
+        
         removeUnit(unit);
         createUnit(unit, keys, primaryKey);
         
@@ -393,7 +418,13 @@ public final class CsvStorage implements Storage
             {
                 addEntry(unit, entry);
             }
+            else
+            {
+                removed++;
+            }
         }
+        
+        return removed;
     }
     
     @Override
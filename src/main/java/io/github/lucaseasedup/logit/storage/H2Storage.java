@@ -149,7 +149,8 @@ public final class H2Storage implements Storage
     public String getPrimaryKey(String unit) throws IOException
     {
         String sql = "SELECT * FROM INFORMATION_SCHEMA.INDEXES"
-                   + " WHERE TABLE_NAME = '" + SqlUtils.escapeQuotes(unit, "'", true) + "';";
+                   + " WHERE TABLE_NAME = '" + SqlUtils.escapeQuotes(unit, "'", true) + "'"
+                   + " AND PRIMARY_KEY = TRUE;";
         
         try (ResultSet rs = executeQuery(sql))
         {
@@ -234,6 +235,31 @@ public final class H2Storage implements Storage
         }
     }
     
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector,
+            List<String> orderKeys, boolean descending, int limit
+    ) throws IOException
+    {
+        if (limit <= 0)
+            throw new IllegalArgumentException();
+        
+        String sql = "SELECT " + SqlUtils.translateKeyList(keys, "\"")
+                   + " FROM \"" + SqlUtils.escapeQuotes(unit, "\"", true) + "\""
+                   + " WHERE " + SqlUtils.translateSelector(selector, "\"", "'")
+                   + " ORDER BY " + SqlUtils.translateOrder(orderKeys, descending, "\"")
+                   + " LIMIT " + limit + ";";
+        
+        try
+        {
+            return SqlUtils.copyResultSet(executeQuery(sql));
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException
@@ -316,6 +342,24 @@ public final class H2Storage implements Storage
         }
     }
     
+    @Override
+    public void createIndex(String unit, List<String> keys) throws IOException
+    {
+        String sql = "CREATE INDEX IF NOT EXISTS"
+                   + " \"" + SqlUtils.escapeQuotes(SqlUtils.getIndexName(unit, keys), "\"", true) + "\""
+                   + " ON \"" + SqlUtils.escapeQuotes(unit, "\"", true) + "\""
+                   + " (" + SqlUtils.translateKeyList(keys, "\"") + ");";
+        
+        try
+        {
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public void addEntry(String unit, StorageEntry entry)
             throws DuplicateEntryException, IOException
@@ -361,7 +405,7 @@ public final class H2Storage implements Storage
     }
     
     @Override
-    public void removeEntries(String unit, Selector selector) throws IOException
+    public int removeEntries(String unit, Selector selector) throws IOException
     {
         String sql = "DELETE FROM \"" + SqlUtils.escapeQuotes(unit, "\"", true) + "\""
                    + " WHERE " + SqlUtils.translateSelector(selector, "\"", "'") + ";";
@@ -369,6 +413,9 @@ public final class H2Storage implements Storage
         try
         {
             executeStatement(sql);
+            
+            // The number of removed entries is not known until a batch is executed.
+            return (isAutobatchEnabled()) ? -1 : statement.getUpdateCount();
         }
         catch (SQLException ex)
         {
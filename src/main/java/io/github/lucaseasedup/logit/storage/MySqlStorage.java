@@ -251,6 +251,31 @@ public final class MySqlStorage implements Storage
         }
     }
     
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector,
+            List<String> orderKeys, boolean descending, int limit
+    ) throws IOException
+    {
+        if (limit <= 0)
+            throw new IllegalArgumentException();
+        
+        String sql = "SELECT " + SqlUtils.translateKeyList(keys, "`")
+                   + " FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", "'")
+                   + " ORDER BY " + SqlUtils.translateOrder(orderKeys, descending, "`")
+                   + " LIMIT " + limit + ";";
+        
+        try
+        {
+            return SqlUtils.copyResultSet(executeQuery(sql));
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException
@@ -332,6 +357,34 @@ public final class MySqlStorage implements Storage
         }
     }
     
+    @Override
+    public void createIndex(String unit, List<String> keys) throws IOException
+    {
+        String indexName = SqlUtils.getIndexName(unit, keys);
+        
+        // MySQL does not support CREATE INDEX IF NOT EXISTS.
+        String checkSql = "SHOW INDEX FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                        + " WHERE Key_name = '" + SqlUtils.escapeQuotes(indexName, "'", true) + "';";
+        String sql = "CREATE INDEX `" + SqlUtils.escapeQuotes(indexName, "`", true) + "`"
+                   + " ON `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                   + " (" + SqlUtils.translateKeyList(keys, "`") + ");";
+        
+        try
+        {
+            try (ResultSet rs = executeQuery(checkSql))
+            {
+                if (rs.next())
+                    return;
+            }
+            
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public void addEntry(String unit, StorageEntry entry)
             throws DuplicateEntryException, IOException
@@ -378,7 +431,7 @@ public final class MySqlStorage implements Storage
     }
     
     @Override
-    public void removeEntries(String unit, Selector selector) throws IOException
+    public int removeEntries(String unit, Selector selector) throws IOException
     {
         String sql = "DELETE FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
                    + " WHERE " + SqlUtils.translateSelector(selector, "`", "'") + ";";
@@ -386,6 +439,9 @@ public final class MySqlStorage implements Storage
         try
         {
             executeStatement(sql);
+            
+            // The number of removed entries is not known until a batch is executed.
+            return (isAutobatchEnabled()) ? -1 : statement.getUpdateCount();
         }
         catch (SQLException ex)
         {
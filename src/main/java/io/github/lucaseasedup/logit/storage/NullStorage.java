@@ -70,6 +70,15 @@ public final class NullStorage implements Storage
         return new ArrayList<>();
     }
     
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector,
+            List<String> orderKeys, boolean descending, int limit
+    )
+    {
+        return new ArrayList<>();
+    }
+    
     @Override
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
     {
@@ -95,6 +104,11 @@ public final class NullStorage implements Storage
     {
     }
     
+    @Override
+    public void createIndex(String unit, List<String> keys)
+    {
+    }
+    
     @Override
     public void addEntry(String unit, StorageEntry entry)
     {
@@ -108,8 +122,9 @@ public final class NullStorage implements Storage
     }
     
     @Override
-    public void removeEntries(String unit, Selector selector)
+    public int removeEntries(String unit, Selector selector)
     {
+        return 0;
     }
     
     @Override
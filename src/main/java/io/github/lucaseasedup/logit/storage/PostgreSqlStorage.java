@@ -243,6 +243,31 @@ public final class PostgreSqlStorage implements Storage
         }
     }
     
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector,
+            List<String> orderKeys, boolean descending, int limit
+    ) throws IOException
+    {
+        if (limit <= 0)
+            throw new IllegalArgumentException();
+        
+        String sql = "SELECT " + SqlUtils.translateKeyList(keys, "\"")
+                   + " FROM \"" + SqlUtils.escapeQuotes(unit, "\"", true) + "\""
+                   + " WHERE " + SqlUtils.translateSelector(selector, "\"", "'")
+                   + " ORDER BY " + SqlUtils.translateOrder(orderKeys, descending, "\"")
+                   + " LIMIT " + limit + ";";
+        
+        try
+        {
+            return SqlUtils.copyResultSet(executeQuery(sql));
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException
@@ -325,6 +350,35 @@ public final class PostgreSqlStorage implements Storage
         }
     }
     
+    @Override
+    public void createIndex(String unit, List<String> keys) throws IOException
+    {
+        String indexName = SqlUtils.getIndexName(unit, keys);
+        
+        // CREATE INDEX IF NOT EXISTS requires PostgreSQL 9.5.
+        String checkSql = "SELECT indexname FROM pg_indexes"
+                        + " WHERE tablename = '" + SqlUtils.escapeQuotes(unit, "'", true) + "'"
+                        + " AND indexname = '" + SqlUtils.escapeQuotes(indexName, "'", true) + "';";
+        String sql = "CREATE INDEX \"" + SqlUtils.escapeQuotes(indexName, "\"", true) + "\""
+                   + " ON \"" + SqlUtils.escapeQuotes(unit, "\"", true) + "\""
+                   + " (" + SqlUtils.translateKeyList(keys, "\"") + ");";
+        
+        try
+        {
+            try (ResultSet rs = executeQuery(checkSql))
+            {
+                if (rs.next())
+                    return;
+            }
+            
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public void addEntry(String unit, StorageEntry entry)
             throws DuplicateEntryException, IOException
@@ -370,7 +424,7 @@ public final class PostgreSqlStorage implements Storage
     }
     
     @Override
-    public void removeEntries(String unit, Selector selector) throws IOException
+    public int removeEntries(String unit, Selector selector) throws IOException
     {
         String sql = "DELETE FROM \"" + SqlUtils.escapeQuotes(unit, "\"", true) + "\""
                    + " WHERE " + SqlUtils.translateSelector(selector, "\"", "'") + ";";
@@ -378,6 +432,9 @@ public final class PostgreSqlStorage implements Storage
         try
         {
             executeStatement(sql);
+            
+            // The number of removed entries is not known until a batch is executed.
+            return (isAutobatchEnabled()) ? -1 : statement.getUpdateCount();
         }
         catch (SQLException ex)
         {
@@ -2,6 +2,9 @@ package io.github.lucaseasedup.logit.storage;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -12,6 +15,24 @@ public final class SqlUtils
     {
     }
     
+    public static String getIndexName(String unit, List<String> keys)
+    {
+        if (unit == null || keys == null || keys.isEmpty())
+            throw new IllegalArgumentException();
+        
+        StringBuilder sb = new StringBuilder(unit);
+        
+        for (String key : keys)
+        {
+            sb.append("_");
+            sb.append(key);
+        }
+        
+        sb.append("_idx");
+        
+        return sb.toString();
+    }
+    
     public static String escapeQuotes(
             String string, String quote, boolean escapeBackslashes
     )
@@ -85,30 +106,16 @@ public final class SqlUtils
                 }
                 
             case LESS_THAN:
-                try
-                {
-                    long actualLong = Long.parseLong(actualValue);
-                    long operandLong = Long.parseLong(operandValue);
-
-                    return actualLong < operandLong;
-                }
-                catch (NumberFormatException ex)
-                {
+                if (actualValue == null || operandValue == null)
                     return false;
-                }
+                
+                return compareValues(actualValue, operandValue) < 0;
                 
             case GREATER_THAN:
-                try
-                {
-                    long actualLong = Long.parseLong(actualValue);
-                    long operandLong = Long.parseLong(operandValue);
-
-                    return actualLong > operandLong;
-                }
-                catch (NumberFormatException ex)
-                {
+                if (actualValue == null || operandValue == null)
                     return false;
-                }
+                
+                return compareValues(actualValue, operandValue) > 0;
                 
             case STARTS_WITH:
                 return actualValue.startsWith(operandValue);
@@ -134,6 +141,80 @@ public final class SqlUtils
         }
     }
     
+    /**
+     * Sorts entries the way an SQL {@code ORDER BY} clause over the given keys
+     * would, comparing values numerically where both of them are integers,
+     * and returns at most {@code limit} of the first entries.
+     * 
+     * @param entries    the entries to be sorted.
+     * @param orderKeys  the keys to sort by, most significant first.
+     * @param descending whether to sort in descending order.
+     * @param limit      the maximum number of entries to return.
+     * 
+     * @return a new list of the sorted entries.
+     * 
+     * @throws IllegalArgumentException if {@code entries} or {@code orderKeys}
+     *                                  is {@code null}, or {@code limit}
+     *                                  is not positive.
+     */
+    public static List<StorageEntry> orderEntries(
+            List<StorageEntry> entries,
+            final List<String> orderKeys,
+            final boolean descending,
+            int limit
+    )
+    {
+        if (entries == null || orderKeys == null || limit <= 0)
+            throw new IllegalArgumentException();
+        
+        List<StorageEntry> ordered = new ArrayList<>(entries);
+        
+        Collections.sort(ordered, new Comparator<StorageEntry>()
+        {
+            @Override
+            public int compare(StorageEntry o1, StorageEntry o2)
+            {
+                for (String key : orderKeys)
+                {
+                    int result = compareValues(o1.get(key), o2.get(key));
+                    
+                    if (result != 0)
+                        return (descending) ? -result : result;
+                }
+                
+                return 0;
+            }
+        });
+        
+        if (ordered.size() > limit)
+        {
+            ordered = new ArrayList<>(ordered.subList(0, limit));
+        }
+        
+        return ordered;
+    }
+    
+    private static int compareValues(String value1, String value2)
+    {
+        if (value1 == null)
+            value1 = "";
+        
+        if (value2 == null)
+            value2 = "";
+        
+        try
+        {
+            long long1 = Long.parseLong(value1);
+            long long2 = Long.parseLong(value2);
+            
+            return (long1 < long2) ? -1 : ((long1 == long2) ? 0 : 1);
+        }
+        catch (NumberFormatException ex)
+        {
+            return value1.compareTo(value2);
+        }
+    }
+    
     public static List<StorageEntry> copyResultSet(ResultSet rs)
             throws SQLException
     {
@@ -384,6 +465,31 @@ public final class SqlUtils
         return sb.toString();
     }
     
+    public static String translateOrder(
+            List<String> orderKeys, boolean descending, String columnQuote
+    )
+    {
+        if (orderKeys == null || orderKeys.isEmpty() || columnQuote == null)
+            throw new IllegalArgumentException();
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (String key : orderKeys)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            
+            sb.append(columnQuote);
+            sb.append(escapeQuotes(key, columnQuote, true));
+            sb.append(columnQuote);
+            sb.append((descending) ? " DESC" : " ASC");
+        }
+        
+        return sb.toString();
+    }
+    
     public static String translateKeyTypeList(
             UnitKeys keys, String primaryKey, String columnQuote
     )
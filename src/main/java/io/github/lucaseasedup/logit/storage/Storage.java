@@ -30,6 +30,10 @@ public interface Storage extends AutoCloseable
     public List<StorageEntry> selectEntries(
             String unit, List<String> keys, Selector selector
     ) throws IOException;
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector,
+            List<String> orderKeys, boolean descending, int limit
+    ) throws IOException;
     
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException;
@@ -42,12 +46,14 @@ public interface Storage extends AutoCloseable
     
     public void addKey(String unit, String key, DataType type)
             throws IOException;
+    public void createIndex(String unit, List<String> keys)
+            throws IOException;
     public void addEntry(String unit, StorageEntry entry)
             throws DuplicateEntryException, IOException;
     public void updateEntries(
             String unit, StorageEntry entrySubset, Selector selector
     ) throws IOException;
-    public void removeEntries(String unit, Selector selector)
+    public int removeEntries(String unit, Selector selector)
             throws IOException;
     
     public boolean isAutobatchEnabled();
@@ -0,0 +1,620 @@
+package io.github.lucaseasedup.logit.storage;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.config.TimeUnit;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import org.apache.commons.lang.StringUtils;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Keeps the caches of several servers sharing one storage coherent.
+ *
+ * <p> Every change this server makes to a watched unit is appended
+ * to a change-log unit as a (unit, primary key, version) row,
+ * in the same batch as the change itself. The change log is polled
+ * in the background for rows appended by other servers. The affected
+ * entries are reloaded into the preloaded cache of the storage,
+ * and the listeners are notified on the server thread, so that they can
+ * invalidate whatever they have cached.
+ *
+ * <p> A version is never lower than the time of the change it describes,
+ * and is always higher than any version previously known for the entry.
+ * Times and versions are stored as zero-padded text, since
+ * {@link DataType#INTEGER} may be too narrow to hold them.
+ */
+public final class StorageChangeLog extends LogItCoreObject implements Runnable
+{
+    /**
+     * Constructs a new {@code StorageChangeLog}.
+     *
+     * @param storage the storage whose changes will be logged.
+     * @param unit    the name of a unit eligible for the change log.
+     *                It will be created if it does not exist.
+     *
+     * @throws IOException if the unit could not be created.
+     */
+    public StorageChangeLog(WrapperStorage storage, String unit)
+            throws IOException
+    {
+        if (storage == null || unit == null)
+            throw new IllegalArgumentException();
+        
+        UnitKeys keys = new UnitKeys();
+        
+        keys.put(KEY_ID,           DataType.TINYTEXT);
+        keys.put(KEY_TIME,         DataType.TINYTEXT);
+        keys.put(KEY_NODE,         DataType.TINYTEXT);
+        keys.put(KEY_UNIT,         DataType.TINYTEXT);
+        keys.put(KEY_ENTRY,        DataType.TINYTEXT);
+        keys.put(KEY_OPERATION,    DataType.TINYTEXT);
+        keys.put(KEY_CHANGED_KEYS, DataType.TEXT);
+        keys.put(KEY_VERSION,      DataType.TINYTEXT);
+        
+        storage.createUnit(unit, keys, KEY_ID);
+        storage.addObserver(observer);
+        
+        this.storage = storage;
+        this.unit = unit;
+        this.node = UUID.randomUUID().toString().replace("-", "");
+        this.retention = getConfig("secret.yml")
+                .getTime("changeLog.retention", TimeUnit.MILLISECONDS);
+        this.cursor = System.currentTimeMillis();
+    }
+    
+    @Override
+    public void dispose()
+    {
+        if (storage != null)
+        {
+            storage.deleteObserver(observer);
+            storage = null;
+        }
+        
+        listeners.clear();
+        watchedUnits.clear();
+        versions.clear();
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public void run()
+    {
+        Poll poll = finishedPoll.getAndSet(null);
+        
+        if (poll != null)
+        {
+            polling = false;
+            
+            apply(poll);
+        }
+        
+        if (!polling && storage != null)
+        {
+            startPoll();
+        }
+    }
+    
+    /**
+     * Starts logging the changes made to a unit.
+     *
+     * @param unit       the unit name.
+     * @param primaryKey the primary key of the unit.
+     */
+    public void watchUnit(String unit, String primaryKey)
+    {
+        if (unit == null || primaryKey == null)
+            throw new IllegalArgumentException();
+        
+        watchedUnits.put(unit, primaryKey);
+    }
+    
+    public void addListener(Listener listener)
+    {
+        if (listener == null)
+            throw new IllegalArgumentException();
+        
+        if (!listeners.contains(listener))
+        {
+            listeners.add(listener);
+        }
+    }
+    
+    public void removeListener(Listener listener)
+    {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Returns the latest version of an entry known to this server.
+     *
+     * @param unit the unit name.
+     * @param key  the primary key of the entry.
+     *
+     * @return the version, or {@code 0} if no recent change is known.
+     */
+    public long getVersion(String unit, String key)
+    {
+        if (unit == null || key == null)
+            throw new IllegalArgumentException();
+        
+        Long version = versions.get(unit + ":" + key);
+        
+        return (version != null) ? version : 0;
+    }
+    
+    /**
+     * Looks up the changes other servers have made to the given entries
+     * since the given versions.
+     *
+     * <p> This method performs I/O immediately and is meant to be called
+     * right before writing the entries, with the storage locked,
+     * to detect concurrent updates.
+     *
+     * @param unit         the unit name.
+     * @param baseVersions the versions the entries were read at,
+     *                     keyed by primary key.
+     *
+     * @return the keys changed by other servers, for every entry that
+     *         has been changed. A set containing {@link #ALL} means that
+     *         the whole entry has been replaced or removed.
+     *
+     * @throws IOException if the change log could not be read.
+     */
+    public Map<String, Set<String>> selectForeignChanges(
+            String unit, Map<String, Long> baseVersions
+    ) throws IOException
+    {
+        if (unit == null || baseVersions == null)
+            throw new IllegalArgumentException();
+        
+        Map<String, Set<String>> changes = new HashMap<>();
+        
+        if (baseVersions.isEmpty() || storage == null)
+            return changes;
+        
+        long minBaseVersion = Collections.min(baseVersions.values());
+        List<StorageEntry> entries = storage.selectEntries(this.unit,
+                Arrays.asList(KEY_NODE, KEY_ENTRY, KEY_CHANGED_KEYS, KEY_VERSION),
+                new SelectorBinary(
+                        new SelectorCondition(KEY_UNIT, Infix.EQUALS, unit),
+                        Infix.AND,
+                        new SelectorCondition(KEY_VERSION, Infix.GREATER_THAN,
+                                pad(minBaseVersion))
+                ));
+        
+        for (StorageEntry entry : entries)
+        {
+            if (node.equals(entry.get(KEY_NODE)))
+                continue;
+            
+            String entryKey = entry.get(KEY_ENTRY);
+            long version = Long.parseLong(entry.get(KEY_VERSION));
+            Collection<String> affectedKeys;
+            
+            if (ALL.equals(entryKey))
+            {
+                affectedKeys = baseVersions.keySet();
+            }
+            else if (baseVersions.containsKey(entryKey))
+            {
+                affectedKeys = Arrays.asList(entryKey);
+            }
+            else
+            {
+                continue;
+            }
+            
+            for (String affectedKey : affectedKeys)
+            {
+                if (version <= baseVersions.get(affectedKey))
+                    continue;
+                
+                Set<String> changedKeys = changes.get(affectedKey);
+                
+                if (changedKeys == null)
+                {
+                    changedKeys = new HashSet<>();
+                    changes.put(affectedKey, changedKeys);
+                }
+                
+                changedKeys.addAll(Arrays.asList(
+                        StringUtils.split(entry.get(KEY_CHANGED_KEYS), ',')
+                ));
+            }
+        }
+        
+        return changes;
+    }
+    
+    public String getNode()
+    {
+        return node;
+    }
+    
+    /**
+     * Appends a change made by this server. Called from the observer,
+     * with the storage locked, so the row joins the batch of the change.
+     */
+    private void append(
+            String changedUnit, String key, Operation operation, String changedKeys
+    )
+    {
+        if (key == null)
+        {
+            key = ALL;
+        }
+        
+        long now = System.currentTimeMillis();
+        String versionKey = changedUnit + ":" + key;
+        Long knownVersion = versions.get(versionKey);
+        long version = Math.max(now, (knownVersion != null) ? knownVersion + 1 : 0);
+        
+        versions.put(versionKey, version);
+        
+        try
+        {
+            storage.addEntry(unit, new StorageEntry.Builder()
+                    .put(KEY_ID, node + ":" + sequence.incrementAndGet())
+                    .put(KEY_TIME, pad(now))
+                    .put(KEY_NODE, node)
+                    .put(KEY_UNIT, changedUnit)
+                    .put(KEY_ENTRY, key)
+                    .put(KEY_OPERATION, operation.name())
+                    .put(KEY_CHANGED_KEYS, changedKeys)
+                    .put(KEY_VERSION, pad(version))
+                    .build());
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, "Could not append to the change log", ex);
+        }
+    }
+    
+    /**
+     * Selects the changes appended by other servers in the background.
+     */
+    private void startPoll()
+    {
+        final WrapperStorage storage = this.storage;
+        final long since = cursor - POLL_OVERLAP;
+        final long now = System.currentTimeMillis();
+        final boolean prune = now - lastPruneTime >= PRUNE_INTERVAL;
+        
+        polling = true;
+        
+        if (prune)
+        {
+            lastPruneTime = now;
+        }
+        
+        new BukkitRunnable()
+        {
+            @Override
+            public void run()
+            {
+                List<Change> changes = new ArrayList<>();
+                long maxTime = since + POLL_OVERLAP;
+                
+                try
+                {
+                    synchronized (storage)
+                    {
+                        List<StorageEntry> entries = storage.selectEntries(unit,
+                                new SelectorCondition(KEY_TIME, Infix.GREATER_THAN,
+                                        pad(since)));
+                        
+                        for (StorageEntry entry : entries)
+                        {
+                            long time = Long.parseLong(entry.get(KEY_TIME));
+                            
+                            maxTime = Math.max(maxTime, time);
+                            
+                            if (node.equals(entry.get(KEY_NODE))
+                                    || seenIds.put(entry.get(KEY_ID), time) != null)
+                            {
+                                continue;
+                            }
+                            
+                            Change change = new Change(
+                                    entry.get(KEY_UNIT),
+                                    entry.get(KEY_ENTRY),
+                                    Operation.valueOf(entry.get(KEY_OPERATION)),
+                                    Long.parseLong(entry.get(KEY_VERSION))
+                            );
+                            
+                            reload(storage, change);
+                            changes.add(change);
+                        }
+                        
+                        if (prune)
+                        {
+                            storage.removeEntries(unit, new SelectorCondition(
+                                    KEY_TIME, Infix.LESS_THAN, pad(now - retention)
+                            ));
+                        }
+                    }
+                }
+                catch (IOException | RuntimeException ex)
+                {
+                    log(Level.WARNING, "Could not poll the change log", ex);
+                }
+                
+                Iterator<Long> it = seenIds.values().iterator();
+                
+                while (it.hasNext())
+                {
+                    if (it.next() <= since)
+                    {
+                        it.remove();
+                    }
+                }
+                
+                finishedPoll.set(new Poll(changes, maxTime, prune ? now : 0));
+            }
+        }.runTaskAsynchronously(getPlugin());
+    }
+    
+    /**
+     * Refreshes the preloaded entries affected by a change.
+     */
+    private void reload(WrapperStorage storage, Change change) throws IOException
+    {
+        String primaryKey = watchedUnits.get(change.unit);
+        
+        if (primaryKey == null)
+            return;
+        
+        if (change.key == null)
+        {
+            storage.reload(change.unit, new SelectorConstant(true));
+        }
+        else
+        {
+            storage.reload(change.unit,
+                    new SelectorCondition(primaryKey, Infix.EQUALS, change.key));
+        }
+    }
+    
+    private void apply(Poll poll)
+    {
+        cursor = Math.max(cursor, poll.maxTime);
+        
+        if (poll.pruneTime > 0)
+        {
+            Iterator<Long> it = versions.values().iterator();
+            
+            while (it.hasNext())
+            {
+                if (it.next() < poll.pruneTime - retention)
+                {
+                    it.remove();
+                }
+            }
+        }
+        
+        for (Change change : poll.changes)
+        {
+            String versionKey = change.unit + ":"
+                    + ((change.key != null) ? change.key : ALL);
+            Long knownVersion = versions.get(versionKey);
+            
+            if (knownVersion == null || knownVersion < change.version)
+            {
+                versions.put(versionKey, change.version);
+            }
+            
+            if (!watchedUnits.containsKey(change.unit))
+                continue;
+            
+            for (Listener listener : new ArrayList<>(listeners))
+            {
+                listener.entryChanged(change.unit, change.key, change.operation);
+            }
+        }
+    }
+    
+    private static String pad(long value)
+    {
+        return String.format("%019d", Math.max(0, value));
+    }
+    
+    /**
+     * Returns the primary-key value matched by a selector of the form
+     * <i>primaryKey = value</i>, or {@code null} if the selector
+     * is of any other form.
+     */
+    private static String getSelectedKey(Selector selector, String primaryKey)
+    {
+        if (!(selector instanceof SelectorCondition))
+            return null;
+        
+        SelectorCondition condition = (SelectorCondition) selector;
+        
+        if (!condition.getKey().equals(primaryKey)
+                || condition.getRelation() != Infix.EQUALS)
+        {
+            return null;
+        }
+        
+        return condition.getValue();
+    }
+    
+    public static enum Operation
+    {
+        ADD, UPDATE, REMOVE;
+    }
+    
+    public static interface Listener
+    {
+        /**
+         * Called on the server thread after another server
+         * has changed an entry of a watched unit.
+         *
+         * @param unit      the unit name.
+         * @param key       the primary key of the entry, or {@code null}
+         *                  if any entry of the unit might have changed.
+         * @param operation the kind of change.
+         */
+        public void entryChanged(String unit, String key, Operation operation);
+    }
+    
+    private static final class Change
+    {
+        private Change(String unit, String key, Operation operation, long version)
+        {
+            this.unit = unit;
+            this.key = ALL.equals(key) ? null : key;
+            this.operation = operation;
+            this.version = version;
+        }
+        
+        private final String unit;
+        private final String key;
+        private final Operation operation;
+        private final long version;
+    }
+    
+    private static final class Poll
+    {
+        private Poll(List<Change> changes, long maxTime, long pruneTime)
+        {
+            this.changes = changes;
+            this.maxTime = maxTime;
+            this.pruneTime = pruneTime;
+        }
+        
+        private final List<Change> changes;
+        private final long maxTime;
+        private final long pruneTime;
+    }
+    
+    /**
+     * Recommended task period of {@code StorageChangeLog}
+     * running as a Bukkit task.
+     */
+    public static final long TASK_PERIOD =
+            TimeUnit.SECONDS.convertTo(1, TimeUnit.TICKS);
+    
+    /**
+     * Marks a change of all entries, or of all keys of an entry.
+     */
+    public static final String ALL = "*";
+    
+    /**
+     * How far back each poll looks past the newest change seen so far,
+     * to catch changes committed late or stamped by a clock running behind.
+     */
+    private static final long POLL_OVERLAP =
+            TimeUnit.SECONDS.convertTo(5, TimeUnit.MILLISECONDS);
+    private static final long PRUNE_INTERVAL =
+            TimeUnit.MINUTES.convertTo(1, TimeUnit.MILLISECONDS);
+    
+    private static final String KEY_ID = "id";
+    private static final String KEY_TIME = "time";
+    private static final String KEY_NODE = "node";
+    private static final String KEY_UNIT = "changed_unit";
+    private static final String KEY_ENTRY = "entry_key";
+    private static final String KEY_OPERATION = "operation";
+    private static final String KEY_CHANGED_KEYS = "changed_keys";
+    private static final String KEY_VERSION = "version";
+    
+    private WrapperStorage storage;
+    private final String unit;
+    private final String node;
+    private final long retention;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, String> watchedUnits = new ConcurrentHashMap<>();
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new ArrayList<>();
+    
+    /**
+     * Ids of the recently polled changes; used only by the poll task.
+     */
+    private final Map<String, Long> seenIds = new HashMap<>();
+    private final AtomicReference<Poll> finishedPoll = new AtomicReference<>();
+    private boolean polling = false;
+    private long cursor;
+    private long lastPruneTime = 0;
+    
+    private final StorageObserver observer = new StorageObserver()
+    {
+        @Override
+        public void afterEraseUnit(String unit)
+        {
+            if (watchedUnits.containsKey(unit))
+            {
+                append(unit, ALL, Operation.REMOVE, ALL);
+            }
+        }
+        
+        @Override
+        public void afterRemoveUnit(String unit)
+        {
+            afterEraseUnit(unit);
+        }
+        
+        @Override
+        public void afterAddEntry(String unit, StorageEntry entry)
+        {
+            String primaryKey = watchedUnits.get(unit);
+            
+            if (primaryKey == null)
+                return;
+            
+            append(unit, entry.get(primaryKey), Operation.ADD, ALL);
+        }
+        
+        @Override
+        public void afterUpdateEntries(
+                String unit, StorageEntry entrySubset, Selector selector
+        )
+        {
+            String primaryKey = watchedUnits.get(unit);
+            
+            if (primaryKey == null)
+                return;
+            
+            String key = getSelectedKey(selector, primaryKey);
+            String newKey = entrySubset.get(primaryKey);
+            
+            if (newKey != null && !newKey.equals(key))
+            {
+                append(unit, key, Operation.REMOVE, ALL);
+                append(unit, newKey, Operation.ADD, ALL);
+            }
+            else
+            {
+                append(unit, key, Operation.UPDATE,
+                        StringUtils.join(entrySubset.getKeys(), ','));
+            }
+        }
+        
+        @Override
+        public void afterRemoveEntries(String unit, Selector selector)
+        {
+            String primaryKey = watchedUnits.get(unit);
+            
+            if (primaryKey == null)
+                return;
+            
+            append(unit, getSelectedKey(selector, primaryKey), Operation.REMOVE, ALL);
+        }
+    };
+}
@@ -60,9 +60,30 @@ public final class StorageEntry implements Iterable<StorageDatum>
         if (oldValue == null || !oldValue.equals(value))
         {
             dirtyKeys.add(key);
+            
+            if (dirtyListener != null)
+            {
+                dirtyListener.onKeyDirty(key);
+            }
         }
     }
     
+    /**
+     * Puts a value that is already in the storage, such as one just read
+     * from it. The key is left clean and the dirty listener is not notified.
+     * 
+     * @param key   the key.
+     * @param value the value.
+     */
+    public void putClean(String key, String value)
+    {
+        if (StringUtils.isBlank(key))
+            throw new IllegalArgumentException();
+        
+        backend.put(key, (value == null) ? "" : value);
+        dirtyKeys.remove(key);
+    }
+    
     public Set<String> getKeys()
     {
         return backend.keySet();
@@ -113,6 +134,18 @@ public final class StorageEntry implements Iterable<StorageDatum>
         dirtyKeys.remove(key);
     }
     
+    /**
+     * Sets a listener to be notified whenever a key in this entry
+     * becomes dirty.
+     * 
+     * @param listener the listener, or {@code null} to remove
+     *                 the current one.
+     */
+    public void setDirtyListener(DirtyListener listener)
+    {
+        dirtyListener = listener;
+    }
+    
     @Override
     public Iterator<StorageDatum> iterator()
     {
@@ -208,6 +241,16 @@ public final class StorageEntry implements Iterable<StorageDatum>
         private final Iterator<Map.Entry<String, String>> it;
     }
     
+    public static interface DirtyListener
+    {
+        /**
+         * Called after the value of a key has been changed.
+         * 
+         * @param key the key that became dirty.
+         */
+        public void onKeyDirty(String key);
+    }
+    
     public static final class Builder
     {
         public Builder put(String key, String value)
@@ -243,4 +286,5 @@ public final class StorageEntry implements Iterable<StorageDatum>
     
     private Map<String, String> backend = new LinkedHashMap<>();
     private final Set<String> dirtyKeys = new HashSet<>();
+    private DirtyListener dirtyListener;
 }
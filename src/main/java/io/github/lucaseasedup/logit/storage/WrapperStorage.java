@@ -152,7 +152,7 @@ public final class WrapperStorage implements Storage
     {
         log(CustomLevel.INTERNAL, "WrapperStorage#getKeys(\"" + unit + "\")");
         
-        if (cacheType == CacheType.DISABLED)
+        if (!isPreloaded(unit))
         {
             return leading.getKeys(unit);
         }
@@ -171,7 +171,7 @@ public final class WrapperStorage implements Storage
     {
         log(CustomLevel.INTERNAL, "WrapperStorage#getPrimaryKey(\"" + unit + "\")");
         
-        if (cacheType == CacheType.DISABLED)
+        if (!isPreloaded(unit))
         {
             return leading.getPrimaryKey(unit);
         }
@@ -191,7 +191,7 @@ public final class WrapperStorage implements Storage
     {
         log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries(\"" + unit + "\")");
         
-        if (cacheType == CacheType.DISABLED)
+        if (!isPreloaded(unit))
         {
             return leading.selectEntries(unit);
         }
@@ -219,7 +219,7 @@ public final class WrapperStorage implements Storage
                 + "\"" + unit + "\", "
                 + SqlUtils.translateSelector(selector, "`", "'") + ")");
         
-        if (cacheType == CacheType.DISABLED)
+        if (!isPreloaded(unit))
         {
             return leading.selectEntries(unit, selector);
         }
@@ -249,7 +249,7 @@ public final class WrapperStorage implements Storage
                 + "\"" + unit + "\", "
                 + Arrays.toString(keys.toArray()) + ")");
         
-        if (cacheType == CacheType.DISABLED)
+        if (!isPreloaded(unit))
         {
             return leading.selectEntries(unit, keys);
         }
@@ -280,7 +280,7 @@ public final class WrapperStorage implements Storage
                 + Arrays.toString(keys.toArray()) + ", "
                 + SqlUtils.translateSelector(selector, "`", "'") + ")");
         
-        if (cacheType == CacheType.DISABLED)
+        if (!isPreloaded(unit))
         {
             return leading.selectEntries(unit, keys, selector);
         }
@@ -301,6 +301,48 @@ public final class WrapperStorage implements Storage
         }
     }
     
+    @Override
+    public synchronized List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector,
+            List<String> orderKeys, boolean descending, int limit
+    ) throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
+                + "\"" + unit + "\", "
+                + Arrays.toString(keys.toArray()) + ", "
+                + SqlUtils.translateSelector(selector, "`", "'") + ", "
+                + Arrays.toString(orderKeys.toArray()) + ", "
+                + descending + ", "
+                + limit + ")");
+        
+        if (!isPreloaded(unit))
+        {
+            return leading.selectEntries(
+                    unit, keys, selector, orderKeys, descending, limit
+            );
+        }
+        else if (cacheType == CacheType.PRELOADED)
+        {
+            List<StorageEntry> entries = preloadedCache.get(unit).getEntryList();
+            
+            if (entries == null)
+                return null;
+            
+            entries = SqlUtils.orderEntries(
+                    StorageEntry.copyList(entries, selector),
+                    orderKeys, descending, limit
+            );
+            
+            return StorageEntry.copyList(
+                    entries, keys, new SelectorConstant(true)
+            );
+        }
+        else
+        {
+            throw new RuntimeException("Unsupported cache type: " + cacheType);
+        }
+    }
+    
     @Override
     public synchronized void createUnit(
             String unit, final UnitKeys keys, final String primaryKey
@@ -312,6 +354,11 @@ public final class WrapperStorage implements Storage
                         + CollectionUtils.toString(keys.keySet())
                 + "]})");
         
+        // A unit that already exists may hold entries that have not
+        // been preloaded, so it has to keep being read from the leading storage.
+        boolean existed = cacheType == CacheType.PRELOADED
+                && leading.getUnitNames().contains(unit);
+        
         leading.createUnit(unit, keys, primaryKey);
         
         walkMirrors(new UnitWalker()
@@ -325,7 +372,7 @@ public final class WrapperStorage implements Storage
         
         if (cacheType == CacheType.PRELOADED)
         {
-            if (!preloadedCache.containsKey(unit))
+            if (!existed && !preloadedCache.containsKey(unit))
             {
                 PreloadedUnitCache unitCache = new PreloadedUnitCache(
                         keys, primaryKey, new LinkedList<StorageEntry>()
@@ -488,6 +535,26 @@ public final class WrapperStorage implements Storage
         }
     }
     
+    @Override
+    public synchronized void createIndex(String unit, final List<String> keys)
+            throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#createIndex("
+                + "\"" + unit + "\", "
+                + Arrays.toString(keys.toArray()) + ")");
+        
+        leading.createIndex(unit, keys);
+        
+        walkMirrors(new UnitWalker()
+        {
+            @Override
+            public void walk(Storage storage, String unit) throws IOException
+            {
+                storage.createIndex(unit, keys);
+            }
+        }, unit);
+    }
+    
     @Override
     public synchronized void addEntry(
             String unit, final StorageEntry entry
@@ -567,7 +634,7 @@ public final class WrapperStorage implements Storage
     }
     
     @Override
-    public synchronized void removeEntries(
+    public synchronized int removeEntries(
             String unit, final Selector selector
     ) throws IOException
     {
@@ -575,7 +642,7 @@ public final class WrapperStorage implements Storage
                 + "\"" + unit + "\", "
                 + SqlUtils.translateSelector(selector, "`", "'") + ")");
         
-        leading.removeEntries(unit, selector);
+        int removed = leading.removeEntries(unit, selector);
         
         walkMirrors(new UnitWalker()
         {
@@ -609,6 +676,8 @@ public final class WrapperStorage implements Storage
         {
             observer.afterRemoveEntries(unit, selector);
         }
+        
+        return removed;
     }
     
     @Override
@@ -718,11 +787,60 @@ public final class WrapperStorage implements Storage
         return observers.size();
     }
     
+    /**
+     * Replaces the preloaded entries matching a selector with their
+     * current state in the leading storage. Used when the entries
+     * have been changed by another server.
+     * 
+     * <p> Units that have not been preloaded are left alone.
+     * 
+     * @param unit     the unit name.
+     * @param selector the selector of the entries to be reloaded.
+     * 
+     * @throws IOException if the entries could not be selected.
+     */
+    public synchronized void reload(String unit, Selector selector)
+            throws IOException
+    {
+        if (unit == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        if (!isPreloaded(unit))
+            return;
+        
+        log(CustomLevel.INTERNAL, "WrapperStorage#reload("
+                + "\"" + unit + "\", "
+                + SqlUtils.translateSelector(selector, "`", "'") + ")");
+        
+        List<StorageEntry> entries = leading.selectEntries(unit, selector);
+        Iterator<StorageEntry> entryIt =
+                preloadedCache.get(unit).getEntryList().iterator();
+        
+        while (entryIt.hasNext())
+        {
+            if (SqlUtils.resolveSelector(selector, entryIt.next()))
+            {
+                entryIt.remove();
+            }
+        }
+        
+        preloadedCache.get(unit).getEntryList().addAll(entries);
+    }
+    
     public Storage getLeadingStorage()
     {
         return leading;
     }
     
+    /**
+     * Checks whether a unit is served from the preloaded cache.
+     * Units that have not been preloaded are read from the leading storage.
+     */
+    private boolean isPreloaded(String unit)
+    {
+        return cacheType == CacheType.PRELOADED && preloadedCache.containsKey(unit);
+    }
+    
     private void walkMirrors(final UnitWalker walker, final String unit)
     {
         executorService.submit(new Runnable()